@@ -0,0 +1,121 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.util.IOHelper;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rwmckean.common.jms.pool.ConnectionPool;
+
+/**
+ * Starts an embedded ActiveMQ broker, reached over vm://, for each trial so
+ * the benchmarks run offline and without network noise. The broker has a
+ * KahaDB store in a temporary directory, so persistent runs pay for real
+ * journal writes.
+ * <p/>
+ * The {@link Path#POOLED} and {@link Path#JMS_TEMPLATE} paths create a
+ * consumer per unit of work and so use a prefetch of zero, as
+ * spring-context.xml does; {@link Path#RAW} keeps ActiveMQ's default.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractBrokerBenchmark {
+    /**
+     * The client stacks being compared. QueueConnectionFactory itself needs
+     * an MQ queue manager, so POOLED drives its {@link ConnectionPool}
+     * directly over ActiveMQ connections.
+     */
+    public enum Path {
+        RAW, POOLED, JMS_TEMPLATE
+    }
+
+    private static final String BROKER_NAME = "benchmark";
+
+    @Param({"RAW", "POOLED", "JMS_TEMPLATE"})
+    public Path path;
+
+    @Param({"128", "4096", "65536"})
+    public int messageSize;
+
+    @Param({"false", "true"})
+    public boolean persistent;
+
+    protected Queue queue;
+    protected byte[] payload;
+    private BrokerService broker;
+    private File dataDirectory;
+    private ActiveMQConnectionFactory rawFactory;
+    private ActiveMQConnectionFactory pullFactory;
+    private ConnectionPool pool;
+
+    @Setup(Level.Trial)
+    public void startBroker() throws Exception {
+        dataDirectory = Files.createTempDirectory("jms-benchmark").toFile();
+        broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        broker.setUseJmx(false);
+        broker.setAdvisorySupport(false);
+        broker.setPersistent(true);
+        broker.setDataDirectoryFile(dataDirectory);
+        broker.getSystemUsage().getMemoryUsage().setLimit(256L * 1024 * 1024);
+        broker.start();
+        broker.waitUntilStarted();
+
+        String url = "vm://" + BROKER_NAME + "?create=false";
+        rawFactory = new ActiveMQConnectionFactory(url);
+        pullFactory = new ActiveMQConnectionFactory(url);
+        pullFactory.getPrefetchPolicy().setQueuePrefetch(0);
+        pool = new ConnectionPool(pullFactory::createQueueConnection);
+        pool.setMaxConnections(4);
+
+        queue = new ActiveMQQueue("BENCHMARK." + getClass().getSimpleName());
+        payload = new byte[messageSize];
+        new Random(42).nextBytes(payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopBroker() throws Exception {
+        pool.close();
+        broker.stop();
+        broker.waitUntilStopped();
+        IOHelper.deleteFile(dataDirectory);
+    }
+
+    protected int deliveryMode() {
+        return persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+    }
+
+    /**
+     * @return a factory with ActiveMQ's default prefetch, for helpers that
+     *         sit outside the path being measured
+     */
+    protected ConnectionFactory rawFactory() {
+        return rawFactory;
+    }
+
+    protected Client newClient(int ackMode, int batchSize) throws JMSException {
+        switch (path) {
+        case RAW:
+            return new RawClient(rawFactory, queue, deliveryMode(), ackMode, batchSize);
+        case POOLED:
+            return new PooledClient(pool, queue, deliveryMode(), ackMode, batchSize);
+        case JMS_TEMPLATE:
+            return new TemplateClient(pullFactory, queue, deliveryMode(), ackMode);
+        default:
+            throw new IllegalArgumentException("Unknown path " + path);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.rwmckean.common.jms.benchmark;
+
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+/**
+ * One benchmark thread's view of a send/receive path. Implementations keep
+ * whatever JMS objects their path would keep in real use, and complete work
+ * (commit or acknowledge) every batchSize messages.
+ */
+interface Client extends AutoCloseable {
+    void send(byte[] payload) throws JMSException;
+
+    /**
+     * @return false if nothing arrived within the timeout
+     */
+    boolean receive(long timeout) throws JMSException;
+
+    @Override
+    void close() throws JMSException;
+
+    /**
+     * JMH may stop the broker before every thread has torn down its state,
+     * so a failed close at the end of a trial is expected.
+     */
+    static void closeQuietly(Client client) {
+        try {
+            client.close();
+        } catch (JMSException | RuntimeException ex) {
+            // the client is being discarded anyway
+        }
+    }
+
+    static boolean isTransacted(int ackMode) {
+        return ackMode == Session.SESSION_TRANSACTED;
+    }
+}
@@ -0,0 +1,106 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.rwmckean.common.jms.dedupe.DedupeCache;
+
+/**
+ * Checks the figures {@link DedupeCache} is sized by. Sizes an off-heap
+ * cache for 10,000,000 keys, which must take no more than 268,435,456 bytes
+ * of direct memory, then adds 10,000,000 distinct keys and looks every one
+ * up again, which must find them all without an early rotation. Finally a
+ * key added to a cache with a 300 ms time to live must still be held just
+ * before 300 ms and gone by 4/3 of it, plus some scheduling slack.
+ * <p/>
+ * Run with {@code java -XX:MaxDirectMemorySize=512m -cp target/benchmarks.jar
+ * org.rwmckean.common.jms.benchmark.DedupeCheck}; the exit status is
+ * non-zero if any check fails.
+ */
+public final class DedupeCheck {
+    private static final int KEYS = 10_000_000;
+    private static final long MAX_MEMORY = 268_435_456L;
+    private static final long TTL = 300;
+    private static final long HELD_AT = 280;
+    private static final long GONE_AT = TTL * 4 / 3 + 50;
+
+    private DedupeCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = memoryAndFalseNegatives();
+        passed &= timeToLive(false);
+        passed &= timeToLive(true);
+        System.out.println(passed ? "All checks passed" : "Some checks FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean memoryAndFalseNegatives() {
+        long directBefore = directMemoryUsed();
+        DedupeCache cache = new DedupeCache(KEYS, TimeUnit.MINUTES.toMillis(10), true);
+        long direct = directMemoryUsed() - directBefore;
+        boolean memoryPassed = cache.getMemorySize() <= MAX_MEMORY && direct <= MAX_MEMORY;
+        System.out.printf("memory: %,d bytes reported, %,d bytes of direct memory allocated%s%n",
+                cache.getMemorySize(), direct, memoryPassed ? "" : " FAILED");
+
+        StringBuilder key = new StringBuilder(16);
+        long begin = System.nanoTime();
+        int collisions = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (!cache.add(key(key, i))) {
+                collisions++;
+            }
+        }
+        long addMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        int missing = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (!cache.contains(key(key, i))) {
+                missing++;
+            }
+        }
+        boolean keysPassed = missing == 0 && cache.getEarlyRotationCount() == 0;
+        System.out.printf("keys: %,d added in %d ms, %d false negatives, %d fingerprint collisions, "
+                + "%d early rotations%s%n", KEYS, addMillis, missing, collisions, cache.getEarlyRotationCount(),
+                keysPassed ? "" : " FAILED");
+        return memoryPassed && keysPassed;
+    }
+
+    private static boolean timeToLive(boolean offHeap) throws InterruptedException {
+        DedupeCache cache = new DedupeCache(1000, TTL, offHeap);
+        long added = System.nanoTime();
+        cache.add("ttl-key");
+        sleepUntil(added, HELD_AT);
+        boolean held = cache.contains("ttl-key");
+        long heldMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - added);
+        sleepUntil(added, GONE_AT);
+        boolean gone = !cache.contains("ttl-key");
+        long goneMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - added);
+        // a late wake-up past the time to live proves nothing either way
+        boolean passed = (held || heldMillis >= TTL) && gone;
+        System.out.printf("ttl %-8s: held at %d ms: %b, gone at %d ms: %b%s%n", offHeap ? "off-heap" : "heap",
+                heldMillis, held, goneMillis, gone, passed ? "" : " FAILED");
+        return passed;
+    }
+
+    private static CharSequence key(StringBuilder key, int i) {
+        key.setLength(0);
+        return key.append("key-").append(i);
+    }
+
+    private static void sleepUntil(long begin, long millis) throws InterruptedException {
+        long remaining = begin + TimeUnit.MILLISECONDS.toNanos(millis) - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static long directMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
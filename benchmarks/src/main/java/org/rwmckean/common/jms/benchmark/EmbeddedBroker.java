@@ -0,0 +1,36 @@
+package org.rwmckean.common.jms.benchmark;
+
+import javax.jms.ConnectionFactory;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+/**
+ * A non-persistent ActiveMQ broker reached over vm://, for the checks that
+ * run outside JMH. Advisories stay on, since clients replying to temporary
+ * queues depend on them.
+ */
+final class EmbeddedBroker implements AutoCloseable {
+    private final BrokerService broker;
+    private final ActiveMQConnectionFactory connectionFactory;
+
+    EmbeddedBroker(String name) throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName(name);
+        broker.setUseJmx(false);
+        broker.setPersistent(false);
+        broker.start();
+        broker.waitUntilStarted();
+        connectionFactory = new ActiveMQConnectionFactory("vm://" + name + "?create=false");
+    }
+
+    ConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    @Override
+    public void close() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+}
@@ -0,0 +1,132 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.rwmckean.common.jms.consumer.KeyOrderedConsumer;
+
+/**
+ * Checks that {@link KeyOrderedConsumer} keeps each key in order. Sends
+ * 20,000 messages across 51 keys, one of which carries 30% of the traffic,
+ * and consumes them on 4 lanes with a handler that spins for 20 us a
+ * message. It runs three times: with no failures, with one handler throwing
+ * a RuntimeException, and with one handler throwing an Error. Each run
+ * must see every key's messages in sequence, apart from redeliveries, and
+ * see every message at least once; keys must also have been steered off
+ * the hot lane.
+ * <p/>
+ * Run with {@code java -cp target/benchmarks.jar
+ * org.rwmckean.common.jms.benchmark.KeyOrderingCheck}; the exit status is
+ * non-zero if any run fails.
+ */
+public final class KeyOrderingCheck {
+    private static final int MESSAGES = 20000;
+    private static final int KEYS = 50;
+    private static final int LANES = 4;
+    private static final int HOT_PERCENT = 30;
+    private static final long HANDLER_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    enum Failure {
+        NONE, EXCEPTION, ERROR
+    }
+
+    private KeyOrderingCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = true;
+        try (EmbeddedBroker broker = new EmbeddedBroker("key-ordering")) {
+            for (Failure failure : Failure.values()) {
+                passed &= run(broker.getConnectionFactory(), failure);
+            }
+        }
+        System.out.println(passed ? "All runs passed" : "Some runs FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(ConnectionFactory connectionFactory, Failure failure) throws Exception {
+        Queue queue = new ActiveMQQueue("CHECK.ORDER." + failure);
+        Map<String, Integer> sent = send(connectionFactory, queue);
+        Map<String, Integer> last = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        AtomicBoolean inject = new AtomicBoolean(failure != Failure.NONE);
+        KeyOrderedConsumer consumer = new KeyOrderedConsumer(connectionFactory, queue, message -> {
+            String key = message.getStringProperty("JMSXGroupID");
+            int sequence = message.getIntProperty("sequence");
+            if (key.equals("hot") && sequence == MESSAGES / 40 && inject.getAndSet(false)) {
+                if (failure == Failure.ERROR) {
+                    throw new AssertionError("injected");
+                }
+                throw new IllegalArgumentException("injected");
+            }
+            Integer previous = last.put(key, sequence);
+            if (!message.getJMSRedelivered() && previous != null && previous != sequence - 1) {
+                outOfOrder.incrementAndGet();
+            }
+            for (long end = System.nanoTime() + HANDLER_NANOS; System.nanoTime() - end < 0;) {
+                // simulated work
+            }
+        });
+        consumer.setLanes(LANES);
+        consumer.setRecoveryInterval(100);
+        long begin = System.nanoTime();
+        consumer.start();
+        try {
+            while (!last.equals(sent) && System.nanoTime() - begin < TIMEOUT) {
+                TimeUnit.MILLISECONDS.sleep(20);
+            }
+        } finally {
+            consumer.stop();
+        }
+        boolean complete = last.equals(sent);
+        boolean passed = complete && outOfOrder.get() == 0 && consumer.getSteeredCount() > 0
+                && (failure == Failure.NONE) == (consumer.getFailedCount() == 0);
+        System.out.printf("%-9s %s: %d processed in %d ms, %d out of order, %d windows, %d steered, %d failed%s%n",
+                failure, passed ? "passed" : "FAILED", consumer.getProcessedCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), outOfOrder.get(),
+                consumer.getWindowCount(), consumer.getSteeredCount(), consumer.getFailedCount(),
+                complete ? "" : ", not every message seen");
+        return passed;
+    }
+
+    /**
+     * @return the number of messages sent for each key, which is also the
+     *         sequence number of its last message
+     */
+    private static Map<String, Integer> send(ConnectionFactory connectionFactory, Queue queue) throws JMSException {
+        Map<String, Integer> sequences = new HashMap<>();
+        Random random = new Random(42);
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(queue);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            for (int i = 0; i < MESSAGES; i++) {
+                String key = random.nextInt(100) < HOT_PERCENT ? "hot" : "key-" + random.nextInt(KEYS);
+                TextMessage message = session.createTextMessage(key);
+                message.setStringProperty("JMSXGroupID", key);
+                message.setIntProperty("sequence", sequences.merge(key, 1, Integer::sum));
+                producer.send(message);
+            }
+        } finally {
+            connection.close();
+        }
+        return sequences;
+    }
+}
@@ -0,0 +1,128 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rwmckean.common.jms.producer.ReusableSender;
+
+/**
+ * Allocation per message when building a fresh message for every send, as
+ * the samples do, against reusing one through {@link ReusableSender}. Run
+ * with {@code -prof gc} and compare gc.alloc.rate.norm, the bytes allocated
+ * per operation.
+ * <p/>
+ * {@link #build()} measures only the client's own work: creating or
+ * clearing the message, filling the body and setting two properties.
+ * {@link #send()} adds the provider's send to a topic with no subscribers on
+ * a non-persistent embedded broker, so it also counts what ActiveMQ
+ * allocates to copy and dispatch the message, which reuse cannot remove.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessageReuseBenchmark {
+    public enum Build {
+        /** session.createTextMessage per send */
+        FRESH,
+        /** ReusableSender.text, the provider encodes the String */
+        REUSED_TEXT,
+        /** ReusableSender.utf8 from a StringBuilder into a reused buffer */
+        REUSED_UTF8
+    }
+
+    @Param({"FRESH", "REUSED_TEXT", "REUSED_UTF8"})
+    public Build build;
+
+    @Param({"128", "4096"})
+    public int textLength;
+
+    private BrokerService broker;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private ReusableSender sender;
+    private String text;
+    private StringBuilder builder;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("reuse");
+        broker.setUseJmx(false);
+        broker.setAdvisorySupport(false);
+        broker.setPersistent(false);
+        broker.start();
+        broker.waitUntilStarted();
+        connection = new ActiveMQConnectionFactory("vm://reuse?create=false").createConnection();
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        producer = session.createProducer(session.createTopic("BENCHMARK.REUSE"));
+        producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        sender = new ReusableSender(session, producer);
+        builder = new StringBuilder(textLength);
+        for (int i = 0; i < textLength; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        text = builder.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        connection.close();
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Benchmark
+    public Message build() throws JMSException {
+        Message message;
+        switch (build) {
+        case FRESH:
+            message = session.createTextMessage(text);
+            break;
+        case REUSED_TEXT:
+            message = sender.text(text);
+            break;
+        default:
+            message = sender.utf8(builder);
+            break;
+        }
+        message.setLongProperty("sequence", sequence++);
+        message.setStringProperty("source", "benchmark");
+        return message;
+    }
+
+    @Benchmark
+    public void send() throws JMSException {
+        Message message = build();
+        if (build == Build.FRESH) {
+            producer.send(message);
+        } else {
+            sender.send(message);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.rwmckean.common.jms.benchmark;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.rwmckean.common.jms.pool.ConnectionPool;
+
+/**
+ * The pooled path behind {@code QueueConnectionFactory}: every unit of work
+ * borrows a connection and session from the {@link ConnectionPool} and
+ * closes them afterwards, as application code written against plain JMS
+ * would. A unit of work is one message, or batchSize messages when the
+ * session is transacted or client acknowledged.
+ */
+final class PooledClient implements Client {
+    private final ConnectionPool pool;
+    private final Queue queue;
+    private final int deliveryMode;
+    private final int ackMode;
+    private final int batchSize;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private MessageConsumer consumer;
+    private int pending;
+
+    PooledClient(ConnectionPool pool, Queue queue, int deliveryMode, int ackMode, int batchSize) {
+        this.pool = pool;
+        this.queue = queue;
+        this.deliveryMode = deliveryMode;
+        this.ackMode = ackMode;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void send(byte[] payload) throws JMSException {
+        open();
+        if (producer == null) {
+            producer = session.createProducer(queue);
+            producer.setDeliveryMode(deliveryMode);
+        }
+        BytesMessage message = session.createBytesMessage();
+        message.writeBytes(payload);
+        producer.send(message);
+        if (!Client.isTransacted(ackMode) || ++pending >= batchSize) {
+            complete(null);
+        }
+    }
+
+    @Override
+    public boolean receive(long timeout) throws JMSException {
+        open();
+        if (consumer == null) {
+            consumer = session.createConsumer(queue);
+            connection.start();
+        }
+        Message message = consumer.receive(timeout);
+        if (message == null) {
+            return false;
+        }
+        boolean batched = Client.isTransacted(ackMode) || ackMode == Session.CLIENT_ACKNOWLEDGE;
+        if (!batched || ++pending >= batchSize) {
+            complete(message);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws JMSException {
+        if (connection != null) {
+            complete(null);
+        }
+    }
+
+    private void open() throws JMSException {
+        if (connection == null) {
+            connection = pool.borrow();
+            session = connection.createSession(Client.isTransacted(ackMode), ackMode);
+        }
+    }
+
+    private void complete(Message last) throws JMSException {
+        try {
+            if (Client.isTransacted(ackMode)) {
+                session.commit();
+            } else if (last != null && ackMode == Session.CLIENT_ACKNOWLEDGE) {
+                last.acknowledge();
+            }
+        } finally {
+            pending = 0;
+            producer = null;
+            consumer = null;
+            session = null;
+            Connection borrowed = connection;
+            connection = null;
+            borrowed.close();
+        }
+    }
+}
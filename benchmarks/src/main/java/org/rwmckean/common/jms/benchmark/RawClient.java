@@ -0,0 +1,81 @@
+package org.rwmckean.common.jms.benchmark;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+/**
+ * The baseline: one connection, session, producer and consumer held for the
+ * whole trial, straight from {@code ActiveMQConnectionFactory}.
+ */
+final class RawClient implements Client {
+    private final Connection connection;
+    private final Session session;
+    private final Queue queue;
+    private final int ackMode;
+    private final int batchSize;
+    private MessageProducer producer;
+    private MessageConsumer consumer;
+    private Message unacknowledged;
+    private int pending;
+
+    RawClient(ConnectionFactory connectionFactory, Queue queue, int deliveryMode, int ackMode, int batchSize)
+            throws JMSException {
+        this.queue = queue;
+        this.ackMode = ackMode;
+        this.batchSize = batchSize;
+        connection = connectionFactory.createConnection();
+        try {
+            session = connection.createSession(Client.isTransacted(ackMode), ackMode);
+            producer = session.createProducer(queue);
+            producer.setDeliveryMode(deliveryMode);
+            connection.start();
+        } catch (JMSException | RuntimeException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void send(byte[] payload) throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        message.writeBytes(payload);
+        producer.send(message);
+        if (Client.isTransacted(ackMode) && ++pending >= batchSize) {
+            session.commit();
+            pending = 0;
+        }
+    }
+
+    @Override
+    public boolean receive(long timeout) throws JMSException {
+        if (consumer == null) {
+            consumer = session.createConsumer(queue);
+        }
+        Message message = consumer.receive(timeout);
+        if (message == null) {
+            return false;
+        }
+        unacknowledged = message;
+        if (++pending >= batchSize) {
+            if (Client.isTransacted(ackMode)) {
+                session.commit();
+            } else if (ackMode == Session.CLIENT_ACKNOWLEDGE) {
+                unacknowledged.acknowledge();
+            }
+            pending = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws JMSException {
+        connection.close();
+    }
+}
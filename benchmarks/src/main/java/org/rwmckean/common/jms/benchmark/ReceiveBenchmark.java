@@ -0,0 +1,108 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Receive throughput and latency per message, with producers feeding the
+ * queue in the same group. Producers always use the raw path so only the
+ * consumer side varies. Run with {@code -tg P,C} for P producer and C
+ * consumer threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ReceiveBenchmark extends AbstractBrokerBenchmark {
+    private static final long RECEIVE_TIMEOUT = 100;
+
+    @Param({"AUTO_ACKNOWLEDGE", "CLIENT_ACKNOWLEDGE", "DUPS_OK_ACKNOWLEDGE", "SESSION_TRANSACTED"})
+    public String ackMode;
+
+    /**
+     * How many messages are received per commit or acknowledgement in the
+     * transacted and client acknowledged modes.
+     */
+    @Param({"1", "100"})
+    public int batchSize;
+
+    int ackModeValue() {
+        switch (ackMode) {
+        case "CLIENT_ACKNOWLEDGE":
+            return Session.CLIENT_ACKNOWLEDGE;
+        case "DUPS_OK_ACKNOWLEDGE":
+            return Session.DUPS_OK_ACKNOWLEDGE;
+        case "SESSION_TRANSACTED":
+            return Session.SESSION_TRANSACTED;
+        default:
+            return Session.AUTO_ACKNOWLEDGE;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        Client client;
+
+        @Setup(Level.Trial)
+        public void open(ReceiveBenchmark benchmark) throws JMSException {
+            client = new RawClient(benchmark.rawFactory(), benchmark.queue,
+                    benchmark.persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT,
+                    Session.AUTO_ACKNOWLEDGE, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            Client.closeQuietly(client);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer {
+        Client client;
+
+        @Setup(Level.Trial)
+        public void open(ReceiveBenchmark benchmark) throws JMSException {
+            client = benchmark.newClient(benchmark.ackModeValue(), benchmark.batchSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            Client.closeQuietly(client);
+        }
+    }
+
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(1)
+    public void produce(Producer producer) throws JMSException {
+        producer.client.send(payload);
+    }
+
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(1)
+    public void consume(Consumer consumer, Blackhole blackhole) throws JMSException {
+        blackhole.consume(consumer.client.receive(RECEIVE_TIMEOUT));
+    }
+}
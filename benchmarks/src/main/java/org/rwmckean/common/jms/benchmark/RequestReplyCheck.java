@@ -0,0 +1,156 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.rwmckean.common.jms.rpc.RequestReplyClient;
+
+/**
+ * Checks {@link RequestReplyClient} under load. 30,000 requests are issued
+ * without waiting, so nearly all are in flight at once, to an echoing
+ * responder. This runs once with correlation IDs and once with the
+ * responder copying the request's message ID, and every reply must match
+ * its request. Then 5,000 requests with a 150 ms timeout go to a queue
+ * nobody reads. Every one must time out, none before 150 ms and none later
+ * than 250 ms after being sent. That bound needs a second core: on one, the
+ * timing wheel's thread waits behind the thread issuing the requests and
+ * timeouts fire up to 150 ms late.
+ * <p/>
+ * Run with {@code java -cp target/benchmarks.jar
+ * org.rwmckean.common.jms.benchmark.RequestReplyCheck}; the exit status is
+ * non-zero if any part fails.
+ */
+public final class RequestReplyCheck {
+    private static final int REQUESTS = 30000;
+    private static final int TIMEOUT_REQUESTS = 5000;
+    private static final long REQUEST_TIMEOUT = 150;
+    private static final long TIMEOUT_SLACK = 100;
+
+    private RequestReplyCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = true;
+        try (EmbeddedBroker broker = new EmbeddedBroker("request-reply")) {
+            ConnectionFactory connectionFactory = broker.getConnectionFactory();
+            passed &= concurrent(connectionFactory, false);
+            passed &= concurrent(connectionFactory, true);
+            passed &= timeouts(connectionFactory);
+        }
+        System.out.println(passed ? "All checks passed" : "Some checks FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean concurrent(ConnectionFactory connectionFactory, boolean correlateOnMessageId)
+            throws Exception {
+        Queue queue = new ActiveMQQueue("CHECK.RPC." + (correlateOnMessageId ? "MESSAGE_ID" : "CORRELATION_ID"));
+        Connection responder = respond(connectionFactory, queue, correlateOnMessageId);
+        RequestReplyClient client = new RequestReplyClient(connectionFactory, queue);
+        client.setCorrelateOnMessageId(correlateOnMessageId);
+        client.setDefaultTimeout(TimeUnit.SECONDS.toMillis(30));
+        try {
+            client.start();
+            List<CompletableFuture<Message>> replies = new ArrayList<>(REQUESTS);
+            int peak = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                replies.add(client.request("request-" + i));
+                peak = Math.max(peak, client.getInFlight());
+            }
+            int matched = 0;
+            for (int i = 0; i < REQUESTS; i++) {
+                Message reply = replies.get(i).get(60, TimeUnit.SECONDS);
+                if (("reply-request-" + i).equals(((TextMessage) reply).getText())) {
+                    matched++;
+                }
+            }
+            boolean passed = matched == REQUESTS && client.getTimeoutCount() == 0;
+            System.out.printf("%-14s %s: %d of %d replies matched in %d ms, peak %d in flight, %d unmatched%n",
+                    correlateOnMessageId ? "message ID" : "correlation ID", passed ? "passed" : "FAILED", matched,
+                    REQUESTS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), peak,
+                    client.getUnmatchedCount());
+            return passed;
+        } finally {
+            client.close();
+            responder.close();
+        }
+    }
+
+    private static boolean timeouts(ConnectionFactory connectionFactory) throws Exception {
+        RequestReplyClient client = new RequestReplyClient(connectionFactory, new ActiveMQQueue("CHECK.RPC.NOBODY"));
+        try {
+            client.start();
+            List<CompletableFuture<Message>> replies = new ArrayList<>(TIMEOUT_REQUESTS);
+            long[] waited = new long[TIMEOUT_REQUESTS];
+            for (int i = 0; i < TIMEOUT_REQUESTS; i++) {
+                int index = i;
+                long issued = System.nanoTime();
+                CompletableFuture<Message> reply = client.request(session -> session.createTextMessage("unanswered"),
+                        REQUEST_TIMEOUT);
+                // the dependent stage completes only once the wait is recorded
+                replies.add(reply.whenComplete((message, failure) -> waited[index] = System.nanoTime() - issued));
+            }
+            int timedOut = 0;
+            for (CompletableFuture<Message> reply : replies) {
+                try {
+                    reply.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof TimeoutException) {
+                        timedOut++;
+                    }
+                }
+            }
+            Arrays.sort(waited);
+            long earliest = TimeUnit.NANOSECONDS.toMillis(waited[0]);
+            long p99 = TimeUnit.NANOSECONDS.toMillis(waited[TIMEOUT_REQUESTS * 99 / 100]);
+            long latest = TimeUnit.NANOSECONDS.toMillis(waited[TIMEOUT_REQUESTS - 1]);
+            boolean passed = timedOut == TIMEOUT_REQUESTS && earliest >= REQUEST_TIMEOUT
+                    && latest <= REQUEST_TIMEOUT + TIMEOUT_SLACK && client.getInFlight() == 0;
+            System.out.printf("%-14s %s: %d of %d timed out, %d ms after their send at the earliest, %d ms at p99,"
+                    + " %d ms at the latest, %d left in flight, %d processor(s)%n", "timeouts",
+                    passed ? "passed" : "FAILED", timedOut, TIMEOUT_REQUESTS, earliest, p99, latest,
+                    client.getInFlight(), Runtime.getRuntime().availableProcessors());
+            return passed;
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Starts a responder that echoes each request's text back, correlated
+     * the way the client expects.
+     */
+    private static Connection respond(ConnectionFactory connectionFactory, Queue queue, boolean correlateOnMessageId)
+            throws JMSException {
+        Connection connection = connectionFactory.createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(null);
+        session.createConsumer(queue).setMessageListener(request -> {
+            try {
+                TextMessage reply = session.createTextMessage("reply-" + ((TextMessage) request).getText());
+                reply.setJMSCorrelationID(correlateOnMessageId ? request.getJMSMessageID()
+                        : request.getJMSCorrelationID());
+                producer.send(request.getJMSReplyTo(), reply);
+            } catch (JMSException ex) {
+                System.out.println("Responder failed: " + ex);
+            }
+        });
+        connection.start();
+        return connection;
+    }
+}
@@ -0,0 +1,77 @@
+package org.rwmckean.common.jms.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Send throughput and latency per message. A background consumer drains the
+ * queue so the broker never applies producer flow control. Run with
+ * {@code -t N} for N producer threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SendBenchmark extends AbstractBrokerBenchmark {
+    /**
+     * 0 sends on a non-transacted session; any other value commits a
+     * transacted session every batchSize messages.
+     */
+    @Param({"0", "1", "100"})
+    public int batchSize;
+
+    private Connection drainer;
+
+    @Setup(Level.Trial)
+    public void startDrainer() throws JMSException {
+        drainer = rawFactory().createConnection();
+        Session session = drainer.createSession(false, Session.DUPS_OK_ACKNOWLEDGE);
+        session.createConsumer(queue).setMessageListener(message -> {
+        });
+        drainer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDrainer() throws JMSException {
+        drainer.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        Client client;
+
+        @Setup(Level.Trial)
+        public void open(SendBenchmark benchmark) throws JMSException {
+            int ackMode = benchmark.batchSize == 0 ? Session.AUTO_ACKNOWLEDGE : Session.SESSION_TRANSACTED;
+            client = benchmark.newClient(ackMode, Math.max(1, benchmark.batchSize));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            Client.closeQuietly(client);
+        }
+    }
+
+    @Benchmark
+    public void send(Producer producer) throws JMSException {
+        producer.client.send(payload);
+    }
+}
@@ -0,0 +1,45 @@
+package org.rwmckean.common.jms.benchmark;
+
+import javax.jms.BytesMessage;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+
+import org.springframework.jms.core.JmsTemplate;
+
+/**
+ * The {@code JmsTemplate} path from the Spring sample. The template opens and
+ * closes a connection and session around every call and, outside a Spring
+ * transaction, commits each call on its own, so batchSize has no effect here.
+ */
+final class TemplateClient implements Client {
+    private final JmsTemplate template;
+
+    TemplateClient(ConnectionFactory connectionFactory, Queue queue, int deliveryMode, int ackMode) {
+        template = new JmsTemplate(connectionFactory);
+        template.setDefaultDestination(queue);
+        template.setExplicitQosEnabled(true);
+        template.setDeliveryMode(deliveryMode);
+        template.setSessionTransacted(Client.isTransacted(ackMode));
+        template.setSessionAcknowledgeMode(ackMode);
+    }
+
+    @Override
+    public void send(byte[] payload) throws JMSException {
+        template.send(session -> {
+            BytesMessage message = session.createBytesMessage();
+            message.writeBytes(payload);
+            return message;
+        });
+    }
+
+    @Override
+    public boolean receive(long timeout) throws JMSException {
+        template.setReceiveTimeout(timeout);
+        return template.receive() != null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,46 @@
+package org.rwmckean.common.jms;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The daemon threads that run the library's timers for the whole JVM: pool
+ * eviction, producer linger timers and consumer housekeeping. The work is
+ * short and infrequent, so two threads are plenty; the second keeps a slow
+ * connection close during eviction from holding up every linger timer.
+ * Cancelled tasks are removed at once rather than left in the queue until
+ * they would have run.
+ */
+public final class JmsScheduler {
+    private static final ScheduledThreadPoolExecutor EXECUTOR;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        EXECUTOR = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "jms-scheduler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    private JmsScheduler() {
+    }
+
+    /**
+     * Runs a task once, after the delay in milliseconds.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return EXECUTOR.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task every interval, in milliseconds, measured from the end of
+     * one run to the start of the next, until cancelled.
+     */
+    public static ScheduledFuture<?> scheduleRepeating(Runnable task, long interval) {
+        return EXECUTOR.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+    }
+}
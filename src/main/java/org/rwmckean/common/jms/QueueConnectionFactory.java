@@ -4,16 +4,42 @@ import com.ibm.mq.jms.MQQueueConnectionFactory;
 import com.ibm.msg.client.wmq.WMQConstants;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.Connection;
 import javax.jms.JMSContext;
 import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
 import javax.jms.QueueConnection;
 import javax.naming.NamingException;
 import javax.naming.Reference;
 
+import org.rwmckean.common.jms.metrics.JmsMetrics;
+import org.rwmckean.common.jms.pool.ConnectionPool;
+import org.rwmckean.common.jms.pool.ContextPool;
+import org.rwmckean.common.jms.pool.Endpoint;
+import org.rwmckean.common.jms.pool.LoadBalancer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * This class is responsible for providing queue connectivity to MQ for
  * the ESS application. See the comment on createConnection() for 
@@ -21,19 +47,49 @@ import javax.naming.Reference;
  * @author psaladna
  *
  */
-public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory {
+public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(QueueConnectionFactory.class);
+
     private final MQQueueConnectionFactory qcf;
     private String username;
     private String password;
     private boolean userAuthenticationMQCSP = false;
     private int connectionMode = WMQConstants.WMQ_CM_BINDINGS;
 
+    private final ConcurrentMap<Credentials, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Credentials, ContextPool> contextPools = new ConcurrentHashMap<>();
+    private volatile boolean started;
+    private volatile boolean settingsChanged = true;
+    private WarmupReport warmupReport;
+    private int warmupConnections = 0;
+    private LoadBalancer.Strategy loadBalancing;
+    private String endpointWeights;
+    private LoadBalancer loadBalancer;
+    private final ConcurrentMap<String, MQQueueConnectionFactory> endpointFactories = new ConcurrentHashMap<>();
+    private boolean poolingEnabled = false;
+    private int maxConnections = 8;
+    private int maxSessionsPerConnection = 100;
+    private int producerCacheSize = 32;
+    private boolean sendTimestamps = false;
+    private long idleTimeout = 60000;
+    private long maxLifetime = 1800000;
+    private long borrowTimeout = 5000;
+    private long evictionInterval = 30000;
+    private boolean validateOnBorrow = true;
+    private boolean metricsEnabled = false;
+    private String metricsName = "default";
+    private JmsMetrics metrics;
+
     public boolean isUserAuthenticationMQCSP() {
         return userAuthenticationMQCSP;
     }
 
     public void setUserAuthenticationMQCSP(boolean userAuthenticationMQCSP) {
-        this.userAuthenticationMQCSP = userAuthenticationMQCSP;
+        checkConfigurable();
+        if (this.userAuthenticationMQCSP != userAuthenticationMQCSP) {
+            this.userAuthenticationMQCSP = userAuthenticationMQCSP;
+            settingsChanged = true;
+        }
     }
 
     public int getConnectionMode() {
@@ -41,7 +97,11 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setConnectionMode(int connectionMode) {
-        this.connectionMode = connectionMode;
+        checkConfigurable();
+        if (this.connectionMode != connectionMode) {
+            this.connectionMode = connectionMode;
+            settingsChanged = true;
+        }
     }
         
     public QueueConnectionFactory() {
@@ -53,6 +113,7 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setPassword(String password) {
+        checkConfigurable();
             this.password = password;                
     }
 
@@ -61,9 +122,499 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setUsername(String username) {
+        checkConfigurable();
             this.username = username;
     }
 
+    public boolean isPoolingEnabled() {
+        return poolingEnabled;
+    }
+
+    /**
+     * When enabled, connections handed out by this factory share a bounded
+     * pool of physical MQ connections, and sessions and producers are cached
+     * on them. Closing a connection, session or producer returns it to the
+     * pool, so code written against the plain JMS API (JmsTemplate included)
+     * no longer pays the connect and MQCSP authentication cost per operation.
+     * The createContext() overloads draw from a separate pool of JMS 2.0
+     * contexts in the same way.
+     */
+    public void setPoolingEnabled(boolean poolingEnabled) {
+        checkConfigurable();
+        this.poolingEnabled = poolingEnabled;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        checkConfigurable();
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Bounds the sessions opened on any one pooled connection. For pooled
+     * JMS 2.0 contexts this is the number of contexts sharing a connection.
+     */
+    public int getMaxSessionsPerConnection() {
+        return maxSessionsPerConnection;
+    }
+
+    public void setMaxSessionsPerConnection(int maxSessionsPerConnection) {
+        checkConfigurable();
+        this.maxSessionsPerConnection = maxSessionsPerConnection;
+    }
+
+    public int getProducerCacheSize() {
+        return producerCacheSize;
+    }
+
+    public void setProducerCacheSize(int producerCacheSize) {
+        checkConfigurable();
+        this.producerCacheSize = producerCacheSize;
+    }
+
+    public boolean isSendTimestamps() {
+        return sendTimestamps;
+    }
+
+    /**
+     * Stamps every message sent on a pooled connection with a high-resolution
+     * send time, for consumers to measure end-to-end latency from. Messages
+     * sent on unpooled connections are not stamped.
+     */
+    public void setSendTimestamps(boolean sendTimestamps) {
+        checkConfigurable();
+        this.sendTimestamps = sendTimestamps;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        checkConfigurable();
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        checkConfigurable();
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        checkConfigurable();
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        checkConfigurable();
+        this.evictionInterval = evictionInterval;
+    }
+
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        checkConfigurable();
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Decorates every connection handed out, and the sessions, producers and
+     * consumers created from it, to count sends, receives, bytes, errors and
+     * commit times. The figures are published as JMX MBeans named after
+     * metricsName; see {@link JmsMetrics}. Contexts are not decorated.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        checkConfigurable();
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public String getMetricsName() {
+        return metricsName;
+    }
+
+    public void setMetricsName(String metricsName) {
+        checkConfigurable();
+        this.metricsName = metricsName;
+    }
+
+    /**
+     * @return the metrics this factory records into, or null if metrics are
+     *         disabled
+     */
+    public synchronized JmsMetrics getMetrics() {
+        if (metrics == null && metricsEnabled) {
+            metrics = new JmsMetrics(metricsName);
+            metrics.register();
+        }
+        return metrics;
+    }
+
+    /**
+     * Closes every pooled connection and unregisters the metrics MBeans.
+     * Spring calls this when the context shuts down.
+     */
+    @Override
+    public void close() {
+        for (ConnectionPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+        for (ContextPool pool : contextPools.values()) {
+            pool.close();
+        }
+        contextPools.clear();
+        synchronized (this) {
+            if (metrics != null) {
+                metrics.unregister();
+            }
+        }
+    }
+
+    public int getWarmupConnections() {
+        return warmupConnections;
+    }
+
+    /**
+     * The number of pooled connections {@link #start()} opens ahead of the
+     * first request, spread across every entry of the connection name list.
+     * Only the pool behind createConnection(), which connects with the
+     * configured username and password, is filled. Capped at maxConnections;
+     * 0 opens none.
+     */
+    public void setWarmupConnections(int warmupConnections) {
+        checkConfigurable();
+        this.warmupConnections = warmupConnections;
+    }
+
+    public LoadBalancer.Strategy getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * Spreads pooled connections over every entry of the connection name list
+     * instead of relying on MQ's first-available failover, which puts every
+     * JVM on the first queue manager listed. ROUND_ROBIN takes the entries in
+     * turn, LEAST_IN_FLIGHT favours the queue manager with the fewest
+     * borrowers and WEIGHTED keeps connection counts in proportion to
+     * endpointWeights. Each strategy also scores endpoints on send latency
+     * and steers load away from slow or failing ones. Only takes
+     * effect in client mode with pooling enabled; null, the default, leaves
+     * endpoint choice to MQ.
+     */
+    public void setLoadBalancing(LoadBalancer.Strategy loadBalancing) {
+        checkConfigurable();
+        this.loadBalancing = loadBalancing;
+    }
+
+    public String getEndpointWeights() {
+        return endpointWeights;
+    }
+
+    /**
+     * Relative weights for WEIGHTED balancing, as a comma separated list of
+     * connectionName=weight pairs, e.g. "mq1(1414)=3,mq2(1414)=1". Entries
+     * that are not listed get a weight of 1.
+     */
+    public void setEndpointWeights(String endpointWeights) {
+        checkConfigurable();
+        this.endpointWeights = endpointWeights;
+    }
+
+    /**
+     * @return the balancer shared by this factory's pools, or null if load
+     *         balancing is not in effect
+     */
+    public synchronized LoadBalancer getLoadBalancer() throws JMSException {
+        if (loadBalancer == null && isBalanced()) {
+            Map<String, Integer> weights = new HashMap<>();
+            if (endpointWeights != null) {
+                for (String pair : endpointWeights.split(",")) {
+                    int split = pair.lastIndexOf('=');
+                    if (split > 0) {
+                        weights.put(pair.substring(0, split).trim(),
+                                Integer.valueOf(pair.substring(split + 1).trim()));
+                    }
+                }
+            }
+            List<Endpoint> endpoints = new ArrayList<>();
+            for (String name : connectionNames()) {
+                endpoints.add(new Endpoint(name, weights.getOrDefault(name, 1)));
+            }
+            loadBalancer = new LoadBalancer(endpoints, loadBalancing);
+        }
+        return loadBalancer;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return the result of the warm-up performed by {@link #start()}, or null
+     *         if the factory has not been started or pooling is disabled
+     */
+    public synchronized WarmupReport getWarmupReport() {
+        return warmupReport;
+    }
+
+    /**
+     * Applies the connection properties to the underlying MQ factory once and
+     * freezes the configuration: from here on every setter throws
+     * IllegalStateException. If pooling is enabled, warmupConnections
+     * connections are then opened in parallel, round-robin across the entries
+     * of the connection name list, and handed to the pool so the first
+     * requests after a deploy don't pay the TCP, channel and authentication
+     * cost. Connect failures are recorded in the report rather than thrown,
+     * so a queue manager that is briefly down doesn't block startup.
+     * <p/>
+     * Intended as the Spring init-method; calling it again is a no-op.
+     */
+    public synchronized WarmupReport start() throws JMSException {
+        if (started) {
+            return warmupReport;
+        }
+        prepare();
+        started = true;
+        if (poolingEnabled && warmupConnections > 0) {
+            warmupReport = warmUp(Math.min(warmupConnections, maxConnections));
+            if (warmupReport.getFailed() > 0) {
+                LOG.warn("{}", warmupReport);
+            } else {
+                LOG.info("{}", warmupReport);
+            }
+        }
+        return warmupReport;
+    }
+
+    private WarmupReport warmUp(int count) throws JMSException {
+        List<String> names = connectionNames();
+        List<MQQueueConnectionFactory> factories = new ArrayList<>();
+        for (String name : names) {
+            factories.add(endpointFactory(name));
+        }
+        if (names.isEmpty()) {
+            names.add(String.valueOf(qcf.getQueueManager()));
+            factories.add(qcf);
+        }
+        LoadBalancer balancer = getLoadBalancer();
+        Map<String, WarmupReport.Endpoint> endpoints = new LinkedHashMap<>();
+        for (String name : names) {
+            endpoints.put(name, new WarmupReport.Endpoint(name));
+        }
+        // the pool createConnection() borrows from
+        Credentials credentials = new Credentials(username, password);
+        ConnectionPool pool = pool(credentials);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(count, r -> {
+            Thread thread = new Thread(r, "jms-warmup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long begin = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                MQQueueConnectionFactory factory = factories.get(i % factories.size());
+                String name = names.get(i % names.size());
+                WarmupReport.Endpoint endpoint = endpoints.get(name);
+                Endpoint target = balancer == null ? null : balancer.find(name);
+                executor.execute(() -> {
+                    long connectBegin = System.nanoTime();
+                    try {
+                        QueueConnection connection = credentials.isDefault()
+                                ? factory.createQueueConnection()
+                                : factory.createQueueConnection(credentials.username, credentials.password);
+                        endpoint.recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectBegin));
+                        pool.adopt(connection, target);
+                    } catch (JMSException | RuntimeException ex) {
+                        endpoint.recordFailure(ex);
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // connect timeouts are governed by the MQ client itself
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted during connection warm-up");
+        }
+        return new WarmupReport(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), endpoints);
+    }
+
+    /**
+     * A copy of the underlying MQ factory that only knows about a single
+     * entry of the connection name list. MQ validates property combinations
+     * as they are set, so the copy is made by serialization rather than by
+     * replaying the properties one at a time.
+     */
+    private MQQueueConnectionFactory endpointFactory(String connectionName) throws JMSException {
+        MQQueueConnectionFactory factory = endpointFactories.get(connectionName);
+        if (factory != null) {
+            return factory;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(qcf);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                factory = (MQQueueConnectionFactory) in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            JMSException jmsex = new JMSException("Unable to copy connection factory for " + connectionName);
+            jmsex.setLinkedException(ex);
+            throw jmsex;
+        }
+        factory.setConnectionNameList(connectionName);
+        MQQueueConnectionFactory existing = endpointFactories.putIfAbsent(connectionName, factory);
+        return existing != null ? existing : factory;
+    }
+
+    /**
+     * @return the entries of the connection name list in client mode, or an
+     *         empty list in bindings mode
+     */
+    private List<String> connectionNames() throws JMSException {
+        List<String> names = new ArrayList<>();
+        if (connectionMode == WMQConstants.WMQ_CM_CLIENT) {
+            for (String name : qcf.getConnectionNameList().split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    private boolean isBalanced() {
+        return loadBalancing != null && poolingEnabled && connectionMode == WMQConstants.WMQ_CM_CLIENT;
+    }
+
+    private void checkConfigurable() {
+        if (started) {
+            throw new IllegalStateException("QueueConnectionFactory has been started; its configuration is frozen");
+        }
+    }
+
+    /**
+     * For setters of MQ connection properties: the next connect re-applies
+     * them and re-copies the per-endpoint factories.
+     */
+    private void checkConfigurableAndChanged() {
+        checkConfigurable();
+        settingsChanged = true;
+    }
+
+    /**
+     * Pushes our own settings into the MQ factory before connecting, and drops
+     * any per-endpoint copies taken from older settings, but only if a setter
+     * has changed something since the last time. Once the factory has been
+     * started nothing can change, so this is a single volatile read per
+     * connect.
+     */
+    private void prepare() {
+        if (settingsChanged) {
+            synchronized (endpointFactories) {
+                if (settingsChanged) {
+                    settingsChanged = false;
+                    updatePreconnectionProperties();
+                    endpointFactories.clear();
+                }
+            }
+        }
+    }
+
+    private ConnectionPool pool(Credentials credentials) throws JMSException {
+        LoadBalancer balancer = getLoadBalancer();
+        return pools.computeIfAbsent(credentials, c -> {
+            ConnectionPool pool;
+            if (balancer != null) {
+                pool = new ConnectionPool(balancer, endpoint -> {
+                    prepare();
+                    MQQueueConnectionFactory factory = endpointFactory(endpoint.getName());
+                    return c.isDefault()
+                            ? factory.createQueueConnection()
+                            : factory.createQueueConnection(c.username, c.password);
+                });
+            } else {
+                pool = new ConnectionPool(() -> {
+                    prepare();
+                    return c.isDefault()
+                            ? qcf.createQueueConnection()
+                            : qcf.createQueueConnection(c.username, c.password);
+                });
+            }
+            pool.setMaxConnections(maxConnections);
+            pool.setMaxSessionsPerConnection(maxSessionsPerConnection);
+            pool.setProducerCacheSize(producerCacheSize);
+            pool.setIdleTimeout(idleTimeout);
+            pool.setMaxLifetime(maxLifetime);
+            pool.setBorrowTimeout(borrowTimeout);
+            pool.setEvictionInterval(evictionInterval);
+            pool.setValidateOnBorrow(validateOnBorrow);
+            pool.setSendTimestamps(sendTimestamps);
+            return pool;
+        });
+    }
+
+    private ContextPool contextPool(Credentials credentials) {
+        LoadBalancer balancer;
+        try {
+            balancer = getLoadBalancer();
+        } catch (JMSException ex) {
+            throw new JMSRuntimeException(ex.getMessage(), ex.getErrorCode(), ex);
+        }
+        return contextPools.computeIfAbsent(credentials, c -> {
+            ContextPool pool;
+            if (balancer != null) {
+                pool = new ContextPool(balancer, endpoint -> {
+                    prepare();
+                    MQQueueConnectionFactory factory;
+                    try {
+                        factory = endpointFactory(endpoint.getName());
+                    } catch (JMSException ex) {
+                        throw new JMSRuntimeException(ex.getMessage(), ex.getErrorCode(), ex);
+                    }
+                    return c.isDefault() ? factory.createContext() : factory.createContext(c.username, c.password);
+                });
+            } else {
+                pool = new ContextPool(() -> {
+                    prepare();
+                    return c.isDefault() ? qcf.createContext() : qcf.createContext(c.username, c.password);
+                });
+            }
+            pool.setMaxConnections(maxConnections);
+            pool.setMaxContextsPerConnection(maxSessionsPerConnection);
+            pool.setIdleTimeout(idleTimeout);
+            pool.setMaxLifetime(maxLifetime);
+            pool.setBorrowTimeout(borrowTimeout);
+            pool.setEvictionInterval(evictionInterval);
+            return pool;
+        });
+    }
+
     private void updatePreconnectionProperties() {
         try { 
             qcf.setBooleanProperty(WMQConstants.USER_AUTHENTICATION_MQCSP, userAuthenticationMQCSP); 
@@ -115,23 +666,45 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
      * use the setUsername(), setPassword() methods of this class.
      */
     public Connection createConnection() throws JMSException {
-        updatePreconnectionProperties();
+        if (poolingEnabled) {
+            return metered(pool(new Credentials(username, password)).borrow());
+        }
+        prepare();
+        if (metricsEnabled) {
+            return metered(qcf.createQueueConnection(username, password));
+        }
         return qcf.createConnection(username, password);
     }
 
     public Connection createConnection(String arg0, String arg1) throws JMSException {
-        updatePreconnectionProperties();
+        if (poolingEnabled) {
+            return metered(pool(new Credentials(arg0, arg1)).borrow());
+        }
+        prepare();
+        if (metricsEnabled) {
+            return metered(qcf.createQueueConnection(arg0, arg1));
+        }
         return qcf.createConnection(arg0, arg1);
     }
 
     public QueueConnection createQueueConnection() throws JMSException {
-        updatePreconnectionProperties();
-        return qcf.createQueueConnection();
+        if (poolingEnabled) {
+            return metered(pool(Credentials.DEFAULT).borrow());
+        }
+        prepare();
+        return metered(qcf.createQueueConnection());
     }
 
     public QueueConnection createQueueConnection(String arg0, String arg1) throws JMSException {
-        updatePreconnectionProperties();
-        return qcf.createQueueConnection(arg0, arg1);
+        if (poolingEnabled) {
+            return metered(pool(new Credentials(arg0, arg1)).borrow());
+        }
+        prepare();
+        return metered(qcf.createQueueConnection(arg0, arg1));
+    }
+
+    private QueueConnection metered(QueueConnection connection) {
+        return metricsEnabled ? getMetrics().wrap(connection) : connection;
     }
 
     public Reference getReference() throws NamingException {
@@ -433,296 +1006,368 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setBrokerCCSubQueue(String queueName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setBrokerCCSubQueue(queueName);
     }
 
     public void setBrokerControlQueue(String queueName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setBrokerControlQueue(queueName);
     }
 
     public void setBrokerPubQueue(String queueName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setBrokerPubQueue(queueName);
     }
 
     public void setBrokerQueueManager(String queueManagerName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setBrokerQueueManager(queueManagerName);
     }
 
     public void setBrokerSubQueue(String queueName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setBrokerSubQueue(queueName);
     }
 
     public void setBrokerVersion(int version) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setBrokerVersion(version);
     }
 
     public void setCCDTURL(URL url) {
+        checkConfigurableAndChanged();
         qcf.setCCDTURL(url);
     }
 
     public void setCCSID(int ccsid) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setCCSID(ccsid);
     }
 
     public void setChannel(String channelName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setChannel(channelName);
     }
 
     public void setCleanupInterval(long interval) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setCleanupInterval(interval);
     }
 
     public void setCleanupLevel(int level) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setCleanupLevel(level);
     }
 
     public void setClientID(String id) {
+        checkConfigurableAndChanged();
         qcf.setClientID(id);
     }
 
     @Deprecated
     public void setClientId(String id) {
+        checkConfigurableAndChanged();
         qcf.setClientId(id);
     }
 
     public void setCloneSupport(int type) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setCloneSupport(type);
     }
 
     public void setConnTag(byte[] cTag) {
+        checkConfigurableAndChanged();
         qcf.setConnTag(cTag);
     }
 
     public void setDescription(String desc) {
+        checkConfigurableAndChanged();
         qcf.setDescription(desc);
     }
 
     public void setDirectAuth(int authority) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setDirectAuth(authority);
     }
 
     public void setFailIfQuiesce(int fiq) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setFailIfQuiesce(fiq);
     }
 
     public void setHdrCompList(Collection<?> compList) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setHdrCompList(compList);
     }
 
     public void setHdrCompList(String compList) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setHdrCompList(compList);
     }
 
     public void setHostName(String hostname) {
+        checkConfigurableAndChanged();
         qcf.setHostName(hostname);
     }
 
     public void setLocalAddress(String address) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setLocalAddress(address);
     }
 
     public void setMapNameStyle(boolean style) {
+        checkConfigurableAndChanged();
         qcf.setMapNameStyle(style);
     }
 
     public void setMaxBufferSize(int size) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMaxBufferSize(size);
     }
 
     public void setMessageRetention(int mRet) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMessageRetention(mRet);
     }
 
     public void setMessageSelection(int selection) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMessageSelection(selection);
     }
 
     public void setMQConnectionOptions(int cTagOpt) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMQConnectionOptions(cTagOpt);
     }
 
     public void setMsgBatchSize(int size) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMsgBatchSize(size);
     }
 
     public void setMsgCompList(Collection<?> compList) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMsgCompList(compList);
     }
 
     public void setMsgCompList(String compList) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMsgCompList(compList);
     }
 
     public void setMulticast(int multicast) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setMulticast(multicast);
     }
 
     @Deprecated
     public void setOptimisticPublication(boolean newVal) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setOptimisticPublication(newVal);
     }
 
     @Deprecated
     public void setOutcomeNotification(boolean newVal) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setOutcomeNotification(newVal);
     }
 
     public void setPollingInterval(int interval) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setPollingInterval(interval);
     }
 
     public void setPort(int port) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setPort(port);
     }
 
     @Deprecated
     public void setProcessDuration(int newVal) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setProcessDuration(newVal);
     }
 
     public void setProviderVersion(String version) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setProviderVersion(version);
     }
 
     public void setProxyHostName(String hostName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setProxyHostName(hostName);
     }
 
     public void setProxyPort(int proxyPort) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setProxyPort(proxyPort);
     }
 
     public void setPubAckInterval(int interval) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setPubAckInterval(interval);
     }
 
     public void setQueueManager(String queueManagerName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setQueueManager(queueManagerName);
     }
 
     public void setReceiveExit(String receiveExit) {
+        checkConfigurableAndChanged();
         qcf.setReceiveExit(receiveExit);
     }
 
     public void setReceiveExitInit(String data) {
+        checkConfigurableAndChanged();
         qcf.setReceiveExitInit(data);
     }
 
     @Deprecated
     public void setReceiveIsolation(int newVal) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setReceiveIsolation(newVal);
     }
 
     public void setRescanInterval(int interval) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setRescanInterval(interval);
     }
 
     public void setSecurityExit(String securityExit) {
+        checkConfigurableAndChanged();
         qcf.setSecurityExit(securityExit);
     }
 
     public void setSecurityExitInit(String data) {
+        checkConfigurableAndChanged();
         qcf.setSecurityExitInit(data);
     }
 
     public void setSendCheckCount(int interval) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setSendCheckCount(interval);
     }
 
     public void setSendExit(String sendExit) {
+        checkConfigurableAndChanged();
         qcf.setSendExit(sendExit);
     }
 
     public void setSendExitInit(String data) {
+        checkConfigurableAndChanged();
         qcf.setSendExitInit(data);
     }
 
     public void setShareConvAllowed(int shared) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setShareConvAllowed(shared);
     }
 
     public void setSparseSubscriptions(boolean sparse) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setSparseSubscriptions(sparse);
     }
 
     public void setSSLCertStores(Collection<?> stores) {
+        checkConfigurableAndChanged();
         qcf.setSSLCertStores(stores);
     }
 
     public void setSSLCertStores(String stores) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setSSLCertStores(stores);
     }
 
     public void setSSLCipherSuite(String cipherSuite) {
+        checkConfigurableAndChanged();
         qcf.setSSLCipherSuite(cipherSuite);
     }
 
     public void setSSLFipsRequired(boolean required) {
+        checkConfigurableAndChanged();
         qcf.setSSLFipsRequired(required);
     }
 
     public void setSSLPeerName(String peerName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setSSLPeerName(peerName);
     }
 
     public void setSSLResetCount(int bytes) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setSSLResetCount(bytes);
     }
 
     public void setSSLSocketFactory(Object sf) {
+        checkConfigurableAndChanged();
         qcf.setSSLSocketFactory(sf);
     }
 
     public void setStatusRefreshInterval(int interval) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setStatusRefreshInterval(interval);
     }
 
     public void setSubscriptionStore(int flag) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setSubscriptionStore(flag);
     }
 
     public void setSyncpointAllGets(boolean flag) {
+        checkConfigurableAndChanged();
         qcf.setSyncpointAllGets(flag);
     }
 
     public void setTargetClientMatching(boolean matchClient) {
+        checkConfigurableAndChanged();
         qcf.setTargetClientMatching(matchClient);
     }
 
     public void setTemporaryModel(String queueName) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setTemporaryModel(queueName);
     }
 
     public void setTempTopicPrefix(String prefix) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setTempTopicPrefix(prefix);
     }
 
     public void setTempQPrefix(String newTempQPrefix) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setTempQPrefix(newTempQPrefix);
     }
 
     public void setTransportType(int type) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setTransportType(type);
     }
 
     @Deprecated
     public void setUseConnectionPooling(boolean usePooling) {
+        checkConfigurableAndChanged();
         qcf.setUseConnectionPooling(usePooling);
     }
 
     public void setVersion(int version) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setVersion(version);
     }
 
     public void setWildcardFormat(int format) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setWildcardFormat(format);
     }
 
     public void setAppName(String name) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setAppName(name);
     }
 
     public void setAsyncExceptions(int flags) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setAsyncExceptions(flags);
     }
 
@@ -731,6 +1376,7 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setClientReconnectOptions(int options) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setClientReconnectOptions(options);
     }
 
@@ -739,6 +1385,7 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setConnectionNameList(String hosts) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setConnectionNameList(hosts);
     }
 
@@ -747,26 +1394,76 @@ public class QueueConnectionFactory implements javax.jms.QueueConnectionFactory
     }
 
     public void setClientReconnectTimeout(int timeout) throws JMSException {
+        checkConfigurableAndChanged();
         qcf.setClientReconnectTimeout(timeout);
     }
 
     @Override
     public JMSContext createContext() {
+        if (poolingEnabled) {
+            return contextPool(Credentials.DEFAULT).borrow(JMSContext.AUTO_ACKNOWLEDGE);
+        }
         return qcf.createContext();
     }
 
     @Override
     public JMSContext createContext(String userName, String password) {
+        if (poolingEnabled) {
+            return contextPool(new Credentials(userName, password)).borrow(JMSContext.AUTO_ACKNOWLEDGE);
+        }
         return qcf.createContext(userName, password);
     }
 
     @Override
     public JMSContext createContext(String userName, String password, int sessionMode) {
+        if (poolingEnabled) {
+            return contextPool(new Credentials(userName, password)).borrow(sessionMode);
+        }
         return qcf.createContext(userName, password, sessionMode);
     }
 
     @Override
     public JMSContext createContext(int sessionMode) {
+        if (poolingEnabled) {
+            return contextPool(Credentials.DEFAULT).borrow(sessionMode);
+        }
         return qcf.createContext(sessionMode);
     }
+
+    /**
+     * Pool key. DEFAULT stands for the no-argument createQueueConnection(),
+     * which lets MQ apply whatever credentials the factory itself carries.
+     */
+    private static final class Credentials {
+        static final Credentials DEFAULT = new Credentials(null, null);
+
+        final String username;
+        final String password;
+
+        Credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        boolean isDefault() {
+            return this == DEFAULT;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Credentials) || isDefault() || ((Credentials) o).isDefault()) {
+                return false;
+            }
+            Credentials other = (Credentials) o;
+            return Objects.equals(username, other.username) && Objects.equals(password, other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(username, password);
+        }
+    }
 }
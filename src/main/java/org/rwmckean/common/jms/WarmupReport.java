@@ -0,0 +1,101 @@
+package org.rwmckean.common.jms;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of {@link QueueConnectionFactory#start()}: how long warm-up
+ * took and how each entry of the connection name list fared.
+ */
+public class WarmupReport {
+    private final long elapsedMillis;
+    private final Map<String, Endpoint> endpoints;
+
+    WarmupReport(long elapsedMillis, Map<String, Endpoint> endpoints) {
+        this.elapsedMillis = elapsedMillis;
+        this.endpoints = Collections.unmodifiableMap(new LinkedHashMap<>(endpoints));
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public Map<String, Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public int getOpened() {
+        int opened = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            opened += endpoint.getOpened();
+        }
+        return opened;
+    }
+
+    public int getFailed() {
+        int failed = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            failed += endpoint.getFailed();
+        }
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return "Warm-up opened " + getOpened() + " connection(s), " + getFailed()
+                + " failed, in " + elapsedMillis + " ms " + endpoints.values();
+    }
+
+    /**
+     * Per connection-name results. The connect time is the slowest successful
+     * connect to that entry.
+     */
+    public static class Endpoint {
+        private final String connectionName;
+        private int opened;
+        private int failed;
+        private long maxConnectMillis;
+        private Exception lastError;
+
+        Endpoint(String connectionName) {
+            this.connectionName = connectionName;
+        }
+
+        synchronized void recordSuccess(long connectMillis) {
+            opened++;
+            maxConnectMillis = Math.max(maxConnectMillis, connectMillis);
+        }
+
+        synchronized void recordFailure(Exception error) {
+            failed++;
+            lastError = error;
+        }
+
+        public String getConnectionName() {
+            return connectionName;
+        }
+
+        public synchronized int getOpened() {
+            return opened;
+        }
+
+        public synchronized int getFailed() {
+            return failed;
+        }
+
+        public synchronized long getMaxConnectMillis() {
+            return maxConnectMillis;
+        }
+
+        public synchronized Exception getLastError() {
+            return lastError;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return connectionName + ": " + opened + " opened, " + failed + " failed, slowest "
+                    + maxConnectMillis + " ms" + (lastError == null ? "" : " (" + lastError + ")");
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.rwmckean.common.jms.claimcheck;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only store for message bodies, kept in memory-mapped segment
+ * files in one directory. A blob is written once, at the end of the current
+ * segment, and never moves, so the reference returned by {@link #put} stays
+ * valid until the blob expires. A new segment is started when the current
+ * one is full.
+ * <p/>
+ * Every blob carries an expiry time, and is marked released once its
+ * consumer is done with it. Compaction deletes whole segments in which every
+ * blob is released or expired; it runs each time a new segment is started
+ * and may also be called directly.
+ * <p/>
+ * One process appends to a directory; any number, on the same host or
+ * sharing the directory, may read and release. Writes reach the page cache
+ * immediately but are only forced to disk if {@link #setSyncWrites} is on.
+ */
+public class BlobStore implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BlobStore.class);
+    private static final int MAGIC = 0x52574d42;
+    private static final int HEADER = 17;
+    private static final int LENGTH_OFFSET = 4;
+    private static final int EXPIRY_OFFSET = 8;
+    private static final int STATE_OFFSET = 16;
+    private static final byte LIVE = 1;
+    private static final byte RELEASED = 0;
+    private static final String PREFIX = "blobs-";
+    private static final String SUFFIX = ".dat";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment active;
+    private int appendPosition;
+    private volatile long defaultTimeToLive = 7L * 24 * 60 * 60 * 1000;
+    private volatile boolean syncWrites;
+    private volatile boolean closed;
+
+    public BlobStore(Path directory) throws IOException {
+        this(directory, 256 * 1024 * 1024);
+    }
+
+    /**
+     * @param segmentSize the size of each segment file, which also bounds
+     *                    the largest blob
+     */
+    public BlobStore(Path directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("segmentSize must be more than " + HEADER);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getDefaultTimeToLive() {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * @param defaultTimeToLive how long, in milliseconds, a blob put without
+     *                          an expiry of its own is kept
+     */
+    public void setDefaultTimeToLive(long defaultTimeToLive) {
+        this.defaultTimeToLive = Math.max(1, defaultTimeToLive);
+    }
+
+    public boolean isSyncWrites() {
+        return syncWrites;
+    }
+
+    /**
+     * @param syncWrites true to force each blob to disk before its reference
+     *                   is returned, so it survives an operating system crash
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    public String put(byte[] data) throws IOException {
+        return put(data, 0, data.length, System.currentTimeMillis() + defaultTimeToLive);
+    }
+
+    /**
+     * Appends a blob.
+     *
+     * @param expiresAt the time, in milliseconds since the epoch, after which
+     *                  the blob may be discarded
+     * @return the reference to hand to {@link #get} and {@link #release}
+     */
+    public synchronized String put(byte[] data, int offset, int length, long expiresAt) throws IOException {
+        checkOpen();
+        if (length > segmentSize - HEADER) {
+            throw new IOException("Blob of " + length + " bytes does not fit in a " + segmentSize + " byte segment");
+        }
+        if (active == null) {
+            resume();
+        }
+        if (appendPosition + HEADER + length > segmentSize) {
+            roll();
+        }
+        int position = appendPosition;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(position + LENGTH_OFFSET);
+        buffer.putInt(length);
+        buffer.putLong(expiresAt);
+        buffer.put(LIVE);
+        buffer.put(data, offset, length);
+        // the magic goes last so a torn append is never mistaken for a blob
+        buffer.putInt(position, MAGIC);
+        if (syncWrites) {
+            active.buffer.force();
+        }
+        appendPosition += HEADER + length;
+        return active.number + ":" + position;
+    }
+
+    /**
+     * @throws IOException if the reference is malformed or the blob has
+     *                     expired or been compacted away
+     */
+    public byte[] get(String reference) throws IOException {
+        Location location = locate(reference);
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        int length = buffer.getInt(location.position + LENGTH_OFFSET);
+        long expiresAt = buffer.getLong(location.position + EXPIRY_OFFSET);
+        if (expiresAt < System.currentTimeMillis()) {
+            throw new IOException("Blob " + reference + " has expired");
+        }
+        byte[] data = new byte[length];
+        buffer.position(location.position + HEADER);
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Marks a blob as no longer needed, so its segment can be compacted once
+     * the rest of it is released or expired too. It stays readable until
+     * then, which covers redelivery of a message whose acknowledgement was
+     * lost.
+     */
+    public void release(String reference) throws IOException {
+        Location location = locate(reference);
+        location.segment.buffer.put(location.position + STATE_OFFSET, RELEASED);
+    }
+
+    /**
+     * Deletes every segment that holds no live blobs, other than the one
+     * being appended to and the highest-numbered one on disk. Keeping the
+     * highest means appending always resumes past it, so a segment number,
+     * and with it a reference, is never handed out twice.
+     *
+     * @return the number of segments deleted
+     */
+    public synchronized int compact() throws IOException {
+        checkOpen();
+        int deleted = 0;
+        long now = System.currentTimeMillis();
+        List<Integer> numbers = segmentNumbers();
+        int highest = numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+        for (int number : numbers) {
+            if (number == highest || (active != null && number == active.number)) {
+                continue;
+            }
+            Segment segment;
+            try {
+                segment = segment(number);
+            } catch (NoSuchFileException ex) {
+                continue;
+            }
+            if (!hasLiveBlobs(segment, now)) {
+                segments.remove(number);
+                segment.close();
+                Files.deleteIfExists(segment.path);
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            LOG.debug("Compacted {} segment(s) from {}", deleted, directory);
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    /**
+     * Picks up appending where the newest segment left off.
+     */
+    private void resume() throws IOException {
+        List<Integer> numbers = segmentNumbers();
+        if (numbers.isEmpty()) {
+            active = create(0);
+            appendPosition = 0;
+            return;
+        }
+        active = segment(numbers.get(numbers.size() - 1));
+        ByteBuffer buffer = active.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+            position += HEADER + buffer.getInt(position + LENGTH_OFFSET);
+        }
+        appendPosition = position;
+    }
+
+    private void roll() throws IOException {
+        if (syncWrites) {
+            active.buffer.force();
+        }
+        List<Integer> numbers = segmentNumbers();
+        int next = active.number + 1;
+        if (!numbers.isEmpty()) {
+            next = Math.max(next, numbers.get(numbers.size() - 1) + 1);
+        }
+        active = create(next);
+        appendPosition = 0;
+        compact();
+    }
+
+    private Segment create(int number) throws IOException {
+        Path path = directory.resolve(fileName(number));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment = new Segment(number, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                segmentSize));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private Segment segment(int number) throws IOException {
+        Segment segment = segments.get(number);
+        if (segment != null) {
+            return segment;
+        }
+        synchronized (segments) {
+            segment = segments.get(number);
+            if (segment == null) {
+                Path path = directory.resolve(fileName(number));
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segment = new Segment(number, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        channel.size()));
+                segments.put(number, segment);
+            }
+            return segment;
+        }
+    }
+
+    private Location locate(String reference) throws IOException {
+        checkOpen();
+        int split = reference.indexOf(':');
+        int number;
+        int position;
+        try {
+            number = Integer.parseInt(reference.substring(0, split));
+            position = Integer.parseInt(reference.substring(split + 1));
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed blob reference " + reference, ex);
+        }
+        Segment segment;
+        try {
+            segment = segment(number);
+        } catch (NoSuchFileException ex) {
+            throw new IOException("Blob " + reference + " has expired or been compacted", ex);
+        }
+        if (position < 0 || position + HEADER > segment.buffer.capacity()
+                || segment.buffer.getInt(position) != MAGIC) {
+            throw new IOException("No blob at " + reference);
+        }
+        return new Location(segment, position);
+    }
+
+    private static boolean hasLiveBlobs(Segment segment, long now) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+            if (buffer.get(position + STATE_OFFSET) == LIVE && buffer.getLong(position + EXPIRY_OFFSET) >= now) {
+                return true;
+            }
+            position += HEADER + buffer.getInt(position + LENGTH_OFFSET);
+        }
+        return false;
+    }
+
+    private List<Integer> segmentNumbers() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    // not one of ours
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private static String fileName(int number) {
+        return String.format("%s%08d%s", PREFIX, number, SUFFIX);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Blob store has been closed");
+        }
+    }
+
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(int number, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * The mapping itself is released when the buffer is collected.
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // the segment is being discarded anyway
+            }
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int position;
+
+        Location(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+}
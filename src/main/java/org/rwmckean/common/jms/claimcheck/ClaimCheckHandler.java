@@ -0,0 +1,86 @@
+package org.rwmckean.common.jms.claimcheck;
+
+import java.io.IOException;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.rwmckean.common.jms.consumer.MessageHandler;
+import org.rwmckean.common.jms.message.BodySource;
+import org.rwmckean.common.jms.message.DecoratedBytesMessage;
+import org.rwmckean.common.jms.message.DecoratedTextMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands claim-check references sent by a {@link ClaimCheckProducer} to the
+ * wrapped handler as text or bytes messages whose body is fetched from the
+ * {@link BlobStore} only when the handler first reads it. Other messages
+ * pass through untouched. Once the handler returns normally the blob is
+ * released, so the store can compact it away.
+ */
+public class ClaimCheckHandler implements MessageHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(ClaimCheckHandler.class);
+
+    private final MessageHandler handler;
+    private final BlobStore store;
+    private volatile boolean releaseOnSuccess = true;
+
+    public ClaimCheckHandler(MessageHandler handler, BlobStore store) {
+        this.handler = handler;
+        this.store = store;
+    }
+
+    public boolean isReleaseOnSuccess() {
+        return releaseOnSuccess;
+    }
+
+    /**
+     * @param releaseOnSuccess false to leave blobs live until they expire,
+     *                         for instance when several consumers each get
+     *                         a copy of the reference from a topic
+     */
+    public void setReleaseOnSuccess(boolean releaseOnSuccess) {
+        this.releaseOnSuccess = releaseOnSuccess;
+    }
+
+    @Override
+    public void handle(Message message) throws Exception {
+        Message resolved = resolve(message, store);
+        handler.handle(resolved);
+        if (resolved != message && releaseOnSuccess) {
+            String claim = message.getStringProperty(ClaimCheckProducer.CLAIM_PROPERTY);
+            try {
+                store.release(claim);
+            } catch (IOException ex) {
+                LOG.debug("Could not release blob {}", claim, ex);
+            }
+        }
+    }
+
+    /**
+     * @return a lazily claimed stand-in if the message is a claim-check
+     *         reference, otherwise the message itself
+     */
+    public static Message resolve(Message message, BlobStore store) throws JMSException {
+        String claim = message.getStringProperty(ClaimCheckProducer.CLAIM_PROPERTY);
+        if (claim == null) {
+            return message;
+        }
+        BodySource body = () -> {
+            try {
+                return store.get(claim);
+            } catch (IOException ex) {
+                JMSException jmsex = new JMSException("Unable to claim body " + claim + " of message "
+                        + message.getJMSMessageID() + ": " + ex.getMessage());
+                jmsex.setLinkedException(ex);
+                jmsex.initCause(ex);
+                throw jmsex;
+            }
+        };
+        if (ClaimCheckProducer.TEXT.equals(message.getStringProperty(ClaimCheckProducer.TYPE_PROPERTY))) {
+            return new DecoratedTextMessage(message, body);
+        }
+        return new DecoratedBytesMessage(message, body);
+    }
+}
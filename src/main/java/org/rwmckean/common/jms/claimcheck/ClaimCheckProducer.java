@@ -0,0 +1,289 @@
+package org.rwmckean.common.jms.claimcheck;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.rwmckean.common.jms.message.Messages;
+
+/**
+ * Decorates a producer so that text and bytes bodies of at least
+ * {@link #getThreshold()} bytes are put in a {@link BlobStore} and only a
+ * small reference message is sent in their place. The reference carries the
+ * original's properties, correlation ID, type and reply-to, plus the claim
+ * in {@link #CLAIM_PROPERTY}; a {@link ClaimCheckHandler} on the consuming
+ * side puts the body back. Once a send completes the original message's
+ * headers are updated from the reference, as if it had been sent itself.
+ * <p/>
+ * A blob expires with its message when the message has a time to live, and
+ * after the store's default time to live otherwise. If the send itself
+ * throws, the blob is released at once.
+ */
+public class ClaimCheckProducer implements MessageProducer {
+    public static final String CLAIM_PROPERTY = "RwmClaimCheck";
+    public static final String TYPE_PROPERTY = "RwmClaimCheckType";
+    static final String TEXT = "text";
+    static final String BYTES = "bytes";
+
+    private final Session session;
+    private final MessageProducer producer;
+    private final BlobStore store;
+    private volatile int threshold = 256 * 1024;
+
+    /**
+     * @param session the session the producer was created on, used to
+     *                create reference messages
+     */
+    public ClaimCheckProducer(Session session, MessageProducer producer, BlobStore store) {
+        this.session = session;
+        this.producer = producer;
+        this.store = store;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param threshold the body size, in bytes, from which bodies are
+     *                  offloaded; text is measured in characters
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = Math.max(0, threshold);
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        Message sent = checkIn(message, producer.getTimeToLive());
+        try {
+            producer.send(sent);
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        Message sent = checkIn(message, timeToLive);
+        try {
+            producer.send(sent, deliveryMode, priority, timeToLive);
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        Message sent = checkIn(message, producer.getTimeToLive());
+        try {
+            producer.send(destination, sent);
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        Message sent = checkIn(message, timeToLive);
+        try {
+            producer.send(destination, sent, deliveryMode, priority, timeToLive);
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        Message sent = checkIn(message, producer.getTimeToLive());
+        try {
+            producer.send(sent, Messages.sentAs(message, completionListener));
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        Message sent = checkIn(message, timeToLive);
+        try {
+            producer.send(sent, deliveryMode, priority, timeToLive, Messages.sentAs(message, completionListener));
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener)
+            throws JMSException {
+        Message sent = checkIn(message, producer.getTimeToLive());
+        try {
+            producer.send(destination, sent, Messages.sentAs(message, completionListener));
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        Message sent = checkIn(message, timeToLive);
+        try {
+            producer.send(destination, sent, deliveryMode, priority, timeToLive,
+                    Messages.sentAs(message, completionListener));
+        } catch (JMSException | RuntimeException ex) {
+            release(message, sent);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void setDisableMessageID(boolean value) throws JMSException {
+        producer.setDisableMessageID(value);
+    }
+
+    @Override
+    public boolean getDisableMessageID() throws JMSException {
+        return producer.getDisableMessageID();
+    }
+
+    @Override
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        producer.setDisableMessageTimestamp(value);
+    }
+
+    @Override
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return producer.getDisableMessageTimestamp();
+    }
+
+    @Override
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public int getDeliveryMode() throws JMSException {
+        return producer.getDeliveryMode();
+    }
+
+    @Override
+    public void setPriority(int defaultPriority) throws JMSException {
+        producer.setPriority(defaultPriority);
+    }
+
+    @Override
+    public int getPriority() throws JMSException {
+        return producer.getPriority();
+    }
+
+    @Override
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    @Override
+    public long getTimeToLive() throws JMSException {
+        return producer.getTimeToLive();
+    }
+
+    @Override
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        producer.setDeliveryDelay(deliveryDelay);
+    }
+
+    @Override
+    public long getDeliveryDelay() throws JMSException {
+        return producer.getDeliveryDelay();
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        return producer.getDestination();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        producer.close();
+    }
+
+    /**
+     * @return the message to send: the original if its body is small or of
+     *         a type that is never offloaded, otherwise a reference to it
+     */
+    private Message checkIn(Message message, long timeToLive) throws JMSException {
+        byte[] body;
+        String type;
+        if (message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            if (text == null || text.length() < threshold) {
+                return message;
+            }
+            body = text.getBytes(StandardCharsets.UTF_8);
+            type = TEXT;
+        } else if (message instanceof BytesMessage) {
+            BytesMessage bytes = (BytesMessage) message;
+            bytes.reset();
+            if (bytes.getBodyLength() < threshold) {
+                return message;
+            }
+            body = new byte[(int) bytes.getBodyLength()];
+            bytes.readBytes(body);
+            type = BYTES;
+        } else {
+            return message;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = timeToLive > 0 ? now + timeToLive : now + store.getDefaultTimeToLive();
+        String claim;
+        try {
+            claim = store.put(body, 0, body.length, expiresAt);
+        } catch (IOException ex) {
+            JMSException jmsex = new JMSException("Unable to check in message body: " + ex.getMessage());
+            jmsex.setLinkedException(ex);
+            jmsex.initCause(ex);
+            throw jmsex;
+        }
+        Message reference = session.createMessage();
+        Messages.copyHeaders(message, reference);
+        reference.setStringProperty(CLAIM_PROPERTY, claim);
+        reference.setStringProperty(TYPE_PROPERTY, type);
+        return reference;
+    }
+
+    /**
+     * Gives up the blob behind a reference the provider refused to send, so
+     * it does not wait out its time to live; a send that fails after all has
+     * reached the broker can still read it until compaction.
+     */
+    private void release(Message message, Message sent) {
+        if (sent == message) {
+            return;
+        }
+        try {
+            store.release(sent.getStringProperty(CLAIM_PROPERTY));
+        } catch (IOException | JMSException ex) {
+            // the blob expires in any case
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.rwmckean.common.jms.compression;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.rwmckean.common.jms.message.Messages;
+
+/**
+ * Decorates a producer to compress text and bytes bodies of at least
+ * {@link #getThreshold()} bytes, on any provider. A compressed message is
+ * sent as a bytes message carrying the codec's name in
+ * {@link #CODEC_PROPERTY}, the original body type and the uncompressed
+ * length; messages without the property are plain, so consumers handle
+ * traffic from compressing and non-compressing producers alike through a
+ * {@link DecompressingHandler}. Bodies that do not shrink are sent as they
+ * are.
+ * <p/>
+ * Text is encoded and bodies compressed through buffers kept by the
+ * producer and grown as needed, so a steady stream of messages allocates
+ * nothing beyond the outgoing message itself. Like the producer it wraps,
+ * an instance must not be used from more than one thread at a time.
+ */
+public class CompressingProducer implements MessageProducer {
+    public static final String CODEC_PROPERTY = "RwmCompression";
+    public static final String TYPE_PROPERTY = "RwmCompressionType";
+    public static final String LENGTH_PROPERTY = "RwmUncompressedLength";
+    static final String TEXT = "text";
+    static final String BYTES = "bytes";
+
+    private final Session session;
+    private final MessageProducer producer;
+    private final CompressionCodec codec;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+    private volatile int threshold = 1024;
+
+    public CompressingProducer(Session session, MessageProducer producer) {
+        this(session, producer, CompressionCodecs.getDefault());
+    }
+
+    /**
+     * @param session the session the producer was created on, used to
+     *                create the compressed messages
+     */
+    public CompressingProducer(Session session, MessageProducer producer, CompressionCodec codec) {
+        this.session = session;
+        this.producer = producer;
+        this.codec = codec;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param threshold the body size, in bytes, from which bodies are
+     *                  compressed; text is measured in characters
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = Math.max(0, threshold);
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        Message sent = compress(message);
+        producer.send(sent);
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        Message sent = compress(message);
+        producer.send(sent, deliveryMode, priority, timeToLive);
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        Message sent = compress(message);
+        producer.send(destination, sent);
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        Message sent = compress(message);
+        producer.send(destination, sent, deliveryMode, priority, timeToLive);
+        Messages.sentAs(message, sent);
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        producer.send(compress(message), Messages.sentAs(message, completionListener));
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        producer.send(compress(message), deliveryMode, priority, timeToLive,
+                Messages.sentAs(message, completionListener));
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener)
+            throws JMSException {
+        producer.send(destination, compress(message), Messages.sentAs(message, completionListener));
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        producer.send(destination, compress(message), deliveryMode, priority, timeToLive,
+                Messages.sentAs(message, completionListener));
+    }
+
+    @Override
+    public void setDisableMessageID(boolean value) throws JMSException {
+        producer.setDisableMessageID(value);
+    }
+
+    @Override
+    public boolean getDisableMessageID() throws JMSException {
+        return producer.getDisableMessageID();
+    }
+
+    @Override
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        producer.setDisableMessageTimestamp(value);
+    }
+
+    @Override
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return producer.getDisableMessageTimestamp();
+    }
+
+    @Override
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public int getDeliveryMode() throws JMSException {
+        return producer.getDeliveryMode();
+    }
+
+    @Override
+    public void setPriority(int defaultPriority) throws JMSException {
+        producer.setPriority(defaultPriority);
+    }
+
+    @Override
+    public int getPriority() throws JMSException {
+        return producer.getPriority();
+    }
+
+    @Override
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    @Override
+    public long getTimeToLive() throws JMSException {
+        return producer.getTimeToLive();
+    }
+
+    @Override
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        producer.setDeliveryDelay(deliveryDelay);
+    }
+
+    @Override
+    public long getDeliveryDelay() throws JMSException {
+        return producer.getDeliveryDelay();
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        return producer.getDestination();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        producer.close();
+    }
+
+    /**
+     * @return the message to send: the original if it is small, already
+     *         compressed, of a type that is never compressed, or does not
+     *         shrink; otherwise a compressed copy
+     */
+    private synchronized Message compress(Message message) throws JMSException {
+        int length;
+        String type;
+        if (message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            if (text == null || text.length() < threshold) {
+                return message;
+            }
+            length = encode(text);
+            type = TEXT;
+        } else if (message instanceof BytesMessage) {
+            if (message.propertyExists(CODEC_PROPERTY)) {
+                return message;
+            }
+            BytesMessage bytes = (BytesMessage) message;
+            bytes.reset();
+            long bodyLength = bytes.getBodyLength();
+            if (bodyLength < threshold) {
+                return message;
+            }
+            length = (int) bodyLength;
+            input = ensure(input, length);
+            bytes.readBytes(input, length);
+            bytes.reset();
+            type = BYTES;
+        } else {
+            return message;
+        }
+        output = ensure(output, codec.maxCompressedLength(length));
+        int compressed = codec.compress(input, length, output);
+        if (compressed >= length) {
+            return message;
+        }
+        BytesMessage copy = session.createBytesMessage();
+        copy.writeBytes(output, 0, compressed);
+        Messages.copyHeaders(message, copy);
+        copy.setStringProperty(CODEC_PROPERTY, codec.getName());
+        copy.setStringProperty(TYPE_PROPERTY, type);
+        copy.setIntProperty(LENGTH_PROPERTY, length);
+        return copy;
+    }
+
+    /**
+     * Encodes the text as UTF-8 into the input buffer.
+     *
+     * @return the encoded length
+     */
+    private int encode(String text) {
+        input = ensure(input, (int) Math.min(Integer.MAX_VALUE - 8, (long) text.length() * 3));
+        ByteBuffer out = ByteBuffer.wrap(input);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), out, true);
+        encoder.flush(out);
+        return out.position();
+    }
+
+    private static byte[] ensure(byte[] buffer, int length) {
+        return buffer.length >= length ? buffer : new byte[Math.max(length, buffer.length * 2)];
+    }
+}
@@ -0,0 +1,41 @@
+package org.rwmckean.common.jms.compression;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm for message bodies. Codecs other than the
+ * built-in {@link DeflateCodec} are found with {@link java.util.ServiceLoader},
+ * so a jar that lists its implementation in
+ * {@code META-INF/services/org.rwmckean.common.jms.compression.CompressionCodec}
+ * is picked up by {@link CompressionCodecs} without further configuration.
+ * <p/>
+ * Implementations must be thread safe, and should avoid allocating per call
+ * since they run on every send and receive.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the name sent with compressed messages, so consumers can pick
+     *         the matching codec
+     */
+    String getName();
+
+    /**
+     * @return the size of output buffer that {@link #compress} is guaranteed
+     *         to fit the compressed form of length bytes into
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * @return the number of bytes written to output
+     */
+    int compress(byte[] input, int length, byte[] output);
+
+    /**
+     * Decompresses into exactly outputLength bytes.
+     *
+     * @throws IOException if the input is corrupt or does not decompress to
+     *                     outputLength bytes
+     */
+    void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException;
+}
@@ -0,0 +1,41 @@
+package org.rwmckean.common.jms.compression;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The codecs known to this JVM, by name: {@link DeflateCodec} plus whatever
+ * {@link ServiceLoader} finds, plus any registered explicitly.
+ */
+public final class CompressionCodecs {
+    private static final Map<String, CompressionCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+        for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class)) {
+            register(codec);
+        }
+    }
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * Makes a codec available to consumers, replacing any of the same name.
+     */
+    public static void register(CompressionCodec codec) {
+        CODECS.put(codec.getName(), codec);
+    }
+
+    /**
+     * @return the codec, or null if none of that name is known
+     */
+    public static CompressionCodec forName(String name) {
+        return CODECS.get(name);
+    }
+
+    public static CompressionCodec getDefault() {
+        return CODECS.get(DeflateCodec.NAME);
+    }
+}
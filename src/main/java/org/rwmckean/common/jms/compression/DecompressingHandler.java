@@ -0,0 +1,87 @@
+package org.rwmckean.common.jms.compression;
+
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.rwmckean.common.jms.consumer.MessageHandler;
+import org.rwmckean.common.jms.message.BodySource;
+import org.rwmckean.common.jms.message.DecoratedBytesMessage;
+import org.rwmckean.common.jms.message.DecoratedTextMessage;
+
+/**
+ * Hands messages compressed by a {@link CompressingProducer} to the wrapped
+ * handler as the text or bytes messages they started as, decompressing the
+ * body the first time the handler reads it. Uncompressed messages pass
+ * through untouched.
+ * <p/>
+ * Each thread reads compressed bodies through a buffer of its own, so only
+ * the decompressed body is allocated per message.
+ */
+public class DecompressingHandler implements MessageHandler {
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final MessageHandler handler;
+
+    public DecompressingHandler(MessageHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void handle(Message message) throws Exception {
+        handler.handle(resolve(message));
+    }
+
+    /**
+     * @return a lazily decompressing stand-in if the message was compressed,
+     *         otherwise the message itself
+     * @throws JMSException if the message names a codec this JVM does not
+     *                      know
+     */
+    public static Message resolve(Message message) throws JMSException {
+        String name = message.getStringProperty(CompressingProducer.CODEC_PROPERTY);
+        if (name == null || !(message instanceof BytesMessage)) {
+            return message;
+        }
+        CompressionCodec codec = CompressionCodecs.forName(name);
+        if (codec == null) {
+            throw new JMSException("No compression codec named " + name + " for message "
+                    + message.getJMSMessageID());
+        }
+        BytesMessage compressed = (BytesMessage) message;
+        int length = message.getIntProperty(CompressingProducer.LENGTH_PROPERTY);
+        BodySource body = () -> decompress(compressed, codec, length);
+        if (CompressingProducer.TEXT.equals(message.getStringProperty(CompressingProducer.TYPE_PROPERTY))) {
+            return new DecoratedTextMessage(message, body);
+        }
+        return new DecoratedBytesMessage(message, body);
+    }
+
+    private static byte[] decompress(BytesMessage message, CompressionCodec codec, int length)
+            throws JMSException {
+        message.reset();
+        int compressedLength = (int) message.getBodyLength();
+        byte[] buffer = BUFFER.get();
+        if (buffer.length < compressedLength) {
+            buffer = new byte[compressedLength];
+            if (compressedLength <= MAX_RETAINED_BUFFER) {
+                BUFFER.set(buffer);
+            }
+        }
+        message.readBytes(buffer, compressedLength);
+        byte[] body = new byte[length];
+        try {
+            codec.decompress(buffer, compressedLength, body, length);
+        } catch (IOException ex) {
+            JMSException jmsex = new JMSException("Unable to decompress message " + message.getJMSMessageID()
+                    + ": " + ex.getMessage());
+            jmsex.setLinkedException(ex);
+            jmsex.initCause(ex);
+            throw jmsex;
+        }
+        return body;
+    }
+}
@@ -0,0 +1,112 @@
+package org.rwmckean.common.jms.compression;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The JDK's zlib deflate. Deflaters and inflaters hold native memory and are
+ * costly to create, so they are pooled: each call borrows one and returns it
+ * reset, and at most {@link #getPoolSize()} of each are kept idle.
+ */
+public class DeflateCodec implements CompressionCodec {
+    public static final String NAME = "deflate";
+
+    private final int level;
+    private final int poolSize;
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param level    the deflate level, 1 (fastest) to 9 (smallest)
+     * @param poolSize how many idle deflaters and inflaters to keep
+     */
+    public DeflateCodec(int level, int poolSize) {
+        this.level = level;
+        this.poolSize = poolSize;
+        this.deflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        this.inflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * zlib's deflateBound() plus the zlib header and trailer.
+     */
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+    }
+
+    @Override
+    public int compress(byte[] input, int length, byte[] output) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            int count = 0;
+            while (!deflater.finished() && count < output.length) {
+                count += deflater.deflate(output, count, output.length - count);
+            }
+            if (!deflater.finished()) {
+                throw new IllegalArgumentException("Output buffer of " + output.length + " bytes is too small");
+            }
+            return count;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    @Override
+    public void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(input, 0, length);
+            int count = 0;
+            while (!inflater.finished() && count < outputLength) {
+                int inflated = inflater.inflate(output, count, outputLength - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (!inflater.finished() || count != outputLength) {
+                throw new IOException("Compressed body did not inflate to " + outputLength + " bytes");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed body", ex);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.List;
+
+import javax.jms.Message;
+
+/**
+ * Processes a batch of messages taken from the queue together, so a handler
+ * that writes them elsewhere can do so in one round-trip. The batch is
+ * acknowledged, or its transaction committed, only after this returns
+ * normally; throwing hands the whole batch back to the broker for
+ * redelivery.
+ */
+@FunctionalInterface
+public interface BatchMessageHandler {
+    /**
+     * @param messages the batch in the order received; never empty
+     */
+    void handle(List<Message> messages) throws Exception;
+}
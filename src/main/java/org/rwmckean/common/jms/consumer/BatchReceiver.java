@@ -0,0 +1,119 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Receives messages in batches from a consumer, and settles each batch with
+ * one acknowledgement or commit instead of one per message. Works on any
+ * session; inside Spring, wrap a template's session and consumer from a
+ * {@code JmsTemplate.execute(SessionCallback, true)} callback.
+ * <p/>
+ * Batches only amortise acknowledgement on transacted and CLIENT_ACKNOWLEDGE
+ * sessions. On AUTO_ACKNOWLEDGE and DUPS_OK_ACKNOWLEDGE sessions each
+ * message is acknowledged as it is received, so a failed batch is not
+ * redelivered.
+ */
+public class BatchReceiver {
+    private final Session session;
+    private final MessageConsumer consumer;
+
+    public BatchReceiver(Session session, MessageConsumer consumer) {
+        this.session = session;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Receives up to maxMessages, waiting no more than maxWait in all. Once
+     * the time is up whatever the consumer already holds is still taken, up
+     * to maxMessages.
+     *
+     * @param maxWait milliseconds to wait; 0 takes only what is already
+     *                available
+     * @return the messages received, possibly none
+     */
+    public List<Message> receiveBatch(int maxMessages, long maxWait) throws JMSException {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be at least 1");
+        }
+        // the wait for the first message counts against maxWait too
+        long deadline = System.nanoTime() + maxWait * 1_000_000;
+        Message first = maxWait > 0 ? consumer.receive(maxWait) : consumer.receiveNoWait();
+        if (first == null) {
+            return Collections.emptyList();
+        }
+        List<Message> batch = new ArrayList<>(Math.min(maxMessages, 1024));
+        batch.add(first);
+        fill(consumer, batch, maxMessages, deadline);
+        return batch;
+    }
+
+    /**
+     * Receives a batch as {@link #receiveBatch(int, long)} does and hands it
+     * to the handler, then commits or acknowledges it. If the handler throws
+     * the batch is rolled back or recovered and the exception rethrown.
+     *
+     * @return the number of messages handled, 0 if none arrived in time
+     */
+    public int receiveBatch(int maxMessages, long maxWait, BatchMessageHandler handler) throws Exception {
+        List<Message> batch = receiveBatch(maxMessages, maxWait);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try {
+            handler.handle(Collections.unmodifiableList(batch));
+        } catch (Exception ex) {
+            reject(session);
+            throw ex;
+        }
+        settle(session, batch);
+        return batch.size();
+    }
+
+    /**
+     * Adds messages to a batch until it holds maxMessages or the deadline
+     * has passed, then takes whatever the consumer already holds without
+     * waiting.
+     *
+     * @param deadline a {@link System#nanoTime()} value, fixed by the caller
+     *                 before it waited for the batch's first message
+     */
+    static void fill(MessageConsumer consumer, List<Message> batch, int maxMessages, long deadline)
+            throws JMSException {
+        while (batch.size() < maxMessages) {
+            long remaining = (deadline - System.nanoTime()) / 1_000_000;
+            Message message = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+            if (message == null) {
+                return;
+            }
+            batch.add(message);
+        }
+    }
+
+    /**
+     * Commits a transacted session, or acknowledges a client-acknowledged
+     * batch through its last message, which covers every message the
+     * session has received.
+     */
+    static void settle(Session session, List<Message> batch) throws JMSException {
+        if (session.getTransacted()) {
+            session.commit();
+        } else if (session.getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE) {
+            batch.get(batch.size() - 1).acknowledge();
+        }
+    }
+
+    static void reject(Session session) throws JMSException {
+        if (session.getTransacted()) {
+            session.rollback();
+        } else {
+            session.recover();
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.rwmckean.common.jms.latency.LatencyTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-running consumer that drains a queue on many sessions at once.
+ * {@link #getConnections()} connections are opened, each carrying
+ * {@link #getConsumersPerConnection()} sessions with one consumer apiece, and
+ * every consumer runs its receive loop on its own worker thread. On a Java 21
+ * runtime, with a jar built by the java21 profile, those loop threads are
+ * virtual; otherwise they are daemon platform threads. The handler runs on
+ * the loop thread that received the message; nothing is handed off to
+ * another pool, since a session, and the acknowledgement that follows the
+ * handler, belong to one thread.
+ * <p/>
+ * A message is acknowledged, or its transaction committed, only after the
+ * {@link MessageHandler} returns. If the handler throws, the session is
+ * recovered or rolled back so the broker redelivers the message.
+ * <p/>
+ * A container built with a {@link BatchMessageHandler} hands over up to
+ * {@link #getMaxBatchSize()} messages at a time instead, and acknowledges or
+ * commits each batch once.
+ * <p/>
+ * {@link #stop()} drains gracefully: consumers stop receiving, finish and
+ * acknowledge the message in hand, and the connections are closed once they
+ * have all exited or {@link #getDrainTimeout()} has passed.
+ */
+public class ConsumerContainer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ConsumerContainer.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final MessageHandler handler;
+    private final BatchMessageHandler batchHandler;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final List<Slot> slots = new ArrayList<>();
+    private ExecutorService workers;
+    private CountDownLatch finished;
+    private volatile boolean running;
+
+    private int connections = 1;
+    private int consumersPerConnection = 4;
+    private boolean sessionTransacted = false;
+    private String messageSelector;
+    private long receiveTimeout = 1000;
+    private long recoveryInterval = 5000;
+    private long drainTimeout = 30000;
+    private int maxBatchSize = 100;
+    private long batchWait = 50;
+    private PrefetchController prefetchController;
+    private LatencyTracker latencyTracker;
+
+    public ConsumerContainer(ConnectionFactory connectionFactory, Destination destination, MessageHandler handler) {
+        this.connectionFactory = connectionFactory;
+        this.destination = destination;
+        this.handler = handler;
+        this.batchHandler = null;
+    }
+
+    public ConsumerContainer(ConnectionFactory connectionFactory, Destination destination,
+            BatchMessageHandler batchHandler) {
+        this.connectionFactory = connectionFactory;
+        this.destination = destination;
+        this.handler = null;
+        this.batchHandler = batchHandler;
+    }
+
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    public synchronized void setConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be at least 1");
+        }
+        this.connections = connections;
+    }
+
+    public synchronized int getConsumersPerConnection() {
+        return consumersPerConnection;
+    }
+
+    public synchronized void setConsumersPerConnection(int consumersPerConnection) {
+        if (consumersPerConnection < 1) {
+            throw new IllegalArgumentException("consumersPerConnection must be at least 1");
+        }
+        this.consumersPerConnection = consumersPerConnection;
+    }
+
+    public synchronized boolean isSessionTransacted() {
+        return sessionTransacted;
+    }
+
+    /**
+     * @param sessionTransacted true to consume in local transactions,
+     *                          committed per message; false to use client
+     *                          acknowledgement
+     */
+    public synchronized void setSessionTransacted(boolean sessionTransacted) {
+        this.sessionTransacted = sessionTransacted;
+    }
+
+    public synchronized String getMessageSelector() {
+        return messageSelector;
+    }
+
+    public synchronized void setMessageSelector(String messageSelector) {
+        this.messageSelector = messageSelector;
+    }
+
+    public synchronized long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    /**
+     * @param receiveTimeout how long, in milliseconds, each receive blocks;
+     *                       bounds how quickly an idle consumer notices stop
+     */
+    public synchronized void setReceiveTimeout(long receiveTimeout) {
+        this.receiveTimeout = Math.max(1, receiveTimeout);
+    }
+
+    public synchronized long getRecoveryInterval() {
+        return recoveryInterval;
+    }
+
+    public synchronized void setRecoveryInterval(long recoveryInterval) {
+        this.recoveryInterval = Math.max(0, recoveryInterval);
+    }
+
+    public synchronized long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public synchronized void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = Math.max(0, drainTimeout);
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize the most messages handed to a batch handler at once
+     */
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public synchronized long getBatchWait() {
+        return batchWait;
+    }
+
+    /**
+     * @param batchWait how long, in milliseconds, a batch is held open for
+     *                  more messages after its first arrives
+     */
+    public synchronized void setBatchWait(long batchWait) {
+        this.batchWait = Math.max(0, batchWait);
+    }
+
+    public synchronized PrefetchController getPrefetchController() {
+        return prefetchController;
+    }
+
+    /**
+     * @param prefetchController tunes the prefetch of this container's
+     *                           consumers from their processing times; only
+     *                           ActiveMQ consumers are affected
+     */
+    public synchronized void setPrefetchController(PrefetchController prefetchController) {
+        this.prefetchController = prefetchController;
+    }
+
+    public synchronized LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * @param latencyTracker records send-to-receive latency from producers'
+     *                       send stamps, and receive-to-ack latency, for
+     *                       every message this container consumes
+     */
+    public synchronized void setLatencyTracker(LatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true if consumer loops run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return WorkerThreads.isVirtual();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        int consumers = connections * consumersPerConnection;
+        finished = new CountDownLatch(consumers);
+        workers = WorkerThreads.newExecutor("jms-consumer");
+        for (int c = 0; c < connections; c++) {
+            Slot slot = new Slot();
+            slots.add(slot);
+            for (int i = 0; i < consumersPerConnection; i++) {
+                workers.execute(() -> consume(slot));
+            }
+        }
+        LOG.info("Started {} consumer(s) on {} connection(s) for {} using {} threads", consumers, connections,
+                destination, WorkerThreads.isVirtual() ? "virtual" : "platform");
+    }
+
+    /**
+     * Stops receiving, waits up to drainTimeout for in-flight messages to be
+     * processed and acknowledged, then closes the connections.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        boolean drained = false;
+        try {
+            drained = finished.await(drainTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!drained) {
+            LOG.warn("{} consumer(s) on {} still busy after {} ms; closing their connections",
+                    finished.getCount(), destination, drainTimeout);
+        }
+        for (Slot slot : slots) {
+            slot.close();
+        }
+        slots.clear();
+        workers.shutdownNow();
+        workers = null;
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void consume(Slot slot) {
+        try {
+            while (running) {
+                Session session = null;
+                MessageConsumer consumer = null;
+                try {
+                    String destinationName = LatencyTracker.nameOf(destination);
+                    Connection connection = slot.connection();
+                    session = sessionTransacted
+                            ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                            : connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                    consumer = session.createConsumer(destination, messageSelector);
+                    if (prefetchController != null) {
+                        prefetchController.register(session, destination, consumer);
+                    }
+                    while (running && !slot.isBroken()) {
+                        Message message = consumer.receive(receiveTimeout);
+                        if (message == null) {
+                            continue;
+                        }
+                        if (batchHandler == null) {
+                            process(session, consumer, destinationName, message);
+                        } else {
+                            // the batch is held open from its first message's
+                            // arrival, not from the idle poll that found it
+                            long deadline = System.nanoTime() + batchWait * 1_000_000;
+                            List<Message> batch = new ArrayList<>();
+                            batch.add(message);
+                            BatchReceiver.fill(consumer, batch, maxBatchSize, deadline);
+                            processBatch(session, consumer, destinationName, batch);
+                        }
+                    }
+                } catch (JMSException | RuntimeException ex) {
+                    if (running) {
+                        LOG.warn("Consumer on {} failed; recovering in {} ms", destination, recoveryInterval, ex);
+                        pause();
+                    }
+                } finally {
+                    if (consumer != null && prefetchController != null) {
+                        prefetchController.unregister(consumer);
+                    }
+                    closeQuietly(session);
+                }
+            }
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void process(Session session, MessageConsumer consumer, String destinationName, Message message)
+            throws JMSException {
+        long receivedAt = latencyTracker == null ? 0 : latencyTracker.recordReceived(destinationName, message);
+        long begin = System.nanoTime();
+        try {
+            handler.handle(message);
+        } catch (Exception ex) {
+            failed.incrementAndGet();
+            LOG.warn("Handler failed for message {} on {}; returning it for redelivery",
+                    message.getJMSMessageID(), destination, ex);
+            if (sessionTransacted) {
+                session.rollback();
+            } else {
+                session.recover();
+            }
+            return;
+        } finally {
+            if (prefetchController != null) {
+                prefetchController.recordProcessing(consumer, System.nanoTime() - begin);
+            }
+        }
+        if (sessionTransacted) {
+            session.commit();
+        } else {
+            message.acknowledge();
+        }
+        if (latencyTracker != null) {
+            latencyTracker.recordAcknowledged(destinationName, receivedAt);
+        }
+        processed.incrementAndGet();
+    }
+
+    private void processBatch(Session session, MessageConsumer consumer, String destinationName,
+            List<Message> batch) throws JMSException {
+        long[] receivedAt = new long[batch.size()];
+        if (latencyTracker != null) {
+            for (int i = 0; i < receivedAt.length; i++) {
+                receivedAt[i] = latencyTracker.recordReceived(destinationName, batch.get(i));
+            }
+        }
+        long begin = System.nanoTime();
+        try {
+            batchHandler.handle(Collections.unmodifiableList(batch));
+        } catch (Exception ex) {
+            failed.addAndGet(batch.size());
+            LOG.warn("Batch handler failed for {} message(s) on {}; returning them for redelivery", batch.size(),
+                    destination, ex);
+            BatchReceiver.reject(session);
+            return;
+        } finally {
+            if (prefetchController != null) {
+                prefetchController.recordProcessing(consumer, (System.nanoTime() - begin) / batch.size());
+            }
+        }
+        BatchReceiver.settle(session, batch);
+        if (latencyTracker != null) {
+            for (long received : receivedAt) {
+                latencyTracker.recordAcknowledged(destinationName, received);
+            }
+        }
+        processed.addAndGet(batch.size());
+    }
+
+    private void pause() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(recoveryInterval);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Session session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.close();
+        } catch (JMSException | RuntimeException ex) {
+            // the session is being discarded anyway
+        }
+    }
+
+    /**
+     * One connection shared by a group of consumer loops, reopened by the
+     * next loop to ask for it after the provider reports it broken.
+     */
+    private final class Slot {
+        private Connection connection;
+        private volatile boolean broken;
+
+        synchronized Connection connection() throws JMSException {
+            if (connection == null || broken) {
+                closeConnection();
+                Connection opened = connectionFactory.createConnection();
+                try {
+                    opened.setExceptionListener(ex -> markBroken(opened));
+                    opened.start();
+                } catch (JMSException | RuntimeException ex) {
+                    opened.close();
+                    throw ex;
+                }
+                connection = opened;
+                broken = false;
+            }
+            return connection;
+        }
+
+        boolean isBroken() {
+            return broken;
+        }
+
+        synchronized void close() {
+            closeConnection();
+        }
+
+        private synchronized void markBroken(Connection failed) {
+            if (connection == failed) {
+                broken = true;
+            }
+        }
+
+        private void closeConnection() {
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.close();
+            } catch (JMSException | RuntimeException ex) {
+                // the connection is being discarded anyway
+            } finally {
+                connection = null;
+            }
+        }
+    }
+}
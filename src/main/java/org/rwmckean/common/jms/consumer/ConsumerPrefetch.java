@@ -0,0 +1,91 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.command.ActiveMQDestination;
+
+/**
+ * What a {@link PrefetchController} knows about one of its consumers.
+ */
+final class ConsumerPrefetch implements ConsumerPrefetchMBean {
+    final ActiveMQMessageConsumer consumer;
+    final ActiveMQConnection connection;
+    final ActiveMQDestination destination;
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    volatile int prefetch;
+    volatile int desiredPrefetch = -1;
+    volatile long averageNanos = -1;
+
+    ConsumerPrefetch(ActiveMQMessageConsumer consumer, ActiveMQConnection connection,
+            ActiveMQDestination destination, int prefetch) {
+        this.consumer = consumer;
+        this.connection = connection;
+        this.destination = destination;
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public String getConsumerId() {
+        return String.valueOf(consumer.getConsumerId());
+    }
+
+    @Override
+    public String getDestination() {
+        return destination.getPhysicalName();
+    }
+
+    @Override
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return the prefetch the last adjustment computed, applied or not, or
+     *         -1 before the first
+     */
+    @Override
+    public int getDesiredPrefetch() {
+        return desiredPrefetch;
+    }
+
+    /**
+     * @return the average time to process one message, or -1 before the
+     *         first sample
+     */
+    @Override
+    public double getAverageProcessingMillis() {
+        long average = averageNanos;
+        return average < 0 ? -1 : average / 1e6;
+    }
+
+    @Override
+    public long getIncreaseCount() {
+        return increases.get();
+    }
+
+    @Override
+    public long getDecreaseCount() {
+        return decreases.get();
+    }
+
+    /**
+     * Samples are weighted 1/8, as for endpoint latency; a lost update
+     * under contention only delays the average slightly.
+     */
+    void record(long nanos) {
+        long previous = averageNanos;
+        averageNanos = previous < 0 ? nanos : previous + (nanos - previous) / 8;
+    }
+
+    void applied(int prefetch) {
+        if (prefetch > this.prefetch) {
+            increases.incrementAndGet();
+        } else {
+            decreases.incrementAndGet();
+        }
+        this.prefetch = prefetch;
+    }
+}
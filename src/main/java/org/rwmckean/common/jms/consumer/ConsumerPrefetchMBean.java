@@ -0,0 +1,22 @@
+package org.rwmckean.common.jms.consumer;
+
+/**
+ * One consumer under a prefetch controller: the prefetch it has now, the
+ * prefetch the last adjustment wanted for it, and the processing time that
+ * decision was based on.
+ */
+public interface ConsumerPrefetchMBean {
+    String getConsumerId();
+
+    String getDestination();
+
+    int getPrefetch();
+
+    int getDesiredPrefetch();
+
+    double getAverageProcessingMillis();
+
+    long getIncreaseCount();
+
+    long getDecreaseCount();
+}
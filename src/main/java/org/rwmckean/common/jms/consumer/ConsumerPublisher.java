@@ -0,0 +1,169 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * A {@link Flow.Publisher} of the messages on a queue. Each subscriber gets
+ * a connection and consumer of its own, competing with any others for the
+ * queue's messages, and a worker that receives only while the subscriber
+ * has outstanding demand, so a slow pipeline leaves messages on the broker
+ * instead of buffering them in memory.
+ * <p/>
+ * The session uses client acknowledgement, and each message is
+ * acknowledged once onNext has returned; a message in onNext when the
+ * process dies is redelivered. A JMS failure ends the subscription with
+ * onError.
+ * <p/>
+ * Providers that push messages ahead of receive still buffer up to their
+ * prefetch: give ActiveMQ consumers a prefetch of zero, for example with
+ * {@code QUEUE?consumer.prefetchSize=0}, to pull strictly on demand. IBM MQ
+ * only reads ahead for non-persistent messages, and only when told to.
+ */
+public class ConsumerPublisher implements Flow.Publisher<Message> {
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final ExecutorService workers = WorkerThreads.newExecutor("jms-publisher");
+
+    private String messageSelector;
+    private long receiveTimeout = 1000;
+
+    public ConsumerPublisher(ConnectionFactory connectionFactory, Destination destination) {
+        this.connectionFactory = connectionFactory;
+        this.destination = destination;
+    }
+
+    public synchronized String getMessageSelector() {
+        return messageSelector;
+    }
+
+    public synchronized void setMessageSelector(String messageSelector) {
+        this.messageSelector = messageSelector;
+    }
+
+    public synchronized long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    /**
+     * @param receiveTimeout how long, in milliseconds, each receive blocks;
+     *                       bounds how quickly a cancelled subscription
+     *                       releases its connection
+     */
+    public synchronized void setReceiveTimeout(long receiveTimeout) {
+        this.receiveTimeout = Math.max(1, receiveTimeout);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        String selector;
+        long timeout;
+        synchronized (this) {
+            selector = messageSelector;
+            timeout = receiveTimeout;
+        }
+        Subscription subscription = new Subscription(subscriber, selector, timeout);
+        subscriber.onSubscribe(subscription);
+        workers.execute(subscription::run);
+    }
+
+    private final class Subscription implements Flow.Subscription {
+        final Flow.Subscriber<? super Message> subscriber;
+        final String selector;
+        final long timeout;
+        final AtomicLong demand = new AtomicLong();
+        volatile Thread worker;
+        volatile boolean cancelled;
+        volatile IllegalArgumentException badRequest;
+
+        Subscription(Flow.Subscriber<? super Message> subscriber, String selector, long timeout) {
+            this.subscriber = subscriber;
+            this.selector = selector;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("request must be positive, was " + n);
+                cancelled = true;
+            } else {
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            Thread thread = worker;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            Thread thread = worker;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * The subscription's worker: receives while there is demand, parks
+         * while there is none.
+         */
+        void run() {
+            worker = Thread.currentThread();
+            Connection connection = null;
+            try {
+                connection = connectionFactory.createConnection();
+                Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(destination, selector);
+                connection.start();
+                while (!cancelled) {
+                    if (demand.get() == 0) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    Message message = consumer.receive(timeout);
+                    if (message == null) {
+                        continue;
+                    }
+                    subscriber.onNext(message);
+                    message.acknowledge();
+                    demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+                }
+                if (badRequest != null) {
+                    subscriber.onError(badRequest);
+                }
+            } catch (JMSException | RuntimeException ex) {
+                if (!cancelled || badRequest != null) {
+                    cancelled = true;
+                    subscriber.onError(badRequest != null ? badRequest : ex);
+                }
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (JMSException | RuntimeException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+}
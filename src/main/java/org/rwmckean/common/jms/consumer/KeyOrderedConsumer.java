@@ -0,0 +1,495 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumes a queue on one session but processes it on {@link #getLanes()}
+ * worker threads while keeping messages with the same key in order. The key
+ * is {@link #getKeyProperty()}, JMSXGroupID by default; a per-account ID
+ * keeps each account's messages in sequence while different accounts are
+ * processed in parallel.
+ * <p/>
+ * A receiver thread takes up to {@link #getWindow()} messages and assigns
+ * each key to a lane, a single-producer queue drained by one worker, so a
+ * key's messages are handled one at a time in arrival order. Keys without
+ * a lane go to the one their hash picks unless that lane already has
+ * {@link #getHotLaneThreshold()} messages queued and another has fewer than
+ * half as many; then they go to the least loaded lane, so keys that share a
+ * lane with a hot key are not held up behind it.
+ * <p/>
+ * JMS acknowledges, or commits, everything a session has received at once,
+ * so the receiver stops at the end of each window until every lane has
+ * finished its share, then acknowledges the window in one call and lanes
+ * are reassigned afresh. If any handler throws, the lanes skip the rest of
+ * the window and the whole window is recovered or rolled back; messages
+ * other lanes had already processed are redelivered with it, which a
+ * {@link org.rwmckean.common.jms.dedupe.DeduplicatingHandler} can absorb.
+ * Handlers must not acknowledge messages themselves.
+ */
+public class KeyOrderedConsumer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyOrderedConsumer.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final MessageHandler handler;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong steered = new AtomicLong();
+    private Lane[] activeLanes;
+    private ExecutorService workers;
+    private Thread receiver;
+    private volatile boolean running;
+    private volatile Throwable windowFailure;
+
+    private int lanes = Runtime.getRuntime().availableProcessors();
+    private int window = 1000;
+    private String keyProperty = "JMSXGroupID";
+    private int hotLaneThreshold = 64;
+    private boolean sessionTransacted = false;
+    private String messageSelector;
+    private long receiveTimeout = 1000;
+    private long recoveryInterval = 5000;
+    private long drainTimeout = 30000;
+
+    public KeyOrderedConsumer(ConnectionFactory connectionFactory, Destination destination, MessageHandler handler) {
+        this.connectionFactory = connectionFactory;
+        this.destination = destination;
+        this.handler = handler;
+    }
+
+    public synchronized int getLanes() {
+        return lanes;
+    }
+
+    public synchronized void setLanes(int lanes) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be at least 1");
+        }
+        this.lanes = lanes;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * @param window the most messages taken before waiting for the lanes and
+     *               acknowledging
+     */
+    public synchronized void setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        this.window = window;
+    }
+
+    public synchronized String getKeyProperty() {
+        return keyProperty;
+    }
+
+    /**
+     * @param keyProperty the string property messages are ordered by;
+     *                    messages without it are not ordered at all
+     */
+    public synchronized void setKeyProperty(String keyProperty) {
+        this.keyProperty = keyProperty;
+    }
+
+    public synchronized int getHotLaneThreshold() {
+        return hotLaneThreshold;
+    }
+
+    /**
+     * @param hotLaneThreshold how many messages a lane may have queued before
+     *                         new keys are steered away from it
+     */
+    public synchronized void setHotLaneThreshold(int hotLaneThreshold) {
+        this.hotLaneThreshold = Math.max(1, hotLaneThreshold);
+    }
+
+    public synchronized boolean isSessionTransacted() {
+        return sessionTransacted;
+    }
+
+    /**
+     * @param sessionTransacted true to commit each window in a local
+     *                          transaction; false to use client
+     *                          acknowledgement
+     */
+    public synchronized void setSessionTransacted(boolean sessionTransacted) {
+        this.sessionTransacted = sessionTransacted;
+    }
+
+    public synchronized String getMessageSelector() {
+        return messageSelector;
+    }
+
+    public synchronized void setMessageSelector(String messageSelector) {
+        this.messageSelector = messageSelector;
+    }
+
+    public synchronized long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    /**
+     * @param receiveTimeout how long, in milliseconds, the receiver waits for
+     *                       the first message of a window
+     */
+    public synchronized void setReceiveTimeout(long receiveTimeout) {
+        this.receiveTimeout = Math.max(1, receiveTimeout);
+    }
+
+    public synchronized long getRecoveryInterval() {
+        return recoveryInterval;
+    }
+
+    public synchronized void setRecoveryInterval(long recoveryInterval) {
+        this.recoveryInterval = Math.max(0, recoveryInterval);
+    }
+
+    public synchronized long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public synchronized void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = Math.max(0, drainTimeout);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of windows acknowledged or committed
+     */
+    public long getWindowCount() {
+        return windows.get();
+    }
+
+    /**
+     * @return the number of keys sent to a lane other than their own because
+     *         it was hot
+     */
+    public long getSteeredCount() {
+        return steered.get();
+    }
+
+    /**
+     * @return the number of messages queued on each lane right now
+     */
+    public synchronized int[] getLaneBacklogs() {
+        Lane[] current = activeLanes;
+        int[] backlogs = new int[current == null ? 0 : current.length];
+        for (int i = 0; i < backlogs.length; i++) {
+            backlogs[i] = current[i].backlog();
+        }
+        return backlogs;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        activeLanes = new Lane[lanes];
+        workers = WorkerThreads.newExecutor("jms-lane");
+        for (int i = 0; i < lanes; i++) {
+            Lane lane = new Lane(window);
+            activeLanes[i] = lane;
+            workers.execute(lane::run);
+        }
+        Lane[] started = activeLanes;
+        receiver = new Thread(() -> receive(started), "jms-lane-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        LOG.info("Started key-ordered consumer for {} on {} lane(s) keyed by {}", destination, lanes, keyProperty);
+    }
+
+    /**
+     * Stops receiving, waits up to drainTimeout for the current window to be
+     * processed and acknowledged, then stops the lanes.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            receiver.join(drainTimeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (receiver.isAlive()) {
+            LOG.warn("Key-ordered consumer for {} still busy after {} ms; abandoning its window", destination,
+                    drainTimeout);
+            receiver.interrupt();
+        }
+        for (Lane lane : activeLanes) {
+            lane.stop();
+        }
+        workers.shutdownNow();
+        workers = null;
+        receiver = null;
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void receive(Lane[] lanes) {
+        int maxWindow;
+        String key;
+        int hot;
+        boolean transacted;
+        String selector;
+        long timeout;
+        synchronized (this) {
+            maxWindow = window;
+            key = keyProperty;
+            hot = hotLaneThreshold;
+            transacted = sessionTransacted;
+            selector = messageSelector;
+            timeout = receiveTimeout;
+        }
+        Map<String, Lane> assigned = new HashMap<>();
+        while (running) {
+            Connection connection = null;
+            try {
+                connection = connectionFactory.createConnection();
+                Session session = transacted
+                        ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                        : connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(destination, selector);
+                connection.start();
+                while (running) {
+                    Message last = null;
+                    int taken = 0;
+                    Message message = consumer.receive(timeout);
+                    while (message != null) {
+                        dispatch(lanes, assigned, key, hot, message);
+                        last = message;
+                        if (++taken == maxWindow) {
+                            break;
+                        }
+                        message = consumer.receiveNoWait();
+                    }
+                    if (last != null) {
+                        settle(lanes, session, last, taken, transacted);
+                    }
+                    assigned.clear();
+                }
+            } catch (JMSException | RuntimeException ex) {
+                if (running) {
+                    LOG.warn("Key-ordered consumer on {} failed; recovering in {} ms", destination,
+                            recoveryInterval, ex);
+                    awaitLanes(lanes);
+                    windowFailure = null;
+                    assigned.clear();
+                    pause();
+                }
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Keeps a key on the lane it already has in this window, so its messages
+     * stay in order; otherwise picks one.
+     */
+    private void dispatch(Lane[] lanes, Map<String, Lane> assigned, String keyProperty, int hot, Message message)
+            throws JMSException {
+        String key = keyProperty == null ? null : message.getStringProperty(keyProperty);
+        Lane lane;
+        if (key == null) {
+            lane = leastLoaded(lanes);
+        } else {
+            lane = assigned.get(key);
+            if (lane == null) {
+                lane = lanes[Math.floorMod(key.hashCode() * 0x9e3779b9, lanes.length)];
+                int backlog = lane.backlog();
+                if (backlog >= hot) {
+                    Lane coolest = leastLoaded(lanes);
+                    if (coolest.backlog() * 2 < backlog) {
+                        lane = coolest;
+                        steered.incrementAndGet();
+                    }
+                }
+                assigned.put(key, lane);
+            }
+        }
+        lane.offer(message);
+    }
+
+    /**
+     * Waits for the lanes to finish the window, then acknowledges or commits
+     * it, or hands it back if a handler failed.
+     */
+    private void settle(Lane[] lanes, Session session, Message last, int taken, boolean transacted)
+            throws JMSException {
+        awaitLanes(lanes);
+        Throwable failure = windowFailure;
+        windowFailure = null;
+        if (failure != null) {
+            LOG.warn("Handler failed in a window of {} message(s) on {}; returning the window for redelivery",
+                    taken, destination, failure);
+            if (transacted) {
+                session.rollback();
+            } else {
+                session.recover();
+            }
+            return;
+        }
+        if (transacted) {
+            session.commit();
+        } else {
+            last.acknowledge();
+        }
+        processed.addAndGet(taken);
+        windows.incrementAndGet();
+    }
+
+    private void awaitLanes(Lane[] lanes) {
+        for (Lane lane : lanes) {
+            while (lane.backlog() > 0 && !Thread.currentThread().isInterrupted()) {
+                lane.waiter = Thread.currentThread();
+                if (lane.backlog() > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            }
+        }
+    }
+
+    private static Lane leastLoaded(Lane[] lanes) {
+        Lane best = lanes[0];
+        int lowest = best.backlog();
+        for (int i = 1; i < lanes.length && lowest > 0; i++) {
+            int backlog = lanes[i].backlog();
+            if (backlog < lowest) {
+                best = lanes[i];
+                lowest = backlog;
+            }
+        }
+        return best;
+    }
+
+    private void pause() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(recoveryInterval);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (JMSException | RuntimeException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+
+    /**
+     * A ring written only by the receiver and read only by the lane's
+     * worker. It holds at most a window, so it never fills. A message counts
+     * towards the backlog until its handler has returned, which is what the
+     * receiver waits on before acknowledging.
+     */
+    private final class Lane {
+        final Message[] ring;
+        final int mask;
+        volatile long tail;
+        volatile long done;
+        volatile Thread worker;
+        volatile Thread waiter;
+        volatile boolean stopped;
+
+        Lane(int window) {
+            int capacity = Integer.highestOneBit(Math.max(1, window - 1)) << 1;
+            ring = new Message[capacity];
+            mask = capacity - 1;
+        }
+
+        int backlog() {
+            return (int) (tail - done);
+        }
+
+        void offer(Message message) {
+            long slot = tail;
+            ring[(int) slot & mask] = message;
+            tail = slot + 1;
+            Thread thread = worker;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            Thread thread = worker;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void run() {
+            worker = Thread.currentThread();
+            while (!stopped) {
+                long slot = done;
+                if (slot == tail) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                int index = (int) slot & mask;
+                Message message = ring[index];
+                ring[index] = null;
+                if (windowFailure == null) {
+                    try {
+                        handler.handle(message);
+                    } catch (Throwable ex) {
+                        // errors too: a dead lane would never finish the window and the receiver would wait forever
+                        failed.incrementAndGet();
+                        windowFailure = ex;
+                    }
+                }
+                done = slot + 1;
+                if (slot + 1 == tail) {
+                    Thread thread = waiter;
+                    if (thread != null) {
+                        LockSupport.unpark(thread);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.rwmckean.common.jms.consumer;
+
+import javax.jms.Message;
+
+/**
+ * Processes one message taken from the queue by a {@link ConsumerContainer}.
+ * The message is acknowledged only after this returns normally; throwing
+ * hands it back to the broker for redelivery.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+    void handle(Message message) throws Exception;
+}
@@ -0,0 +1,451 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ConsumerControl;
+import org.rwmckean.common.jms.JmsScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resizes the prefetch of ActiveMQ consumers while they run. A fixed
+ * prefetch is always wrong somewhere: zero turns every receive into a
+ * broker round-trip, and a large value lets one consumer hoard messages
+ * that idle consumers could be working on.
+ * <p/>
+ * Every {@link #getAdjustInterval()} milliseconds each registered consumer
+ * is given enough prefetch to cover {@link #getTargetBufferTime()}
+ * milliseconds of work at its measured processing rate. When a
+ * {@link QueueDepthProbe} is set for a destination, no consumer of that
+ * destination is given more than its fair share of the messages waiting,
+ * shared among that destination's consumers only. The result is clamped to
+ * [{@link #getMinPrefetch()}, {@link #getMaxPrefetch()}], and only changes
+ * of at least a quarter are sent to the broker, so the prefetch does not
+ * flap.
+ * <p/>
+ * ActiveMQ only dispatches ahead to consumers created with a prefetch of at
+ * least one, so consumers created with a prefetch of zero are left in pull
+ * mode. Give the controlled consumers a starting prefetch with a destination
+ * option such as {@code DEV.QUEUE.1?consumer.prefetchSize=1}.
+ * <p/>
+ * Once {@link #register()} has been called the controller is published as
+ * an MBean under {@code org.rwmckean.common.jms:type=Prefetch,name=<name>},
+ * and each consumer under
+ * {@code org.rwmckean.common.jms:type=Prefetch,name=<name>,consumer=<consumer ID>}
+ * while it is under control. Registering a controller under a name another
+ * controller already holds fails rather than taking its MBeans over.
+ */
+public class PrefetchController implements PrefetchControllerMBean, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(PrefetchController.class);
+    private static final String DOMAIN = "org.rwmckean.common.jms";
+
+    private final String name;
+    private final Map<MessageConsumer, ConsumerPrefetch> consumers = new ConcurrentHashMap<>();
+    private final AtomicLong adjustments = new AtomicLong();
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    private volatile long lastQueueDepth = -1;
+    private ScheduledFuture<?> adjustTask;
+    private boolean closed;
+    private boolean registered;
+
+    private int minPrefetch = 1;
+    private int maxPrefetch = 1000;
+    private long targetBufferTime = 100;
+    private long adjustInterval = 1000;
+    private QueueDepthProbe depthProbe;
+    private ActiveMQDestination depthDestination;
+
+    public PrefetchController() {
+        this("default");
+    }
+
+    /**
+     * @param name the name the controller's MBeans are registered under
+     */
+    public PrefetchController(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized int getMinPrefetch() {
+        return minPrefetch;
+    }
+
+    public synchronized void setMinPrefetch(int minPrefetch) {
+        if (minPrefetch < 1) {
+            throw new IllegalArgumentException("minPrefetch must be at least 1");
+        }
+        this.minPrefetch = minPrefetch;
+    }
+
+    @Override
+    public synchronized int getMaxPrefetch() {
+        return maxPrefetch;
+    }
+
+    public synchronized void setMaxPrefetch(int maxPrefetch) {
+        if (maxPrefetch < 1) {
+            throw new IllegalArgumentException("maxPrefetch must be at least 1");
+        }
+        this.maxPrefetch = maxPrefetch;
+    }
+
+    /**
+     * @return how many milliseconds of work each consumer should have
+     *         buffered locally
+     */
+    @Override
+    public synchronized long getTargetBufferTime() {
+        return targetBufferTime;
+    }
+
+    public synchronized void setTargetBufferTime(long targetBufferTime) {
+        this.targetBufferTime = Math.max(1, targetBufferTime);
+    }
+
+    @Override
+    public synchronized long getAdjustInterval() {
+        return adjustInterval;
+    }
+
+    public synchronized void setAdjustInterval(long adjustInterval) {
+        this.adjustInterval = Math.max(1, adjustInterval);
+        if (adjustTask != null) {
+            adjustTask.cancel(false);
+            adjustTask = null;
+            scheduleAdjust();
+        }
+    }
+
+    public synchronized QueueDepthProbe getDepthProbe() {
+        return depthProbe;
+    }
+
+    public synchronized Destination getDepthDestination() {
+        return depthDestination;
+    }
+
+    /**
+     * @param destination the queue the probe reports on; consumers of other
+     *                    destinations are sized on processing rate alone
+     * @param depthProbe  the probe, or null to stop capping at a fair share
+     */
+    public synchronized void setDepthProbe(Destination destination, QueueDepthProbe depthProbe) throws JMSException {
+        this.depthDestination = depthProbe == null ? null : ActiveMQDestination.transform(destination);
+        this.depthProbe = depthProbe;
+    }
+
+    /**
+     * @return the number of consumers under control
+     */
+    @Override
+    public int getConsumerCount() {
+        return consumers.size();
+    }
+
+    /**
+     * @return the number of prefetch changes sent to the broker so far
+     */
+    @Override
+    public long getAdjustmentCount() {
+        return adjustments.get();
+    }
+
+    /**
+     * @return the number of changes that raised a consumer's prefetch
+     */
+    @Override
+    public long getIncreaseCount() {
+        return increases.get();
+    }
+
+    /**
+     * @return the number of changes that lowered a consumer's prefetch
+     */
+    @Override
+    public long getDecreaseCount() {
+        return decreases.get();
+    }
+
+    /**
+     * @return the queue depth seen at the last adjustment, or -1 if unknown
+     */
+    @Override
+    public long getLastQueueDepth() {
+        return lastQueueDepth;
+    }
+
+    /**
+     * @return the mean prefetch over the controlled consumers, or 0 if there
+     *         are none
+     */
+    @Override
+    public double getAveragePrefetch() {
+        int count = 0;
+        long total = 0;
+        for (ConsumerPrefetch state : consumers.values()) {
+            total += state.prefetch;
+            count++;
+        }
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * @return the mean of the consumers' average processing times in
+     *         milliseconds, or -1 before the first sample
+     */
+    @Override
+    public double getAverageProcessingMillis() {
+        int count = 0;
+        long total = 0;
+        for (ConsumerPrefetch state : consumers.values()) {
+            if (state.averageNanos >= 0) {
+                total += state.averageNanos;
+                count++;
+            }
+        }
+        return count == 0 ? -1 : total / (count * 1e6);
+    }
+
+    /**
+     * @return the prefetch last applied to the consumer, or -1 if it is not
+     *         under control
+     */
+    public int getPrefetch(MessageConsumer consumer) {
+        ConsumerPrefetch state = consumers.get(consumer);
+        return state == null ? -1 : state.prefetch;
+    }
+
+    /**
+     * Puts a consumer under control.
+     *
+     * @param session     the session the consumer was created on
+     * @param destination the destination the consumer was created for
+     * @return false if the consumer is not an ActiveMQ consumer or was
+     *         created in pull mode, in which case it is left alone
+     */
+    public boolean register(Session session, Destination destination, MessageConsumer consumer) throws JMSException {
+        if (!(consumer instanceof ActiveMQMessageConsumer) || !(session instanceof ActiveMQSession)) {
+            return false;
+        }
+        ActiveMQMessageConsumer activeMQConsumer = (ActiveMQMessageConsumer) consumer;
+        int prefetch = activeMQConsumer.getPrefetchNumber();
+        if (prefetch == 0) {
+            LOG.warn("Consumer {} was created with prefetch 0; leaving it in pull mode",
+                    activeMQConsumer.getConsumerId());
+            return false;
+        }
+        ConsumerPrefetch state = new ConsumerPrefetch(activeMQConsumer, ((ActiveMQSession) session).getConnection(),
+                ActiveMQDestination.transform(destination), prefetch);
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            consumers.put(consumer, state);
+            if (registered) {
+                register(consumerName(state), state);
+            }
+            scheduleAdjust();
+        }
+        return true;
+    }
+
+    public void unregister(MessageConsumer consumer) {
+        ConsumerPrefetch state = consumers.remove(consumer);
+        if (state != null) {
+            synchronized (this) {
+                if (registered) {
+                    unregister(consumerName(state));
+                }
+            }
+        }
+    }
+
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        ObjectName controllerName = controllerName();
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(controllerName)) {
+            throw new IllegalStateException("A prefetch controller named " + name + " is already registered as "
+                    + controllerName + "; give each controller a unique name");
+        }
+        registered = true;
+        register(controllerName, this);
+        for (ConsumerPrefetch state : consumers.values()) {
+            register(consumerName(state), state);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (!registered) {
+            return;
+        }
+        registered = false;
+        unregister(controllerName());
+        for (ConsumerPrefetch state : consumers.values()) {
+            unregister(consumerName(state));
+        }
+    }
+
+    /**
+     * Records how long a consumer took to process one message.
+     */
+    public void recordProcessing(MessageConsumer consumer, long nanos) {
+        ConsumerPrefetch state = consumers.get(consumer);
+        if (state != null) {
+            state.record(nanos);
+        }
+    }
+
+    /**
+     * Recomputes and applies every consumer's prefetch. Runs on the shared
+     * {@link JmsScheduler} but may also be called directly.
+     */
+    public void adjust() {
+        int min;
+        int max;
+        long bufferNanos;
+        QueueDepthProbe probe;
+        ActiveMQDestination probed;
+        synchronized (this) {
+            min = minPrefetch;
+            max = Math.max(minPrefetch, maxPrefetch);
+            bufferNanos = TimeUnit.MILLISECONDS.toNanos(targetBufferTime);
+            probe = depthProbe;
+            probed = depthDestination;
+        }
+        long depth = -1;
+        if (probe != null) {
+            try {
+                depth = probe.getQueueDepth();
+            } catch (JMSException | RuntimeException ex) {
+                LOG.debug("Queue depth probe failed", ex);
+            }
+        }
+        lastQueueDepth = depth;
+        // the waiting messages are shared only among the probed queue's consumers
+        int count = 0;
+        if (depth >= 0) {
+            for (ConsumerPrefetch state : consumers.values()) {
+                if (probed != null && probed.equals(state.destination)) {
+                    count++;
+                }
+            }
+        }
+        for (ConsumerPrefetch state : consumers.values()) {
+            long average = state.averageNanos;
+            if (average < 0) {
+                continue;
+            }
+            long desired = bufferNanos / Math.max(average, 1);
+            if (count > 0 && probed.equals(state.destination)) {
+                desired = Math.min(desired, (depth + count - 1) / count);
+            }
+            int target = (int) Math.max(min, Math.min(max, desired));
+            state.desiredPrefetch = target;
+            int current = state.prefetch;
+            if (Math.abs(target - current) >= Math.max(1, current / 4)) {
+                apply(state, target, depth);
+            }
+        }
+    }
+
+    /**
+     * Stops adjusting and unregisters the MBeans; the consumers keep the
+     * prefetch they have.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        unregister();
+        consumers.clear();
+        if (adjustTask != null) {
+            adjustTask.cancel(false);
+            adjustTask = null;
+        }
+    }
+
+    private void apply(ConsumerPrefetch state, int prefetch, long depth) {
+        ActiveMQMessageConsumer consumer = state.consumer;
+        ConsumerControl control = new ConsumerControl();
+        control.setConsumerId(consumer.getConsumerId());
+        control.setDestination(state.destination);
+        control.setPrefetch(prefetch);
+        try {
+            state.connection.asyncSendPacket(control);
+        } catch (JMSException | RuntimeException ex) {
+            LOG.debug("Could not change prefetch of consumer {}", consumer.getConsumerId(), ex);
+            return;
+        }
+        LOG.debug("Prefetch of consumer {} {} -> {} (processing {} us/msg, queue depth {})",
+                consumer.getConsumerId(), state.prefetch, prefetch, state.averageNanos / 1000, depth);
+        (prefetch > state.prefetch ? increases : decreases).incrementAndGet();
+        state.applied(prefetch);
+        adjustments.incrementAndGet();
+    }
+
+    private void scheduleAdjust() {
+        if (adjustTask == null && !closed) {
+            adjustTask = JmsScheduler.scheduleRepeating(this::adjust, adjustInterval);
+        }
+    }
+
+    private ObjectName controllerName() {
+        return objectName("type=Prefetch,name=" + ObjectName.quote(name));
+    }
+
+    private ObjectName consumerName(ConsumerPrefetch state) {
+        return objectName("type=Prefetch,name=" + ObjectName.quote(name) + ",consumer="
+                + ObjectName.quote(state.getConsumerId()));
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void register(ObjectName objectName, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mbean, objectName);
+        } catch (InstanceAlreadyExistsException ex) {
+            LOG.warn("MBean {} is already registered by another owner; leaving it in place", objectName);
+        } catch (JMException ex) {
+            LOG.warn("Could not register MBean {}", objectName, ex);
+        }
+    }
+
+    private static void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.rwmckean.common.jms.consumer;
+
+/**
+ * The settings of one prefetch controller and the decisions it has made
+ * across all of its consumers.
+ */
+public interface PrefetchControllerMBean {
+    int getMinPrefetch();
+
+    int getMaxPrefetch();
+
+    long getTargetBufferTime();
+
+    long getAdjustInterval();
+
+    int getConsumerCount();
+
+    long getAdjustmentCount();
+
+    long getIncreaseCount();
+
+    long getDecreaseCount();
+
+    long getLastQueueDepth();
+
+    double getAveragePrefetch();
+
+    double getAverageProcessingMillis();
+}
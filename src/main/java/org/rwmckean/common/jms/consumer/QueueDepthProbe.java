@@ -0,0 +1,15 @@
+package org.rwmckean.common.jms.consumer;
+
+import javax.jms.JMSException;
+
+/**
+ * Reports how many messages are waiting on the queue a
+ * {@link PrefetchController} is tuning consumers for.
+ */
+@FunctionalInterface
+public interface QueueDepthProbe {
+    /**
+     * @return the current queue depth, or -1 if it is not known
+     */
+    long getQueueDepth() throws JMSException;
+}
@@ -0,0 +1,92 @@
+package org.rwmckean.common.jms.consumer;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+/**
+ * Reads an ActiveMQ queue's depth from the broker's statistics plugin by
+ * sending an empty request to {@code ActiveMQ.Statistics.Destination.<queue>}
+ * and reading {@code size} from the reply. The broker must have the
+ * statisticsBrokerPlugin enabled; without it no reply comes back and the
+ * depth is reported as unknown.
+ */
+public class StatisticsQueueDepthProbe implements QueueDepthProbe, AutoCloseable {
+    private final ConnectionFactory connectionFactory;
+    private final String queueName;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private MessageConsumer consumer;
+    private TemporaryQueue replyTo;
+    private long timeout = 1000;
+
+    public StatisticsQueueDepthProbe(ConnectionFactory connectionFactory, String queueName) {
+        this.connectionFactory = connectionFactory;
+        this.queueName = queueName;
+    }
+
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    public synchronized void setTimeout(long timeout) {
+        this.timeout = Math.max(1, timeout);
+    }
+
+    @Override
+    public synchronized long getQueueDepth() throws JMSException {
+        if (connection == null) {
+            open();
+        }
+        try {
+            Message request = session.createMessage();
+            request.setJMSReplyTo(replyTo);
+            producer.send(request);
+            Message reply = consumer.receive(timeout);
+            if (reply instanceof MapMessage) {
+                return ((MapMessage) reply).getLong("size");
+            }
+            return -1;
+        } catch (JMSException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (JMSException ex) {
+            // the connection is being discarded anyway
+        } finally {
+            connection = null;
+        }
+    }
+
+    private void open() throws JMSException {
+        connection = connectionFactory.createConnection();
+        try {
+            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Queue statistics = session.createQueue("ActiveMQ.Statistics.Destination." + queueName);
+            producer = session.createProducer(statistics);
+            replyTo = session.createTemporaryQueue();
+            consumer = session.createConsumer(replyTo);
+            connection.start();
+        } catch (JMSException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that run consumer loops. Jars built with the java21
+ * profile carry {@code VirtualWorkerThreads} as a Java 21 multi-release
+ * class, so on a Java 21 runtime each loop gets a virtual thread; older
+ * runtimes, and builds without the profile, fall back to daemon platform
+ * threads.
+ */
+final class WorkerThreads {
+    private static final Method VIRTUAL = findVirtual();
+
+    private WorkerThreads() {
+    }
+
+    static boolean isVirtual() {
+        return VIRTUAL != null;
+    }
+
+    static ExecutorService newExecutor(String name) {
+        if (VIRTUAL != null) {
+            try {
+                return (ExecutorService) VIRTUAL.invoke(null, name);
+            } catch (ReflectiveOperationException ex) {
+                // fall through to platform threads
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Method findVirtual() {
+        try {
+            Method method = Class.forName(WorkerThreads.class.getPackage().getName() + ".VirtualWorkerThreads")
+                    .getDeclaredMethod("newExecutor", String.class);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.rwmckean.common.jms.dedupe;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded set of recently seen message keys, held as 64-bit fingerprints
+ * in open-addressed long tables rather than as Strings in a HashSet. A key
+ * costs 16 to 32 bytes, depending on how maxEntries rounds to the table
+ * sizes, and the collector has no objects to trace however many are held.
+ * The tables may live on the heap or in direct memory.
+ * <p/>
+ * Keys expire by generation rather than one by one. The set is split into
+ * 16 stripes, each with four generation tables; keys are added to the
+ * newest, and every third of {@link #getTimeToLive()} the oldest table is
+ * cleared and becomes the newest. A key is therefore remembered for at
+ * least the time to live and at most a third longer. A table that fills
+ * before its third is up is rotated early, forgetting the oldest keys
+ * sooner, which {@link #getEarlyRotationCount()} counts; size the cache for
+ * the peak number of keys seen within one time to live.
+ * <p/>
+ * Two distinct keys share a fingerprint with a probability of about
+ * n<sup>2</sup>/2<sup>65</sup> for n keys held, one in ten thousand at
+ * fifty million; the later of the two would be taken for a duplicate.
+ */
+public class DedupeCache {
+    private static final int STRIPES = 16;
+    private static final int GENERATIONS = 4;
+    private static final int MAX_SLOTS = 1 << 27;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxEntries;
+    private final long timeToLive;
+    private final long slice;
+    private final boolean offHeap;
+    private final int slots;
+    private final int threshold;
+    private final AtomicLong earlyRotations = new AtomicLong();
+
+    /**
+     * @param maxEntries the most keys expected within one time to live
+     * @param timeToLive how long, in milliseconds, a key is remembered
+     * @param offHeap    true to keep the tables in direct memory
+     */
+    public DedupeCache(long maxEntries, long timeToLive, boolean offHeap) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        if (timeToLive < GENERATIONS - 1) {
+            throw new IllegalArgumentException("timeToLive must be at least " + (GENERATIONS - 1) + " ms");
+        }
+        long perTable = (maxEntries + (long) STRIPES * (GENERATIONS - 1) - 1) / ((long) STRIPES * (GENERATIONS - 1));
+        long wanted = Math.max(16, perTable * 5 / 3);
+        if (wanted > MAX_SLOTS) {
+            throw new IllegalArgumentException("maxEntries of " + maxEntries + " is too large");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.slice = timeToLive / (GENERATIONS - 1);
+        this.offHeap = offHeap;
+        this.slots = Integer.highestOneBit((int) wanted - 1) << 1;
+        this.threshold = slots / 4 * 3;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(now);
+        }
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return the bytes held by the tables
+     */
+    public long getMemorySize() {
+        return (long) STRIPES * GENERATIONS * slots * Long.BYTES;
+    }
+
+    /**
+     * @return the number of keys held, some of which may be older than the
+     *         time to live but not yet cleared
+     */
+    public long getSize() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int count : stripe.counts) {
+                    size += count;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of times keys were forgotten before their time was
+     *         up to make room; non-zero means the cache is undersized
+     */
+    public long getEarlyRotationCount() {
+        return earlyRotations.get();
+    }
+
+    public boolean contains(CharSequence key) {
+        return contains(fingerprint(key));
+    }
+
+    /**
+     * @return true if the key was added, false if it was already held
+     */
+    public boolean add(CharSequence key) {
+        return add(fingerprint(key));
+    }
+
+    public boolean contains(long fingerprint) {
+        Stripe stripe = stripe(fingerprint);
+        synchronized (stripe) {
+            stripe.rotateIfDue(System.currentTimeMillis());
+            return stripe.find(fingerprint);
+        }
+    }
+
+    public boolean add(long fingerprint) {
+        Stripe stripe = stripe(fingerprint);
+        synchronized (stripe) {
+            stripe.rotateIfDue(System.currentTimeMillis());
+            if (stripe.find(fingerprint)) {
+                return false;
+            }
+            stripe.insert(fingerprint);
+            return true;
+        }
+    }
+
+    /**
+     * Hashes a key to a non-zero 64-bit fingerprint: FNV-1a over its chars,
+     * finished with the MurmurHash3 mixer so every bit depends on every
+     * char.
+     */
+    public static long fingerprint(CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private Stripe stripe(long fingerprint) {
+        return stripes[(int) (fingerprint >>> 60)];
+    }
+
+    private LongBuffer allocate() {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(slots * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        return LongBuffer.allocate(slots);
+    }
+
+    /**
+     * One stripe's generation tables. Slots are indexed by the low bits of
+     * the fingerprint, the stripe having been chosen by the high ones, and
+     * probed linearly; 0 marks an empty slot.
+     */
+    private final class Stripe {
+        final LongBuffer[] tables = new LongBuffer[GENERATIONS];
+        final int[] counts = new int[GENERATIONS];
+        int current;
+        long startedAt;
+
+        Stripe(long now) {
+            for (int i = 0; i < GENERATIONS; i++) {
+                tables[i] = allocate();
+            }
+            startedAt = now;
+        }
+
+        boolean find(long fingerprint) {
+            int mask = slots - 1;
+            for (int g = 0; g < GENERATIONS; g++) {
+                if (counts[g] == 0) {
+                    continue;
+                }
+                LongBuffer table = tables[g];
+                for (int i = (int) fingerprint & mask;; i = (i + 1) & mask) {
+                    long slot = table.get(i);
+                    if (slot == fingerprint) {
+                        return true;
+                    }
+                    if (slot == 0) {
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void insert(long fingerprint) {
+            int mask = slots - 1;
+            LongBuffer table = tables[current];
+            int i = (int) fingerprint & mask;
+            while (table.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            table.put(i, fingerprint);
+            if (++counts[current] >= threshold) {
+                startedAt = System.currentTimeMillis();
+                if (rotate()) {
+                    earlyRotations.incrementAndGet();
+                }
+            }
+        }
+
+        void rotateIfDue(long now) {
+            if (now - startedAt < slice) {
+                return;
+            }
+            long elapsed = (now - startedAt) / slice;
+            // after a long quiet spell every generation has expired
+            for (int i = 0; i < Math.min(GENERATIONS, elapsed); i++) {
+                rotate();
+            }
+            // stay on the slice boundaries, or every late check would push
+            // expiry back by the part of a slice it came late
+            startedAt += elapsed * slice;
+        }
+
+        /**
+         * @return true if keys were forgotten to make room
+         */
+        boolean rotate() {
+            current = (current + 1) % GENERATIONS;
+            if (counts[current] == 0) {
+                return false;
+            }
+            clear(tables[current]);
+            counts[current] = 0;
+            return true;
+        }
+
+        private void clear(LongBuffer table) {
+            if (table.hasArray()) {
+                Arrays.fill(table.array(), table.arrayOffset(), table.arrayOffset() + slots, 0L);
+            } else {
+                for (int i = 0; i < slots; i++) {
+                    table.put(i, 0L);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.rwmckean.common.jms.dedupe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Message;
+
+import org.rwmckean.common.jms.consumer.MessageHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops messages the wrapped handler has already processed, so a
+ * redelivery after a client reconnect or rollback, or a resend by a
+ * producer, is acknowledged without being processed twice.
+ * <p/>
+ * Messages are keyed on their JMSMessageID, which only catches redelivery
+ * of the same message, or on {@link #getKeyProperty()}, a business key set
+ * by the producer, which also catches resends. The key must be unique
+ * across every producer feeding the destination: an outbox's
+ * {@link org.rwmckean.common.jms.outbox.OutboxProducer#ID_PROPERTY} is,
+ * since it leads with its journal's UUID, whereas a per-producer sequence
+ * number would make different producers' messages look like repeats.
+ * Messages without the property are passed through. A key is remembered
+ * only once the handler has returned normally, so a message whose handler
+ * threw is processed again when redelivered.
+ * <p/>
+ * Two deliveries of one key handled at the same moment on different
+ * consumers are both processed; duplicates normally arrive well apart.
+ */
+public class DeduplicatingHandler implements MessageHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(DeduplicatingHandler.class);
+
+    private final MessageHandler handler;
+    private final DedupeCache cache;
+    private final AtomicLong duplicates = new AtomicLong();
+    private volatile String keyProperty;
+
+    public DeduplicatingHandler(MessageHandler handler, DedupeCache cache) {
+        this.handler = handler;
+        this.cache = cache;
+    }
+
+    public DedupeCache getCache() {
+        return cache;
+    }
+
+    public String getKeyProperty() {
+        return keyProperty;
+    }
+
+    /**
+     * @param keyProperty the string property to key messages on, or null to
+     *                    key them on JMSMessageID
+     */
+    public void setKeyProperty(String keyProperty) {
+        this.keyProperty = keyProperty;
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    @Override
+    public void handle(Message message) throws Exception {
+        String property = keyProperty;
+        String key = property == null ? message.getJMSMessageID() : message.getStringProperty(property);
+        if (key == null) {
+            handler.handle(message);
+            return;
+        }
+        long fingerprint = DedupeCache.fingerprint(key);
+        if (cache.contains(fingerprint)) {
+            duplicates.incrementAndGet();
+            LOG.debug("Dropping duplicate message {} with key {}", message.getJMSMessageID(), key);
+            return;
+        }
+        handler.handle(message);
+        cache.add(fingerprint);
+    }
+}
@@ -0,0 +1,54 @@
+package org.rwmckean.common.jms.latency;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * A point-in-time copy of one destination's latency histograms, in
+ * microseconds. Unlike the live tracker it is safe to query at leisure.
+ */
+public class LatencySnapshot {
+    private final String destination;
+    private final Histogram sendToReceive;
+    private final Histogram receiveToAck;
+
+    LatencySnapshot(String destination, Histogram sendToReceive, Histogram receiveToAck) {
+        this.destination = destination;
+        this.sendToReceive = sendToReceive;
+        this.receiveToAck = receiveToAck;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return time from the producer's send stamp to the consumer receiving
+     *         the message; messages without a stamp are not counted
+     */
+    public Histogram getSendToReceive() {
+        return sendToReceive;
+    }
+
+    /**
+     * @return time from the consumer receiving the message to its
+     *         acknowledgement or commit completing
+     */
+    public Histogram getReceiveToAck() {
+        return receiveToAck;
+    }
+
+    @Override
+    public String toString() {
+        return destination + ": send-to-receive " + describe(sendToReceive)
+                + ", receive-to-ack " + describe(receiveToAck);
+    }
+
+    private static String describe(Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return "no samples";
+        }
+        return String.format("n=%d p50=%dus p99=%dus p99.9=%dus max=%dus", histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+}
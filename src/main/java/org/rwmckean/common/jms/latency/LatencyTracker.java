@@ -0,0 +1,146 @@
+package org.rwmckean.common.jms.latency;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.Topic;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Records per-destination consumer latency: how long each message took from
+ * its producer's send stamp (see {@link SendTimestamps}) to being received,
+ * and from being received to its acknowledgement completing. Only the first
+ * crosses hosts and needs the epoch stamp; the second is timed with
+ * {@link System#nanoTime()}, which is monotonic and cheaper to read.
+ * <p/>
+ * Consumer threads write into HdrHistogram {@link Recorder}s, which are
+ * wait-free for writers, so recording never blocks on a reader. Queries fold
+ * what has been recorded since the last query into running totals under a
+ * per-destination lock, and can be made at any time while consumers run.
+ */
+public class LatencyTracker {
+    private final Map<String, DestinationLatency> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * Records the send-to-receive latency of a message received now.
+     *
+     * @return the receive time, on the {@link System#nanoTime()} clock, to
+     *         pass to {@link #recordAcknowledged}
+     */
+    public long recordReceived(String destination, Message message) throws JMSException {
+        long receivedAt = System.nanoTime();
+        long sentAt = SendTimestamps.read(message);
+        if (sentAt > 0) {
+            latency(destination).sendToReceive.recordValue(micros(SendTimestamps.now() - sentAt));
+        }
+        return receivedAt;
+    }
+
+    /**
+     * Records the receive-to-ack latency of a message whose acknowledgement
+     * or commit has just completed.
+     */
+    public void recordAcknowledged(String destination, long receivedAt) {
+        latency(destination).receiveToAck.recordValue(micros(System.nanoTime() - receivedAt));
+    }
+
+    public Set<String> getDestinations() {
+        return destinations.keySet();
+    }
+
+    /**
+     * @return the send-to-receive latency at the given percentile, in
+     *         microseconds, or -1 if nothing has been recorded
+     */
+    public long getSendToReceivePercentile(String destination, double percentile) {
+        LatencySnapshot snapshot = snapshot(destination);
+        return snapshot == null || snapshot.getSendToReceive().getTotalCount() == 0 ? -1
+                : snapshot.getSendToReceive().getValueAtPercentile(percentile);
+    }
+
+    /**
+     * @return the receive-to-ack latency at the given percentile, in
+     *         microseconds, or -1 if nothing has been recorded
+     */
+    public long getReceiveToAckPercentile(String destination, double percentile) {
+        LatencySnapshot snapshot = snapshot(destination);
+        return snapshot == null || snapshot.getReceiveToAck().getTotalCount() == 0 ? -1
+                : snapshot.getReceiveToAck().getValueAtPercentile(percentile);
+    }
+
+    /**
+     * @return a copy of everything recorded for the destination since the
+     *         last reset, or null if it has never been seen
+     */
+    public LatencySnapshot snapshot(String destination) {
+        DestinationLatency latency = destinations.get(destination);
+        return latency == null ? null : latency.snapshot(destination);
+    }
+
+    /**
+     * Discards everything recorded so far, for every destination.
+     */
+    public void reset() {
+        for (DestinationLatency latency : destinations.values()) {
+            latency.reset();
+        }
+    }
+
+    /**
+     * @return the name latency is tracked under for a JMS destination
+     */
+    public static String nameOf(Destination destination) throws JMSException {
+        if (destination instanceof Queue) {
+            return ((Queue) destination).getQueueName();
+        }
+        if (destination instanceof Topic) {
+            return ((Topic) destination).getTopicName();
+        }
+        return String.valueOf(destination);
+    }
+
+    private DestinationLatency latency(String destination) {
+        DestinationLatency latency = destinations.get(destination);
+        return latency != null ? latency : destinations.computeIfAbsent(destination, k -> new DestinationLatency());
+    }
+
+    /**
+     * Clock skew between hosts can make a send stamp look like it is in the
+     * future; such samples are recorded as zero.
+     */
+    private static long micros(long nanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private static final class DestinationLatency {
+        final Recorder sendToReceive = new Recorder(3);
+        final Recorder receiveToAck = new Recorder(3);
+        private final Histogram sendToReceiveTotal = new Histogram(3);
+        private final Histogram receiveToAckTotal = new Histogram(3);
+        private Histogram sendToReceiveInterval;
+        private Histogram receiveToAckInterval;
+
+        synchronized LatencySnapshot snapshot(String destination) {
+            sendToReceiveInterval = sendToReceive.getIntervalHistogram(sendToReceiveInterval);
+            receiveToAckInterval = receiveToAck.getIntervalHistogram(receiveToAckInterval);
+            sendToReceiveTotal.add(sendToReceiveInterval);
+            receiveToAckTotal.add(receiveToAckInterval);
+            return new LatencySnapshot(destination, sendToReceiveTotal.copy(), receiveToAckTotal.copy());
+        }
+
+        synchronized void reset() {
+            sendToReceive.reset();
+            receiveToAck.reset();
+            sendToReceiveTotal.reset();
+            receiveToAckTotal.reset();
+        }
+    }
+}
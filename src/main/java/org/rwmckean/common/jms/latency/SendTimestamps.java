@@ -0,0 +1,53 @@
+package org.rwmckean.common.jms.latency;
+
+import java.time.Instant;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageNotWriteableException;
+
+/**
+ * Reads and writes the high-resolution send timestamp that producers add
+ * when send timestamps are enabled. JMSTimestamp only has millisecond
+ * resolution and is set by the provider, so it cannot show where sub-
+ * millisecond latency goes; this property holds the wall-clock time of the
+ * send in nanoseconds since the epoch, at whatever resolution the platform
+ * clock offers (microseconds on most JVMs).
+ * <p/>
+ * Because the stamp is wall-clock time, latencies measured across hosts
+ * include any clock skew between them.
+ */
+public final class SendTimestamps {
+    public static final String PROPERTY = "RwmSendEpochNanos";
+
+    private SendTimestamps() {
+    }
+
+    /**
+     * @return the current wall-clock time in nanoseconds since the epoch
+     */
+    public static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * Stamps the message with the current time. Messages whose properties
+     * are read-only, such as received messages being forwarded, are left
+     * unstamped.
+     */
+    public static void stamp(Message message) throws JMSException {
+        try {
+            message.setLongProperty(PROPERTY, now());
+        } catch (MessageNotWriteableException ex) {
+            // forwarded messages keep whatever stamp they arrived with
+        }
+    }
+
+    /**
+     * @return the message's send timestamp, or -1 if it has none
+     */
+    public static long read(Message message) throws JMSException {
+        return message.propertyExists(PROPERTY) ? message.getLongProperty(PROPERTY) : -1;
+    }
+}
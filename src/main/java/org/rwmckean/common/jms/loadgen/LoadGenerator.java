@@ -0,0 +1,301 @@
+package org.rwmckean.common.jms.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import com.ibm.msg.client.jms.JmsConnectionFactory;
+import com.ibm.msg.client.jms.JmsFactoryFactory;
+import com.ibm.msg.client.wmq.WMQConstants;
+
+/**
+ * A load generator for capacity-testing a queue, grown out of the JmsPut,
+ * JmsGet and JmsPutGet samples. N producer threads and M consumer threads
+ * each run on their own connection against one queue on IBM MQ or ActiveMQ.
+ * <p/>
+ * Producers either send as fast as they can or pace themselves to a target
+ * total rate. Each message carries the {@link System#nanoTime()} it was sent
+ * at, and consumers record end-to-end latency from it; in open-loop mode the
+ * stamp is the time the message was scheduled, so a backed-up queue manager
+ * shows up as latency instead of being hidden by producers slowing down.
+ * <p/>
+ * Throughput and latency percentiles are printed every interval and for the
+ * whole run once it ends. Nothing recorded during the warm-up counts.
+ */
+public final class LoadGenerator {
+    static final String SEND_TIME_PROPERTY = "LoadGenSendNanos";
+
+    private final LoadOptions options;
+    private final ConnectionFactory connectionFactory;
+    private final byte[] payload;
+    private final Recorder endToEnd = new Recorder(3);
+    private final Recorder sendTime = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong sentTotal = new AtomicLong();
+    private final AtomicLong receivedTotal = new AtomicLong();
+    private volatile boolean producing = true;
+    private volatile boolean consuming = true;
+    private long start;
+
+    LoadGenerator(LoadOptions options) throws JMSException {
+        this(options, createConnectionFactory(options));
+    }
+
+    LoadGenerator(LoadOptions options, ConnectionFactory connectionFactory) {
+        this.options = options;
+        this.connectionFactory = connectionFactory;
+        this.payload = new byte[options.sizes.max()];
+        new Random().nextBytes(payload);
+    }
+
+    public static void main(String[] args) {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException ex) {
+            if (!ex.getMessage().isEmpty()) {
+                System.out.println(ex.getMessage());
+            }
+            System.out.println(LoadOptions.usage());
+            System.exit(2);
+            return;
+        }
+        try {
+            new LoadGenerator(options).run();
+            System.exit(0);
+        } catch (JMSException | InterruptedException ex) {
+            System.out.println("Load run failed: " + ex);
+            System.exit(1);
+        }
+    }
+
+    LoadResult run() throws InterruptedException {
+        System.out.printf("Loading %s on %s: %d producer(s), %d consumer(s), %s, %s, %s%n", options.queue,
+                options.provider, options.producers, options.consumers,
+                options.rate > 0 ? (options.openLoop ? "open loop at " : "paced at ") + options.rate + " msg/s"
+                        : "unthrottled",
+                options.sizes, options.persistent ? "persistent" : "non-persistent");
+        start = System.nanoTime();
+        List<Thread> consumerThreads = startThreads("loadgen-consumer", options.consumers, this::consume);
+        List<Thread> producerThreads = startThreads("loadgen-producer", options.producers, this::produce);
+
+        long measureFrom = start + options.warmupNanos;
+        long end = measureFrom + options.durationNanos;
+        Histogram total = null;
+        long totalSent = 0;
+        long totalReceived = 0;
+        long next = start + options.intervalNanos;
+        long last = start;
+        while (last < end) {
+            long wake = Math.min(next, end);
+            sleepUntil(wake);
+            long now = System.nanoTime();
+            Histogram latency = endToEnd.getIntervalHistogram();
+            Histogram send = sendTime.getIntervalHistogram();
+            long intervalSent = sent.sumThenReset();
+            long intervalReceived = received.sumThenReset();
+            boolean warm = last >= measureFrom;
+            report(warm ? "" : "warm-up ", now, now - last, intervalSent, intervalReceived, latency, send);
+            if (warm) {
+                if (total == null) {
+                    total = latency.copy();
+                } else {
+                    total.add(latency);
+                }
+                totalSent += intervalSent;
+                totalReceived += intervalReceived;
+            }
+            last = now;
+            next += options.intervalNanos;
+        }
+
+        producing = false;
+        for (Thread thread : producerThreads) {
+            thread.join();
+        }
+        long drainUntil = System.nanoTime() + options.drainNanos;
+        while (options.consumers > 0 && receivedTotal.get() < sentTotal.get() && System.nanoTime() < drainUntil) {
+            Thread.sleep(100);
+        }
+        consuming = false;
+        for (Thread thread : consumerThreads) {
+            thread.join();
+        }
+
+        double seconds = options.durationNanos / 1e9;
+        System.out.printf("%nTotal over %.1fs: sent %d (%.1f msg/s), received %d (%.1f msg/s), %d error(s), %d unreceived%n",
+                seconds, totalSent, totalSent / seconds, totalReceived, totalReceived / seconds, errors.sum(),
+                Math.max(0, sentTotal.get() - receivedTotal.get()));
+        if (total != null && total.getTotalCount() > 0) {
+            System.out.printf("End-to-end latency (us): %s%n", percentiles(total));
+        }
+        return new LoadResult(seconds, totalSent, totalReceived, errors.sum(), total);
+    }
+
+    private void report(String label, long now, long elapsed, long intervalSent, long intervalReceived,
+            Histogram latency, Histogram send) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("%s%7.1fs  sent %9.1f/s  recv %9.1f/s  e2e us %s  send p99 %d us%n", label,
+                (now - start) / 1e9, intervalSent / seconds, intervalReceived / seconds, percentiles(latency),
+                send.getValueAtPercentile(99));
+    }
+
+    private static String percentiles(Histogram histogram) {
+        return String.format("p50 %d p90 %d p99 %d p99.9 %d max %d", histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(90), histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+
+    private void produce(int index) {
+        long interval = options.rate > 0 ? (long) (options.producers * 1e9 / options.rate) : 0;
+        long next = start + (interval * index) / Math.max(1, options.producers);
+        while (producing) {
+            Connection connection = null;
+            try {
+                connection = connectionFactory.createConnection();
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                MessageProducer producer = session.createProducer(queue(session));
+                producer.setDeliveryMode(options.persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT);
+                while (producing) {
+                    long stamp;
+                    if (interval > 0) {
+                        sleepUntil(next);
+                        long now = System.nanoTime();
+                        if (options.openLoop) {
+                            stamp = next;
+                        } else {
+                            stamp = now;
+                            next = Math.max(next, now - interval);
+                        }
+                        next += interval;
+                    } else {
+                        stamp = System.nanoTime();
+                    }
+                    BytesMessage message = session.createBytesMessage();
+                    message.writeBytes(payload, 0, options.sizes.next());
+                    message.setLongProperty(SEND_TIME_PROPERTY, stamp);
+                    long begin = System.nanoTime();
+                    producer.send(message);
+                    sendTime.recordValue((System.nanoTime() - begin) / 1000);
+                    sent.increment();
+                    sentTotal.incrementAndGet();
+                }
+            } catch (JMSException | RuntimeException ex) {
+                failed("Producer", ex);
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private void consume(int index) {
+        while (consuming) {
+            Connection connection = null;
+            try {
+                connection = connectionFactory.createConnection();
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(queue(session));
+                connection.start();
+                while (consuming) {
+                    Message message = consumer.receive(200);
+                    if (message == null) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if (message.propertyExists(SEND_TIME_PROPERTY)) {
+                        endToEnd.recordValue(Math.max(0, (now - message.getLongProperty(SEND_TIME_PROPERTY)) / 1000));
+                    }
+                    received.increment();
+                    receivedTotal.incrementAndGet();
+                }
+            } catch (JMSException | RuntimeException ex) {
+                failed("Consumer", ex);
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private Queue queue(Session session) throws JMSException {
+        return session.createQueue(options.provider == LoadOptions.Provider.MQ
+                ? "queue:///" + options.queue : options.queue);
+    }
+
+    private void failed(String role, Exception ex) {
+        errors.increment();
+        System.out.println(role + " failed, reconnecting: " + ex);
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static List<Thread> startThreads(String name, int count, IndexedTask task) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> task.run(index), name + "-" + (i + 1));
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static void sleepUntil(long deadline) {
+        for (long remaining = deadline - System.nanoTime(); remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (JMSException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+
+    private static ConnectionFactory createConnectionFactory(LoadOptions options) throws JMSException {
+        if (options.provider == LoadOptions.Provider.ACTIVEMQ) {
+            return new ActiveMQConnectionFactory(options.user, options.password, options.url);
+        }
+        JmsFactoryFactory ff = JmsFactoryFactory.getInstance(WMQConstants.WMQ_PROVIDER);
+        JmsConnectionFactory cf = ff.createConnectionFactory();
+        cf.setStringProperty(WMQConstants.WMQ_HOST_NAME, options.host);
+        cf.setIntProperty(WMQConstants.WMQ_PORT, options.port);
+        cf.setStringProperty(WMQConstants.WMQ_CHANNEL, options.channel);
+        cf.setIntProperty(WMQConstants.WMQ_CONNECTION_MODE, WMQConstants.WMQ_CM_CLIENT);
+        cf.setStringProperty(WMQConstants.WMQ_QUEUE_MANAGER, options.queueManager);
+        cf.setStringProperty(WMQConstants.WMQ_APPLICATIONNAME, "LoadGenerator (JMS)");
+        cf.setBooleanProperty(WMQConstants.USER_AUTHENTICATION_MQCSP, true);
+        cf.setStringProperty(WMQConstants.USERID, options.user);
+        cf.setStringProperty(WMQConstants.PASSWORD, options.password);
+        return cf;
+    }
+
+    @FunctionalInterface
+    private interface IndexedTask {
+        void run(int index);
+    }
+}
@@ -0,0 +1,161 @@
+package org.rwmckean.common.jms.loadgen;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command-line settings for the {@link LoadGenerator}. The connection
+ * defaults are the ones the IBM MQ samples used to hard-code, plus the broker
+ * URL from spring-context.xml for ActiveMQ.
+ */
+final class LoadOptions {
+    enum Provider {
+        MQ, ACTIVEMQ
+    }
+
+    Provider provider = Provider.MQ;
+    String host = "localhost";
+    int port = 1414;
+    String channel = "DEV.APP.SVRCONN";
+    String queueManager = "QM1";
+    String url = "tcp://localhost:61617";
+    String user = "app";
+    String password = "passw0rd";
+    String queue = "DEV.QUEUE.1";
+    int producers = 1;
+    int consumers = 1;
+    double rate;
+    boolean openLoop;
+    SizeDistribution sizes = SizeDistribution.parse("1024");
+    boolean persistent = true;
+    long durationNanos = TimeUnit.SECONDS.toNanos(60);
+    long warmupNanos = TimeUnit.SECONDS.toNanos(10);
+    long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+    long drainNanos = TimeUnit.SECONDS.toNanos(10);
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if ("--open-loop".equals(name)) {
+                options.openLoop = true;
+                continue;
+            }
+            if ("--non-persistent".equals(name)) {
+                options.persistent = false;
+                continue;
+            }
+            if ("--help".equals(name) || "-h".equals(name)) {
+                throw new IllegalArgumentException("");
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+            case "--provider":
+                options.provider = Provider.valueOf(value.toUpperCase());
+                break;
+            case "--host":
+                options.host = value;
+                break;
+            case "--port":
+                options.port = Integer.parseInt(value);
+                break;
+            case "--channel":
+                options.channel = value;
+                break;
+            case "--qmgr":
+                options.queueManager = value;
+                break;
+            case "--url":
+                options.url = value;
+                break;
+            case "--user":
+                options.user = value;
+                break;
+            case "--password":
+                options.password = value;
+                break;
+            case "--queue":
+                options.queue = value;
+                break;
+            case "--producers":
+                options.producers = Integer.parseInt(value);
+                break;
+            case "--consumers":
+                options.consumers = Integer.parseInt(value);
+                break;
+            case "--rate":
+                options.rate = Double.parseDouble(value);
+                break;
+            case "--size":
+                options.sizes = SizeDistribution.parse(value);
+                break;
+            case "--duration":
+                options.durationNanos = parseDuration(value);
+                break;
+            case "--warmup":
+                options.warmupNanos = parseDuration(value);
+                break;
+            case "--interval":
+                options.intervalNanos = parseDuration(value);
+                break;
+            case "--drain":
+                options.drainNanos = parseDuration(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if (options.producers < 0 || options.consumers < 0 || options.producers + options.consumers == 0) {
+            throw new IllegalArgumentException("Need at least one producer or consumer");
+        }
+        if (options.openLoop && options.rate <= 0) {
+            throw new IllegalArgumentException("--open-loop needs a --rate");
+        }
+        if (options.intervalNanos <= 0) {
+            throw new IllegalArgumentException("--interval must be positive");
+        }
+        return options;
+    }
+
+    /**
+     * Parses a duration such as 500ms, 30s, 5m or 1h; a bare number is
+     * seconds.
+     */
+    static long parseDuration(String text) {
+        String value = text.trim().toLowerCase();
+        TimeUnit unit = TimeUnit.SECONDS;
+        if (value.endsWith("ms")) {
+            unit = TimeUnit.MILLISECONDS;
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s")) {
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            unit = TimeUnit.MINUTES;
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("h")) {
+            unit = TimeUnit.HOURS;
+            value = value.substring(0, value.length() - 1);
+        }
+        return unit.toNanos(Long.parseLong(value));
+    }
+
+    static String usage() {
+        return String.join(System.lineSeparator(),
+                "Usage: LoadGenerator [options]",
+                "  --provider mq|activemq   messaging provider (default mq)",
+                "  --host, --port, --channel, --qmgr   IBM MQ client connection",
+                "  --url URL                ActiveMQ broker URL",
+                "  --user, --password       credentials",
+                "  --queue NAME             queue to load (default DEV.QUEUE.1)",
+                "  --producers N            producer threads (default 1)",
+                "  --consumers M            consumer threads (default 1)",
+                "  --rate R                 total messages per second; omit for as fast as possible",
+                "  --open-loop              time latency from the scheduled send, not the actual one",
+                "  --size SPEC              1024, uniform:256-4k, exponential:2k or weighted:128*90,64k*10",
+                "                           or recorded:FILE with one size per line",
+                "  --non-persistent         send non-persistent messages",
+                "  --duration, --warmup, --interval, --drain   e.g. 60s, 10s, 5s, 10s");
+    }
+}
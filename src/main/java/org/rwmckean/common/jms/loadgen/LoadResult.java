@@ -0,0 +1,38 @@
+package org.rwmckean.common.jms.loadgen;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * What one {@link LoadGenerator} run measured, after the warm-up.
+ */
+final class LoadResult {
+    final double seconds;
+    final long sent;
+    final long received;
+    final long errors;
+    private final Histogram latency;
+
+    LoadResult(double seconds, long sent, long received, long errors, Histogram latency) {
+        this.seconds = seconds;
+        this.sent = sent;
+        this.received = received;
+        this.errors = errors;
+        this.latency = latency;
+    }
+
+    double sendRate() {
+        return sent / seconds;
+    }
+
+    double receiveRate() {
+        return received / seconds;
+    }
+
+    /**
+     * @return the end-to-end latency at the percentile in microseconds, or
+     *         -1 if nothing was received
+     */
+    long latencyMicros(double percentile) {
+        return latency == null || latency.getTotalCount() == 0 ? -1 : latency.getValueAtPercentile(percentile);
+    }
+}
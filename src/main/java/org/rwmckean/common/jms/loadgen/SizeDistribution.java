@@ -0,0 +1,228 @@
+package org.rwmckean.common.jms.loadgen;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws message body sizes, in bytes, from a distribution given on the
+ * command line:
+ * <ul>
+ * <li>{@code 1024} - every message is 1024 bytes</li>
+ * <li>{@code uniform:256-4096} - uniformly between the bounds, inclusive</li>
+ * <li>{@code exponential:2048} - exponentially, with the given mean</li>
+ * <li>{@code weighted:128*90,65536*10} - 128 bytes 90% of the time and
+ * 64KiB the rest</li>
+ * <li>{@code recorded:sizes.txt} - replays the mix of sizes recorded in a
+ * file, one per line, such as body lengths pulled from production logs</li>
+ * </ul>
+ * Sizes are capped at {@link #MAX_SIZE}.
+ */
+abstract class SizeDistribution {
+    static final int MAX_SIZE = 100 * 1024 * 1024;
+
+    abstract int next();
+
+    /**
+     * @return the largest size this distribution can produce
+     */
+    abstract int max();
+
+    static SizeDistribution parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            return fixed(parseSize(spec));
+        }
+        String kind = spec.substring(0, colon);
+        String args = spec.substring(colon + 1);
+        switch (kind) {
+        case "fixed":
+            return fixed(parseSize(args));
+        case "uniform":
+            return uniform(args);
+        case "exponential":
+            return exponential(parseSize(args));
+        case "weighted":
+            return weighted(args);
+        case "recorded":
+            return recorded(args);
+        default:
+            throw new IllegalArgumentException("Unknown size distribution: " + spec);
+        }
+    }
+
+    private static SizeDistribution fixed(int size) {
+        return new SizeDistribution() {
+            @Override
+            int next() {
+                return size;
+            }
+
+            @Override
+            int max() {
+                return size;
+            }
+
+            @Override
+            public String toString() {
+                return size + " bytes";
+            }
+        };
+    }
+
+    private static SizeDistribution uniform(String args) {
+        String[] bounds = args.split("-");
+        if (bounds.length != 2) {
+            throw new IllegalArgumentException("Expected uniform:MIN-MAX but got uniform:" + args);
+        }
+        int min = parseSize(bounds[0]);
+        int max = parseSize(bounds[1]);
+        if (min > max) {
+            throw new IllegalArgumentException("uniform minimum exceeds maximum: " + args);
+        }
+        return new SizeDistribution() {
+            @Override
+            int next() {
+                return ThreadLocalRandom.current().nextInt(min, max + 1);
+            }
+
+            @Override
+            int max() {
+                return max;
+            }
+
+            @Override
+            public String toString() {
+                return "uniform " + min + "-" + max + " bytes";
+            }
+        };
+    }
+
+    private static SizeDistribution exponential(int mean) {
+        int max = (int) Math.min(MAX_SIZE, (long) mean * 20);
+        return new SizeDistribution() {
+            @Override
+            int next() {
+                double u = 1.0 - ThreadLocalRandom.current().nextDouble();
+                return (int) Math.min(max, Math.round(-mean * Math.log(u)));
+            }
+
+            @Override
+            int max() {
+                return max;
+            }
+
+            @Override
+            public String toString() {
+                return "exponential mean " + mean + " bytes";
+            }
+        };
+    }
+
+    private static SizeDistribution weighted(String args) {
+        List<Integer> sizes = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        int largest = 0;
+        for (String entry : args.split(",")) {
+            String[] parts = entry.split("\\*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected SIZE*WEIGHT but got " + entry);
+            }
+            int size = parseSize(parts[0]);
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight must be at least 1: " + entry);
+            }
+            sizes.add(size);
+            weights.add(weight);
+            total += weight;
+            largest = Math.max(largest, size);
+        }
+        int totalWeight = total;
+        int max = largest;
+        return new SizeDistribution() {
+            @Override
+            int next() {
+                int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+                for (int i = 0; i < sizes.size(); i++) {
+                    pick -= weights.get(i);
+                    if (pick < 0) {
+                        return sizes.get(i);
+                    }
+                }
+                return sizes.get(sizes.size() - 1);
+            }
+
+            @Override
+            int max() {
+                return max;
+            }
+
+            @Override
+            public String toString() {
+                return "weighted " + args;
+            }
+        };
+    }
+
+    private static SizeDistribution recorded(String file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(file));
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to read recorded sizes from " + file + ": " + ex, ex);
+        }
+        List<Integer> recorded = new ArrayList<>();
+        for (String line : lines) {
+            String value = line.trim();
+            if (!value.isEmpty() && !value.startsWith("#")) {
+                recorded.add(parseSize(value));
+            }
+        }
+        if (recorded.isEmpty()) {
+            throw new IllegalArgumentException("No sizes recorded in " + file);
+        }
+        int[] sizes = recorded.stream().mapToInt(Integer::intValue).toArray();
+        int max = recorded.stream().mapToInt(Integer::intValue).max().getAsInt();
+        return new SizeDistribution() {
+            @Override
+            int next() {
+                return sizes[ThreadLocalRandom.current().nextInt(sizes.length)];
+            }
+
+            @Override
+            int max() {
+                return max;
+            }
+
+            @Override
+            public String toString() {
+                return sizes.length + " recorded sizes from " + file;
+            }
+        };
+    }
+
+    /**
+     * Parses a byte count with an optional k or m suffix (KiB or MiB).
+     */
+    static int parseSize(String text) {
+        String value = text.trim().toLowerCase();
+        long multiplier = 1;
+        if (value.endsWith("k")) {
+            multiplier = 1024;
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            multiplier = 1024 * 1024;
+            value = value.substring(0, value.length() - 1);
+        }
+        long size = Long.parseLong(value) * multiplier;
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Size out of range: " + text);
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,336 @@
+package org.rwmckean.common.jms.loadgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.rwmckean.common.jms.QueueConnectionFactory;
+
+import com.ibm.msg.client.wmq.WMQConstants;
+
+/**
+ * Sweeps combinations of the IBM MQ client settings that
+ * {@link QueueConnectionFactory} exposes, running the {@link LoadGenerator}
+ * workload once per combination. The workload is given with the load
+ * generator's own options; {@code --size recorded:FILE} replays a recorded
+ * mix of message sizes. Each knob takes a comma-separated list of values to
+ * try, and knobs left out keep the MQ default. The queue is drained before
+ * each combination runs, so no trial inherits another's backlog.
+ * <p/>
+ * When every combination has run they are ranked by throughput or, for a
+ * paced workload, by tail latency, and the winner is printed as property
+ * elements to paste into the QueueConnectionFactory bean definition.
+ */
+public final class TuningSweep {
+    private static final long DRAIN_WAIT = 500;
+
+    enum Knob {
+        MSG_BATCH_SIZE("--msg-batch-size", "msgBatchSize") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) throws JMSException {
+                factory.setMsgBatchSize(Integer.parseInt(value));
+            }
+        },
+        MAX_BUFFER_SIZE("--max-buffer-size", "maxBufferSize") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) throws JMSException {
+                factory.setMaxBufferSize(Integer.parseInt(value));
+            }
+        },
+        SHARE_CONV_ALLOWED("--share-conv", "shareConvAllowed") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) throws JMSException {
+                factory.setShareConvAllowed(Integer.parseInt(value));
+            }
+        },
+        HDR_COMP_LIST("--hdr-comp", "hdrCompList") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) throws JMSException {
+                factory.setHdrCompList(value);
+            }
+        },
+        MSG_COMP_LIST("--msg-comp", "msgCompList") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) throws JMSException {
+                factory.setMsgCompList(value);
+            }
+        },
+        SYNCPOINT_ALL_GETS("--syncpoint-all-gets", "syncpointAllGets") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) {
+                factory.setSyncpointAllGets(Boolean.parseBoolean(value));
+            }
+        },
+        POLLING_INTERVAL("--polling-interval", "pollingInterval") {
+            @Override
+            void apply(QueueConnectionFactory factory, String value) throws JMSException {
+                factory.setPollingInterval(Integer.parseInt(value));
+            }
+        };
+
+        final String option;
+        final String property;
+
+        Knob(String option, String property) {
+            this.option = option;
+            this.property = property;
+        }
+
+        abstract void apply(QueueConnectionFactory factory, String value) throws JMSException;
+
+        static Knob forOption(String option) {
+            for (Knob knob : values()) {
+                if (knob.option.equals(option)) {
+                    return knob;
+                }
+            }
+            return null;
+        }
+    }
+
+    enum Rank {
+        THROUGHPUT, P50, P99
+    }
+
+    private final LoadOptions options;
+    private final Map<Knob, List<String>> knobs;
+    private final Rank rank;
+
+    TuningSweep(LoadOptions options, Map<Knob, List<String>> knobs, Rank rank) {
+        this.options = options;
+        this.knobs = knobs;
+        this.rank = rank;
+    }
+
+    public static void main(String[] args) {
+        Map<Knob, List<String>> knobs = new LinkedHashMap<>();
+        Rank rank = null;
+        List<String> loadArgs = new ArrayList<>();
+        LoadOptions options;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                Knob knob = Knob.forOption(args[i]);
+                if (knob == null && !"--rank-by".equals(args[i])) {
+                    loadArgs.add(args[i]);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[++i];
+                if (knob == null) {
+                    rank = Rank.valueOf(value.toUpperCase());
+                } else {
+                    knobs.put(knob, Arrays.asList(value.split(",")));
+                }
+            }
+            options = LoadOptions.parse(loadArgs.toArray(new String[0]));
+            if (options.provider != LoadOptions.Provider.MQ) {
+                throw new IllegalArgumentException("Only IBM MQ settings can be swept");
+            }
+            if (knobs.isEmpty()) {
+                throw new IllegalArgumentException("Give at least one knob to sweep");
+            }
+        } catch (IllegalArgumentException ex) {
+            if (!ex.getMessage().isEmpty()) {
+                System.out.println(ex.getMessage());
+            }
+            System.out.println(usage());
+            System.exit(2);
+            return;
+        }
+        if (rank == null) {
+            rank = options.rate > 0 ? Rank.P99 : Rank.THROUGHPUT;
+        }
+        try {
+            new TuningSweep(options, knobs, rank).run();
+            System.exit(0);
+        } catch (InterruptedException ex) {
+            System.out.println("Sweep interrupted");
+            System.exit(1);
+        }
+    }
+
+    void run() throws InterruptedException {
+        List<Map<Knob, String>> combinations = combinations();
+        System.out.printf("Sweeping %d combination(s) of %s, ranked by %s%n", combinations.size(),
+                knobs.keySet(), rank.name().toLowerCase());
+        List<Trial> trials = new ArrayList<>();
+        for (int i = 0; i < combinations.size(); i++) {
+            Map<Knob, String> settings = combinations.get(i);
+            System.out.printf("%n=== Combination %d of %d: %s%n", i + 1, combinations.size(), describe(settings));
+            trials.add(run(settings));
+        }
+        trials.sort(comparator());
+        System.out.printf("%n%-4s %10s %10s %10s %10s %7s  %s%n", "Rank", "sent/s", "recv/s", "p50 us", "p99 us",
+                "errors", "settings");
+        for (int i = 0; i < trials.size(); i++) {
+            Trial trial = trials.get(i);
+            if (trial.result == null) {
+                System.out.printf("%-4d %10s %10s %10s %10s %7s  %s (%s)%n", i + 1, "-", "-", "-", "-", "-",
+                        describe(trial.settings), trial.failure);
+                continue;
+            }
+            System.out.printf("%-4d %10.1f %10.1f %10d %10d %7d  %s%n", i + 1, trial.result.sendRate(),
+                    trial.result.receiveRate(), trial.result.latencyMicros(50), trial.result.latencyMicros(99),
+                    trial.result.errors, describe(trial.settings));
+        }
+        Trial best = trials.get(0);
+        if (best.result == null || best.result.sent + best.result.received == 0) {
+            System.out.println("\nNo combination moved any messages; nothing to recommend");
+            return;
+        }
+        if (best.result.errors > 0) {
+            System.out.println("\nEvery combination saw errors; treat this recommendation with care");
+        }
+        System.out.println("\nRecommended QueueConnectionFactory properties:");
+        for (Map.Entry<Knob, String> setting : best.settings.entrySet()) {
+            System.out.printf("    <property name=\"%s\" value=\"%s\"/>%n", setting.getKey().property,
+                    setting.getValue());
+        }
+    }
+
+    private Trial run(Map<Knob, String> settings) throws InterruptedException {
+        QueueConnectionFactory factory = new QueueConnectionFactory();
+        try {
+            factory.setHostName(options.host);
+            factory.setPort(options.port);
+            factory.setChannel(options.channel);
+            factory.setQueueManager(options.queueManager);
+            factory.setConnectionMode(WMQConstants.WMQ_CM_CLIENT);
+            factory.setUserAuthenticationMQCSP(true);
+            factory.setUsername(options.user);
+            factory.setPassword(options.password);
+            factory.setAppName("TuningSweep (JMS)");
+            for (Map.Entry<Knob, String> setting : settings.entrySet()) {
+                setting.getKey().apply(factory, setting.getValue());
+            }
+            factory.start();
+            drain(factory);
+            return new Trial(settings, new LoadGenerator(options, factory).run(), null);
+        } catch (JMSException | RuntimeException ex) {
+            System.out.println("Combination rejected: " + ex);
+            return new Trial(settings, null, ex.toString());
+        } finally {
+            factory.close();
+        }
+    }
+
+    /**
+     * Empties the queue of whatever earlier trials left behind, so each
+     * trial's consumers only count, and time, its own messages.
+     */
+    private void drain(QueueConnectionFactory factory) throws JMSException {
+        Connection connection = factory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(session.createQueue("queue:///" + options.queue));
+            connection.start();
+            long drained = 0;
+            while (consumer.receive(DRAIN_WAIT) != null) {
+                drained++;
+            }
+            if (drained > 0) {
+                System.out.printf("Drained %d message(s) left on %s%n", drained, options.queue);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private List<Map<Knob, String>> combinations() {
+        List<Map<Knob, String>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+        for (Map.Entry<Knob, List<String>> knob : knobs.entrySet()) {
+            List<Map<Knob, String>> expanded = new ArrayList<>();
+            for (Map<Knob, String> partial : combinations) {
+                for (String value : knob.getValue()) {
+                    Map<Knob, String> combination = new LinkedHashMap<>(partial);
+                    combination.put(knob.getKey(), value.trim());
+                    expanded.add(combination);
+                }
+            }
+            combinations = expanded;
+        }
+        return combinations;
+    }
+
+    /**
+     * Failed combinations, then those with errors, sort last.
+     */
+    private Comparator<Trial> comparator() {
+        Comparator<Trial> byScore;
+        switch (rank) {
+        case P50:
+            byScore = Comparator.comparingLong(t -> latencyOrMax(t.result, 50));
+            break;
+        case P99:
+            byScore = Comparator.comparingLong(t -> latencyOrMax(t.result, 99));
+            break;
+        default:
+            byScore = Comparator.comparingDouble(t -> -throughput(t.result));
+            break;
+        }
+        return Comparator.<Trial>comparingInt(t -> t.result == null ? 2 : t.result.errors > 0 ? 1 : 0)
+                .thenComparing(byScore);
+    }
+
+    private double throughput(LoadResult result) {
+        if (result == null) {
+            return 0;
+        }
+        return options.consumers > 0 ? result.receiveRate() : result.sendRate();
+    }
+
+    private static long latencyOrMax(LoadResult result, double percentile) {
+        long latency = result == null ? -1 : result.latencyMicros(percentile);
+        return latency < 0 ? Long.MAX_VALUE : latency;
+    }
+
+    private static String describe(Map<Knob, String> settings) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<Knob, String> setting : settings.entrySet()) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(setting.getKey().property).append('=').append(setting.getValue());
+        }
+        return text.toString();
+    }
+
+    static String usage() {
+        return String.join(System.lineSeparator(),
+                "Usage: TuningSweep [knobs] [load generator options]",
+                "Knobs, each a comma-separated list of values to try:",
+                "  --msg-batch-size 10,50,200",
+                "  --max-buffer-size 1000,10000",
+                "  --share-conv 0,1",
+                "  --hdr-comp NONE,SYSTEM",
+                "  --msg-comp NONE,ZLIBFAST,RLE",
+                "  --syncpoint-all-gets false,true",
+                "  --polling-interval 5000,1000",
+                "  --rank-by throughput|p50|p99   default p99 with --rate, else throughput",
+                "",
+                LoadOptions.usage());
+    }
+
+    private static final class Trial {
+        final Map<Knob, String> settings;
+        final LoadResult result;
+        final String failure;
+
+        Trial(Map<Knob, String> settings, LoadResult result, String failure) {
+            this.settings = settings;
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.rwmckean.common.jms.message;
+
+import javax.jms.JMSException;
+
+/**
+ * Produces the body of a {@link DecoratedMessage} when it is first read.
+ */
+@FunctionalInterface
+public interface BodySource {
+
+    byte[] load() throws JMSException;
+}
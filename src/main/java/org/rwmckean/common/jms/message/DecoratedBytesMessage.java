@@ -0,0 +1,247 @@
+package org.rwmckean.common.jms.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageFormatException;
+
+/**
+ * A decorated bytes message. The body is read with the same big-endian,
+ * modified UTF-8 encoding as {@link java.io.DataInput}, which is what JMS
+ * specifies for bytes messages.
+ */
+public final class DecoratedBytesMessage extends DecoratedMessage implements BytesMessage {
+    private DataInputStream in;
+
+    public DecoratedBytesMessage(Message reference, BodySource source) {
+        super(reference, source);
+    }
+
+    @Override
+    public long getBodyLength() throws JMSException {
+        return body().length;
+    }
+
+    @Override
+    public boolean readBoolean() throws JMSException {
+        try {
+            return in().readBoolean();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public byte readByte() throws JMSException {
+        try {
+            return in().readByte();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public int readUnsignedByte() throws JMSException {
+        try {
+            return in().readUnsignedByte();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public short readShort() throws JMSException {
+        try {
+            return in().readShort();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public int readUnsignedShort() throws JMSException {
+        try {
+            return in().readUnsignedShort();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public char readChar() throws JMSException {
+        try {
+            return in().readChar();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public int readInt() throws JMSException {
+        try {
+            return in().readInt();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public long readLong() throws JMSException {
+        try {
+            return in().readLong();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public float readFloat() throws JMSException {
+        try {
+            return in().readFloat();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public double readDouble() throws JMSException {
+        try {
+            return in().readDouble();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public String readUTF() throws JMSException {
+        try {
+            return in().readUTF();
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public int readBytes(byte[] value) throws JMSException {
+        return readBytes(value, value.length);
+    }
+
+    @Override
+    public int readBytes(byte[] value, int length) throws JMSException {
+        if (length < 0 || length > value.length) {
+            throw new IndexOutOfBoundsException("length " + length + " outside 0.." + value.length);
+        }
+        try {
+            return in().read(value, 0, length);
+        } catch (IOException ex) {
+            throw readFailed(ex);
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeByte(byte value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeShort(short value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeChar(char value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeInt(int value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeLong(long value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeFloat(float value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeDouble(double value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeUTF(String value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeBytes(byte[] value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeBytes(byte[] value, int offset, int length) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeObject(Object value) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public synchronized void reset() throws JMSException {
+        in = null;
+    }
+
+    @Override
+    public synchronized void clearBody() throws JMSException {
+        super.clearBody();
+        in = null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getBody(Class<T> c) throws JMSException {
+        if (!c.isAssignableFrom(byte[].class)) {
+            throw new MessageFormatException("Bytes body cannot be read as " + c.getName());
+        }
+        return (T) body().clone();
+    }
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public boolean isBodyAssignableTo(Class c) {
+        return c.isAssignableFrom(byte[].class);
+    }
+
+    private synchronized DataInputStream in() throws JMSException {
+        if (in == null) {
+            in = new DataInputStream(new ByteArrayInputStream(body()));
+        }
+        return in;
+    }
+
+    private static JMSException readFailed(IOException ex) {
+        JMSException jmsex = ex instanceof EOFException
+                ? new MessageEOFException("Unexpected end of message body")
+                : new MessageFormatException(ex.getMessage());
+        jmsex.setLinkedException(ex);
+        return jmsex;
+    }
+}
@@ -0,0 +1,281 @@
+package org.rwmckean.common.jms.message;
+
+import java.util.Enumeration;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageNotWriteableException;
+
+/**
+ * A received message standing in for the one that was sent, whose body
+ * travelled in some other form: offloaded to a claim-check store, or
+ * compressed. Headers and properties are the received message's own; the
+ * body is produced by a {@link BodySource} the first time it is touched, so
+ * handlers that route on properties alone never pay for it. The body is
+ * read-only, as for any received message.
+ */
+public abstract class DecoratedMessage implements Message {
+    private final Message reference;
+    private final BodySource source;
+    private byte[] body;
+
+    DecoratedMessage(Message reference, BodySource source) {
+        this.reference = reference;
+        this.source = source;
+    }
+
+    /**
+     * @return the message that was actually received
+     */
+    public Message getReceived() {
+        return reference;
+    }
+
+    synchronized byte[] body() throws JMSException {
+        if (body == null) {
+            body = source.load();
+        }
+        return body;
+    }
+
+    static MessageNotWriteableException readOnly() {
+        return new MessageNotWriteableException("Message body is read-only");
+    }
+
+    @Override
+    public synchronized void clearBody() throws JMSException {
+        body = new byte[0];
+    }
+
+    @Override
+    public String getJMSMessageID() throws JMSException {
+        return reference.getJMSMessageID();
+    }
+
+    @Override
+    public void setJMSMessageID(String id) throws JMSException {
+        reference.setJMSMessageID(id);
+    }
+
+    @Override
+    public long getJMSTimestamp() throws JMSException {
+        return reference.getJMSTimestamp();
+    }
+
+    @Override
+    public void setJMSTimestamp(long timestamp) throws JMSException {
+        reference.setJMSTimestamp(timestamp);
+    }
+
+    @Override
+    public byte[] getJMSCorrelationIDAsBytes() throws JMSException {
+        return reference.getJMSCorrelationIDAsBytes();
+    }
+
+    @Override
+    public void setJMSCorrelationIDAsBytes(byte[] correlationID) throws JMSException {
+        reference.setJMSCorrelationIDAsBytes(correlationID);
+    }
+
+    @Override
+    public void setJMSCorrelationID(String correlationID) throws JMSException {
+        reference.setJMSCorrelationID(correlationID);
+    }
+
+    @Override
+    public String getJMSCorrelationID() throws JMSException {
+        return reference.getJMSCorrelationID();
+    }
+
+    @Override
+    public Destination getJMSReplyTo() throws JMSException {
+        return reference.getJMSReplyTo();
+    }
+
+    @Override
+    public void setJMSReplyTo(Destination replyTo) throws JMSException {
+        reference.setJMSReplyTo(replyTo);
+    }
+
+    @Override
+    public Destination getJMSDestination() throws JMSException {
+        return reference.getJMSDestination();
+    }
+
+    @Override
+    public void setJMSDestination(Destination destination) throws JMSException {
+        reference.setJMSDestination(destination);
+    }
+
+    @Override
+    public int getJMSDeliveryMode() throws JMSException {
+        return reference.getJMSDeliveryMode();
+    }
+
+    @Override
+    public void setJMSDeliveryMode(int deliveryMode) throws JMSException {
+        reference.setJMSDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public boolean getJMSRedelivered() throws JMSException {
+        return reference.getJMSRedelivered();
+    }
+
+    @Override
+    public void setJMSRedelivered(boolean redelivered) throws JMSException {
+        reference.setJMSRedelivered(redelivered);
+    }
+
+    @Override
+    public String getJMSType() throws JMSException {
+        return reference.getJMSType();
+    }
+
+    @Override
+    public void setJMSType(String type) throws JMSException {
+        reference.setJMSType(type);
+    }
+
+    @Override
+    public long getJMSExpiration() throws JMSException {
+        return reference.getJMSExpiration();
+    }
+
+    @Override
+    public void setJMSExpiration(long expiration) throws JMSException {
+        reference.setJMSExpiration(expiration);
+    }
+
+    @Override
+    public long getJMSDeliveryTime() throws JMSException {
+        return reference.getJMSDeliveryTime();
+    }
+
+    @Override
+    public void setJMSDeliveryTime(long deliveryTime) throws JMSException {
+        reference.setJMSDeliveryTime(deliveryTime);
+    }
+
+    @Override
+    public int getJMSPriority() throws JMSException {
+        return reference.getJMSPriority();
+    }
+
+    @Override
+    public void setJMSPriority(int priority) throws JMSException {
+        reference.setJMSPriority(priority);
+    }
+
+    @Override
+    public void clearProperties() throws JMSException {
+        reference.clearProperties();
+    }
+
+    @Override
+    public boolean propertyExists(String name) throws JMSException {
+        return reference.propertyExists(name);
+    }
+
+    @Override
+    public boolean getBooleanProperty(String name) throws JMSException {
+        return reference.getBooleanProperty(name);
+    }
+
+    @Override
+    public byte getByteProperty(String name) throws JMSException {
+        return reference.getByteProperty(name);
+    }
+
+    @Override
+    public short getShortProperty(String name) throws JMSException {
+        return reference.getShortProperty(name);
+    }
+
+    @Override
+    public int getIntProperty(String name) throws JMSException {
+        return reference.getIntProperty(name);
+    }
+
+    @Override
+    public long getLongProperty(String name) throws JMSException {
+        return reference.getLongProperty(name);
+    }
+
+    @Override
+    public float getFloatProperty(String name) throws JMSException {
+        return reference.getFloatProperty(name);
+    }
+
+    @Override
+    public double getDoubleProperty(String name) throws JMSException {
+        return reference.getDoubleProperty(name);
+    }
+
+    @Override
+    public String getStringProperty(String name) throws JMSException {
+        return reference.getStringProperty(name);
+    }
+
+    @Override
+    public Object getObjectProperty(String name) throws JMSException {
+        return reference.getObjectProperty(name);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getPropertyNames() throws JMSException {
+        return reference.getPropertyNames();
+    }
+
+    @Override
+    public void setBooleanProperty(String name, boolean value) throws JMSException {
+        reference.setBooleanProperty(name, value);
+    }
+
+    @Override
+    public void setByteProperty(String name, byte value) throws JMSException {
+        reference.setByteProperty(name, value);
+    }
+
+    @Override
+    public void setShortProperty(String name, short value) throws JMSException {
+        reference.setShortProperty(name, value);
+    }
+
+    @Override
+    public void setIntProperty(String name, int value) throws JMSException {
+        reference.setIntProperty(name, value);
+    }
+
+    @Override
+    public void setLongProperty(String name, long value) throws JMSException {
+        reference.setLongProperty(name, value);
+    }
+
+    @Override
+    public void setFloatProperty(String name, float value) throws JMSException {
+        reference.setFloatProperty(name, value);
+    }
+
+    @Override
+    public void setDoubleProperty(String name, double value) throws JMSException {
+        reference.setDoubleProperty(name, value);
+    }
+
+    @Override
+    public void setStringProperty(String name, String value) throws JMSException {
+        reference.setStringProperty(name, value);
+    }
+
+    @Override
+    public void setObjectProperty(String name, Object value) throws JMSException {
+        reference.setObjectProperty(name, value);
+    }
+
+    @Override
+    public void acknowledge() throws JMSException {
+        reference.acknowledge();
+    }
+}
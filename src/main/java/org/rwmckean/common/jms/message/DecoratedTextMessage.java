@@ -0,0 +1,43 @@
+package org.rwmckean.common.jms.message;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.TextMessage;
+
+/**
+ * A decorated text message; the body source yields the text in UTF-8.
+ */
+public final class DecoratedTextMessage extends DecoratedMessage implements TextMessage {
+
+    public DecoratedTextMessage(Message reference, BodySource source) {
+        super(reference, source);
+    }
+
+    @Override
+    public String getText() throws JMSException {
+        return new String(body(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void setText(String string) throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getBody(Class<T> c) throws JMSException {
+        if (!c.isAssignableFrom(String.class)) {
+            throw new MessageFormatException("Text body cannot be read as " + c.getName());
+        }
+        return (T) getText();
+    }
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public boolean isBodyAssignableTo(Class c) {
+        return c.isAssignableFrom(String.class);
+    }
+}
@@ -0,0 +1,71 @@
+package org.rwmckean.common.jms.message;
+
+import java.util.Enumeration;
+
+import javax.jms.CompletionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Helpers for producers that send a substitute in place of the caller's
+ * message, such as a claim-check reference or a compressed copy.
+ */
+public final class Messages {
+    private Messages() {
+    }
+
+    /**
+     * Copies the application-set headers and every property from one
+     * message to another.
+     */
+    public static void copyHeaders(Message from, Message to) throws JMSException {
+        for (Enumeration<?> names = from.getPropertyNames(); names.hasMoreElements(); ) {
+            String name = (String) names.nextElement();
+            to.setObjectProperty(name, from.getObjectProperty(name));
+        }
+        to.setJMSCorrelationID(from.getJMSCorrelationID());
+        to.setJMSType(from.getJMSType());
+        to.setJMSReplyTo(from.getJMSReplyTo());
+    }
+
+    /**
+     * Updates the caller's message with the headers the provider set on the
+     * substitute when it was sent, as if the original had been sent itself.
+     * Does nothing if no substitute was made.
+     */
+    public static void sentAs(Message message, Message sent) throws JMSException {
+        if (sent == message) {
+            return;
+        }
+        message.setJMSMessageID(sent.getJMSMessageID());
+        message.setJMSTimestamp(sent.getJMSTimestamp());
+        message.setJMSDestination(sent.getJMSDestination());
+        message.setJMSDeliveryMode(sent.getJMSDeliveryMode());
+        message.setJMSPriority(sent.getJMSPriority());
+        message.setJMSExpiration(sent.getJMSExpiration());
+    }
+
+    /**
+     * @return a listener that reports completion of the substitute's send
+     *         to the caller's listener as completion of the original
+     */
+    public static CompletionListener sentAs(Message message, CompletionListener listener) {
+        return new CompletionListener() {
+            @Override
+            public void onCompletion(Message sent) {
+                try {
+                    sentAs(message, sent);
+                } catch (JMSException ex) {
+                    listener.onException(message, ex);
+                    return;
+                }
+                listener.onCompletion(message);
+            }
+
+            @Override
+            public void onException(Message sent, Exception exception) {
+                listener.onException(message, exception);
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package org.rwmckean.common.jms.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one destination, kept in {@link LongAdder}s like
+ * {@link FactoryMetrics}.
+ */
+public class DestinationMetrics implements DestinationMetricsMBean {
+    private final String destination;
+    private final LongAdder sends = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder sendBytes = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+    private final LongAdder receives = new LongAdder();
+    private final LongAdder emptyReceives = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+    private final LongAdder receiveBytes = new LongAdder();
+    private final LongAdder receiveNanos = new LongAdder();
+
+    DestinationMetrics(String destination) {
+        this.destination = destination;
+    }
+
+    @Override
+    public String getDestination() {
+        return destination;
+    }
+
+    @Override
+    public long getSends() {
+        return sends.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public long getSendBytes() {
+        return sendBytes.sum();
+    }
+
+    @Override
+    public double getAverageSendMicros() {
+        long count = sends.sum();
+        return count == 0 ? 0 : sendNanos.sum() / (count * 1000.0);
+    }
+
+    @Override
+    public long getReceives() {
+        return receives.sum();
+    }
+
+    @Override
+    public long getEmptyReceives() {
+        return emptyReceives.sum();
+    }
+
+    @Override
+    public long getReceiveErrors() {
+        return receiveErrors.sum();
+    }
+
+    @Override
+    public long getReceiveBytes() {
+        return receiveBytes.sum();
+    }
+
+    /**
+     * @return the mean time a synchronous receive call took, including any
+     *         time spent waiting for a message to arrive
+     */
+    @Override
+    public double getAverageReceiveWaitMicros() {
+        long count = receives.sum() + emptyReceives.sum();
+        return count == 0 ? 0 : receiveNanos.sum() / (count * 1000.0);
+    }
+
+    @Override
+    public void reset() {
+        sends.reset();
+        sendErrors.reset();
+        sendBytes.reset();
+        sendNanos.reset();
+        receives.reset();
+        emptyReceives.reset();
+        receiveErrors.reset();
+        receiveBytes.reset();
+        receiveNanos.reset();
+    }
+
+    void sent(long bytes, long nanos) {
+        sends.increment();
+        sendNanos.add(nanos);
+        if (bytes > 0) {
+            sendBytes.add(bytes);
+        }
+    }
+
+    void sendFailed() {
+        sendErrors.increment();
+    }
+
+    void received(long bytes, long nanos) {
+        receives.increment();
+        receiveNanos.add(nanos);
+        if (bytes > 0) {
+            receiveBytes.add(bytes);
+        }
+    }
+
+    void receivedNothing(long nanos) {
+        emptyReceives.increment();
+        receiveNanos.add(nanos);
+    }
+
+    void delivered(long bytes) {
+        receives.increment();
+        if (bytes > 0) {
+            receiveBytes.add(bytes);
+        }
+    }
+
+    void receiveFailed() {
+        receiveErrors.increment();
+    }
+}
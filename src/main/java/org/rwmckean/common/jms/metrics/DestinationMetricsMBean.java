@@ -0,0 +1,33 @@
+package org.rwmckean.common.jms.metrics;
+
+/**
+ * Send and receive figures for one destination of one connection factory.
+ * Byte counts are estimates: text messages count the characters of their
+ * text, exact for ASCII, and bytes messages their body length where the
+ * provider has made the body readable, which covers receives but, on
+ * providers that leave a sent message writable, not sends. Other message
+ * bodies are not measured.
+ */
+public interface DestinationMetricsMBean {
+    String getDestination();
+
+    long getSends();
+
+    long getSendErrors();
+
+    long getSendBytes();
+
+    double getAverageSendMicros();
+
+    long getReceives();
+
+    long getEmptyReceives();
+
+    long getReceiveErrors();
+
+    long getReceiveBytes();
+
+    double getAverageReceiveWaitMicros();
+
+    void reset();
+}
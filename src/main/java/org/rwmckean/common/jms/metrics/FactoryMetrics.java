@@ -0,0 +1,109 @@
+package org.rwmckean.common.jms.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one factory. Every figure is a {@link LongAdder}, which
+ * stripes its cells across contending threads, so recording costs an
+ * uncontended add even with many threads on the same factory.
+ */
+public class FactoryMetrics implements FactoryMetricsMBean {
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder sessionsOpened = new LongAdder();
+    private final LongAdder sessionsClosed = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder commitErrors = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final LongAdder rollbacks = new LongAdder();
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getSessionsOpened() {
+        return sessionsOpened.sum();
+    }
+
+    @Override
+    public long getOpenSessions() {
+        return sessionsOpened.sum() - sessionsClosed.sum();
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    @Override
+    public long getCommitErrors() {
+        return commitErrors.sum();
+    }
+
+    @Override
+    public double getAverageCommitMicros() {
+        long count = commits.sum();
+        return count == 0 ? 0 : commitNanos.sum() / (count * 1000.0);
+    }
+
+    @Override
+    public long getRollbacks() {
+        return rollbacks.sum();
+    }
+
+    /**
+     * Clears the cumulative counters. Open connection and session counts are
+     * kept, since they describe live objects.
+     */
+    @Override
+    public void reset() {
+        long openConnections = getOpenConnections();
+        long openSessions = getOpenSessions();
+        connectionsOpened.reset();
+        connectionsClosed.reset();
+        connectionsOpened.add(openConnections);
+        sessionsOpened.reset();
+        sessionsClosed.reset();
+        sessionsOpened.add(openSessions);
+        commits.reset();
+        commitErrors.reset();
+        commitNanos.reset();
+        rollbacks.reset();
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    void sessionOpened() {
+        sessionsOpened.increment();
+    }
+
+    void sessionClosed() {
+        sessionsClosed.increment();
+    }
+
+    void committed(long nanos) {
+        commits.increment();
+        commitNanos.add(nanos);
+    }
+
+    void commitFailed() {
+        commitErrors.increment();
+    }
+
+    void rolledBack() {
+        rollbacks.increment();
+    }
+}
@@ -0,0 +1,24 @@
+package org.rwmckean.common.jms.metrics;
+
+/**
+ * Connection, session and transaction figures for one connection factory.
+ */
+public interface FactoryMetricsMBean {
+    long getConnectionsOpened();
+
+    long getOpenConnections();
+
+    long getSessionsOpened();
+
+    long getOpenSessions();
+
+    long getCommits();
+
+    long getCommitErrors();
+
+    double getAverageCommitMicros();
+
+    long getRollbacks();
+
+    void reset();
+}
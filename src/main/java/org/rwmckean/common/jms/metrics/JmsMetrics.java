@@ -0,0 +1,152 @@
+package org.rwmckean.common.jms.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.rwmckean.common.jms.latency.LatencyTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics for one connection factory: a {@link FactoryMetrics} for the
+ * factory as a whole and a {@link DestinationMetrics} for each destination
+ * seen. Connections passed through {@link #wrap(QueueConnection)} are
+ * decorated so that everything created from them records into these.
+ * <p/>
+ * Once {@link #register()} has been called the figures are published as
+ * MBeans on the platform server, under
+ * {@code org.rwmckean.common.jms:type=ConnectionFactory,name=<name>} and
+ * {@code org.rwmckean.common.jms:type=Destination,factory=<name>,name=<destination>};
+ * destinations first seen later are registered as they appear. Names must
+ * be unique: registering metrics under a name another factory's metrics
+ * already hold fails rather than taking its MBeans over.
+ */
+public class JmsMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(JmsMetrics.class);
+    private static final String DOMAIN = "org.rwmckean.common.jms";
+
+    private final String name;
+    private final FactoryMetrics factory = new FactoryMetrics();
+    private final Map<String, DestinationMetrics> destinations = new ConcurrentHashMap<>();
+    private volatile boolean registered;
+
+    public JmsMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FactoryMetrics getFactoryMetrics() {
+        return factory;
+    }
+
+    /**
+     * @return the metrics for the destination, or null if nothing has been
+     *         sent to or received from it
+     */
+    public DestinationMetrics getDestinationMetrics(String destination) {
+        return destinations.get(destination);
+    }
+
+    public QueueConnection wrap(QueueConnection connection) {
+        factory.connectionOpened();
+        return new MeteredConnection(connection, this);
+    }
+
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        ObjectName factoryName = factoryName();
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(factoryName)) {
+            throw new IllegalStateException("Metrics named " + name + " are already registered as " + factoryName
+                    + "; give each factory's metrics a unique name");
+        }
+        registered = true;
+        register(factoryName, factory);
+        for (DestinationMetrics metrics : destinations.values()) {
+            register(destinationName(metrics.getDestination()), metrics);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (!registered) {
+            return;
+        }
+        registered = false;
+        unregister(factoryName());
+        for (String destination : destinations.keySet()) {
+            unregister(destinationName(destination));
+        }
+    }
+
+    DestinationMetrics destination(Destination destination) {
+        String key;
+        try {
+            key = LatencyTracker.nameOf(destination);
+        } catch (JMSException ex) {
+            key = String.valueOf(destination);
+        }
+        DestinationMetrics metrics = destinations.get(key);
+        return metrics != null ? metrics : newDestination(key);
+    }
+
+    private synchronized DestinationMetrics newDestination(String key) {
+        DestinationMetrics metrics = destinations.get(key);
+        if (metrics == null) {
+            metrics = new DestinationMetrics(key);
+            destinations.put(key, metrics);
+            if (registered) {
+                register(destinationName(key), metrics);
+            }
+        }
+        return metrics;
+    }
+
+    private ObjectName factoryName() {
+        return objectName("type=ConnectionFactory,name=" + ObjectName.quote(name));
+    }
+
+    private ObjectName destinationName(String destination) {
+        return objectName("type=Destination,factory=" + ObjectName.quote(name) + ",name="
+                + ObjectName.quote(destination));
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void register(ObjectName objectName, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mbean, objectName);
+        } catch (InstanceAlreadyExistsException ex) {
+            LOG.warn("MBean {} is already registered by another owner; leaving it in place", objectName);
+        } catch (JMException ex) {
+            LOG.warn("Could not register MBean {}", objectName, ex);
+        }
+    }
+
+    private static void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            // already gone
+        }
+    }
+}
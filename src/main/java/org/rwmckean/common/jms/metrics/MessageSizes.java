@@ -0,0 +1,40 @@
+package org.rwmckean.common.jms.metrics;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageNotReadableException;
+import javax.jms.TextMessage;
+
+/**
+ * Best-effort body sizes for the byte counters. Only sizes that cost a
+ * field read are reported: the character count of a text body, which is an
+ * estimate that is exact for ASCII and low for other text, and the length
+ * of a bytes body that is readable, which means a received one or, on
+ * providers that reset a message when sending it, a sent one.
+ */
+final class MessageSizes {
+    private MessageSizes() {
+    }
+
+    /**
+     * @return the estimated body size in bytes, or -1 if it is not cheaply
+     *         known
+     */
+    static long of(Message message) {
+        try {
+            if (message instanceof TextMessage) {
+                String text = ((TextMessage) message).getText();
+                return text == null ? 0 : text.length();
+            }
+            if (message instanceof BytesMessage) {
+                return ((BytesMessage) message).getBodyLength();
+            }
+        } catch (MessageNotReadableException ex) {
+            // a bytes message still in write mode; its size is not known
+        } catch (JMSException | RuntimeException ex) {
+            // metrics must never fail the send or receive they describe
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,134 @@
+package org.rwmckean.common.jms.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSession;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Decorates a connection so that its sessions, and everything created from
+ * them, record into a {@link JmsMetrics}.
+ */
+final class MeteredConnection implements QueueConnection {
+    private final QueueConnection connection;
+    private final JmsMetrics metrics;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    MeteredConnection(QueueConnection connection, JmsMetrics metrics) {
+        this.connection = connection;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public QueueSession createQueueSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return wrap(connection.createSession(transacted, acknowledgeMode));
+    }
+
+    @Override
+    public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return wrap(connection.createSession(transacted, acknowledgeMode));
+    }
+
+    @Override
+    public Session createSession(int sessionMode) throws JMSException {
+        return wrap(connection.createSession(sessionMode));
+    }
+
+    @Override
+    public Session createSession() throws JMSException {
+        return wrap(connection.createSession());
+    }
+
+    @Override
+    public String getClientID() throws JMSException {
+        return connection.getClientID();
+    }
+
+    @Override
+    public void setClientID(String clientID) throws JMSException {
+        connection.setClientID(clientID);
+    }
+
+    @Override
+    public ConnectionMetaData getMetaData() throws JMSException {
+        return connection.getMetaData();
+    }
+
+    @Override
+    public ExceptionListener getExceptionListener() throws JMSException {
+        return connection.getExceptionListener();
+    }
+
+    @Override
+    public void setExceptionListener(ExceptionListener listener) throws JMSException {
+        connection.setExceptionListener(listener);
+    }
+
+    @Override
+    public void start() throws JMSException {
+        connection.start();
+    }
+
+    @Override
+    public void stop() throws JMSException {
+        connection.stop();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        try {
+            connection.close();
+        } finally {
+            if (closed.compareAndSet(false, true)) {
+                metrics.getFactoryMetrics().connectionClosed();
+            }
+        }
+    }
+
+    @Override
+    public ConnectionConsumer createConnectionConsumer(Queue queue, String messageSelector,
+            ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection.createConnectionConsumer(queue, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector,
+            ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection.createConnectionConsumer(destination, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createSharedConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection.createSharedConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool,
+                maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection.createDurableConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool,
+                maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createSharedDurableConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection.createSharedDurableConnectionConsumer(topic, subscriptionName, messageSelector,
+                sessionPool, maxMessages);
+    }
+
+    private MeteredSession wrap(Session session) {
+        metrics.getFactoryMetrics().sessionOpened();
+        return new MeteredSession(session, metrics);
+    }
+}
@@ -0,0 +1,97 @@
+package org.rwmckean.common.jms.metrics;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+
+/**
+ * Decorates a consumer to count and time synchronous receives, and to count
+ * messages handed to a {@link MessageListener}.
+ */
+final class MeteredMessageConsumer implements javax.jms.QueueReceiver {
+    private final MessageConsumer consumer;
+    private final Destination destination;
+    private final DestinationMetrics metrics;
+    private MessageListener listener;
+
+    MeteredMessageConsumer(MessageConsumer consumer, Destination destination, DestinationMetrics metrics) {
+        this.consumer = consumer;
+        this.destination = destination;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String getMessageSelector() throws JMSException {
+        return consumer.getMessageSelector();
+    }
+
+    @Override
+    public synchronized MessageListener getMessageListener() throws JMSException {
+        return listener;
+    }
+
+    @Override
+    public synchronized void setMessageListener(MessageListener listener) throws JMSException {
+        consumer.setMessageListener(listener == null ? null : message -> {
+            metrics.delivered(MessageSizes.of(message));
+            listener.onMessage(message);
+        });
+        this.listener = listener;
+    }
+
+    @Override
+    public Message receive() throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            return received(consumer.receive(), begin);
+        } catch (JMSException | RuntimeException ex) {
+            metrics.receiveFailed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public Message receive(long timeout) throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            return received(consumer.receive(timeout), begin);
+        } catch (JMSException | RuntimeException ex) {
+            metrics.receiveFailed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public Message receiveNoWait() throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            return received(consumer.receiveNoWait(), begin);
+        } catch (JMSException | RuntimeException ex) {
+            metrics.receiveFailed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public Queue getQueue() throws JMSException {
+        return (Queue) destination;
+    }
+
+    @Override
+    public void close() throws JMSException {
+        consumer.close();
+    }
+
+    private Message received(Message message, long begin) {
+        long nanos = System.nanoTime() - begin;
+        if (message == null) {
+            metrics.receivedNothing(nanos);
+        } else {
+            metrics.received(MessageSizes.of(message), nanos);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,229 @@
+package org.rwmckean.common.jms.metrics;
+
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+
+/**
+ * Decorates a producer to count and time sends. A producer bound to a
+ * destination resolves its {@link DestinationMetrics} once; an unbound one
+ * looks them up per send; the provider rejects destination-less sends on an
+ * unbound producer, so those are not counted. Asynchronous sends are counted when the send call
+ * returns, so their time excludes the wait for completion. Messages reach
+ * the provider as given; their size is read after the send returns.
+ */
+final class MeteredMessageProducer implements javax.jms.QueueSender {
+    private final MessageProducer producer;
+    private final Destination destination;
+    private final JmsMetrics metrics;
+    private final DestinationMetrics bound;
+
+    MeteredMessageProducer(MessageProducer producer, Destination destination, JmsMetrics metrics) {
+        this.producer = producer;
+        this.destination = destination;
+        this.metrics = metrics;
+        this.bound = destination == null ? null : metrics.destination(destination);
+    }
+
+    @Override
+    public void setDisableMessageID(boolean value) throws JMSException {
+        producer.setDisableMessageID(value);
+    }
+
+    @Override
+    public boolean getDisableMessageID() throws JMSException {
+        return producer.getDisableMessageID();
+    }
+
+    @Override
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        producer.setDisableMessageTimestamp(value);
+    }
+
+    @Override
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return producer.getDisableMessageTimestamp();
+    }
+
+    @Override
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public int getDeliveryMode() throws JMSException {
+        return producer.getDeliveryMode();
+    }
+
+    @Override
+    public void setPriority(int defaultPriority) throws JMSException {
+        producer.setPriority(defaultPriority);
+    }
+
+    @Override
+    public int getPriority() throws JMSException {
+        return producer.getPriority();
+    }
+
+    @Override
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    @Override
+    public long getTimeToLive() throws JMSException {
+        return producer.getTimeToLive();
+    }
+
+    @Override
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        producer.setDeliveryDelay(deliveryDelay);
+    }
+
+    @Override
+    public long getDeliveryDelay() throws JMSException {
+        return producer.getDeliveryDelay();
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        return producer.getDestination();
+    }
+
+    @Override
+    public Queue getQueue() throws JMSException {
+        return (Queue) producer.getDestination();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        producer.close();
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            producer.send(message);
+        } catch (JMSException | RuntimeException ex) {
+            if (bound != null) {
+                bound.sendFailed();
+            }
+            throw ex;
+        }
+        bound.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            producer.send(message, deliveryMode, priority, timeToLive);
+        } catch (JMSException | RuntimeException ex) {
+            if (bound != null) {
+                bound.sendFailed();
+            }
+            throw ex;
+        }
+        bound.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        DestinationMetrics target = metrics.destination(destination);
+        long begin = System.nanoTime();
+        try {
+            producer.send(destination, message);
+        } catch (JMSException | RuntimeException ex) {
+            target.sendFailed();
+            throw ex;
+        }
+        target.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        DestinationMetrics target = metrics.destination(destination);
+        long begin = System.nanoTime();
+        try {
+            producer.send(destination, message, deliveryMode, priority, timeToLive);
+        } catch (JMSException | RuntimeException ex) {
+            target.sendFailed();
+            throw ex;
+        }
+        target.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            producer.send(message, completionListener);
+        } catch (JMSException | RuntimeException ex) {
+            if (bound != null) {
+                bound.sendFailed();
+            }
+            throw ex;
+        }
+        bound.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            producer.send(message, deliveryMode, priority, timeToLive, completionListener);
+        } catch (JMSException | RuntimeException ex) {
+            if (bound != null) {
+                bound.sendFailed();
+            }
+            throw ex;
+        }
+        bound.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener)
+            throws JMSException {
+        DestinationMetrics target = metrics.destination(destination);
+        long begin = System.nanoTime();
+        try {
+            producer.send(destination, message, completionListener);
+        } catch (JMSException | RuntimeException ex) {
+            target.sendFailed();
+            throw ex;
+        }
+        target.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        DestinationMetrics target = metrics.destination(destination);
+        long begin = System.nanoTime();
+        try {
+            producer.send(destination, message, deliveryMode, priority, timeToLive,
+                    completionListener);
+        } catch (JMSException | RuntimeException ex) {
+            target.sendFailed();
+            throw ex;
+        }
+        target.sent(MessageSizes.of(message), System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Queue queue, Message message) throws JMSException {
+        send((Destination) queue, message);
+    }
+
+    @Override
+    public void send(Queue queue, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        send((Destination) queue, message, deliveryMode, priority, timeToLive);
+    }
+}
@@ -0,0 +1,259 @@
+package org.rwmckean.common.jms.metrics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * Decorates a session: commits and rollbacks are counted and timed, and
+ * producers and consumers are decorated to count sends and receives per
+ * destination.
+ */
+final class MeteredSession implements javax.jms.QueueSession {
+    private final Session session;
+    private final JmsMetrics metrics;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    MeteredSession(Session session, JmsMetrics metrics) {
+        this.session = session;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public BytesMessage createBytesMessage() throws JMSException {
+        return session.createBytesMessage();
+    }
+
+    @Override
+    public MapMessage createMapMessage() throws JMSException {
+        return session.createMapMessage();
+    }
+
+    @Override
+    public Message createMessage() throws JMSException {
+        return session.createMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage() throws JMSException {
+        return session.createObjectMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+        return session.createObjectMessage(object);
+    }
+
+    @Override
+    public StreamMessage createStreamMessage() throws JMSException {
+        return session.createStreamMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage() throws JMSException {
+        return session.createTextMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage(String text) throws JMSException {
+        return session.createTextMessage(text);
+    }
+
+    @Override
+    public boolean getTransacted() throws JMSException {
+        return session.getTransacted();
+    }
+
+    @Override
+    public int getAcknowledgeMode() throws JMSException {
+        return session.getAcknowledgeMode();
+    }
+
+    @Override
+    public void commit() throws JMSException {
+        long begin = System.nanoTime();
+        try {
+            session.commit();
+        } catch (JMSException | RuntimeException ex) {
+            metrics.getFactoryMetrics().commitFailed();
+            throw ex;
+        }
+        metrics.getFactoryMetrics().committed(System.nanoTime() - begin);
+    }
+
+    @Override
+    public void rollback() throws JMSException {
+        session.rollback();
+        metrics.getFactoryMetrics().rolledBack();
+    }
+
+    @Override
+    public void recover() throws JMSException {
+        session.recover();
+    }
+
+    @Override
+    public MessageListener getMessageListener() throws JMSException {
+        return session.getMessageListener();
+    }
+
+    @Override
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        session.setMessageListener(listener);
+    }
+
+    @Override
+    public void run() {
+        session.run();
+    }
+
+    @Override
+    public MessageProducer createProducer(Destination destination) throws JMSException {
+        return new MeteredMessageProducer(session.createProducer(destination), destination, metrics);
+    }
+
+    @Override
+    public QueueSender createSender(Queue queue) throws JMSException {
+        return new MeteredMessageProducer(session.createProducer(queue), queue, metrics);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination) throws JMSException {
+        return consumer(session.createConsumer(destination), destination);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+        return consumer(session.createConsumer(destination, messageSelector), destination);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal)
+            throws JMSException {
+        return consumer(session.createConsumer(destination, messageSelector, noLocal), destination);
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName) throws JMSException {
+        return consumer(session.createSharedConsumer(topic, sharedSubscriptionName), topic);
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName, String messageSelector)
+            throws JMSException {
+        return consumer(session.createSharedConsumer(topic, sharedSubscriptionName, messageSelector), topic);
+    }
+
+    @Override
+    public QueueReceiver createReceiver(Queue queue) throws JMSException {
+        return consumer(session.createConsumer(queue), queue);
+    }
+
+    @Override
+    public QueueReceiver createReceiver(Queue queue, String messageSelector) throws JMSException {
+        return consumer(session.createConsumer(queue, messageSelector), queue);
+    }
+
+    @Override
+    public Queue createQueue(String queueName) throws JMSException {
+        return session.createQueue(queueName);
+    }
+
+    @Override
+    public Topic createTopic(String topicName) throws JMSException {
+        return session.createTopic(topicName);
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+        return session.createDurableSubscriber(topic, name);
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector,
+            boolean noLocal) throws JMSException {
+        return session.createDurableSubscriber(topic, name, messageSelector, noLocal);
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name) throws JMSException {
+        return consumer(session.createDurableConsumer(topic, name), topic);
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name, String messageSelector,
+            boolean noLocal) throws JMSException {
+        return consumer(session.createDurableConsumer(topic, name, messageSelector, noLocal), topic);
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name) throws JMSException {
+        return consumer(session.createSharedDurableConsumer(topic, name), topic);
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name, String messageSelector)
+            throws JMSException {
+        return consumer(session.createSharedDurableConsumer(topic, name, messageSelector), topic);
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue) throws JMSException {
+        return session.createBrowser(queue);
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
+        return session.createBrowser(queue, messageSelector);
+    }
+
+    @Override
+    public TemporaryQueue createTemporaryQueue() throws JMSException {
+        return session.createTemporaryQueue();
+    }
+
+    @Override
+    public TemporaryTopic createTemporaryTopic() throws JMSException {
+        return session.createTemporaryTopic();
+    }
+
+    @Override
+    public void unsubscribe(String name) throws JMSException {
+        session.unsubscribe(name);
+    }
+
+    @Override
+    public void close() throws JMSException {
+        try {
+            session.close();
+        } finally {
+            if (closed.compareAndSet(false, true)) {
+                metrics.getFactoryMetrics().sessionClosed();
+            }
+        }
+    }
+
+    private MeteredMessageConsumer consumer(MessageConsumer consumer, Destination destination) {
+        return new MeteredMessageConsumer(consumer, destination, metrics.destination(destination));
+    }
+}
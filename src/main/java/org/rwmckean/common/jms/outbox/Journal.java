@@ -0,0 +1,431 @@
+package org.rwmckean.common.jms.outbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The outbox's write-ahead journal: records appended to memory-mapped
+ * segment files by any number of senders, and read back in order by one
+ * drainer. A position packs a segment number into its high 32 bits and an
+ * offset into its low 32, so positions compare in journal order.
+ * <p/>
+ * How far the drainer has got is kept in a mapped checkpoint file, beside
+ * a file naming the journal with a UUID. Segments
+ * wholly before the checkpoint are deleted, and on opening the journal is
+ * scanned from the checkpoint to find where appending left off. Each record
+ * carries a CRC, so one torn by a crash ends the scan rather than being
+ * forwarded.
+ */
+final class Journal implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+    private static final int MAGIC = 0x52574d4f;
+    private static final int HEADER = 12;
+    private static final int LENGTH_OFFSET = 4;
+    private static final int CRC_OFFSET = 8;
+    private static final String PREFIX = "outbox-";
+    private static final String SUFFIX = ".log";
+    private static final String CHECKPOINT = "outbox.checkpoint";
+    private static final String ID = "outbox.id";
+
+    private final Path directory;
+    private final String id;
+    private final int segmentSize;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final CRC32 appendCrc = new CRC32();
+    private final CRC32 readCrc = new CRC32();
+    private final FileChannel checkpointChannel;
+    private final MappedByteBuffer checkpoint;
+    private final long recovered;
+    private Segment active;
+    private volatile long appendPosition;
+    private volatile long readPosition;
+    private volatile boolean closed;
+
+    Journal(Path directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("segmentSize must be more than " + HEADER);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.id = readId(this.directory);
+        this.segmentSize = segmentSize;
+        this.checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpoint = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        this.recovered = recover();
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return a UUID chosen when the directory was first used as a journal,
+     *         which together with a position identifies a record across
+     *         every journal
+     */
+    String getId() {
+        return id;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return the number of records found between the checkpoint and the end
+     *         of the journal when it was opened
+     */
+    long getRecovered() {
+        return recovered;
+    }
+
+    long getReadPosition() {
+        return readPosition;
+    }
+
+    /**
+     * @return the bytes held by records not yet forwarded
+     */
+    long size() {
+        long read = readPosition;
+        long append = appendPosition;
+        return (long) (segmentOf(append) - segmentOf(read)) * segmentSize + offsetOf(append) - offsetOf(read);
+    }
+
+    /**
+     * @return the bytes the segment files take on disk
+     */
+    long diskSize() {
+        return (long) (segmentOf(appendPosition) - segmentOf(readPosition) + 1) * segmentSize;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param maxSize the most the segment files may take on disk; a record
+     *                that needs a new segment beyond it is refused
+     * @param force   true to force the record to disk before returning
+     * @return the record's position, or -1 if the journal is full
+     */
+    synchronized long append(byte[] payload, int length, long maxSize, boolean force) throws IOException {
+        checkOpen();
+        if (HEADER + length > segmentSize) {
+            throw new IOException("Record of " + length + " bytes does not fit in a " + segmentSize
+                    + " byte segment");
+        }
+        int offset = offsetOf(appendPosition);
+        if (offset + HEADER + length > segmentSize) {
+            int next = active.number + 1;
+            if ((long) (next - segmentOf(readPosition) + 1) * segmentSize > maxSize) {
+                return -1;
+            }
+            active = create(next);
+            offset = 0;
+        }
+        appendCrc.reset();
+        appendCrc.update(payload, 0, length);
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset + LENGTH_OFFSET);
+        buffer.putInt(length);
+        buffer.putInt((int) appendCrc.getValue());
+        buffer.put(payload, 0, length);
+        // the magic goes last so a torn append is never mistaken for a record
+        buffer.putInt(offset, MAGIC);
+        if (force) {
+            active.buffer.force();
+        }
+        long position = position(active.number, offset);
+        appendPosition = position(active.number, offset + HEADER + length);
+        return position;
+    }
+
+    /**
+     * Reads the record at or after a position. Only the drainer reads.
+     *
+     * @return the record, or null if nothing has been appended there yet
+     */
+    Entry read(long position) throws IOException {
+        checkOpen();
+        while (position < appendPosition) {
+            Segment segment = segment(segmentOf(position));
+            int offset = offsetOf(position);
+            if (offset + HEADER > segmentSize || segment.buffer.getInt(offset) != MAGIC) {
+                // the writer moved on to the next segment here
+                position = position(segment.number + 1, 0);
+                continue;
+            }
+            int length = segment.buffer.getInt(offset + LENGTH_OFFSET);
+            int checksum = segment.buffer.getInt(offset + CRC_OFFSET);
+            byte[] payload = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + HEADER);
+            buffer.get(payload);
+            readCrc.reset();
+            readCrc.update(payload);
+            long next = position(segment.number, offset + HEADER + length);
+            return new Entry(position, next, (int) readCrc.getValue() == checksum ? payload : null);
+        }
+        return null;
+    }
+
+    /**
+     * Moves the checkpoint past every record before a position, deleting
+     * segments that no longer hold any unforwarded record.
+     */
+    void commit(long position) throws IOException {
+        checkOpen();
+        long previous = readPosition;
+        readPosition = position;
+        checkpoint.putLong(0, position);
+        if (segmentOf(position) > segmentOf(previous)) {
+            for (int number : segmentNumbers()) {
+                if (number < segmentOf(position)) {
+                    Segment segment = segments.remove(number);
+                    if (segment != null) {
+                        segment.close();
+                    }
+                    Files.deleteIfExists(directory.resolve(fileName(number)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces appended records and the checkpoint to disk.
+     */
+    void force() {
+        Segment current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            current = active;
+        }
+        current.buffer.force();
+        checkpoint.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        try {
+            checkpointChannel.close();
+        } catch (IOException ex) {
+            // the journal is being discarded anyway
+        }
+    }
+
+    /**
+     * Scans from the checkpoint to the end of the newest segment, stopping
+     * at the first torn record, and clears whatever follows the last good
+     * one so later appends cannot run into stale bytes.
+     *
+     * @return the number of records waiting to be forwarded
+     */
+    private long recover() throws IOException {
+        long position = checkpoint.getLong(0);
+        List<Integer> numbers = segmentNumbers();
+        if (numbers.isEmpty() || numbers.get(numbers.size() - 1) < segmentOf(position)) {
+            active = create(segmentOf(position));
+            readPosition = position(active.number, 0);
+            appendPosition = readPosition;
+            return 0;
+        }
+        if (!numbers.contains(segmentOf(position))) {
+            position = position(numbers.get(0), 0);
+        }
+        readPosition = position;
+        long count = 0;
+        int newest = numbers.get(numbers.size() - 1);
+        for (int number = segmentOf(position); number <= newest; number++) {
+            if (!numbers.contains(number)) {
+                continue;
+            }
+            Segment segment = segment(number);
+            int offset = number == segmentOf(position) ? offsetOf(position) : 0;
+            while (offset + HEADER <= segmentSize && segment.buffer.getInt(offset) == MAGIC) {
+                int length = segment.buffer.getInt(offset + LENGTH_OFFSET);
+                if (length < 0 || offset + HEADER + length > segmentSize || !checksumMatches(segment, offset, length)) {
+                    LOG.warn("Discarding torn record at {}:{} in {}", number, offset, directory);
+                    break;
+                }
+                offset += HEADER + length;
+                count++;
+            }
+            if (number == newest) {
+                active = segment;
+                appendPosition = position(number, offset);
+                clearTail(segment, offset);
+            }
+        }
+        if (count > 0) {
+            LOG.info("Recovered {} unforwarded record(s) from {}", count, directory);
+        }
+        return count;
+    }
+
+    private boolean checksumMatches(Segment segment, int offset, int length) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + HEADER);
+        buffer.limit(offset + HEADER + length);
+        readCrc.reset();
+        readCrc.update(buffer);
+        return (int) readCrc.getValue() == segment.buffer.getInt(offset + CRC_OFFSET);
+    }
+
+    private static void clearTail(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        byte[] zeros = new byte[8192];
+        while (buffer.hasRemaining()) {
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+    }
+
+    /**
+     * Reads the journal's UUID, kept beside the checkpoint, writing a new
+     * one on first use. It is written to a temporary file and moved into
+     * place so a crash never leaves a half-written id.
+     */
+    private static String readId(Path directory) throws IOException {
+        Path file = directory.resolve(ID);
+        if (Files.exists(file)) {
+            return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+        }
+        String id = UUID.randomUUID().toString();
+        Path temporary = directory.resolve(ID + ".tmp");
+        Files.write(temporary, id.getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        return id;
+    }
+
+    private Segment create(int number) throws IOException {
+        Path path = directory.resolve(fileName(number));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment = new Segment(number, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                segmentSize));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private Segment segment(int number) throws IOException {
+        Segment segment = segments.get(number);
+        if (segment != null) {
+            return segment;
+        }
+        synchronized (segments) {
+            segment = segments.get(number);
+            if (segment == null) {
+                FileChannel channel = FileChannel.open(directory.resolve(fileName(number)), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                segment = new Segment(number, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        segmentSize));
+                segments.put(number, segment);
+            }
+            return segment;
+        }
+    }
+
+    private List<Integer> segmentNumbers() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    // not one of ours
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private static String fileName(int number) {
+        return String.format("%s%08d%s", PREFIX, number, SUFFIX);
+    }
+
+    static long position(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Outbox journal has been closed");
+        }
+    }
+
+    /**
+     * One record read back from the journal.
+     */
+    static final class Entry {
+        final long position;
+        final long next;
+        /** null if the record failed its CRC */
+        final byte[] payload;
+
+        Entry(long position, long next, byte[] payload) {
+            this.position = position;
+            this.next = next;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Segment {
+        final int number;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(int number, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * The mapping itself is released when the buffer is collected.
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // the segment is being discarded anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,688 @@
+package org.rwmckean.common.jms.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.ResourceAllocationException;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store-and-forward producer. A send appends the message to a local
+ * memory-mapped {@link Journal} and returns without waiting for the broker,
+ * so a slow or failing-over queue manager no longer holds up the sending
+ * thread. A background drainer forwards the journal to the destination in
+ * transacted batches of up to {@link #getBatchSize()} messages and moves the
+ * journal's checkpoint once each batch is committed.
+ * <p/>
+ * While the broker is unreachable the drainer retries with a backoff that
+ * doubles up to {@link #getMaxRetryBackoff()}; nothing is dropped except
+ * messages whose time to live runs out first. When the journal's segment
+ * files would grow past {@link #getMaxJournalSize()} a send waits up to
+ * {@link #getMaxBlockTime()} for room, then fails with a
+ * ResourceAllocationException.
+ * <p/>
+ * Messages left in the journal when the process stops are forwarded once it
+ * is reopened on the same directory and started. Delivery is at least once:
+ * a crash between a commit and the next checkpoint sync forwards that batch
+ * again. Every message carries {@link #ID_PROPERTY}, its journal's UUID and
+ * its position there, which stays the same on every attempt and differs
+ * between outboxes, so consumers can drop the repeats.
+ * <p/>
+ * How safe a returned send is depends on the {@link SyncPolicy}. One process
+ * may open a journal directory at a time.
+ */
+public class OutboxProducer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(OutboxProducer.class);
+
+    /**
+     * A string property holding the message's journal UUID and position, as
+     * {@code <uuid>:<segment>:<offset>}.
+     */
+    public static final String ID_PROPERTY = "RwmOutboxId";
+
+    private static final byte TEXT = 0;
+    private static final byte BYTES = 1;
+
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final Journal journal;
+    private final Scratch scratch = new Scratch();
+    private final DataOutputStream out = new DataOutputStream(scratch);
+    private final Object space = new Object();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private Thread drainer;
+    private volatile boolean running;
+    private volatile boolean closed;
+
+    private volatile SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+    private volatile long syncInterval = 1000;
+    private volatile long maxJournalSize = 1024L * 1024 * 1024;
+    private volatile long maxBlockTime = 0;
+    private volatile int batchSize = 100;
+    private volatile long retryBackoff = 100;
+    private volatile long maxRetryBackoff = 30000;
+    private volatile long drainTimeout = 30000;
+    private volatile int deliveryMode = DeliveryMode.PERSISTENT;
+    private volatile int priority = Message.DEFAULT_PRIORITY;
+    private volatile long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+
+    /**
+     * How far a message has got towards disk when send returns.
+     */
+    public enum SyncPolicy {
+        /** forced to disk; survives an operating system crash or power loss */
+        ALWAYS,
+        /**
+         * in the page cache, and forced every syncInterval; survives the
+         * process dying, but an operating system crash loses up to one
+         * interval of sends
+         */
+        PERIODIC,
+        /** in the page cache, written back whenever the operating system chooses */
+        NEVER
+    }
+
+    public OutboxProducer(ConnectionFactory connectionFactory, Destination destination, Path directory)
+            throws IOException {
+        this(connectionFactory, destination, directory, 64 * 1024 * 1024);
+    }
+
+    /**
+     * Opens the journal in the directory, recovering any messages left in it.
+     * They are forwarded once {@link #start()} is called.
+     *
+     * @param segmentSize the size of each journal file, which also bounds
+     *                    the largest message
+     */
+    public OutboxProducer(ConnectionFactory connectionFactory, Destination destination, Path directory,
+            int segmentSize) throws IOException {
+        this.connectionFactory = connectionFactory;
+        this.destination = destination;
+        this.journal = new Journal(directory, segmentSize);
+        this.pending.set(journal.getRecovered());
+    }
+
+    public Path getDirectory() {
+        return journal.getDirectory();
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * @param syncInterval how often, in milliseconds, the journal and its
+     *                     checkpoint are forced to disk, unless the policy
+     *                     is NEVER
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = Math.max(1, syncInterval);
+    }
+
+    public long getMaxJournalSize() {
+        return maxJournalSize;
+    }
+
+    /**
+     * @param maxJournalSize the most the journal files may take on disk, in
+     *                       bytes; at least two segments
+     */
+    public void setMaxJournalSize(long maxJournalSize) {
+        if (maxJournalSize < 2L * journal.getSegmentSize()) {
+            throw new IllegalArgumentException("maxJournalSize must be at least two segments");
+        }
+        this.maxJournalSize = maxJournalSize;
+    }
+
+    public long getMaxBlockTime() {
+        return maxBlockTime;
+    }
+
+    /**
+     * @param maxBlockTime how long, in milliseconds, a send waits for room in
+     *                     a full journal; 0 fails at once
+     */
+    public void setMaxBlockTime(long maxBlockTime) {
+        this.maxBlockTime = Math.max(0, maxBlockTime);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public long getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    /**
+     * @param retryBackoff milliseconds to wait before forwarding again after
+     *                     a failure; each further failure waits twice as long,
+     *                     up to maxRetryBackoff
+     */
+    public void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = Math.max(1, retryBackoff);
+    }
+
+    public long getMaxRetryBackoff() {
+        return maxRetryBackoff;
+    }
+
+    public void setMaxRetryBackoff(long maxRetryBackoff) {
+        this.maxRetryBackoff = Math.max(1, maxRetryBackoff);
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * @param drainTimeout how long, in milliseconds, close waits for the
+     *                     journal to be forwarded before leaving the rest for
+     *                     the next start
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = Math.max(0, drainTimeout);
+    }
+
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @param timeToLive milliseconds from the send into the journal, not
+     *                   from forwarding, after which a message is dropped;
+     *                   0 keeps messages until forwarded
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(0, timeToLive);
+    }
+
+    /**
+     * @return the number of messages in the journal not yet forwarded
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    /**
+     * @return the number of messages dropped because their time to live ran
+     *         out before they could be forwarded
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * @return the number of records dropped because they were damaged on
+     *         disk or could not be turned back into a message
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the bytes of journal held by messages not yet forwarded
+     */
+    public long getJournalSize() {
+        return journal.size();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void send(String text) throws JMSException {
+        send(text, Collections.emptyMap());
+    }
+
+    public void send(byte[] body) throws JMSException {
+        send(body, Collections.emptyMap());
+    }
+
+    /**
+     * Journals a text message.
+     *
+     * @param properties message properties; values must be Strings or boxed
+     *                   primitives
+     */
+    public void send(String text, Map<String, ?> properties) throws JMSException {
+        append(TEXT, text.getBytes(StandardCharsets.UTF_8), properties);
+    }
+
+    /**
+     * Journals a bytes message.
+     *
+     * @param properties message properties; values must be Strings or boxed
+     *                   primitives
+     */
+    public void send(byte[] body, Map<String, ?> properties) throws JMSException {
+        append(BYTES, body, properties);
+    }
+
+    /**
+     * Starts the drainer, which forwards whatever the journal already holds
+     * before anything sent from now on.
+     */
+    public synchronized void start() throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Outbox has been closed");
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        drainer = new Thread(this::drain, "jms-outbox-" + journal.getDirectory().getFileName());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Waits until every message sent so far has been forwarded.
+     *
+     * @return false if messages were still pending after the timeout
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (space) {
+            while (pending.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(space, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits up to drainTimeout for the journal to be forwarded, then stops
+     * the drainer and closes the journal. Anything still pending is kept
+     * for the next start.
+     */
+    @Override
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            stopping = drainer;
+        }
+        if (stopping != null) {
+            try {
+                if (!flush(drainTimeout, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("{} message(s) still pending in {} after {} ms; leaving them for the next start",
+                            pending.get(), journal.getDirectory(), drainTimeout);
+                }
+                running = false;
+                LockSupport.unpark(stopping);
+                stopping.join(drainTimeout);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        running = false;
+        journal.close();
+    }
+
+    private void append(byte type, byte[] body, Map<String, ?> properties) throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Outbox has been closed");
+        }
+        long ttl = timeToLive;
+        boolean force = syncPolicy == SyncPolicy.ALWAYS;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBlockTime);
+        synchronized (scratch) {
+            encode(type, ttl == 0 ? 0 : System.currentTimeMillis() + ttl, body, properties);
+            try {
+                while (journal.append(scratch.buffer(), scratch.size(), maxJournalSize, force) < 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new ResourceAllocationException("Outbox journal in " + journal.getDirectory()
+                                + " is full at " + maxJournalSize + " bytes");
+                    }
+                    synchronized (space) {
+                        TimeUnit.NANOSECONDS.timedWait(space, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+                    }
+                }
+            } catch (IOException ex) {
+                JMSException jmsex = new JMSException("Unable to journal message: " + ex.getMessage());
+                jmsex.setLinkedException(ex);
+                jmsex.initCause(ex);
+                throw jmsex;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ResourceAllocationException("Interrupted while waiting for room in the outbox journal");
+            }
+        }
+        pending.incrementAndGet();
+        Thread waiting = drainer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Lays a record out as type, expiry, property count, properties and
+     * body. Property types are checked here rather than when forwarding, so
+     * a journalled record can always be turned back into a message.
+     */
+    private void encode(byte type, long expiresAt, byte[] body, Map<String, ?> properties)
+            throws JMSException {
+        scratch.reset();
+        try {
+            out.writeByte(type);
+            out.writeLong(expiresAt);
+            out.writeShort(properties.size());
+            for (Map.Entry<String, ?> property : properties.entrySet()) {
+                out.writeUTF(property.getKey());
+                writeValue(property.getKey(), property.getValue());
+            }
+            out.writeInt(body.length);
+            out.write(body);
+        } catch (IOException ex) {
+            MessageFormatException jmsex = new MessageFormatException("Unable to encode message: " + ex.getMessage());
+            jmsex.setLinkedException(ex);
+            jmsex.initCause(ex);
+            throw jmsex;
+        }
+    }
+
+    private void writeValue(String name, Object value) throws IOException, MessageFormatException {
+        if (value instanceof String) {
+            out.writeByte('s');
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('i');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('j');
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte('z');
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte('d');
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte('f');
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte('h');
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte('b');
+            out.writeByte((Byte) value);
+        } else {
+            throw new MessageFormatException("Property " + name + " is a "
+                    + (value == null ? "null" : value.getClass().getName()) + ", not a String or boxed primitive");
+        }
+    }
+
+    private static Message decode(Session session, byte[] payload, String journalId, long position, long now)
+            throws JMSException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = in.readByte();
+            long expiresAt = in.readLong();
+            if (expiresAt != 0 && expiresAt <= now) {
+                return null;
+            }
+            int count = in.readUnsignedShort();
+            List<Object> properties = new ArrayList<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                properties.add(in.readUTF());
+                properties.add(readValue(in));
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            Message message;
+            if (type == TEXT) {
+                message = session.createTextMessage(new String(body, StandardCharsets.UTF_8));
+            } else {
+                BytesMessage bytes = session.createBytesMessage();
+                bytes.writeBytes(body);
+                message = bytes;
+            }
+            for (int i = 0; i < properties.size(); i += 2) {
+                message.setObjectProperty((String) properties.get(i), properties.get(i + 1));
+            }
+            message.setStringProperty(ID_PROPERTY, journalId + ":" + Journal.segmentOf(position) + ":"
+                    + Journal.offsetOf(position));
+            if (expiresAt != 0) {
+                message.setJMSExpiration(expiresAt);
+            }
+            return message;
+        } catch (IOException ex) {
+            MessageFormatException jmsex = new MessageFormatException("Unable to decode journal record: "
+                    + ex.getMessage());
+            jmsex.setLinkedException(ex);
+            jmsex.initCause(ex);
+            throw jmsex;
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case 's':
+            return in.readUTF();
+        case 'i':
+            return in.readInt();
+        case 'j':
+            return in.readLong();
+        case 'z':
+            return in.readBoolean();
+        case 'd':
+            return in.readDouble();
+        case 'f':
+            return in.readFloat();
+        case 'h':
+            return in.readShort();
+        case 'b':
+            return in.readByte();
+        default:
+            throw new IOException("Unknown property type " + tag);
+        }
+    }
+
+    /**
+     * The drainer loop: forward a batch, commit it, move the checkpoint, and
+     * sleep when the journal is empty. Sync work is done here too, so the
+     * journal has one background thread in all.
+     */
+    private void drain() {
+        Connection connection = null;
+        Session session = null;
+        MessageProducer producer = null;
+        long position = journal.getReadPosition();
+        long backoff = 0;
+        long nextSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncInterval);
+        while (running) {
+            if (System.nanoTime() - nextSync >= 0) {
+                sync();
+                nextSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncInterval);
+            }
+            if (backoff > 0) {
+                // sends unpark the drainer to end an idle poll early; they must not cut a retry backoff short
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                for (long now = System.nanoTime(); running && now - deadline < 0; now = System.nanoTime()) {
+                    if (now - nextSync >= 0) {
+                        sync();
+                        nextSync = now + TimeUnit.MILLISECONDS.toNanos(syncInterval);
+                    }
+                    LockSupport.parkNanos(this, Math.min(deadline - now, Math.max(0, nextSync - now)));
+                }
+                if (!running) {
+                    break;
+                }
+            }
+            try {
+                if (session == null) {
+                    connection = connectionFactory.createConnection();
+                    session = connection.createSession(true, Session.SESSION_TRANSACTED);
+                    producer = session.createProducer(destination);
+                }
+                int sent = 0;
+                int dropped = 0;
+                int damaged = 0;
+                long now = System.currentTimeMillis();
+                long next = position;
+                Journal.Entry entry;
+                while (sent + dropped + damaged < batchSize && (entry = journal.read(next)) != null) {
+                    next = entry.next;
+                    if (entry.payload == null) {
+                        LOG.error("Skipping damaged record at {}:{} in {}", Journal.segmentOf(entry.position),
+                                Journal.offsetOf(entry.position), journal.getDirectory());
+                        damaged++;
+                        continue;
+                    }
+                    Message message;
+                    try {
+                        message = decode(session, entry.payload, journal.getId(), entry.position, now);
+                    } catch (MessageFormatException ex) {
+                        LOG.error("Skipping undecodable record at {}:{} in {}", Journal.segmentOf(entry.position),
+                                Journal.offsetOf(entry.position), journal.getDirectory(), ex);
+                        damaged++;
+                        continue;
+                    }
+                    if (message == null) {
+                        dropped++;
+                        continue;
+                    }
+                    long ttl = message.getJMSExpiration() == 0 ? Message.DEFAULT_TIME_TO_LIVE
+                            : Math.max(1, message.getJMSExpiration() - now);
+                    producer.send(message, deliveryMode, priority, ttl);
+                    sent++;
+                }
+                if (next == position) {
+                    backoff = 0;
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(syncInterval, 100)));
+                    continue;
+                }
+                if (sent > 0) {
+                    session.commit();
+                }
+                journal.commit(next);
+                position = next;
+                forwarded.addAndGet(sent);
+                expired.addAndGet(dropped);
+                discarded.addAndGet(damaged);
+                pending.addAndGet(-(sent + dropped + damaged));
+                synchronized (space) {
+                    space.notifyAll();
+                }
+                backoff = 0;
+            } catch (JMSException | IOException | RuntimeException ex) {
+                backoff = backoff == 0 ? retryBackoff : Math.min(maxRetryBackoff, backoff * 2);
+                LOG.warn("Forwarding from {} to {} failed; retrying in {} ms", journal.getDirectory(), destination,
+                        backoff, ex);
+                closeQuietly(connection);
+                connection = null;
+                session = null;
+                producer = null;
+            }
+        }
+        closeQuietly(connection);
+        sync();
+    }
+
+    private void sync() {
+        try {
+            if (syncPolicy != SyncPolicy.NEVER) {
+                journal.force();
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to sync outbox journal in {}", journal.getDirectory(), ex);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (JMSException | RuntimeException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+
+    /**
+     * Exposes its buffer so a record can be appended without copying it.
+     */
+    private static final class Scratch extends ByteArrayOutputStream {
+        Scratch() {
+            super(1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+import javax.jms.Session;
+
+/**
+ * One physical connection owned by a {@link ConnectionPool}, together with
+ * the idle sessions cached on it and the handles currently borrowing it.
+ */
+final class ConnectionHolder implements ExceptionListener {
+    private final ConnectionPool pool;
+    private final QueueConnection connection;
+    private final Endpoint endpoint;
+    private final long createdAt = System.currentTimeMillis();
+    private final Set<PooledConnection> handles = new CopyOnWriteArraySet<>();
+    private final Map<Integer, Deque<SessionHolder>> idleSessions = new HashMap<>();
+    private int sessionCount;
+    private boolean started;
+    private boolean closed;
+    private volatile boolean broken;
+    private volatile boolean retired;
+    private volatile long lastReturned = createdAt;
+
+    ConnectionHolder(ConnectionPool pool, QueueConnection connection, Endpoint endpoint) throws JMSException {
+        this.pool = pool;
+        this.connection = connection;
+        this.endpoint = endpoint;
+        if (endpoint != null) {
+            endpoint.connectionOpened();
+        }
+        try {
+            connection.setExceptionListener(this);
+        } catch (JMSException ex) {
+            closeQuietly();
+            throw ex;
+        }
+    }
+
+    QueueConnection getConnection() {
+        return connection;
+    }
+
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the balancer endpoint this connection is open to, or null if
+     *         the pool is not load balanced
+     */
+    Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    void recordLatency(long nanos) {
+        if (endpoint != null) {
+            endpoint.recordLatency(nanos);
+        }
+    }
+
+    int getBorrowCount() {
+        return handles.size();
+    }
+
+    long getLastReturned() {
+        return lastReturned;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    boolean isExpired(long maxLifetime, long now) {
+        return maxLifetime > 0 && now - createdAt > maxLifetime;
+    }
+
+    /**
+     * A cheap liveness probe: providers reject calls on a connection that has
+     * been closed underneath us.
+     */
+    boolean validate() {
+        try {
+            connection.getClientID();
+            return !broken;
+        } catch (JMSException ex) {
+            broken = true;
+            return false;
+        }
+    }
+
+    PooledConnection borrow() {
+        PooledConnection handle = new PooledConnection(this);
+        handles.add(handle);
+        if (endpoint != null) {
+            endpoint.borrowed();
+        }
+        return handle;
+    }
+
+    void release(PooledConnection handle) {
+        if (handles.remove(handle) && endpoint != null) {
+            endpoint.released();
+        }
+        lastReturned = System.currentTimeMillis();
+        if (retired && handles.isEmpty()) {
+            closeQuietly();
+        }
+    }
+
+    synchronized void start() throws JMSException {
+        if (!started) {
+            connection.start();
+            started = true;
+        }
+    }
+
+    SessionHolder borrowSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        Integer key = transacted ? Session.SESSION_TRANSACTED : acknowledgeMode;
+        long deadline = System.currentTimeMillis() + pool.getBorrowTimeout();
+        int maxSessions = pool.getMaxSessionsPerConnection();
+        List<SessionHolder> discarded = new ArrayList<>();
+        try {
+            synchronized (this) {
+                for (;;) {
+                    if (broken) {
+                        throw new JMSException("Pooled connection has failed");
+                    }
+                    Deque<SessionHolder> idle = idleSessions.get(key);
+                    SessionHolder session = idle == null ? null : idle.pollFirst();
+                    if (session != null) {
+                        return session;
+                    }
+                    if (sessionCount < maxSessions) {
+                        sessionCount++;
+                        break;
+                    }
+                    SessionHolder victim = takeIdleSession();
+                    if (victim != null) {
+                        discarded.add(victim);
+                        continue;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new JMSException("Timed out waiting for a pooled session; "
+                                + maxSessions + " sessions already open on this connection");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new JMSException("Interrupted while waiting for a pooled session");
+                    }
+                }
+            }
+        } finally {
+            for (SessionHolder session : discarded) {
+                session.closeQuietly();
+            }
+        }
+        try {
+            Session session = connection.createSession(transacted, acknowledgeMode);
+            return new SessionHolder(this, session, key, pool.getProducerCacheSize());
+        } catch (JMSException | RuntimeException ex) {
+            synchronized (this) {
+                sessionCount--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    void returnSession(SessionHolder session, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !broken && !retired) {
+                session.touch();
+                idleSessions.computeIfAbsent(session.getKey(), k -> new ArrayDeque<>()).offerFirst(session);
+                notifyAll();
+                return;
+            }
+            sessionCount--;
+            notifyAll();
+        }
+        session.closeQuietly();
+    }
+
+    void evictIdleSessions(long idleTimeout, long now) {
+        List<SessionHolder> discarded = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<SessionHolder> idle : idleSessions.values()) {
+                for (Iterator<SessionHolder> it = idle.iterator(); it.hasNext();) {
+                    SessionHolder session = it.next();
+                    if (now - session.getLastReturned() > idleTimeout) {
+                        it.remove();
+                        discarded.add(session);
+                    }
+                }
+            }
+            sessionCount -= discarded.size();
+            notifyAll();
+        }
+        for (SessionHolder session : discarded) {
+            session.closeQuietly();
+        }
+    }
+
+    /**
+     * Stops handing this connection out. The physical connection is closed
+     * now if nobody is borrowing it, otherwise when the last handle closes.
+     */
+    void retire() {
+        retired = true;
+        List<SessionHolder> discarded = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<SessionHolder> idle : idleSessions.values()) {
+                discarded.addAll(idle);
+                idle.clear();
+            }
+            sessionCount -= discarded.size();
+            notifyAll();
+        }
+        for (SessionHolder session : discarded) {
+            session.closeQuietly();
+        }
+        if (handles.isEmpty()) {
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public void onException(JMSException exception) {
+        broken = true;
+        pool.recordFailure(endpoint);
+        pool.remove(this);
+        for (PooledConnection handle : handles) {
+            handle.fireException(exception);
+        }
+        retire();
+    }
+
+    private SessionHolder takeIdleSession() {
+        for (Deque<SessionHolder> idle : idleSessions.values()) {
+            SessionHolder session = idle.pollLast();
+            if (session != null) {
+                sessionCount--;
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private void closeQuietly() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (endpoint != null) {
+            endpoint.connectionClosed();
+        }
+        try {
+            connection.close();
+        } catch (JMSException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+
+import org.rwmckean.common.jms.JmsScheduler;
+
+/**
+ * A bounded pool of physical connections, each of which caches its sessions
+ * and their producers. Borrowers receive a lightweight connection handle that
+ * shares a physical connection with other borrowers; closing the handle, or
+ * any session created from it, returns the underlying resources to the pool
+ * instead of tearing them down.
+ * <p/>
+ * A borrower is placed on the least used physical connection. A new physical
+ * connection is only opened when every existing one is already in use and
+ * the pool has not yet reached {@link #getMaxConnections()}.
+ * <p/>
+ * Connections are discarded when the provider reports an error through the
+ * connection's exception listener, when they outlive
+ * {@link #getMaxLifetime()}, or when they fail validation on borrow. A
+ * background evictor closes sessions and connections that have sat idle for
+ * longer than {@link #getIdleTimeout()}.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final EndpointConnectionSource source;
+    private final LoadBalancer balancer;
+    private final List<ConnectionHolder> holders = new ArrayList<>();
+    private int pending;
+    private boolean closed;
+    private ScheduledFuture<?> evictionTask;
+
+    private int maxConnections = 8;
+    private int maxSessionsPerConnection = 100;
+    private int producerCacheSize = 32;
+    private long idleTimeout = 60000;
+    private long maxLifetime = 1800000;
+    private long borrowTimeout = 5000;
+    private long evictionInterval = 30000;
+    private boolean validateOnBorrow = true;
+    private volatile boolean sendTimestamps;
+
+    public ConnectionPool(ConnectionSource source) {
+        this.source = endpoint -> source.createConnection();
+        this.balancer = null;
+    }
+
+    /**
+     * Creates a pool that spreads its physical connections over the
+     * balancer's endpoints. Borrowers are steered towards connections on
+     * healthy endpoints, and the evictor retires idle connections on slow
+     * endpoints so they are reopened somewhere faster.
+     */
+    public ConnectionPool(LoadBalancer balancer, EndpointConnectionSource source) {
+        this.source = source;
+        this.balancer = balancer;
+    }
+
+    /**
+     * @return the balancer this pool distributes connections with, or null
+     */
+    public LoadBalancer getLoadBalancer() {
+        return balancer;
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxSessionsPerConnection() {
+        return maxSessionsPerConnection;
+    }
+
+    public synchronized void setMaxSessionsPerConnection(int maxSessionsPerConnection) {
+        if (maxSessionsPerConnection < 1) {
+            throw new IllegalArgumentException("maxSessionsPerConnection must be at least 1");
+        }
+        this.maxSessionsPerConnection = maxSessionsPerConnection;
+    }
+
+    public boolean isSendTimestamps() {
+        return sendTimestamps;
+    }
+
+    /**
+     * @param sendTimestamps true to stamp every message sent through this
+     *                       pool with a high-resolution send time, for
+     *                       consumers to measure end-to-end latency from
+     */
+    public void setSendTimestamps(boolean sendTimestamps) {
+        this.sendTimestamps = sendTimestamps;
+    }
+
+    public synchronized int getProducerCacheSize() {
+        return producerCacheSize;
+    }
+
+    public synchronized void setProducerCacheSize(int producerCacheSize) {
+        this.producerCacheSize = Math.max(0, producerCacheSize);
+    }
+
+    /**
+     * @return milliseconds an unused session or connection is kept before the
+     *         evictor closes it, or 0 to keep them indefinitely
+     */
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     * @return milliseconds after which a physical connection is retired, or 0
+     *         for no limit
+     */
+    public synchronized long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public synchronized void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = Math.max(0, maxLifetime);
+    }
+
+    /**
+     * @return milliseconds a caller waits for a free session slot before
+     *         createSession() fails
+     */
+    public synchronized long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public synchronized void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = Math.max(0, borrowTimeout);
+    }
+
+    public synchronized long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public synchronized void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = Math.max(0, evictionInterval);
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+            evictionTask = null;
+            scheduleEviction();
+        }
+    }
+
+    public synchronized boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public synchronized void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    /**
+     * @return the number of physical connections currently held by the pool
+     */
+    public synchronized int getConnectionCount() {
+        return holders.size();
+    }
+
+    /**
+     * Hands out a connection handle backed by one of the pooled physical
+     * connections, opening a new physical connection if required.
+     */
+    public QueueConnection borrow() throws JMSException {
+        List<ConnectionHolder> discarded = new ArrayList<>();
+        try {
+            ConnectionHolder holder = null;
+            long deadline = System.currentTimeMillis() + getBorrowTimeout();
+            synchronized (this) {
+                for (;;) {
+                    checkOpen();
+                    ConnectionHolder best = null;
+                    double bestLoad = Double.MAX_VALUE;
+                    for (Iterator<ConnectionHolder> it = holders.iterator(); it.hasNext();) {
+                        ConnectionHolder candidate = it.next();
+                        if (!isUsable(candidate)) {
+                            it.remove();
+                            discarded.add(candidate);
+                            continue;
+                        }
+                        double load = load(candidate);
+                        if (best == null || load < bestLoad) {
+                            best = candidate;
+                            bestLoad = load;
+                        }
+                    }
+                    boolean canGrow = holders.size() + pending < maxConnections;
+                    if (best != null && (best.getBorrowCount() == 0 || !canGrow)
+                            && !(canGrow && isMisplaced(best, true))) {
+                        return best.borrow();
+                    }
+                    if (canGrow) {
+                        pending++;
+                        break;
+                    }
+                    // every slot is taken by a connection that is still being opened
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new JMSException("Timed out waiting for a pooled connection");
+                    }
+                    waitQuietly(remaining);
+                }
+            }
+            try {
+                holder = open();
+            } finally {
+                synchronized (this) {
+                    pending--;
+                    if (holder != null) {
+                        if (closed) {
+                            discarded.add(holder);
+                        } else {
+                            holders.add(holder);
+                            scheduleEviction();
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+            checkOpen();
+            return holder.borrow();
+        } finally {
+            for (ConnectionHolder holder : discarded) {
+                holder.retire();
+            }
+        }
+    }
+
+    /**
+     * Opens physical connections until the pool holds at least {@code count}
+     * of them, without handing any out.
+     */
+    public void prefill(int count) throws JMSException {
+        for (;;) {
+            synchronized (this) {
+                checkOpen();
+                if (holders.size() + pending >= Math.min(count, maxConnections)) {
+                    return;
+                }
+                pending++;
+            }
+            ConnectionHolder holder = null;
+            try {
+                holder = open();
+            } finally {
+                synchronized (this) {
+                    pending--;
+                    if (holder != null && !closed) {
+                        holders.add(holder);
+                        scheduleEviction();
+                        holder = null;
+                    }
+                    notifyAll();
+                }
+                if (holder != null) {
+                    holder.retire();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes ownership of a connection opened outside the pool, for example
+     * during warm-up. The connection is closed instead if the pool is full or
+     * has been closed.
+     *
+     * @return true if the connection was added to the pool
+     */
+    public boolean adopt(QueueConnection connection) throws JMSException {
+        return adopt(connection, null);
+    }
+
+    /**
+     * As {@link #adopt(QueueConnection)}, for a connection known to be open
+     * to one of the balancer's endpoints.
+     */
+    public boolean adopt(QueueConnection connection, Endpoint endpoint) throws JMSException {
+        ConnectionHolder holder = new ConnectionHolder(this, connection, endpoint);
+        synchronized (this) {
+            if (!closed && holders.size() + pending < maxConnections) {
+                holders.add(holder);
+                scheduleEviction();
+                notifyAll();
+                return true;
+            }
+        }
+        holder.retire();
+        return false;
+    }
+
+    /**
+     * Closes idle sessions and connections that have exceeded the idle timeout
+     * and retires connections that have exceeded their maximum lifetime. Runs
+     * periodically on the shared {@link JmsScheduler}, but may be called directly.
+     */
+    public void evict() {
+        long now = System.currentTimeMillis();
+        List<ConnectionHolder> discarded = new ArrayList<>();
+        long idle;
+        synchronized (this) {
+            idle = idleTimeout;
+            for (Iterator<ConnectionHolder> it = holders.iterator(); it.hasNext();) {
+                ConnectionHolder holder = it.next();
+                boolean expired = holder.isBroken() || holder.isExpired(maxLifetime, now);
+                boolean unused = holder.getBorrowCount() == 0
+                        && idle > 0 && now - holder.getLastReturned() > idle;
+                if (expired || unused || isMisplaced(holder)) {
+                    it.remove();
+                    discarded.add(holder);
+                }
+            }
+        }
+        for (ConnectionHolder holder : discarded) {
+            holder.retire();
+        }
+        if (idle > 0) {
+            for (ConnectionHolder holder : snapshot()) {
+                holder.evictIdleSessions(idle, now);
+            }
+        }
+    }
+
+    /**
+     * Closes every pooled connection. Handles that are still borrowed keep
+     * their physical connection until they are closed.
+     */
+    @Override
+    public void close() {
+        List<ConnectionHolder> discarded;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            discarded = new ArrayList<>(holders);
+            holders.clear();
+            if (evictionTask != null) {
+                evictionTask.cancel(false);
+                evictionTask = null;
+            }
+            notifyAll();
+        }
+        for (ConnectionHolder holder : discarded) {
+            holder.retire();
+        }
+    }
+
+    synchronized void remove(ConnectionHolder holder) {
+        holders.remove(holder);
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized List<ConnectionHolder> snapshot() {
+        return new ArrayList<>(holders);
+    }
+
+    /**
+     * Opens a physical connection, on the endpoint chosen by the balancer if
+     * there is one, and feeds the connect time into that endpoint's health.
+     */
+    private ConnectionHolder open() throws JMSException {
+        Endpoint endpoint = balancer == null ? null : balancer.select();
+        long begin = System.nanoTime();
+        QueueConnection connection;
+        try {
+            connection = source.createConnection(endpoint);
+        } catch (JMSException | RuntimeException ex) {
+            if (endpoint != null) {
+                balancer.recordFailure(endpoint);
+            }
+            throw ex;
+        }
+        if (endpoint != null) {
+            endpoint.recordConnected(System.nanoTime() - begin);
+        }
+        return new ConnectionHolder(this, connection, endpoint);
+    }
+
+    /**
+     * The load used to pick between existing connections: borrowers on the
+     * connection, inflated for connections on endpoints in poor health.
+     */
+    private double load(ConnectionHolder holder) {
+        Endpoint endpoint = holder.getEndpoint();
+        if (endpoint == null) {
+            return holder.getBorrowCount();
+        }
+        return (holder.getBorrowCount() + 1) / Math.max(balancer.score(endpoint), 0.01);
+    }
+
+    /**
+     * An idle connection on a slow endpoint is closed so that its
+     * replacement is opened wherever the balancer now prefers.
+     */
+    private boolean isMisplaced(ConnectionHolder holder) {
+        return isMisplaced(holder, false);
+    }
+
+    private boolean isMisplaced(ConnectionHolder holder, boolean evenIfBorrowed) {
+        Endpoint endpoint = holder.getEndpoint();
+        return endpoint != null && (evenIfBorrowed || holder.getBorrowCount() == 0)
+                && balancer.isSlow(endpoint) && balancer.hasHealthyAlternative(endpoint);
+    }
+
+    void recordFailure(Endpoint endpoint) {
+        if (endpoint != null) {
+            balancer.recordFailure(endpoint);
+        }
+    }
+
+    private boolean isUsable(ConnectionHolder holder) {
+        if (holder.isBroken() || holder.isExpired(maxLifetime, System.currentTimeMillis())) {
+            return false;
+        }
+        return !validateOnBorrow || holder.validate();
+    }
+
+    private void checkOpen() throws JMSException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection pool has been closed");
+        }
+    }
+
+    private void scheduleEviction() {
+        if (evictionTask != null || evictionInterval <= 0 || closed) {
+            return;
+        }
+        evictionTask = JmsScheduler.scheduleRepeating(this::evict, evictionInterval);
+    }
+
+    private void waitQuietly(long millis) throws JMSException {
+        try {
+            wait(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for a pooled connection");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.rwmckean.common.jms.pool;
+
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+
+/**
+ * Opens a new physical connection on behalf of a {@link ConnectionPool}.
+ * Implementations are expected to carry whatever credentials and factory
+ * settings the pool was created for.
+ */
+@FunctionalInterface
+public interface ConnectionSource {
+
+    QueueConnection createConnection() throws JMSException;
+}
@@ -0,0 +1,362 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.jms.IllegalStateRuntimeException;
+import javax.jms.JMSContext;
+import javax.jms.JMSRuntimeException;
+
+import org.rwmckean.common.jms.JmsScheduler;
+
+/**
+ * A pool of JMS 2.0 contexts for one set of credentials. Each physical
+ * connection is anchored by a root context that is never handed out;
+ * borrowers get a child context created from it with
+ * {@link JMSContext#createContext(int)}, so every context on a root shares
+ * its connection. Closing a borrowed context returns it to the pool, where it
+ * is kept for the next borrower asking for the same session mode.
+ * <p/>
+ * {@link #getMaxContextsPerConnection()} bounds the number of contexts, and
+ * so sessions, opened on any one connection. When every root is full a new
+ * one is opened, up to {@link #getMaxConnections()}, after which borrowers
+ * wait up to {@link #getBorrowTimeout()} for a context to be returned.
+ */
+public class ContextPool implements AutoCloseable {
+    private final EndpointContextSource source;
+    private final LoadBalancer balancer;
+    private final List<RootContext> roots = new ArrayList<>();
+    private int pending;
+    private boolean closed;
+    private ScheduledFuture<?> evictionTask;
+
+    private int maxConnections = 8;
+    private int maxContextsPerConnection = 100;
+    private long idleTimeout = 60000;
+    private long maxLifetime = 1800000;
+    private long borrowTimeout = 5000;
+    private long evictionInterval = 30000;
+
+    public ContextPool(ContextSource source) {
+        this.source = endpoint -> source.createContext();
+        this.balancer = null;
+    }
+
+    /**
+     * Creates a pool that opens its root contexts on the balancer's
+     * endpoints, preferring roots on healthy endpoints when handing out
+     * contexts.
+     */
+    public ContextPool(LoadBalancer balancer, EndpointContextSource source) {
+        this.source = source;
+        this.balancer = balancer;
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxContextsPerConnection() {
+        return maxContextsPerConnection;
+    }
+
+    public synchronized void setMaxContextsPerConnection(int maxContextsPerConnection) {
+        if (maxContextsPerConnection < 1) {
+            throw new IllegalArgumentException("maxContextsPerConnection must be at least 1");
+        }
+        this.maxContextsPerConnection = maxContextsPerConnection;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    public synchronized long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public synchronized void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = Math.max(0, maxLifetime);
+    }
+
+    public synchronized long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public synchronized void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = Math.max(0, borrowTimeout);
+    }
+
+    public synchronized long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public synchronized void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = Math.max(0, evictionInterval);
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+            evictionTask = null;
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * @return the number of physical connections currently held by the pool
+     */
+    public synchronized int getConnectionCount() {
+        return roots.size();
+    }
+
+    /**
+     * Hands out a context with the given session mode, reusing an idle one
+     * where possible.
+     */
+    public JMSContext borrow(int sessionMode) {
+        List<JMSContext> discarded = new ArrayList<>();
+        List<RootContext> retired = new ArrayList<>();
+        RootContext root = null;
+        boolean create = false;
+        try {
+            long deadline = System.currentTimeMillis() + getBorrowTimeout();
+            synchronized (this) {
+                for (;;) {
+                    checkOpen();
+                    long now = System.currentTimeMillis();
+                    RootContext best = null;
+                    for (Iterator<RootContext> it = roots.iterator(); it.hasNext();) {
+                        RootContext candidate = it.next();
+                        if (candidate.isBroken() || candidate.isExpired(maxLifetime, now)) {
+                            it.remove();
+                            discarded.addAll(candidate.retire());
+                            retired.add(candidate);
+                            continue;
+                        }
+                        JMSContext idle = candidate.pollIdle(sessionMode);
+                        if (idle != null) {
+                            return handle(candidate, idle, sessionMode);
+                        }
+                        if (candidate.getContextCount() < maxContextsPerConnection
+                                && (best == null || load(candidate) < load(best))) {
+                            best = candidate;
+                        }
+                    }
+                    if (best != null) {
+                        best.reserve();
+                        root = best;
+                        break;
+                    }
+                    if (roots.size() + pending < maxConnections) {
+                        pending++;
+                        create = true;
+                        break;
+                    }
+                    boolean freed = false;
+                    for (RootContext candidate : roots) {
+                        JMSContext victim = candidate.takeIdle();
+                        if (victim != null) {
+                            discarded.add(victim);
+                            freed = true;
+                            break;
+                        }
+                    }
+                    if (freed) {
+                        continue;
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new JMSRuntimeException("Timed out waiting for a pooled context; "
+                                + maxConnections + " connections with " + maxContextsPerConnection
+                                + " contexts each are in use");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new JMSRuntimeException("Interrupted while waiting for a pooled context");
+                    }
+                }
+            }
+        } finally {
+            closeAll(discarded, retired);
+        }
+        if (create) {
+            root = open();
+        }
+        try {
+            JMSContext child = root.getContext().createContext(sessionMode);
+            synchronized (this) {
+                return handle(root, child, sessionMode);
+            }
+        } catch (RuntimeException ex) {
+            release(root, null, sessionMode, false);
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes idle contexts that have exceeded the idle timeout, and roots
+     * that are broken, expired or have nothing borrowed from them.
+     */
+    public void evict() {
+        List<JMSContext> discarded = new ArrayList<>();
+        List<RootContext> retired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<RootContext> it = roots.iterator(); it.hasNext();) {
+                RootContext root = it.next();
+                if (idleTimeout > 0) {
+                    root.takeIdleOlderThan(idleTimeout, now, discarded);
+                }
+                boolean unused = root.getContextCount() == 0
+                        && idleTimeout > 0 && now - root.getLastReturned() > idleTimeout;
+                if (root.isBroken() || root.isExpired(maxLifetime, now) || unused) {
+                    it.remove();
+                    discarded.addAll(root.retire());
+                    retired.add(root);
+                }
+            }
+            notifyAll();
+        }
+        closeAll(discarded, retired);
+    }
+
+    @Override
+    public void close() {
+        List<JMSContext> discarded = new ArrayList<>();
+        List<RootContext> retired = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (RootContext root : roots) {
+                discarded.addAll(root.retire());
+                retired.add(root);
+            }
+            roots.clear();
+            if (evictionTask != null) {
+                evictionTask.cancel(false);
+                evictionTask = null;
+            }
+            notifyAll();
+        }
+        closeAll(discarded, retired);
+    }
+
+    /**
+     * Takes a borrowed context back. Reusable contexts are parked for the
+     * next borrower; anything else is closed and its slot freed.
+     */
+    void release(RootContext root, JMSContext child, int sessionMode, boolean reusable) {
+        boolean closeRoot;
+        synchronized (this) {
+            if (child != null && reusable && !closed && !root.isBroken() && !root.isRetired()) {
+                root.offerIdle(sessionMode, child);
+                notifyAll();
+                return;
+            }
+            root.unreserve();
+            closeRoot = root.isRetired() && root.getContextCount() == 0;
+            notifyAll();
+        }
+        if (child != null) {
+            RootContext.closeQuietly(child);
+        }
+        if (closeRoot) {
+            root.close();
+        }
+    }
+
+    private PooledJMSContext handle(RootContext root, JMSContext child, int sessionMode) {
+        PooledJMSContext handle = new PooledJMSContext(this, root, child, sessionMode);
+        root.attach(handle);
+        return handle;
+    }
+
+    private double load(RootContext root) {
+        Endpoint endpoint = root.getEndpoint();
+        if (endpoint == null) {
+            return root.getContextCount();
+        }
+        return (root.getContextCount() + 1) / Math.max(balancer.score(endpoint), 0.01);
+    }
+
+    private RootContext open() {
+        RootContext root = null;
+        try {
+            Endpoint endpoint = balancer == null ? null : balancer.select();
+            long begin = System.nanoTime();
+            JMSContext context;
+            try {
+                context = source.createContext(endpoint);
+            } catch (RuntimeException ex) {
+                if (endpoint != null) {
+                    balancer.recordFailure(endpoint);
+                }
+                throw ex;
+            }
+            if (endpoint != null) {
+                endpoint.recordConnected(System.nanoTime() - begin);
+            }
+            root = new RootContext(context, endpoint, balancer);
+        } finally {
+            synchronized (this) {
+                pending--;
+                if (root != null) {
+                    root.reserve();
+                    if (closed) {
+                        root.retire();
+                    } else {
+                        roots.add(root);
+                        scheduleEviction();
+                    }
+                }
+                notifyAll();
+            }
+        }
+        return root;
+    }
+
+    private void closeAll(List<JMSContext> contexts, List<RootContext> retired) {
+        for (JMSContext context : contexts) {
+            RootContext.closeQuietly(context);
+        }
+        List<RootContext> idle = new ArrayList<>();
+        synchronized (this) {
+            for (RootContext root : retired) {
+                if (root.getContextCount() == 0) {
+                    idle.add(root);
+                }
+            }
+        }
+        for (RootContext root : idle) {
+            root.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateRuntimeException("Context pool has been closed");
+        }
+    }
+
+    private void scheduleEviction() {
+        if (evictionTask != null || evictionInterval <= 0 || closed) {
+            return;
+        }
+        evictionTask = JmsScheduler.scheduleRepeating(this::evict, evictionInterval);
+    }
+}
@@ -0,0 +1,13 @@
+package org.rwmckean.common.jms.pool;
+
+import javax.jms.JMSContext;
+
+/**
+ * Opens a new JMSContext, and with it a new physical connection, on behalf
+ * of a {@link ContextPool}.
+ */
+@FunctionalInterface
+public interface ContextSource {
+
+    JMSContext createContext();
+}
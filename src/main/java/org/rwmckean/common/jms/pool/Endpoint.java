@@ -0,0 +1,153 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One queue manager that a {@link LoadBalancer} spreads connections over,
+ * identified by its entry in the MQ connection name list. Besides its
+ * configured weight it tracks the live figures the balancer decides on: the
+ * connections and borrowers currently on it, a moving average of send
+ * latency, and a run of consecutive failures. Connect time is averaged
+ * separately and only reported; a reconnect or a pool growing would
+ * otherwise spike the score and send the balancer's choice flapping.
+ */
+public class Endpoint {
+    private final String name;
+    private final int weight;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long averageLatencyNanos = -1;
+    private volatile long averageConnectNanos = -1;
+    private volatile long suspendedUntil;
+    private volatile long slowSince;
+
+    public Endpoint(String name, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Endpoint weight must be at least 1: " + name);
+        }
+        this.name = name;
+        this.weight = weight;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return the moving average of send latency in nanoseconds, or -1
+     *         before the first send
+     */
+    public long getAverageLatencyNanos() {
+        return averageLatencyNanos;
+    }
+
+    /**
+     * @return the moving average of connect time in nanoseconds, or -1
+     *         before the first connection; not part of the score
+     */
+    public long getAverageConnectNanos() {
+        return averageConnectNanos;
+    }
+
+    public boolean isSuspended(long now) {
+        return now < suspendedUntil;
+    }
+
+    long getSuspendedUntil() {
+        return suspendedUntil;
+    }
+
+    /**
+     * Folds a send latency sample into the moving average. Samples are
+     * weighted 1/8 so a single slow call doesn't swing the average;
+     * concurrent updates may lose a sample, which is harmless for a health
+     * signal.
+     */
+    void recordLatency(long nanos) {
+        averageLatencyNanos = average(averageLatencyNanos, nanos);
+    }
+
+    void clearSlow() {
+        if (slowSince != 0) {
+            slowSince = 0;
+        }
+    }
+
+    /**
+     * Notes that the endpoint scored as slow. Once it has been slow for the
+     * whole cool-down its latency average is forgotten, as the draining
+     * that follows a slow score leaves it no sends to recover on.
+     *
+     * @return true if the average has just been forgotten
+     */
+    boolean slowCooledDown(long now, long cooldownMillis) {
+        long since = slowSince;
+        if (since == 0) {
+            slowSince = now;
+            return false;
+        }
+        if (now - since < cooldownMillis) {
+            return false;
+        }
+        slowSince = 0;
+        averageLatencyNanos = -1;
+        return true;
+    }
+
+    void recordConnected(long nanos) {
+        consecutiveFailures.set(0);
+        suspendedUntil = 0;
+        averageConnectNanos = average(averageConnectNanos, nanos);
+    }
+
+    private static long average(long previous, long sample) {
+        return previous < 0 ? sample : previous + (sample - previous) / 8;
+    }
+
+    void recordFailure(int threshold, long cooldownMillis) {
+        if (consecutiveFailures.incrementAndGet() >= threshold) {
+            suspendedUntil = System.currentTimeMillis() + cooldownMillis;
+        }
+    }
+
+    void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    void borrowed() {
+        inFlight.incrementAndGet();
+    }
+
+    void released() {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[weight=" + weight + ", connections=" + connections + ", inFlight=" + inFlight
+                + ", avgLatencyMicros=" + (averageLatencyNanos < 0 ? "n/a" : String.valueOf(averageLatencyNanos / 1000))
+                + ", avgConnectMicros=" + (averageConnectNanos < 0 ? "n/a" : String.valueOf(averageConnectNanos / 1000))
+                + ", failures=" + consecutiveFailures + "]";
+    }
+}
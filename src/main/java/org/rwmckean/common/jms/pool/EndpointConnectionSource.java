@@ -0,0 +1,14 @@
+package org.rwmckean.common.jms.pool;
+
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+
+/**
+ * Opens a new physical connection to a specific queue manager on behalf of a
+ * load-balanced {@link ConnectionPool}.
+ */
+@FunctionalInterface
+public interface EndpointConnectionSource {
+
+    QueueConnection createConnection(Endpoint endpoint) throws JMSException;
+}
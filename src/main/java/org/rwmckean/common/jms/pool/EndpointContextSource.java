@@ -0,0 +1,13 @@
+package org.rwmckean.common.jms.pool;
+
+import javax.jms.JMSContext;
+
+/**
+ * Opens a new JMSContext to a specific queue manager on behalf of a
+ * load-balanced {@link ContextPool}.
+ */
+@FunctionalInterface
+public interface EndpointContextSource {
+
+    JMSContext createContext(Endpoint endpoint);
+}
@@ -0,0 +1,203 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which queue manager a pool opens its next connection to, and how
+ * healthy each one currently looks.
+ * <p/>
+ * Health is scored on send latency relative to the fastest endpoint: an
+ * endpoint whose average send latency is twice that of the fastest scores
+ * 0.5. Endpoints with
+ * no samples yet score 1. After {@link #getFailureThreshold()} consecutive
+ * failures an endpoint is suspended for {@link #getFailureCooldown()}
+ * milliseconds and only chosen if every endpoint is suspended.
+ * <p/>
+ * An endpoint scoring below {@link #getSlowThreshold()} is drained by the
+ * pool and skipped by {@link Strategy#ROUND_ROBIN}, so it gets no sends to
+ * bring its average down. Once it has been slow for the same cool-down its
+ * average is forgotten and it is tried afresh.
+ */
+public class LoadBalancer {
+
+    public enum Strategy {
+        /** Take the available endpoints in turn, skipping slow ones while others are not. */
+        ROUND_ROBIN,
+        /** Prefer the endpoint with the fewest borrowers, scaled by health. */
+        LEAST_IN_FLIGHT,
+        /** Keep connection counts proportional to weight times health. */
+        WEIGHTED
+    }
+
+    private final List<Endpoint> endpoints;
+    private final Strategy strategy;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private volatile int failureThreshold = 3;
+    private volatile long failureCooldown = 30000;
+    private volatile double slowThreshold = 0.5;
+
+    public LoadBalancer(List<Endpoint> endpoints, Strategy strategy) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.strategy = strategy;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    public long getFailureCooldown() {
+        return failureCooldown;
+    }
+
+    public void setFailureCooldown(long failureCooldown) {
+        this.failureCooldown = Math.max(0, failureCooldown);
+    }
+
+    /**
+     * @return the health score below which an endpoint counts as slow and has
+     *         its idle connections moved elsewhere
+     */
+    public double getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public void setSlowThreshold(double slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+
+    public Endpoint find(String name) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.getName().equals(name)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the endpoint for a new connection.
+     */
+    public Endpoint select() {
+        long now = System.currentTimeMillis();
+        List<Endpoint> available = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isSuspended(now)) {
+                available.add(endpoint);
+            }
+        }
+        if (available.isEmpty()) {
+            // everything is failing; retry whichever comes out of suspension first
+            Endpoint soonest = endpoints.get(0);
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.getSuspendedUntil() < soonest.getSuspendedUntil()) {
+                    soonest = endpoint;
+                }
+            }
+            return soonest;
+        }
+        switch (strategy) {
+            case LEAST_IN_FLIGHT:
+                return min(available, true);
+            case WEIGHTED:
+                return min(available, false);
+            default:
+                List<Endpoint> healthy = new ArrayList<>(available.size());
+                for (Endpoint endpoint : available) {
+                    if (!isSlow(endpoint)) {
+                        healthy.add(endpoint);
+                    }
+                }
+                List<Endpoint> turn = healthy.isEmpty() ? available : healthy;
+                return turn.get(Math.floorMod(cursor.getAndIncrement(), turn.size()));
+        }
+    }
+
+    /**
+     * @return a score in (0, 1]; 1 for the fastest endpoint, or for a slow
+     *         one whose cool-down has just ended, or 0 if the endpoint is
+     *         suspended
+     */
+    public double score(Endpoint endpoint) {
+        long now = System.currentTimeMillis();
+        if (endpoint.isSuspended(now)) {
+            return 0;
+        }
+        long latency = endpoint.getAverageLatencyNanos();
+        if (latency <= 0) {
+            return 1;
+        }
+        long fastest = Long.MAX_VALUE;
+        for (Endpoint other : endpoints) {
+            long otherLatency = other.getAverageLatencyNanos();
+            if (otherLatency > 0 && otherLatency < fastest) {
+                fastest = otherLatency;
+            }
+        }
+        double score = Math.min(1.0, (double) fastest / latency);
+        if (score >= slowThreshold) {
+            endpoint.clearSlow();
+            return score;
+        }
+        return endpoint.slowCooledDown(now, failureCooldown) ? 1 : score;
+    }
+
+    public boolean isSlow(Endpoint endpoint) {
+        return score(endpoint) < slowThreshold;
+    }
+
+    /**
+     * @return true if some endpoint is currently healthy enough to take load
+     *         off a slow one
+     */
+    public boolean hasHealthyAlternative(Endpoint slow) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint != slow && !isSlow(endpoint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void recordFailure(Endpoint endpoint) {
+        endpoint.recordFailure(failureThreshold, failureCooldown);
+    }
+
+    private Endpoint min(List<Endpoint> available, boolean byInFlight) {
+        Endpoint best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Endpoint endpoint : available) {
+            double capacity = Math.max(score(endpoint), 0.01);
+            double load = byInFlight
+                    ? (endpoint.getInFlight() + 1) / capacity
+                    : (endpoint.getConnections() + 1) / (endpoint.getWeight() * capacity);
+            if (load < bestLoad) {
+                best = endpoint;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return strategy + " " + endpoints;
+    }
+}
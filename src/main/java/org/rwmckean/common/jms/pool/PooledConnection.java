@@ -0,0 +1,168 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueSession;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * The connection handle given to a borrower of a {@link ConnectionPool}.
+ * Closing it closes the sessions it created and releases the physical
+ * connection back to the pool. Because the physical connection is shared,
+ * stop() is ignored and start() only ever starts it once.
+ */
+final class PooledConnection implements javax.jms.QueueConnection {
+    private final ConnectionHolder holder;
+    private final Set<PooledSession> sessions = new CopyOnWriteArraySet<>();
+    private volatile ExceptionListener exceptionListener;
+    private volatile boolean closed;
+
+    PooledConnection(ConnectionHolder holder) {
+        this.holder = holder;
+    }
+
+    @Override
+    public QueueSession createQueueSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        checkClosed();
+        PooledSession session = new PooledSession(this, holder.borrowSession(transacted, acknowledgeMode));
+        sessions.add(session);
+        return session;
+    }
+
+    @Override
+    public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return createQueueSession(transacted, acknowledgeMode);
+    }
+
+    @Override
+    public Session createSession(int sessionMode) throws JMSException {
+        return createQueueSession(sessionMode == Session.SESSION_TRANSACTED, sessionMode);
+    }
+
+    @Override
+    public Session createSession() throws JMSException {
+        return createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public String getClientID() throws JMSException {
+        checkClosed();
+        return holder.getConnection().getClientID();
+    }
+
+    @Override
+    public void setClientID(String clientID) throws JMSException {
+        checkClosed();
+        holder.getConnection().setClientID(clientID);
+    }
+
+    @Override
+    public ConnectionMetaData getMetaData() throws JMSException {
+        checkClosed();
+        return holder.getConnection().getMetaData();
+    }
+
+    @Override
+    public ExceptionListener getExceptionListener() throws JMSException {
+        checkClosed();
+        return exceptionListener;
+    }
+
+    @Override
+    public void setExceptionListener(ExceptionListener listener) throws JMSException {
+        checkClosed();
+        this.exceptionListener = listener;
+    }
+
+    @Override
+    public void start() throws JMSException {
+        checkClosed();
+        holder.start();
+    }
+
+    @Override
+    public void stop() throws JMSException {
+        checkClosed();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (PooledSession session : sessions) {
+                session.close();
+            }
+        } finally {
+            sessions.clear();
+            holder.release(this);
+        }
+    }
+
+    @Override
+    public ConnectionConsumer createConnectionConsumer(Queue queue, String messageSelector,
+            ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return holder.getConnection().createConnectionConsumer(queue, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector,
+            ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return holder.getConnection().createConnectionConsumer(destination, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createSharedConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return holder.getConnection().createSharedConnectionConsumer(topic, subscriptionName,
+                messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return holder.getConnection().createDurableConnectionConsumer(topic, subscriptionName,
+                messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createSharedDurableConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return holder.getConnection().createSharedDurableConnectionConsumer(topic, subscriptionName,
+                messageSelector, sessionPool, maxMessages);
+    }
+
+    void sessionClosed(PooledSession session) {
+        sessions.remove(session);
+    }
+
+    void fireException(JMSException exception) {
+        ExceptionListener listener = exceptionListener;
+        if (listener != null) {
+            listener.onException(exception);
+        }
+    }
+
+    private void checkClosed() throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Connection has been closed");
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.rwmckean.common.jms.pool;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.BytesMessage;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateRuntimeException;
+import javax.jms.JMSConsumer;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSProducer;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * The context handle given out by a {@link ContextPool}. Closing it closes
+ * the consumers and browsers it created, rolls back an open transaction and
+ * returns the underlying context to the pool. Because the connection is
+ * shared with other contexts, stop() is ignored.
+ */
+final class PooledJMSContext implements JMSContext {
+    private final ContextPool pool;
+    private final RootContext root;
+    private final JMSContext context;
+    private final int sessionMode;
+    private final List<AutoCloseable> resources = new CopyOnWriteArrayList<>();
+    private volatile ExceptionListener exceptionListener;
+    private volatile boolean closed;
+
+    PooledJMSContext(ContextPool pool, RootContext root, JMSContext context, int sessionMode) {
+        this.pool = pool;
+        this.root = root;
+        this.context = context;
+        this.sessionMode = sessionMode;
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        checkClosed();
+        return pool.borrow(sessionMode);
+    }
+
+    @Override
+    public JMSProducer createProducer() {
+        checkClosed();
+        return context.createProducer();
+    }
+
+    @Override
+    public String getClientID() {
+        checkClosed();
+        return context.getClientID();
+    }
+
+    @Override
+    public void setClientID(String clientID) {
+        checkClosed();
+        context.setClientID(clientID);
+    }
+
+    @Override
+    public ConnectionMetaData getMetaData() {
+        checkClosed();
+        return context.getMetaData();
+    }
+
+    @Override
+    public ExceptionListener getExceptionListener() {
+        checkClosed();
+        return exceptionListener;
+    }
+
+    @Override
+    public void setExceptionListener(ExceptionListener listener) {
+        checkClosed();
+        this.exceptionListener = listener;
+    }
+
+    @Override
+    public void start() {
+        checkClosed();
+        context.start();
+    }
+
+    @Override
+    public void stop() {
+        checkClosed();
+    }
+
+    @Override
+    public void setAutoStart(boolean autoStart) {
+        checkClosed();
+        context.setAutoStart(autoStart);
+    }
+
+    @Override
+    public boolean getAutoStart() {
+        checkClosed();
+        return context.getAutoStart();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean reusable = true;
+        try {
+            for (AutoCloseable resource : resources) {
+                try {
+                    resource.close();
+                } catch (Exception ex) {
+                    reusable = false;
+                }
+            }
+            resources.clear();
+            if (reusable && sessionMode == JMSContext.SESSION_TRANSACTED) {
+                context.rollback();
+            } else if (reusable && sessionMode == JMSContext.CLIENT_ACKNOWLEDGE) {
+                // unacknowledged messages would otherwise be acknowledged,
+                // or redelivered, by the next borrower
+                context.recover();
+            }
+            if (!context.getAutoStart()) {
+                context.setAutoStart(true);
+            }
+        } catch (RuntimeException ex) {
+            reusable = false;
+        } finally {
+            root.detach(this);
+            pool.release(root, context, sessionMode, reusable);
+        }
+    }
+
+    @Override
+    public BytesMessage createBytesMessage() {
+        checkClosed();
+        return context.createBytesMessage();
+    }
+
+    @Override
+    public MapMessage createMapMessage() {
+        checkClosed();
+        return context.createMapMessage();
+    }
+
+    @Override
+    public Message createMessage() {
+        checkClosed();
+        return context.createMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage() {
+        checkClosed();
+        return context.createObjectMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage(Serializable object) {
+        checkClosed();
+        return context.createObjectMessage(object);
+    }
+
+    @Override
+    public StreamMessage createStreamMessage() {
+        checkClosed();
+        return context.createStreamMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage() {
+        checkClosed();
+        return context.createTextMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage(String text) {
+        checkClosed();
+        return context.createTextMessage(text);
+    }
+
+    @Override
+    public boolean getTransacted() {
+        checkClosed();
+        return context.getTransacted();
+    }
+
+    @Override
+    public int getSessionMode() {
+        checkClosed();
+        return context.getSessionMode();
+    }
+
+    @Override
+    public void commit() {
+        checkClosed();
+        context.commit();
+    }
+
+    @Override
+    public void rollback() {
+        checkClosed();
+        context.rollback();
+    }
+
+    @Override
+    public void recover() {
+        checkClosed();
+        context.recover();
+    }
+
+    @Override
+    public JMSConsumer createConsumer(Destination destination) {
+        checkClosed();
+        return track(context.createConsumer(destination));
+    }
+
+    @Override
+    public JMSConsumer createConsumer(Destination destination, String messageSelector) {
+        checkClosed();
+        return track(context.createConsumer(destination, messageSelector));
+    }
+
+    @Override
+    public JMSConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal) {
+        checkClosed();
+        return track(context.createConsumer(destination, messageSelector, noLocal));
+    }
+
+    @Override
+    public Queue createQueue(String queueName) {
+        checkClosed();
+        return context.createQueue(queueName);
+    }
+
+    @Override
+    public Topic createTopic(String topicName) {
+        checkClosed();
+        return context.createTopic(topicName);
+    }
+
+    @Override
+    public JMSConsumer createDurableConsumer(Topic topic, String name) {
+        checkClosed();
+        return track(context.createDurableConsumer(topic, name));
+    }
+
+    @Override
+    public JMSConsumer createDurableConsumer(Topic topic, String name, String messageSelector, boolean noLocal) {
+        checkClosed();
+        return track(context.createDurableConsumer(topic, name, messageSelector, noLocal));
+    }
+
+    @Override
+    public JMSConsumer createSharedDurableConsumer(Topic topic, String name) {
+        checkClosed();
+        return track(context.createSharedDurableConsumer(topic, name));
+    }
+
+    @Override
+    public JMSConsumer createSharedDurableConsumer(Topic topic, String name, String messageSelector) {
+        checkClosed();
+        return track(context.createSharedDurableConsumer(topic, name, messageSelector));
+    }
+
+    @Override
+    public JMSConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName) {
+        checkClosed();
+        return track(context.createSharedConsumer(topic, sharedSubscriptionName));
+    }
+
+    @Override
+    public JMSConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName, String messageSelector) {
+        checkClosed();
+        return track(context.createSharedConsumer(topic, sharedSubscriptionName, messageSelector));
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue) {
+        checkClosed();
+        return track(context.createBrowser(queue));
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) {
+        checkClosed();
+        return track(context.createBrowser(queue, messageSelector));
+    }
+
+    @Override
+    public TemporaryQueue createTemporaryQueue() {
+        checkClosed();
+        return context.createTemporaryQueue();
+    }
+
+    @Override
+    public TemporaryTopic createTemporaryTopic() {
+        checkClosed();
+        return context.createTemporaryTopic();
+    }
+
+    @Override
+    public void unsubscribe(String name) {
+        checkClosed();
+        context.unsubscribe(name);
+    }
+
+    @Override
+    public void acknowledge() {
+        checkClosed();
+        context.acknowledge();
+    }
+
+    void fireException(JMSException exception) {
+        ExceptionListener listener = exceptionListener;
+        if (listener != null) {
+            listener.onException(exception);
+        }
+    }
+
+    private void checkClosed() {
+        if (closed) {
+            throw new IllegalStateRuntimeException("Context has been closed");
+        }
+    }
+
+    private JMSConsumer track(JMSConsumer consumer) {
+        resources.add(consumer);
+        return consumer;
+    }
+
+    private QueueBrowser track(QueueBrowser browser) {
+        resources.add(browser::close);
+        return browser;
+    }
+}
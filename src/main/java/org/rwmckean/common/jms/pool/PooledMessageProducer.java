@@ -0,0 +1,255 @@
+package org.rwmckean.common.jms.pool;
+
+import javax.jms.CompletionListener;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+
+import org.rwmckean.common.jms.latency.SendTimestamps;
+
+/**
+ * The producer handle given out by a {@link PooledSession}. It never owns a
+ * physical producer: every send looks up the cached producer for its
+ * destination and passes this handle's delivery settings explicitly, so
+ * several handles can share one physical producer without seeing each
+ * other's settings.
+ */
+final class PooledMessageProducer implements javax.jms.QueueSender {
+    private final PooledSession session;
+    private final Destination destination;
+    private final MessageProducer uncached;
+    private boolean disableMessageID;
+    private boolean disableMessageTimestamp;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    private long deliveryDelay = Message.DEFAULT_DELIVERY_DELAY;
+    private volatile boolean closed;
+
+    PooledMessageProducer(PooledSession session, Destination destination) throws JMSException {
+        this.session = session;
+        this.destination = destination;
+        SessionHolder holder = session.getHolder();
+        this.uncached = holder.isUncached(destination)
+                ? holder.getSession().createProducer(destination) : null;
+    }
+
+    @Override
+    public void setDisableMessageID(boolean value) throws JMSException {
+        checkClosed();
+        this.disableMessageID = value;
+    }
+
+    @Override
+    public boolean getDisableMessageID() throws JMSException {
+        checkClosed();
+        return disableMessageID;
+    }
+
+    @Override
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        checkClosed();
+        this.disableMessageTimestamp = value;
+    }
+
+    @Override
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        checkClosed();
+        return disableMessageTimestamp;
+    }
+
+    @Override
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        checkClosed();
+        this.deliveryMode = deliveryMode;
+    }
+
+    @Override
+    public int getDeliveryMode() throws JMSException {
+        checkClosed();
+        return deliveryMode;
+    }
+
+    @Override
+    public void setPriority(int defaultPriority) throws JMSException {
+        checkClosed();
+        this.priority = defaultPriority;
+    }
+
+    @Override
+    public int getPriority() throws JMSException {
+        checkClosed();
+        return priority;
+    }
+
+    @Override
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        checkClosed();
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public long getTimeToLive() throws JMSException {
+        checkClosed();
+        return timeToLive;
+    }
+
+    @Override
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        checkClosed();
+        this.deliveryDelay = deliveryDelay;
+    }
+
+    @Override
+    public long getDeliveryDelay() throws JMSException {
+        checkClosed();
+        return deliveryDelay;
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        checkClosed();
+        return destination;
+    }
+
+    @Override
+    public Queue getQueue() throws JMSException {
+        checkClosed();
+        return (Queue) destination;
+    }
+
+    @Override
+    public void close() throws JMSException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (uncached != null) {
+            uncached.close();
+        }
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        send(message, deliveryMode, priority, timeToLive);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        checkBound();
+        MessageProducer producer = target(destination);
+        stamp(message);
+        long begin = System.nanoTime();
+        producer.send(message, deliveryMode, priority, timeToLive);
+        session.getHolder().getConnection().recordLatency(System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        checkUnbound();
+        MessageProducer producer = target(null);
+        stamp(message);
+        long begin = System.nanoTime();
+        producer.send(destination, message, deliveryMode, priority, timeToLive);
+        session.getHolder().getConnection().recordLatency(System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        send(message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        checkBound();
+        MessageProducer producer = target(destination);
+        stamp(message);
+        producer.send(message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener)
+            throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        checkUnbound();
+        MessageProducer producer = target(null);
+        stamp(message);
+        producer.send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    @Override
+    public void send(Queue queue, Message message) throws JMSException {
+        send((Destination) queue, message);
+    }
+
+    @Override
+    public void send(Queue queue, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        send((Destination) queue, message, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Resolves the physical producer for this send and brings the settings
+     * that cannot be passed per send into line with this handle.
+     */
+    private MessageProducer target(Destination destination) throws JMSException {
+        checkClosed();
+        SessionHolder holder = session.getHolder();
+        MessageProducer producer = uncached != null ? uncached : holder.producer(destination);
+        if (producer.getDisableMessageID() != disableMessageID) {
+            producer.setDisableMessageID(disableMessageID);
+        }
+        if (producer.getDisableMessageTimestamp() != disableMessageTimestamp) {
+            producer.setDisableMessageTimestamp(disableMessageTimestamp);
+        }
+        // not every provider supports delivery delay, so leave it alone unless asked
+        if (deliveryDelay != Message.DEFAULT_DELIVERY_DELAY) {
+            holder.markDeliveryDelayUsed();
+        }
+        if (holder.isDeliveryDelayUsed() && producer.getDeliveryDelay() != deliveryDelay) {
+            producer.setDeliveryDelay(deliveryDelay);
+        }
+        return producer;
+    }
+
+    private void stamp(Message message) throws JMSException {
+        if (session.getHolder().getConnection().getPool().isSendTimestamps()) {
+            SendTimestamps.stamp(message);
+        }
+    }
+
+    private void checkBound() {
+        if (destination == null) {
+            throw new UnsupportedOperationException("Producer was created without a destination");
+        }
+    }
+
+    private void checkUnbound() {
+        if (destination != null) {
+            throw new UnsupportedOperationException("Producer was created with a destination");
+        }
+    }
+
+    private void checkClosed() throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Producer has been closed");
+        }
+        session.checkClosed();
+    }
+}
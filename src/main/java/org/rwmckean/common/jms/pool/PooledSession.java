@@ -0,0 +1,345 @@
+package org.rwmckean.common.jms.pool;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * The session handle given out by a {@link PooledConnection}. Producers come
+ * from the cache kept on the underlying {@link SessionHolder}; consumers and
+ * browsers are real and are closed when this handle is closed, after which
+ * the physical session goes back to the pool. A transacted session is rolled
+ * back on close, as the JMS specification requires.
+ */
+final class PooledSession implements javax.jms.QueueSession {
+    private final PooledConnection connection;
+    private final SessionHolder holder;
+    private final Session session;
+    private final List<AutoCloseable> resources = new CopyOnWriteArrayList<>();
+    private volatile boolean reusable = true;
+    private volatile boolean closed;
+
+    PooledSession(PooledConnection connection, SessionHolder holder) {
+        this.connection = connection;
+        this.holder = holder;
+        this.session = holder.getSession();
+    }
+
+    SessionHolder getHolder() {
+        return holder;
+    }
+
+    @Override
+    public BytesMessage createBytesMessage() throws JMSException {
+        checkClosed();
+        return session.createBytesMessage();
+    }
+
+    @Override
+    public MapMessage createMapMessage() throws JMSException {
+        checkClosed();
+        return session.createMapMessage();
+    }
+
+    @Override
+    public Message createMessage() throws JMSException {
+        checkClosed();
+        return session.createMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage() throws JMSException {
+        checkClosed();
+        return session.createObjectMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+        checkClosed();
+        return session.createObjectMessage(object);
+    }
+
+    @Override
+    public StreamMessage createStreamMessage() throws JMSException {
+        checkClosed();
+        return session.createStreamMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage() throws JMSException {
+        checkClosed();
+        return session.createTextMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage(String text) throws JMSException {
+        checkClosed();
+        return session.createTextMessage(text);
+    }
+
+    @Override
+    public boolean getTransacted() throws JMSException {
+        checkClosed();
+        return session.getTransacted();
+    }
+
+    @Override
+    public int getAcknowledgeMode() throws JMSException {
+        checkClosed();
+        return session.getAcknowledgeMode();
+    }
+
+    @Override
+    public void commit() throws JMSException {
+        checkClosed();
+        session.commit();
+    }
+
+    @Override
+    public void rollback() throws JMSException {
+        checkClosed();
+        session.rollback();
+    }
+
+    @Override
+    public void recover() throws JMSException {
+        checkClosed();
+        session.recover();
+    }
+
+    @Override
+    public MessageListener getMessageListener() throws JMSException {
+        checkClosed();
+        return session.getMessageListener();
+    }
+
+    @Override
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        checkClosed();
+        // a session that has had a listener installed is not handed out again
+        reusable = false;
+        session.setMessageListener(listener);
+    }
+
+    @Override
+    public void run() {
+        session.run();
+    }
+
+    @Override
+    public MessageProducer createProducer(Destination destination) throws JMSException {
+        checkClosed();
+        return new PooledMessageProducer(this, destination);
+    }
+
+    @Override
+    public QueueSender createSender(Queue queue) throws JMSException {
+        checkClosed();
+        return new PooledMessageProducer(this, queue);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination) throws JMSException {
+        checkClosed();
+        return track(session.createConsumer(destination));
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+        checkClosed();
+        return track(session.createConsumer(destination, messageSelector));
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal)
+            throws JMSException {
+        checkClosed();
+        return track(session.createConsumer(destination, messageSelector, noLocal));
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName) throws JMSException {
+        checkClosed();
+        return track(session.createSharedConsumer(topic, sharedSubscriptionName));
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName, String messageSelector)
+            throws JMSException {
+        checkClosed();
+        return track(session.createSharedConsumer(topic, sharedSubscriptionName, messageSelector));
+    }
+
+    @Override
+    public QueueReceiver createReceiver(Queue queue) throws JMSException {
+        checkClosed();
+        return track(queueSession().createReceiver(queue));
+    }
+
+    @Override
+    public QueueReceiver createReceiver(Queue queue, String messageSelector) throws JMSException {
+        checkClosed();
+        return track(queueSession().createReceiver(queue, messageSelector));
+    }
+
+    @Override
+    public Queue createQueue(String queueName) throws JMSException {
+        checkClosed();
+        return session.createQueue(queueName);
+    }
+
+    @Override
+    public Topic createTopic(String topicName) throws JMSException {
+        checkClosed();
+        return session.createTopic(topicName);
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+        checkClosed();
+        return track(session.createDurableSubscriber(topic, name));
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector,
+            boolean noLocal) throws JMSException {
+        checkClosed();
+        return track(session.createDurableSubscriber(topic, name, messageSelector, noLocal));
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name) throws JMSException {
+        checkClosed();
+        return track(session.createDurableConsumer(topic, name));
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name, String messageSelector,
+            boolean noLocal) throws JMSException {
+        checkClosed();
+        return track(session.createDurableConsumer(topic, name, messageSelector, noLocal));
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name) throws JMSException {
+        checkClosed();
+        return track(session.createSharedDurableConsumer(topic, name));
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name, String messageSelector)
+            throws JMSException {
+        checkClosed();
+        return track(session.createSharedDurableConsumer(topic, name, messageSelector));
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue) throws JMSException {
+        checkClosed();
+        return track(session.createBrowser(queue));
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
+        checkClosed();
+        return track(session.createBrowser(queue, messageSelector));
+    }
+
+    @Override
+    public TemporaryQueue createTemporaryQueue() throws JMSException {
+        checkClosed();
+        return session.createTemporaryQueue();
+    }
+
+    @Override
+    public TemporaryTopic createTemporaryTopic() throws JMSException {
+        checkClosed();
+        return session.createTemporaryTopic();
+    }
+
+    @Override
+    public void unsubscribe(String name) throws JMSException {
+        checkClosed();
+        session.unsubscribe(name);
+    }
+
+    /**
+     * Closes the consumers and browsers opened through this handle, rolls back
+     * any open transaction, recovers any unacknowledged messages of a client
+     * acknowledged session and returns the physical session to the pool.
+     */
+    @Override
+    public void close() throws JMSException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (AutoCloseable resource : resources) {
+                try {
+                    resource.close();
+                } catch (Exception ex) {
+                    reusable = false;
+                }
+            }
+            resources.clear();
+            if (reusable && session.getTransacted()) {
+                session.rollback();
+            } else if (reusable && session.getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE) {
+                // unacknowledged messages would otherwise be acknowledged,
+                // or redelivered, by the next borrower
+                session.recover();
+            }
+        } catch (JMSException | RuntimeException ex) {
+            reusable = false;
+        } finally {
+            connection.sessionClosed(this);
+            holder.getConnection().returnSession(holder, reusable);
+        }
+    }
+
+    void checkClosed() throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Session has been closed");
+        }
+    }
+
+    private javax.jms.QueueSession queueSession() throws JMSException {
+        if (!(session instanceof javax.jms.QueueSession)) {
+            throw new IllegalStateException("Provider session does not support the point-to-point domain API");
+        }
+        return (javax.jms.QueueSession) session;
+    }
+
+    private <T extends MessageConsumer> T track(T consumer) {
+        resources.add(consumer);
+        return consumer;
+    }
+
+    private QueueBrowser track(QueueBrowser browser) {
+        resources.add(browser::close);
+        return browser;
+    }
+}
@@ -0,0 +1,203 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.jms.ExceptionListener;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+
+/**
+ * The context that owns one physical connection in a {@link ContextPool}.
+ * It is never handed out itself; borrowers get child contexts created from
+ * it with {@link JMSContext#createContext(int)}, which share its connection.
+ * All bookkeeping other than the handle set is guarded by the pool's lock.
+ */
+final class RootContext implements ExceptionListener {
+    private final JMSContext context;
+    private final Endpoint endpoint;
+    private final LoadBalancer balancer;
+    private final long createdAt = System.currentTimeMillis();
+    private final Map<Integer, Deque<IdleContext>> idleContexts = new HashMap<>();
+    private final Set<PooledJMSContext> handles = new CopyOnWriteArraySet<>();
+    private int contextCount;
+    private long lastReturned = createdAt;
+    private volatile boolean broken;
+    private boolean retired;
+    private boolean closed;
+
+    RootContext(JMSContext context, Endpoint endpoint, LoadBalancer balancer) {
+        this.context = context;
+        this.endpoint = endpoint;
+        this.balancer = balancer;
+        if (endpoint != null) {
+            endpoint.connectionOpened();
+        }
+        try {
+            context.setExceptionListener(this);
+        } catch (JMSRuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    JMSContext getContext() {
+        return context;
+    }
+
+    int getContextCount() {
+        return contextCount;
+    }
+
+    long getLastReturned() {
+        return lastReturned;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    boolean isExpired(long maxLifetime, long now) {
+        return maxLifetime > 0 && now - createdAt > maxLifetime;
+    }
+
+    int getBorrowCount() {
+        return handles.size();
+    }
+
+    void reserve() {
+        contextCount++;
+    }
+
+    void unreserve() {
+        contextCount--;
+    }
+
+    JMSContext pollIdle(int sessionMode) {
+        Deque<IdleContext> idle = idleContexts.get(sessionMode);
+        IdleContext entry = idle == null ? null : idle.pollFirst();
+        return entry == null ? null : entry.context;
+    }
+
+    void offerIdle(int sessionMode, JMSContext child) {
+        lastReturned = System.currentTimeMillis();
+        idleContexts.computeIfAbsent(sessionMode, k -> new ArrayDeque<>())
+                .offerFirst(new IdleContext(child, lastReturned));
+    }
+
+    /**
+     * Gives up the least recently used idle context, of any session mode, so
+     * that its slot can be reused.
+     */
+    JMSContext takeIdle() {
+        for (Deque<IdleContext> idle : idleContexts.values()) {
+            IdleContext entry = idle.pollLast();
+            if (entry != null) {
+                contextCount--;
+                return entry.context;
+            }
+        }
+        return null;
+    }
+
+    void takeIdleOlderThan(long idleTimeout, long now, List<JMSContext> discarded) {
+        for (Deque<IdleContext> idle : idleContexts.values()) {
+            for (Iterator<IdleContext> it = idle.iterator(); it.hasNext();) {
+                IdleContext entry = it.next();
+                if (now - entry.returnedAt > idleTimeout) {
+                    it.remove();
+                    contextCount--;
+                    discarded.add(entry.context);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks this root as retired and hands back its idle contexts for the
+     * caller to close outside the pool's lock.
+     */
+    List<JMSContext> retire() {
+        retired = true;
+        List<JMSContext> discarded = new ArrayList<>();
+        for (Deque<IdleContext> idle : idleContexts.values()) {
+            for (IdleContext entry : idle) {
+                discarded.add(entry.context);
+            }
+            idle.clear();
+        }
+        contextCount -= discarded.size();
+        return discarded;
+    }
+
+    void attach(PooledJMSContext handle) {
+        handles.add(handle);
+        if (endpoint != null) {
+            endpoint.borrowed();
+        }
+    }
+
+    void detach(PooledJMSContext handle) {
+        if (handles.remove(handle) && endpoint != null) {
+            endpoint.released();
+        }
+    }
+
+    @Override
+    public void onException(JMSException exception) {
+        broken = true;
+        if (endpoint != null) {
+            balancer.recordFailure(endpoint);
+        }
+        for (PooledJMSContext handle : handles) {
+            handle.fireException(exception);
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (endpoint != null) {
+            endpoint.connectionClosed();
+        }
+        closeQuietly(context);
+    }
+
+    static void closeQuietly(JMSContext context) {
+        try {
+            context.close();
+        } catch (JMSRuntimeException ex) {
+            // the context is being discarded anyway
+        }
+    }
+
+    private static final class IdleContext {
+        final JMSContext context;
+        final long returnedAt;
+
+        IdleContext(JMSContext context, long returnedAt) {
+            this.context = context;
+            this.returnedAt = returnedAt;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.rwmckean.common.jms.pool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * A physical session cached by a {@link ConnectionHolder}, along with the
+ * producers created on it. Producers are cached per destination in access
+ * order; the least recently used one is closed once the cache is full.
+ */
+final class SessionHolder {
+    private final ConnectionHolder connection;
+    private final Session session;
+    private final Integer key;
+    private final int producerCacheSize;
+    private final Map<Destination, MessageProducer> producers;
+    private final List<MessageProducer> evicted = new ArrayList<>();
+    private MessageProducer anonymousProducer;
+    private boolean deliveryDelayUsed;
+    private volatile long lastReturned = System.currentTimeMillis();
+
+    SessionHolder(ConnectionHolder connection, Session session, Integer key, int producerCacheSize) {
+        this.connection = connection;
+        this.session = session;
+        this.key = key;
+        this.producerCacheSize = producerCacheSize;
+        this.producers = new LinkedHashMap<Destination, MessageProducer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Destination, MessageProducer> eldest) {
+                if (size() > SessionHolder.this.producerCacheSize) {
+                    evicted.add(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    ConnectionHolder getConnection() {
+        return connection;
+    }
+
+    Integer getKey() {
+        return key;
+    }
+
+    long getLastReturned() {
+        return lastReturned;
+    }
+
+    boolean isDeliveryDelayUsed() {
+        return deliveryDelayUsed;
+    }
+
+    void markDeliveryDelayUsed() {
+        deliveryDelayUsed = true;
+    }
+
+    void touch() {
+        lastReturned = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the cached producer for the destination, creating it on first
+     * use. A null destination yields the session's anonymous producer.
+     */
+    MessageProducer producer(Destination destination) throws JMSException {
+        if (destination == null) {
+            if (anonymousProducer == null) {
+                anonymousProducer = session.createProducer(null);
+            }
+            return anonymousProducer;
+        }
+        if (producerCacheSize == 0) {
+            return session.createProducer(destination);
+        }
+        MessageProducer producer = producers.get(destination);
+        if (producer == null) {
+            producer = session.createProducer(destination);
+            producers.put(destination, producer);
+            closeEvicted();
+        }
+        return producer;
+    }
+
+    /**
+     * @return true if producers for this destination are closed by their
+     *         users rather than kept in the cache
+     */
+    boolean isUncached(Destination destination) {
+        return destination != null && producerCacheSize == 0;
+    }
+
+    void closeQuietly() {
+        try {
+            session.close();
+        } catch (JMSException ex) {
+            // the session is being discarded anyway
+        }
+    }
+
+    private void closeEvicted() {
+        for (MessageProducer producer : evicted) {
+            try {
+                producer.close();
+            } catch (JMSException ex) {
+                // the producer is being discarded anyway
+            }
+        }
+        evicted.clear();
+    }
+}
@@ -0,0 +1,212 @@
+package org.rwmckean.common.jms.producer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.IllegalStateRuntimeException;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+
+import org.rwmckean.common.jms.latency.SendTimestamps;
+
+/**
+ * Pipelines sends with the JMS 2.0 asynchronous send, so a producer no longer
+ * waits a full broker round-trip per message. Each send returns a
+ * {@link CompletableFuture} that completes when the provider's
+ * {@link CompletionListener} fires.
+ * <p/>
+ * At most {@link #getWindow()} sends may be outstanding. Once the window is
+ * full further sends block until an earlier one is acknowledged, for up to
+ * {@link #getMaxBlockTime()} milliseconds, so a slow broker pushes back on
+ * the caller instead of messages piling up in memory.
+ * <p/>
+ * Sends are serialized on one JMSContext, as JMS requires; completions
+ * arrive on a provider thread and must not call back into this producer's
+ * context.
+ */
+public class AsyncProducer implements AutoCloseable {
+    private final JMSContext context;
+    private final Destination destination;
+    private final JMSProducer producer;
+    private final Semaphore window;
+    private final int windowSize;
+    private volatile long maxBlockTime = 30000;
+    private volatile boolean sendTimestamps;
+    private volatile boolean closed;
+
+    public AsyncProducer(ConnectionFactory connectionFactory, Destination destination, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        this.context = connectionFactory.createContext(JMSContext.AUTO_ACKNOWLEDGE);
+        this.destination = destination;
+        this.producer = context.createProducer().setDeliveryMode(DeliveryMode.PERSISTENT);
+        this.window = new Semaphore(window);
+        this.windowSize = window;
+    }
+
+    public int getWindow() {
+        return windowSize;
+    }
+
+    /**
+     * @return the number of sends that have not yet been acknowledged
+     */
+    public int getInFlight() {
+        return windowSize - window.availablePermits();
+    }
+
+    public long getMaxBlockTime() {
+        return maxBlockTime;
+    }
+
+    public void setMaxBlockTime(long maxBlockTime) {
+        this.maxBlockTime = Math.max(0, maxBlockTime);
+    }
+
+    public boolean isSendTimestamps() {
+        return sendTimestamps;
+    }
+
+    /**
+     * @param sendTimestamps true to stamp each message with a
+     *                       high-resolution send time; see
+     *                       {@link SendTimestamps}
+     */
+    public void setSendTimestamps(boolean sendTimestamps) {
+        this.sendTimestamps = sendTimestamps;
+    }
+
+    public synchronized void setDeliveryMode(int deliveryMode) {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    public synchronized void setTimeToLive(long timeToLive) {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    public synchronized void setPriority(int priority) {
+        producer.setPriority(priority);
+    }
+
+    public CompletableFuture<Message> send(String text) {
+        Message message;
+        synchronized (this) {
+            checkOpen();
+            message = context.createTextMessage(text);
+        }
+        return send(message);
+    }
+
+    public CompletableFuture<Message> send(byte[] bytes) {
+        Message message;
+        synchronized (this) {
+            checkOpen();
+            BytesMessage bytesMessage = context.createBytesMessage();
+            try {
+                bytesMessage.writeBytes(bytes);
+            } catch (JMSException ex) {
+                throw new JMSRuntimeException(ex.getMessage(), ex.getErrorCode(), ex);
+            }
+            message = bytesMessage;
+        }
+        return send(message);
+    }
+
+    /**
+     * Starts an asynchronous send, blocking first if the window is full.
+     *
+     * @throws JMSRuntimeException if no window slot frees up within
+     *                             maxBlockTime
+     */
+    public CompletableFuture<Message> send(Message message) {
+        acquire();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        try {
+            synchronized (this) {
+                checkOpen();
+                if (sendTimestamps) {
+                    SendTimestamps.stamp(message);
+                }
+                producer.setAsync(new CompletionListener() {
+                    @Override
+                    public void onCompletion(Message message) {
+                        window.release();
+                        future.complete(message);
+                    }
+
+                    @Override
+                    public void onException(Message message, Exception exception) {
+                        window.release();
+                        future.completeExceptionally(exception);
+                    }
+                }).send(destination, message);
+            }
+        } catch (JMSException | RuntimeException ex) {
+            window.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Waits until every outstanding send has been acknowledged.
+     *
+     * @return false if sends were still outstanding after the timeout
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        if (window.tryAcquire(windowSize, timeout, unit)) {
+            window.release(windowSize);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits up to maxBlockTime for outstanding sends, then closes the
+     * context. JMS itself also blocks close until completions have fired.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            flush(maxBlockTime, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closed = true;
+            context.close();
+        }
+    }
+
+    private void acquire() {
+        checkOpen();
+        try {
+            if (!window.tryAcquire(maxBlockTime, TimeUnit.MILLISECONDS)) {
+                throw new JMSRuntimeException("Send window of " + windowSize
+                        + " still full after " + maxBlockTime + " ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JMSRuntimeException("Interrupted while waiting for a send window slot");
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateRuntimeException("Producer has been closed");
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.rwmckean.common.jms.producer;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.JMSException;
+
+/**
+ * Thrown when a batch could not be committed even after retrying. None of
+ * the batch's messages were delivered; they are available from
+ * {@link #getUnsent()} so the caller can park or resend them.
+ */
+public class BatchSendException extends JMSException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<MessageSource> unsent;
+
+    public BatchSendException(String reason, List<MessageSource> unsent, Exception cause) {
+        super(reason);
+        this.unsent = Collections.unmodifiableList(unsent);
+        setLinkedException(cause);
+        initCause(cause);
+    }
+
+    public List<MessageSource> getUnsent() {
+        return unsent;
+    }
+}
@@ -0,0 +1,378 @@
+package org.rwmckean.common.jms.producer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.rwmckean.common.jms.JmsScheduler;
+import org.rwmckean.common.jms.latency.SendTimestamps;
+
+/**
+ * Sends messages on a transacted session and commits them in groups, so a
+ * run of persistent messages costs one broker sync per batch rather than one
+ * per message. A batch is committed once it holds {@link #getBatchSize()}
+ * messages or its first message has waited {@link #getLingerTime()}
+ * milliseconds, whichever comes first.
+ * <p/>
+ * If a send or commit fails the batch is rolled back and resent from its
+ * {@link MessageSource}s, on a fresh session if the old one is unusable, up
+ * to {@link #getMaxRetries()} times. A batch that still cannot be committed
+ * is reported with a {@link BatchSendException}. The linger timer runs on
+ * the shared {@link JmsScheduler}, so it only tries the commit once: if that
+ * fails the batch is kept, and retried or reported by the next send, flush
+ * or close. A timer that finds a call holding the producer tries again
+ * shortly rather than waiting for it.
+ * <p/>
+ * Delivery is at least once. A commit whose outcome is in doubt, such as one
+ * cut off by a dropped connection after the broker has committed, fails like
+ * any other and the batch is sent again, so consumers may see it twice.
+ * Messages carry no identity of their own to tell the copies apart; give
+ * them an application key and drop repeats on the consuming side, for
+ * instance with a {@link org.rwmckean.common.jms.dedupe.DeduplicatingHandler}.
+ * <p/>
+ * Instances are thread safe, but calls are serialized on one session.
+ */
+public class BatchingProducer implements AutoCloseable {
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<MessageSource> batch = new ArrayList<>();
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private ScheduledFuture<?> lingerTask;
+    private long lingerGeneration;
+    private Exception lingerFailure;
+    private boolean closed;
+
+    private int batchSize = 100;
+    private long lingerTime = 50;
+    private int maxRetries = 3;
+    private long retryBackoff = 100;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private boolean sendTimestamps;
+
+    public BatchingProducer(ConnectionFactory connectionFactory, Destination destination) {
+        this.connectionFactory = connectionFactory;
+        this.destination = destination;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the longest time, in milliseconds, a message waits for its batch
+     *         to fill before the batch is committed anyway; 0 disables the
+     *         timer so batches are only committed when full or flushed
+     */
+    public long getLingerTime() {
+        return lingerTime;
+    }
+
+    public void setLingerTime(long lingerTime) {
+        this.lingerTime = Math.max(0, lingerTime);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public long getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    /**
+     * @param retryBackoff milliseconds to wait before the first retry; each
+     *                     further retry waits twice as long as the last
+     */
+    public void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = Math.max(0, retryBackoff);
+    }
+
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public boolean isSendTimestamps() {
+        return sendTimestamps;
+    }
+
+    /**
+     * @param sendTimestamps true to stamp each message with a
+     *                       high-resolution send time; see
+     *                       {@link SendTimestamps}
+     */
+    public void setSendTimestamps(boolean sendTimestamps) {
+        this.sendTimestamps = sendTimestamps;
+    }
+
+    public void send(String text) throws JMSException {
+        send(session -> session.createTextMessage(text));
+    }
+
+    /**
+     * Adds a message to the current batch, committing the batch if this
+     * message fills it.
+     */
+    public void send(MessageSource source) throws JMSException {
+        lock.lock();
+        try {
+            checkUsable();
+            batch.add(source);
+            try {
+                sendOne(source);
+            } catch (JMSException | RuntimeException ex) {
+                retry(ex);
+                return;
+            }
+            if (batch.size() >= batchSize) {
+                commit();
+            } else if (batch.size() == 1) {
+                scheduleLinger();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends every message from the stream, committing in batches as it goes,
+     * and commits whatever is left at the end.
+     */
+    public void sendAll(Stream<? extends MessageSource> sources) throws JMSException {
+        for (Iterator<? extends MessageSource> it = sources.iterator(); it.hasNext();) {
+            send(it.next());
+        }
+        flush();
+    }
+
+    /**
+     * Commits the current batch now, however small.
+     */
+    public void flush() throws JMSException {
+        lock.lock();
+        try {
+            checkUsable();
+            if (!batch.isEmpty()) {
+                commit();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages sent but not yet committed
+     */
+    public int getPending() {
+        lock.lock();
+        try {
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits the current batch and closes the session and connection.
+     */
+    @Override
+    public void close() throws JMSException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                closed = true;
+                cancelLinger();
+                closeSession();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendOne(MessageSource source) throws JMSException {
+        if (session == null) {
+            openSession();
+        }
+        Message message = source.create(session);
+        if (sendTimestamps) {
+            SendTimestamps.stamp(message);
+        }
+        producer.send(message, deliveryMode, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+    }
+
+    private void commit() throws JMSException {
+        cancelLinger();
+        try {
+            session.commit();
+            batch.clear();
+        } catch (JMSException | RuntimeException ex) {
+            retry(ex);
+        }
+    }
+
+    /**
+     * Rolls the batch back and resends it, reopening the session when the
+     * rollback itself fails. Gives up after maxRetries attempts, discarding
+     * the batch and reporting it to the caller.
+     */
+    private void retry(Exception failure) throws JMSException {
+        cancelLinger();
+        Exception last = failure;
+        long backoff = retryBackoff;
+        for (int attempt = 0; attempt < maxRetries; attempt++) {
+            rollbackOrReset();
+            try {
+                if (backoff > 0) {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                }
+                for (MessageSource source : batch) {
+                    sendOne(source);
+                }
+                session.commit();
+                batch.clear();
+                return;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                last = ex;
+                break;
+            } catch (JMSException | RuntimeException ex) {
+                last = ex;
+            }
+            backoff *= 2;
+        }
+        rollbackOrReset();
+        List<MessageSource> unsent = new ArrayList<>(batch);
+        batch.clear();
+        throw new BatchSendException("Batch of " + unsent.size() + " message(s) could not be committed after "
+                + maxRetries + " retries", unsent, last);
+    }
+
+    private void rollbackOrReset() {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.rollback();
+        } catch (JMSException | RuntimeException ex) {
+            closeSession();
+        }
+    }
+
+    private void openSession() throws JMSException {
+        connection = connectionFactory.createConnection();
+        try {
+            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            producer = session.createProducer(destination);
+        } catch (JMSException | RuntimeException ex) {
+            closeSession();
+            throw ex;
+        }
+    }
+
+    private void closeSession() {
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (JMSException ex) {
+            // the connection is being discarded anyway
+        } finally {
+            connection = null;
+            session = null;
+            producer = null;
+        }
+    }
+
+    private void scheduleLinger() {
+        if (lingerTime > 0) {
+            long generation = ++lingerGeneration;
+            lingerTask = JmsScheduler.schedule(() -> lingerExpired(generation), lingerTime);
+        }
+    }
+
+    private void cancelLinger() {
+        lingerGeneration++;
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+    }
+
+    /**
+     * Commits the batch once, without retrying, sleeping or waiting for the
+     * lock, so the shared scheduler thread is never held up. A stale
+     * generation means the batch it was scheduled for is already gone.
+     */
+    private void lingerExpired(long generation) {
+        if (!lock.tryLock()) {
+            JmsScheduler.schedule(() -> lingerExpired(generation), Math.max(1, lingerTime / 10));
+            return;
+        }
+        try {
+            if (closed || batch.isEmpty() || generation != lingerGeneration) {
+                return;
+            }
+            lingerTask = null;
+            lingerGeneration++;
+            try {
+                session.commit();
+                batch.clear();
+            } catch (JMSException | RuntimeException ex) {
+                lingerFailure = ex;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Also retries a batch whose linger commit failed, on the caller's
+     * thread, throwing if it still cannot be committed.
+     */
+    private void checkUsable() throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Producer has been closed");
+        }
+        Exception failure = lingerFailure;
+        if (failure != null) {
+            lingerFailure = null;
+            retry(failure);
+        }
+    }
+}
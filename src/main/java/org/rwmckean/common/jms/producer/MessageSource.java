@@ -0,0 +1,16 @@
+package org.rwmckean.common.jms.producer;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Builds a message on the session it is about to be sent on. Producers keep
+ * the source rather than the message so that a batch can be rebuilt on a new
+ * session if the original one fails and has to be retried.
+ */
+@FunctionalInterface
+public interface MessageSource {
+
+    Message create(Session session) throws JMSException;
+}
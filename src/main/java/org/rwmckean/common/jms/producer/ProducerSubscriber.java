@@ -0,0 +1,190 @@
+package org.rwmckean.common.jms.producer;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.jms.Message;
+
+/**
+ * A {@link Flow.Subscriber} that sends each item through an
+ * {@link AsyncProducer}, or any send that completes a future on the broker's
+ * acknowledgement, asking upstream for one more item each time the
+ * broker acknowledges a send. Demand starts at the send window and
+ * tracks the broker's acknowledgement rate from there, so a slow broker
+ * slows the pipeline instead of items queueing in memory.
+ * <p/>
+ * Acknowledgements arrive on a provider thread, which must not send, so
+ * the subscriber gathers them and requests more on an executor; a burst of
+ * acknowledgements becomes one request. Requests, and the cancel, are only
+ * made by one drain loop at a time, so they are never concurrent. The first
+ * failed send cancels the subscription and fails {@link #getCompletion()};
+ * otherwise it completes once upstream has completed and every send has
+ * been acknowledged.
+ *
+ * @param <T> the type of item sent
+ */
+public class ProducerSubscriber<T> implements Flow.Subscriber<T> {
+    private final Function<? super T, CompletableFuture<Message>> send;
+    private final int window;
+    private final Executor executor;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final AtomicLong credits = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile Flow.Subscription subscription;
+    private volatile boolean upstreamDone;
+    private volatile boolean cancelRequested;
+    private boolean cancelled;
+
+    /**
+     * @param send     starts the send of one item, returning a future
+     *                 completed when the broker acknowledges it
+     * @param window   the number of unacknowledged sends allowed; no more
+     *                 than the producer's own window
+     * @param executor runs the requests for more items, and the cancel
+     */
+    public ProducerSubscriber(Function<? super T, CompletableFuture<Message>> send, int window,
+            Executor executor) {
+        this.send = send;
+        this.window = Math.max(1, window);
+        this.executor = executor;
+    }
+
+    /**
+     * AsyncProducer needs a JMS 2.0 provider, such as IBM MQ 9; the
+     * ActiveMQ 5.17 client implements JMS 1.1 only and cannot create one.
+     * With that client, build the subscriber on a send function of its own,
+     * for example over ActiveMQMessageProducer's send with an AsyncCallback.
+     *
+     * @return a subscriber that sends each string as a text message
+     */
+    public static ProducerSubscriber<String> ofText(AsyncProducer producer) {
+        return new ProducerSubscriber<>(producer::send, producer.getWindow(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Needs a JMS 2.0 provider, as {@link #ofText(AsyncProducer)} does.
+     *
+     * @return a subscriber that sends each array as a bytes message
+     */
+    public static ProducerSubscriber<byte[]> ofBytes(AsyncProducer producer) {
+        return new ProducerSubscriber<>(producer::send, producer.getWindow(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @return a future completed once every item has been sent and
+     *         acknowledged, or failed by the first error
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * @return the number of items the broker has acknowledged
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription");
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        credits.addAndGet(window);
+        signal();
+    }
+
+    @Override
+    public void onNext(T item) {
+        Objects.requireNonNull(item, "item");
+        if (completion.isDone()) {
+            return;
+        }
+        CompletableFuture<Message> future;
+        try {
+            future = send.apply(item);
+        } catch (RuntimeException ex) {
+            fail(ex);
+            return;
+        }
+        outstanding.incrementAndGet();
+        future.whenComplete((message, failure) -> {
+            if (failure != null) {
+                fail(failure);
+            } else {
+                sent.incrementAndGet();
+                credits.incrementAndGet();
+                signal();
+            }
+            if (outstanding.decrementAndGet() == 0 && upstreamDone) {
+                completion.complete(null);
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamDone = true;
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        if (outstanding.get() == 0) {
+            completion.complete(null);
+        }
+    }
+
+    private void fail(Throwable failure) {
+        if (completion.completeExceptionally(failure)) {
+            cancelRequested = true;
+            signal();
+        }
+    }
+
+    /**
+     * Starts a drain on the executor unless one is already running, in
+     * which case that one goes round again.
+     */
+    private void signal() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * The only caller of request and cancel, so they are never called
+     * concurrently, as the Reactive Streams rules require, and never from a
+     * provider's completion thread. Credits gathered while a request is in
+     * progress go out on the next pass.
+     */
+    private void drain() {
+        int missed = 1;
+        do {
+            if (!cancelled) {
+                if (cancelRequested) {
+                    cancelled = true;
+                    subscription.cancel();
+                } else {
+                    long n = credits.getAndSet(0);
+                    if (n > 0 && !completion.isDone() && !upstreamDone) {
+                        subscription.request(n);
+                    }
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
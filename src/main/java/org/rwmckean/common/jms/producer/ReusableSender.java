@@ -0,0 +1,168 @@
+package org.rwmckean.common.jms.producer;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.rwmckean.common.jms.latency.SendTimestamps;
+
+/**
+ * Sends through one producer while reusing a single text message and a
+ * single bytes message, instead of creating a message per send. JMS lets a
+ * client modify a message once send has returned, so each call clears the
+ * body, properties and application headers of the reused message, refills
+ * it and sends it again. {@link #utf8(CharSequence)} also encodes text into
+ * a buffer kept between calls rather than through an intermediate String.
+ * What the provider allocates to hold the body is still up to the provider:
+ * ActiveMQ starts a new output buffer for every bytes message it writes
+ * after clearBody, so there {@link #text(String)} allocates less.
+ * <p/>
+ * A session and its producer belong to one thread, so an instance belongs
+ * to that thread too; create one per thread, next to its session.
+ * <p/>
+ * Reuse relies on the provider having copied or serialized the message by
+ * the time send returns. IBM MQ and ActiveMQ over TCP always do; ActiveMQ
+ * over vm:// only does with its default copyMessageOnSend of true.
+ */
+public class ReusableSender {
+    private final Session session;
+    private final MessageProducer producer;
+    private byte[] encoded = new byte[1024];
+    private TextMessage textMessage;
+    private BytesMessage bytesMessage;
+    private boolean sendTimestamps;
+
+    public ReusableSender(Session session, MessageProducer producer) {
+        this.session = session;
+        this.producer = producer;
+    }
+
+    public boolean isSendTimestamps() {
+        return sendTimestamps;
+    }
+
+    /**
+     * @param sendTimestamps true to stamp each message with a
+     *                       high-resolution send time; see
+     *                       {@link SendTimestamps}
+     */
+    public void setSendTimestamps(boolean sendTimestamps) {
+        this.sendTimestamps = sendTimestamps;
+    }
+
+    /**
+     * @return the reused text message, cleared and holding the text; set
+     *         any properties on it, then pass it to {@link #send(Message)}
+     */
+    public TextMessage text(String text) throws JMSException {
+        if (textMessage == null) {
+            textMessage = session.createTextMessage();
+        } else {
+            clear(textMessage);
+        }
+        textMessage.setText(text);
+        return textMessage;
+    }
+
+    /**
+     * @return the reused bytes message, cleared and holding the bytes
+     */
+    public BytesMessage bytes(byte[] body, int offset, int length) throws JMSException {
+        BytesMessage message = bytesMessage();
+        message.writeBytes(body, offset, length);
+        return message;
+    }
+
+    /**
+     * @return the reused bytes message, cleared and holding the text
+     *         encoded as UTF-8
+     */
+    public BytesMessage utf8(CharSequence text) throws JMSException {
+        BytesMessage message = bytesMessage();
+        message.writeBytes(encoded, 0, encode(text));
+        return message;
+    }
+
+    public void send(Message message) throws JMSException {
+        if (sendTimestamps) {
+            SendTimestamps.stamp(message);
+        }
+        producer.send(message);
+    }
+
+    public void sendText(String text) throws JMSException {
+        send(text(text));
+    }
+
+    public void sendBytes(byte[] body, int offset, int length) throws JMSException {
+        send(bytes(body, offset, length));
+    }
+
+    public void sendUtf8(CharSequence text) throws JMSException {
+        send(utf8(text));
+    }
+
+    private BytesMessage bytesMessage() throws JMSException {
+        if (bytesMessage == null) {
+            bytesMessage = session.createBytesMessage();
+        } else {
+            clear(bytesMessage);
+        }
+        return bytesMessage;
+    }
+
+    /**
+     * Encodes straight from the CharSequence, since a CharsetEncoder would
+     * need a CharBuffer wrapper per call. Unpaired surrogates become '?', as
+     * with String.getBytes. The buffer only grows when the text will not
+     * fit, so steady traffic of similar sizes settles on one buffer.
+     *
+     * @return the encoded length
+     */
+    private int encode(CharSequence text) {
+        int length = text.length();
+        int worstCase = (int) Math.min(Integer.MAX_VALUE - 8, (long) length * 3);
+        if (encoded.length < worstCase) {
+            encoded = new byte[Math.max(worstCase, encoded.length * 2)];
+        }
+        byte[] out = encoded;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xc0 | c >> 6);
+                out[position++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                char low = i + 1 < length ? text.charAt(i + 1) : 0;
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int codePoint = Character.toCodePoint(c, low);
+                    out[position++] = (byte) (0xf0 | codePoint >> 18);
+                    out[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    out[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    out[position++] = (byte) (0x80 | codePoint & 0x3f);
+                    i++;
+                } else {
+                    out[position++] = '?';
+                }
+            } else {
+                out[position++] = (byte) (0xe0 | c >> 12);
+                out[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                out[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return position;
+    }
+
+    private static void clear(Message message) throws JMSException {
+        message.clearBody();
+        message.clearProperties();
+        message.setJMSCorrelationID(null);
+        message.setJMSType(null);
+        message.setJMSReplyTo(null);
+    }
+}
@@ -0,0 +1,486 @@
+package org.rwmckean.common.jms.rpc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.rwmckean.common.jms.producer.MessageSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request/reply over one long-lived reply queue instead of a temporary
+ * queue per request. Each request carries a correlation ID and the reply
+ * queue as JMSReplyTo; one listener thread takes every reply and completes
+ * the request's {@link CompletableFuture} by looking its correlation ID up
+ * in a concurrent map. Timeouts are kept on a {@link TimingWheel}, so
+ * outstanding requests cost one map entry and one small timer node each and
+ * tens of thousands can be in flight at once.
+ * <p/>
+ * The reply queue is a temporary queue created once per client, or
+ * {@link #setReplyQueue a named queue} that no other client reads. Responders
+ * must copy the request's JMSCorrelationID onto the reply, or, with
+ * {@link #setCorrelateOnMessageId} on, copy its JMSMessageID there, as IBM
+ * MQ responders conventionally do. Correlation IDs are kept under 24
+ * characters so they fit in an MQMD CorrelId.
+ * <p/>
+ * Requests are sent on {@link #getSenders()} sessions taken in turn. Each
+ * request expires at the broker when its timeout does, so a backed-up
+ * responder does not work on requests nobody is waiting for. Futures are
+ * completed on the listener or timer thread; chain slow work with the
+ * async variants. If the connection fails it is reopened, with a new
+ * temporary queue, and requests outstanding on the old one time out.
+ */
+public class RequestReplyClient implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestReplyClient.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final Destination requestDestination;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>(65536);
+    private final Map<String, EarlyReply> early = new ConcurrentHashMap<>();
+    private final String prefix = Integer.toHexString(ThreadLocalRandom.current().nextInt() | 0x10000000) + "-";
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger nextSender = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private volatile Link link;
+    private TimingWheel wheel;
+    private Thread listener;
+    private volatile boolean running;
+
+    private Destination replyQueue;
+    private int senders = 4;
+    private long defaultTimeout = 30000;
+    private long tickDuration = 10;
+    private long recoveryInterval = 5000;
+    private boolean correlateOnMessageId;
+    private int deliveryMode = DeliveryMode.NON_PERSISTENT;
+
+    public RequestReplyClient(ConnectionFactory connectionFactory, Destination requestDestination) {
+        this.connectionFactory = connectionFactory;
+        this.requestDestination = requestDestination;
+    }
+
+    public synchronized Destination getReplyQueue() {
+        Link current = link;
+        return current == null ? replyQueue : current.replyQueue;
+    }
+
+    /**
+     * @param replyQueue a queue read only by this client, or null to create
+     *                   a temporary queue when the client starts
+     */
+    public synchronized void setReplyQueue(Destination replyQueue) {
+        this.replyQueue = replyQueue;
+    }
+
+    public synchronized int getSenders() {
+        return senders;
+    }
+
+    /**
+     * @param senders the number of sessions requests are sent on; more let
+     *                more threads send at once
+     */
+    public synchronized void setSenders(int senders) {
+        if (senders < 1) {
+            throw new IllegalArgumentException("senders must be at least 1");
+        }
+        this.senders = senders;
+    }
+
+    public synchronized long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public synchronized void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = Math.max(1, defaultTimeout);
+    }
+
+    public synchronized long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * @param tickDuration the resolution, in milliseconds, of request
+     *                     timeouts; takes effect at the next start
+     */
+    public synchronized void setTickDuration(long tickDuration) {
+        this.tickDuration = Math.max(1, tickDuration);
+    }
+
+    public synchronized long getRecoveryInterval() {
+        return recoveryInterval;
+    }
+
+    public synchronized void setRecoveryInterval(long recoveryInterval) {
+        this.recoveryInterval = Math.max(0, recoveryInterval);
+    }
+
+    public synchronized boolean isCorrelateOnMessageId() {
+        return correlateOnMessageId;
+    }
+
+    /**
+     * @param correlateOnMessageId true if responders put the request's
+     *                             JMSMessageID in the reply's
+     *                             JMSCorrelationID, rather than copying the
+     *                             request's JMSCorrelationID
+     */
+    public synchronized void setCorrelateOnMessageId(boolean correlateOnMessageId) {
+        this.correlateOnMessageId = correlateOnMessageId;
+    }
+
+    public synchronized int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public synchronized void setDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of requests waiting for a reply
+     */
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getTimeoutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the number of replies that matched no outstanding request,
+     *         usually because they arrived after it timed out
+     */
+    public long getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    /**
+     * Opens the connection, reply queue and sender sessions and starts the
+     * listener and timer threads.
+     */
+    public synchronized void start() throws JMSException {
+        if (running) {
+            return;
+        }
+        link = open();
+        running = true;
+        wheel = new TimingWheel(tickDuration, 1024, "jms-rpc-timer");
+        wheel.schedule(this::purgeEarly, 1000);
+        listener = new Thread(this::listen, "jms-rpc-replies");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public CompletableFuture<Message> request(String text) {
+        return request(session -> session.createTextMessage(text));
+    }
+
+    public CompletableFuture<Message> request(MessageSource source) {
+        long timeout;
+        synchronized (this) {
+            timeout = defaultTimeout;
+        }
+        return request(source, timeout);
+    }
+
+    /**
+     * Sends a request and returns at once.
+     *
+     * @param timeout milliseconds to wait for the reply, after which the
+     *                future fails with a TimeoutException
+     */
+    public CompletableFuture<Message> request(MessageSource source, long timeout) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        Link current = link;
+        if (!running || current == null) {
+            future.completeExceptionally(new IllegalStateException("Request/reply client is not running"));
+            return future;
+        }
+        boolean byMessageId = correlateOnMessageId;
+        Pending request = new Pending(future, timeout);
+        String id = byMessageId ? null : prefix + Long.toString(sequence.incrementAndGet(), 36);
+        Sender sender = current.senders[Math.floorMod(nextSender.getAndIncrement(), current.senders.length)];
+        try {
+            synchronized (sender) {
+                Message message = source.create(sender.session);
+                message.setJMSReplyTo(current.replyQueue);
+                if (id != null) {
+                    message.setJMSCorrelationID(id);
+                    register(id, request);
+                }
+                sender.producer.send(message, deliveryMode, Message.DEFAULT_PRIORITY, timeout);
+                if (id == null) {
+                    id = message.getJMSMessageID();
+                    register(id, request);
+                    EarlyReply reply = early.remove(id);
+                    if (reply != null) {
+                        complete(id, reply.message);
+                    }
+                }
+            }
+        } catch (JMSException | RuntimeException ex) {
+            if (id != null) {
+                pending.remove(id);
+                request.cancelTimeout();
+            }
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    @Override
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = listener;
+            listener = null;
+        }
+        try {
+            stopping.join(2000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            wheel.stop();
+            closeQuietly(link);
+            link = null;
+        }
+        IllegalStateException closed = new IllegalStateException("Request/reply client has been closed");
+        for (Iterator<Pending> it = pending.values().iterator(); it.hasNext();) {
+            Pending request = it.next();
+            it.remove();
+            request.future.completeExceptionally(closed);
+        }
+        early.clear();
+    }
+
+    /**
+     * Maps the request before scheduling its timeout, so the timeout cannot
+     * fire before there is anything for it to remove.
+     */
+    private void register(String id, Pending request) {
+        pending.put(id, request);
+        request.timeout = wheel.schedule(() -> expire(id), request.timeoutMillis);
+    }
+
+    private void expire(String id) {
+        Pending request = pending.remove(id);
+        if (request != null) {
+            timedOut.incrementAndGet();
+            request.future.completeExceptionally(new TimeoutException("No reply to request " + id + " within "
+                    + request.timeoutMillis + " ms"));
+        }
+    }
+
+    private boolean complete(String id, Message reply) {
+        Pending request = pending.remove(id);
+        if (request == null) {
+            return false;
+        }
+        request.cancelTimeout();
+        completed.incrementAndGet();
+        request.future.complete(reply);
+        return true;
+    }
+
+    /**
+     * The listener loop. When correlating on message IDs a reply can beat
+     * the sender to registering its request, so unmatched replies are held
+     * briefly for it.
+     */
+    private void listen() {
+        while (running) {
+            Link current = link;
+            try {
+                while (running) {
+                    Message reply = current.consumer.receive(1000);
+                    if (reply == null) {
+                        continue;
+                    }
+                    String id = reply.getJMSCorrelationID();
+                    if (id != null && !complete(id, reply)) {
+                        if (correlateOnMessageId) {
+                            early.put(id, new EarlyReply(reply));
+                            // the sender may have registered and checked early between the miss and the put;
+                            // whichever of us removes the held reply completes the request
+                            if (pending.containsKey(id)) {
+                                EarlyReply held = early.remove(id);
+                                if (held != null) {
+                                    complete(id, held.message);
+                                }
+                            }
+                        } else {
+                            unmatched.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (JMSException | RuntimeException ex) {
+                if (running) {
+                    LOG.warn("Reply listener for {} failed; reconnecting in {} ms", requestDestination,
+                            recoveryInterval, ex);
+                    reconnect(current);
+                }
+            }
+        }
+    }
+
+    private void reconnect(Link failed) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(recoveryInterval);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (this) {
+            if (!running || link != failed) {
+                return;
+            }
+            closeQuietly(failed);
+            try {
+                link = open();
+            } catch (JMSException | RuntimeException ex) {
+                LOG.warn("Unable to reconnect request/reply client for {}", requestDestination, ex);
+            }
+        }
+    }
+
+    /**
+     * Drops early replies nobody claimed within a second, and reschedules
+     * itself.
+     */
+    private void purgeEarly() {
+        long cutoff = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        for (Iterator<EarlyReply> it = early.values().iterator(); it.hasNext();) {
+            if (it.next().receivedAt - cutoff < 0) {
+                it.remove();
+                unmatched.incrementAndGet();
+            }
+        }
+        if (running) {
+            wheel.schedule(this::purgeEarly, 1000);
+        }
+    }
+
+    private Link open() throws JMSException {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Destination replies = replyQueue != null ? replyQueue : session.createTemporaryQueue();
+            MessageConsumer consumer = session.createConsumer(replies);
+            Sender[] pool = new Sender[senders];
+            for (int i = 0; i < pool.length; i++) {
+                Session sending = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                pool[i] = new Sender(sending, sending.createProducer(requestDestination));
+            }
+            connection.start();
+            return new Link(connection, replies, consumer, pool);
+        } catch (JMSException | RuntimeException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+
+    private static void closeQuietly(Link link) {
+        if (link == null) {
+            return;
+        }
+        try {
+            link.connection.close();
+        } catch (JMSException | RuntimeException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+
+    private static final class Pending {
+        final CompletableFuture<Message> future;
+        final long timeoutMillis;
+        volatile TimingWheel.Timeout timeout;
+
+        Pending(CompletableFuture<Message> future, long timeoutMillis) {
+            this.future = future;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * A reply can arrive before the timeout is scheduled; the timeout
+         * then finds nothing to expire.
+         */
+        void cancelTimeout() {
+            TimingWheel.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
+    }
+
+    private static final class EarlyReply {
+        final Message message;
+        final long receivedAt = System.nanoTime();
+
+        EarlyReply(Message message) {
+            this.message = message;
+        }
+    }
+
+    private static final class Sender {
+        final Session session;
+        final MessageProducer producer;
+
+        Sender(Session session, MessageProducer producer) {
+            this.session = session;
+            this.producer = producer;
+        }
+    }
+
+    /**
+     * One connection's worth of reply queue, listener consumer and sender
+     * sessions, replaced as a whole when the connection fails.
+     */
+    private static final class Link {
+        final Connection connection;
+        final Destination replyQueue;
+        final MessageConsumer consumer;
+        final Sender[] senders;
+
+        Link(Connection connection, Destination replyQueue, MessageConsumer consumer, Sender[] senders) {
+            this.connection = connection;
+            this.replyQueue = replyQueue;
+            this.consumer = consumer;
+            this.senders = senders;
+        }
+    }
+}
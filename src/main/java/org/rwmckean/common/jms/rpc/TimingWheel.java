@@ -0,0 +1,192 @@
+package org.rwmckean.common.jms.rpc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel: one thread, a ring of buckets each covering one
+ * tick, and timeouts filed in the bucket their deadline falls in, with a
+ * count of the full turns still to go. Scheduling and cancelling are O(1)
+ * and take no shared lock, so tens of thousands of outstanding timeouts
+ * cost one small object each rather than a task in a
+ * ScheduledExecutorService's heap. A timeout fires within one tick after
+ * its deadline.
+ * <p/>
+ * New timeouts are queued and filed into buckets by the wheel's thread at
+ * the next tick; cancelled ones are unlinked when their bucket comes round.
+ * Tasks run on the wheel's thread and must be quick.
+ */
+final class TimingWheel {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * @param tickMillis    the resolution of the wheel
+     * @param ticksPerWheel the number of buckets, rounded up to a power of
+     *                      two; timeouts longer than one turn wait out extra
+     *                      turns in their bucket
+     */
+    TimingWheel(long tickMillis, int ticksPerWheel, String name) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, ticksPerWheel) - 1) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel's thread; timeouts still pending never fire.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            for (long sleep = deadline - (System.nanoTime() - start); sleep > 0 && running;
+                    sleep = deadline - (System.nanoTime() - start)) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running) {
+                break;
+            }
+            fileAdded();
+            wheel[(int) tick & mask].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Files queued timeouts into their buckets. One already due goes in the
+     * current bucket, so it fires at this tick rather than a turn later.
+     */
+    private void fileAdded() {
+        for (int i = 0; i < 100_000; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+            long due = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) due & mask].add(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task, cancellable until it has run.
+     */
+    static final class Timeout {
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        final Runnable task;
+        final long deadline;
+        volatile int state;
+        long rounds;
+        Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task has already run
+         */
+        boolean cancel() {
+            synchronized (this) {
+                if (state != PENDING) {
+                    return state == CANCELLED;
+                }
+                state = CANCELLED;
+                return true;
+            }
+        }
+
+        boolean expire() {
+            synchronized (this) {
+                if (state != PENDING) {
+                    return false;
+                }
+                state = EXPIRED;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A singly linked list touched only by the wheel's thread.
+     */
+    private static final class Bucket {
+        Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.next = head;
+            head = timeout;
+        }
+
+        void expire(long deadline) {
+            Timeout previous = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                boolean remove = true;
+                if (timeout.state == Timeout.PENDING) {
+                    if (timeout.rounds > 0) {
+                        timeout.rounds--;
+                        remove = false;
+                    } else if (timeout.deadline > deadline) {
+                        remove = false;
+                    } else if (timeout.expire()) {
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException ex) {
+                            LOG.warn("Timeout task failed", ex);
+                        }
+                    }
+                }
+                if (remove) {
+                    if (previous == null) {
+                        head = next;
+                    } else {
+                        previous.next = next;
+                    }
+                    timeout.next = null;
+                } else {
+                    previous = timeout;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.rwmckean.common.jms.throttle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket whose rate is steered by an additive-increase,
+ * multiplicative-decrease controller fed with the latency of the sends and
+ * commits it admits. While latency stays under {@link #getLatencyTarget()}
+ * and callers are using most of the rate, it rises by
+ * {@link #getIncreaseStep()} per adjustment, up to the maximum rate. Once
+ * latency goes over the target it is multiplied by
+ * {@link #getDecreaseFactor()}, down to the minimum rate. A broker that
+ * starts to struggle therefore sees the rate fall off quickly and come back
+ * slowly. After a cut the rate is not cut again until the sends admitted
+ * before it have had time to complete, one measured latency, and a further
+ * interval has been sampled at the new rate; otherwise their late samples
+ * would halve the rate again and again for one spike.
+ * <p/>
+ * The bucket is kept as one theoretical arrival time, the generic cell rate
+ * algorithm, so admitting a send is a single compare-and-set with no lock.
+ * Latency samples go into {@link LongAdder}s. The first caller to notice
+ * that an adjustment interval has passed makes the adjustment, so there is
+ * no timer thread. Up to {@link #getBurst()} sends may go through back to
+ * back after an idle spell.
+ */
+public class AdaptiveRateLimiter implements AdaptiveRateLimiterMBean {
+    private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+    private final AtomicLong nextAdjust = new AtomicLong();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    private final double minRate;
+    private final double maxRate;
+    private volatile double rate;
+    private volatile long intervalNanos;
+    private volatile int burst = 10;
+    private volatile long latencyTarget = 50;
+    private volatile double increaseStep;
+    private volatile double decreaseFactor = 0.5;
+    private volatile long adjustInterval = 100;
+    private volatile double lastLatencyMillis;
+    private volatile long lastAdjust = System.nanoTime();
+    private volatile long decreaseHeldUntil = lastAdjust;
+
+    /**
+     * Starts at the maximum rate and backs off from there.
+     *
+     * @param minRate the rate, in sends per second, never throttled below
+     * @param maxRate the rate never exceeded
+     */
+    public AdaptiveRateLimiter(double minRate, double maxRate) {
+        if (minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("need 0 < minRate <= maxRate");
+        }
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increaseStep = Math.max(minRate, maxRate / 50);
+        setRate(maxRate);
+        nextAdjust.set(lastAdjust + TimeUnit.MILLISECONDS.toNanos(adjustInterval));
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public double getMinRate() {
+        return minRate;
+    }
+
+    @Override
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = Math.max(1, burst);
+    }
+
+    @Override
+    public long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    /**
+     * @param latencyTarget the mean send or commit latency, in milliseconds,
+     *                      above which the rate is cut
+     */
+    public void setLatencyTarget(long latencyTarget) {
+        this.latencyTarget = Math.max(1, latencyTarget);
+    }
+
+    public double getIncreaseStep() {
+        return increaseStep;
+    }
+
+    /**
+     * @param increaseStep the sends per second added each adjustment while
+     *                     latency is under target; a fiftieth of the
+     *                     maximum rate by default
+     */
+    public void setIncreaseStep(double increaseStep) {
+        this.increaseStep = Math.max(0, increaseStep);
+    }
+
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    public void setDecreaseFactor(double decreaseFactor) {
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("decreaseFactor must be between 0 and 1");
+        }
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    public long getAdjustInterval() {
+        return adjustInterval;
+    }
+
+    /**
+     * @param adjustInterval how often, in milliseconds, the rate is
+     *                       reconsidered; each adjustment needs at least one
+     *                       latency sample
+     */
+    public void setAdjustInterval(long adjustInterval) {
+        this.adjustInterval = Math.max(1, adjustInterval);
+    }
+
+    /**
+     * @return the mean latency over the last adjustment interval that had
+     *         samples
+     */
+    @Override
+    public double getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    @Override
+    public long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    /**
+     * @return the number of sends that had to wait for a token
+     */
+    @Override
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return the number of sends refused because no token would be free
+     *         within their wait
+     */
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of times latency over target cut the rate
+     */
+    @Override
+    public long getDecreaseCount() {
+        return decreases.sum();
+    }
+
+    /**
+     * Takes a token without waiting.
+     *
+     * @return false, counted as a rejection, if none is free
+     */
+    public boolean tryAcquire() {
+        return reserve(0) >= 0;
+    }
+
+    /**
+     * Takes a token, waiting for one if the rate has been used up. A send
+     * whose token would not be free within the wait is refused at once
+     * rather than after waiting.
+     *
+     * @param maxWait the longest wait, in milliseconds
+     * @return false, counted as a rejection, if no token is free within the
+     *         wait
+     */
+    public boolean acquire(long maxWait) throws InterruptedException {
+        long wait = reserve(TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWait)));
+        if (wait < 0) {
+            return false;
+        }
+        if (wait > 0) {
+            long deadline = System.nanoTime() + wait;
+            for (long left = wait; left > 0; left = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(this, left);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Feeds the controller one send or commit latency.
+     */
+    public void record(long nanos) {
+        samples.increment();
+        latencyNanos.add(nanos);
+        long now = System.nanoTime();
+        long due = nextAdjust.get();
+        if (now - due >= 0
+                && nextAdjust.compareAndSet(due, now + TimeUnit.MILLISECONDS.toNanos(adjustInterval))) {
+            adjust(now);
+        }
+    }
+
+    /**
+     * @return the nanoseconds until the reserved token is free, or -1 if
+     *         none is free within the wait
+     */
+    private long reserve(long maxWaitNanos) {
+        while (true) {
+            long now = System.nanoTime();
+            long interval = intervalNanos;
+            long tolerance = interval * (burst - 1);
+            long current = arrival.get();
+            long wait = Math.max(0, current - tolerance - now);
+            if (wait > maxWaitNanos) {
+                rejected.increment();
+                return -1;
+            }
+            if (arrival.compareAndSet(current, Math.max(current, now) + interval)) {
+                acquired.increment();
+                admitted.increment();
+                if (wait > 0) {
+                    throttled.increment();
+                }
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * Runs on one caller at a time, the one whose compare-and-set moved the
+     * next adjustment on. That may be a different thread each time, so the
+     * state it carries between adjustments is volatile.
+     */
+    private void adjust(long now) {
+        long count = samples.sumThenReset();
+        long nanos = latencyNanos.sumThenReset();
+        long used = admitted.sumThenReset();
+        double elapsed = (now - lastAdjust) / 1e9;
+        lastAdjust = now;
+        if (count == 0) {
+            return;
+        }
+        double latency = nanos / (count * 1e6);
+        lastLatencyMillis = latency;
+        double current = rate;
+        if (latency > latencyTarget) {
+            if (now - decreaseHeldUntil >= 0) {
+                setRate(Math.max(minRate, current * decreaseFactor));
+                decreases.increment();
+                decreaseHeldUntil = now + (long) (latency * 1e6) + TimeUnit.MILLISECONDS.toNanos(adjustInterval);
+            }
+        } else if (used >= current * elapsed * 0.8) {
+            setRate(Math.min(maxRate, current + increaseStep));
+        }
+    }
+
+    private void setRate(double rate) {
+        this.rate = rate;
+        this.intervalNanos = Math.max(1, (long) (1e9 / rate));
+    }
+}
@@ -0,0 +1,25 @@
+package org.rwmckean.common.jms.throttle;
+
+/**
+ * The state of one rate limiter: the rate it currently allows, the latency
+ * that set it, and how many sends it has let through, delayed and refused.
+ */
+public interface AdaptiveRateLimiterMBean {
+    double getRate();
+
+    double getMinRate();
+
+    double getMaxRate();
+
+    long getLatencyTarget();
+
+    double getLastLatencyMillis();
+
+    long getAcquiredCount();
+
+    long getThrottledCount();
+
+    long getRejectedCount();
+
+    long getDecreaseCount();
+}
@@ -0,0 +1,208 @@
+package org.rwmckean.common.jms.throttle;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.ResourceAllocationException;
+import javax.jms.Session;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.rwmckean.common.jms.latency.LatencyTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throttles the producers passed through {@link #wrap(MessageProducer)}.
+ * Every send takes a token from the {@link AdaptiveRateLimiter} of its
+ * destination, if one has been set, and then from the global limiter
+ * shared by every producer and thread. Its latency is then fed back to
+ * both. Commits made through {@link #commit(Session)} are timed into the
+ * global limiter, since a transaction can span destinations. A send that
+ * finds no token within {@link #getMaxWait()} milliseconds fails with a
+ * {@link ResourceAllocationException}.
+ * <p/>
+ * Once {@link #register()} has been called the limiters are published as
+ * MBeans under {@code org.rwmckean.common.jms:type=Throttle,name=<name>}
+ * and {@code org.rwmckean.common.jms:type=Throttle,name=<name>,destination=<destination>}.
+ * Registering a throttle under a name another throttle already holds
+ * fails rather than taking its MBeans over.
+ */
+public class ProducerThrottle {
+    private static final Logger LOG = LoggerFactory.getLogger(ProducerThrottle.class);
+    private static final String DOMAIN = "org.rwmckean.common.jms";
+
+    private final String name;
+    private final AdaptiveRateLimiter global;
+    private final Map<String, AdaptiveRateLimiter> destinations = new ConcurrentHashMap<>();
+    private volatile long maxWait = 30000;
+    private volatile boolean registered;
+
+    public ProducerThrottle(String name, AdaptiveRateLimiter global) {
+        this.name = name;
+        this.global = global;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AdaptiveRateLimiter getGlobalLimiter() {
+        return global;
+    }
+
+    /**
+     * @return the destination's own limiter, or null if it only has the
+     *         global one
+     */
+    public AdaptiveRateLimiter getDestinationLimiter(String destination) {
+        return destinations.get(destination);
+    }
+
+    /**
+     * Gives a destination, by queue or topic name, a limit of its own on top
+     * of the global one. Bound producers resolve their limiter when wrapped,
+     * so set this first.
+     */
+    public synchronized void setDestinationLimiter(String destination, AdaptiveRateLimiter limiter) {
+        destinations.put(destination, limiter);
+        if (registered) {
+            register(destinationName(destination), limiter);
+        }
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait how long, in milliseconds, a send may wait for a token;
+     *                0 refuses any send over the rate at once
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = Math.max(0, maxWait);
+    }
+
+    public MessageProducer wrap(MessageProducer producer) throws JMSException {
+        return new ThrottledMessageProducer(producer, this);
+    }
+
+    /**
+     * Commits the session, timing the commit into the global limiter.
+     */
+    public void commit(Session session) throws JMSException {
+        long begin = System.nanoTime();
+        session.commit();
+        global.record(System.nanoTime() - begin);
+    }
+
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        ObjectName globalName = globalName();
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(globalName)) {
+            throw new IllegalStateException("A throttle named " + name + " is already registered as " + globalName
+                    + "; give each throttle a unique name");
+        }
+        registered = true;
+        register(globalName, global);
+        for (Map.Entry<String, AdaptiveRateLimiter> entry : destinations.entrySet()) {
+            register(destinationName(entry.getKey()), entry.getValue());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (!registered) {
+            return;
+        }
+        registered = false;
+        unregister(globalName());
+        for (String destination : destinations.keySet()) {
+            unregister(destinationName(destination));
+        }
+    }
+
+    /**
+     * @return the destination's limiter, or null if it has none
+     */
+    AdaptiveRateLimiter limiterFor(Destination destination) {
+        if (destination == null || destinations.isEmpty()) {
+            return null;
+        }
+        String key;
+        try {
+            key = LatencyTracker.nameOf(destination);
+        } catch (JMSException ex) {
+            key = String.valueOf(destination);
+        }
+        return destinations.get(key);
+    }
+
+    /**
+     * Takes a token from the destination's limiter and then the global
+     * one. A destination token taken before the global limiter refuses is
+     * not given back; the destination simply runs a little under its rate.
+     */
+    void admit(AdaptiveRateLimiter local, Destination destination) throws JMSException {
+        long wait = maxWait;
+        try {
+            if ((local != null && !local.acquire(wait)) || !global.acquire(wait)) {
+                throw new ResourceAllocationException("Send to " + destination + " throttled: no token free within "
+                        + wait + " ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ResourceAllocationException("Interrupted while waiting for a send token");
+        }
+    }
+
+    void record(AdaptiveRateLimiter local, long nanos) {
+        if (local != null) {
+            local.record(nanos);
+        }
+        global.record(nanos);
+    }
+
+    private ObjectName globalName() {
+        return objectName("type=Throttle,name=" + ObjectName.quote(name));
+    }
+
+    private ObjectName destinationName(String destination) {
+        return objectName("type=Throttle,name=" + ObjectName.quote(name) + ",destination="
+                + ObjectName.quote(destination));
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void register(ObjectName objectName, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mbean, objectName);
+        } catch (InstanceAlreadyExistsException ex) {
+            LOG.warn("MBean {} is already registered by another owner; leaving it in place", objectName);
+        } catch (JMException ex) {
+            LOG.warn("Could not register MBean {}", objectName, ex);
+        }
+    }
+
+    private static void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            // already gone
+        }
+    }
+}
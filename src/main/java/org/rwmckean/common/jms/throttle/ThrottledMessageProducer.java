@@ -0,0 +1,180 @@
+package org.rwmckean.common.jms.throttle;
+
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+/**
+ * Decorates a producer so each send first takes its tokens from a
+ * {@link ProducerThrottle} and then reports its latency back. A producer
+ * bound to a destination resolves its limiter once. An unbound one looks
+ * it up per send. Asynchronous sends report the time from the send call
+ * to the provider's completion, the broker's acknowledgement being what
+ * the throttle is steering by.
+ */
+final class ThrottledMessageProducer implements MessageProducer {
+    private final MessageProducer producer;
+    private final ProducerThrottle throttle;
+    private final Destination destination;
+    private final AdaptiveRateLimiter bound;
+
+    ThrottledMessageProducer(MessageProducer producer, ProducerThrottle throttle) throws JMSException {
+        this.producer = producer;
+        this.throttle = throttle;
+        this.destination = producer.getDestination();
+        this.bound = throttle.limiterFor(destination);
+    }
+
+    @Override
+    public void setDisableMessageID(boolean value) throws JMSException {
+        producer.setDisableMessageID(value);
+    }
+
+    @Override
+    public boolean getDisableMessageID() throws JMSException {
+        return producer.getDisableMessageID();
+    }
+
+    @Override
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        producer.setDisableMessageTimestamp(value);
+    }
+
+    @Override
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return producer.getDisableMessageTimestamp();
+    }
+
+    @Override
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public int getDeliveryMode() throws JMSException {
+        return producer.getDeliveryMode();
+    }
+
+    @Override
+    public void setPriority(int defaultPriority) throws JMSException {
+        producer.setPriority(defaultPriority);
+    }
+
+    @Override
+    public int getPriority() throws JMSException {
+        return producer.getPriority();
+    }
+
+    @Override
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    @Override
+    public long getTimeToLive() throws JMSException {
+        return producer.getTimeToLive();
+    }
+
+    @Override
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        producer.setDeliveryDelay(deliveryDelay);
+    }
+
+    @Override
+    public long getDeliveryDelay() throws JMSException {
+        return producer.getDeliveryDelay();
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        return producer.getDestination();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        producer.close();
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        throttle.admit(bound, destination);
+        long begin = System.nanoTime();
+        producer.send(message);
+        throttle.record(bound, System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        throttle.admit(bound, destination);
+        long begin = System.nanoTime();
+        producer.send(message, deliveryMode, priority, timeToLive);
+        throttle.record(bound, System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        AdaptiveRateLimiter local = throttle.limiterFor(destination);
+        throttle.admit(local, destination);
+        long begin = System.nanoTime();
+        producer.send(destination, message);
+        throttle.record(local, System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        AdaptiveRateLimiter local = throttle.limiterFor(destination);
+        throttle.admit(local, destination);
+        long begin = System.nanoTime();
+        producer.send(destination, message, deliveryMode, priority, timeToLive);
+        throttle.record(local, System.nanoTime() - begin);
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        throttle.admit(bound, destination);
+        producer.send(message, timed(bound, completionListener));
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        throttle.admit(bound, destination);
+        producer.send(message, deliveryMode, priority, timeToLive, timed(bound, completionListener));
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener)
+            throws JMSException {
+        AdaptiveRateLimiter local = throttle.limiterFor(destination);
+        throttle.admit(local, destination);
+        producer.send(destination, message, timed(local, completionListener));
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        AdaptiveRateLimiter local = throttle.limiterFor(destination);
+        throttle.admit(local, destination);
+        producer.send(destination, message, deliveryMode, priority, timeToLive, timed(local, completionListener));
+    }
+
+    private CompletionListener timed(AdaptiveRateLimiter local, CompletionListener listener) {
+        long begin = System.nanoTime();
+        return new CompletionListener() {
+            @Override
+            public void onCompletion(Message message) {
+                throttle.record(local, System.nanoTime() - begin);
+                listener.onCompletion(message);
+            }
+
+            @Override
+            public void onException(Message message, Exception exception) {
+                throttle.record(local, System.nanoTime() - begin);
+                listener.onException(message, exception);
+            }
+        };
+    }
+}
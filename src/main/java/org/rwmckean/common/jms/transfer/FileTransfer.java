@@ -0,0 +1,179 @@
+package org.rwmckean.common.jms.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.rwmckean.common.jms.producer.MessageSource;
+
+/**
+ * Moves files through {@link BytesMessage}s without ever holding the whole
+ * file in a heap array. On the send side the file is memory-mapped a window
+ * at a time and copied into the message body through one chunk-sized
+ * buffer; on the receive side the body is read back through the same kind
+ * of buffer straight into a {@link FileChannel}. Apart from the body the
+ * provider itself keeps, heap use is one chunk regardless of file size.
+ * <p/>
+ * Each message carries the file's name, length and CRC-32 in properties, and
+ * the receive side checks the length and checksum of what it wrote.
+ * <p/>
+ * Instances are thread safe; each call uses its own chunk buffer.
+ */
+public class FileTransfer {
+    public static final String NAME_PROPERTY = "RwmFileName";
+    public static final String LENGTH_PROPERTY = "RwmFileLength";
+    public static final String CRC_PROPERTY = "RwmFileCrc32";
+
+    private volatile int chunkSize = 64 * 1024;
+    private volatile long mapSize = 64L * 1024 * 1024;
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize the size of the buffer that bytes are copied through
+     *                  between the file and the message body
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getMapSize() {
+        return mapSize;
+    }
+
+    /**
+     * @param mapSize how much of the file is mapped at once; bounds the
+     *                address space, not the heap, used per send
+     */
+    public void setMapSize(long mapSize) {
+        if (mapSize < 1) {
+            throw new IllegalArgumentException("mapSize must be at least 1");
+        }
+        this.mapSize = mapSize;
+    }
+
+    /**
+     * Creates a bytes message holding the file's contents.
+     */
+    public BytesMessage createMessage(Session session, Path file) throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        CRC32 crc = new CRC32();
+        long length;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            length = channel.size();
+            byte[] chunk = new byte[(int) Math.min(chunkSize, Math.max(1, length))];
+            for (long position = 0; position < length; ) {
+                long window = Math.min(mapSize, length - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                while (mapped.hasRemaining()) {
+                    int count = Math.min(chunk.length, mapped.remaining());
+                    mapped.get(chunk, 0, count);
+                    crc.update(chunk, 0, count);
+                    message.writeBytes(chunk, 0, count);
+                }
+                position += window;
+            }
+        } catch (IOException ex) {
+            throw jmsException("Unable to read " + file, ex);
+        }
+        Path name = file.getFileName();
+        if (name != null) {
+            message.setStringProperty(NAME_PROPERTY, name.toString());
+        }
+        message.setLongProperty(LENGTH_PROPERTY, length);
+        message.setLongProperty(CRC_PROPERTY, crc.getValue());
+        return message;
+    }
+
+    /**
+     * @return a source for {@link org.rwmckean.common.jms.producer.BatchingProducer}
+     *         that reads the file afresh each time the message is built
+     */
+    public MessageSource source(Path file) {
+        return session -> createMessage(session, file);
+    }
+
+    /**
+     * Writes the message body to the file, replacing anything already
+     * there.
+     *
+     * @return the number of bytes written
+     * @throws JMSException if the message is not a bytes message, or the
+     *                      body does not match the length or checksum it was
+     *                      sent with
+     */
+    public long writeBody(Message message, Path file) throws JMSException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return writeBody(message, channel);
+        } catch (IOException ex) {
+            throw jmsException("Unable to write " + file, ex);
+        }
+    }
+
+    /**
+     * Writes the message body to the channel at its current position.
+     *
+     * @return the number of bytes written
+     */
+    public long writeBody(Message message, FileChannel channel) throws JMSException {
+        if (!(message instanceof BytesMessage)) {
+            throw new JMSException("Expected a BytesMessage but received " + message.getClass().getName());
+        }
+        BytesMessage bytes = (BytesMessage) message;
+        bytes.reset();
+        long expected = message.propertyExists(LENGTH_PROPERTY) ? message.getLongProperty(LENGTH_PROPERTY) : -1;
+        byte[] chunk = new byte[chunkSize];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        CRC32 crc = new CRC32();
+        long written = 0;
+        try {
+            for (int count = bytes.readBytes(chunk); count > 0; count = bytes.readBytes(chunk)) {
+                crc.update(chunk, 0, count);
+                buffer.clear().limit(count);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                written += count;
+            }
+        } catch (IOException ex) {
+            throw jmsException("Unable to write message body", ex);
+        }
+        if (expected >= 0 && written != expected) {
+            throw new JMSException("Message body was " + written + " bytes but the file was " + expected);
+        }
+        if (message.propertyExists(CRC_PROPERTY) && crc.getValue() != message.getLongProperty(CRC_PROPERTY)) {
+            throw new JMSException("Checksum mismatch in message body for " + message.getJMSMessageID());
+        }
+        return written;
+    }
+
+    /**
+     * @return the file name the message was sent with, or null if it has
+     *         none
+     */
+    public static String fileName(Message message) throws JMSException {
+        return message.getStringProperty(NAME_PROPERTY);
+    }
+
+    private static JMSException jmsException(String reason, Exception cause) {
+        JMSException jmsex = new JMSException(reason);
+        jmsex.setLinkedException(cause);
+        jmsex.initCause(cause);
+        return jmsex;
+    }
+}
@@ -0,0 +1,180 @@
+package org.rwmckean.common.jms.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Splits a payload too large for one message into a group of bytes
+ * messages of at most {@link #getSegmentSize()} bytes each. Segments carry
+ * the standard JMSXGroupID and JMSXGroupSeq properties, numbered from 1, and
+ * the final one is flagged with {@link #LAST_PROPERTY}; a
+ * {@link SegmentReassembler} on the consuming side turns them back into a
+ * stream.
+ * <p/>
+ * Payloads can be sent explicitly as streams, or transparently through a
+ * producer returned by {@link #wrap(Session, MessageProducer)}, which
+ * segments only the messages that need it. Only two segments of the
+ * payload are buffered at once, whatever its size. Send on a transacted session
+ * and commit after the send returns to make the group appear on the queue
+ * all or nothing.
+ * <p/>
+ * ActiveMQ delivers every message of a group to the same consumer. IBM MQ
+ * maps the group properties onto its own message grouping; call
+ * {@link #detectProvider(Connection)} or {@link #setIbmMq(boolean)} so the
+ * final segment also carries {@link #MQ_LAST_PROPERTY} and the queue manager
+ * knows the group is complete. Consumers may still see segments of one group
+ * interleaved with others, which the reassembler allows for.
+ */
+public class MessageSegmenter {
+    public static final String GROUP_PROPERTY = "JMSXGroupID";
+    public static final String SEQUENCE_PROPERTY = "JMSXGroupSeq";
+    public static final String LAST_PROPERTY = "RwmSegmentLast";
+
+    /**
+     * IBM MQ's own last-in-group flag, set on the final segment when the
+     * provider is IBM MQ so the queue manager sees the group as complete.
+     */
+    public static final String MQ_LAST_PROPERTY = "JMS_IBM_Last_Msg_In_Group";
+
+    private volatile int segmentSize = 1024 * 1024;
+    private volatile boolean ibmMq;
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize the largest body, in bytes, of any one segment;
+     *                    keep it well below the channel's MAXMSGL on IBM MQ
+     *                    and the transport's maxFrameSize on ActiveMQ
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be at least 1");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isIbmMq() {
+        return ibmMq;
+    }
+
+    /**
+     * @param ibmMq whether segments go to IBM MQ, and so whether the final
+     *              one is flagged with {@link #MQ_LAST_PROPERTY}
+     */
+    public void setIbmMq(boolean ibmMq) {
+        this.ibmMq = ibmMq;
+    }
+
+    /**
+     * Sets {@link #setIbmMq(boolean)} from the provider name the
+     * connection reports, once, rather than on every send.
+     */
+    public void detectProvider(Connection connection) throws JMSException {
+        String provider = connection.getMetaData().getJMSProviderName();
+        setIbmMq(provider != null && provider.startsWith("IBM"));
+    }
+
+    public String send(Session session, MessageProducer producer, byte[] body) throws JMSException {
+        return send(session, producer, new ByteArrayInputStream(body), Collections.emptyMap());
+    }
+
+    public String send(Session session, MessageProducer producer, InputStream body) throws JMSException {
+        return send(session, producer, body, Collections.emptyMap());
+    }
+
+    /**
+     * Sends the stream's contents as a group of segments on the producer's
+     * destination. The stream is read to the end but not closed.
+     *
+     * @param properties copied onto every segment
+     * @return the group ID the segments were sent under
+     */
+    public String send(Session session, MessageProducer producer, InputStream body, Map<String, ?> properties)
+            throws JMSException {
+        return send(session, body, segment -> {
+            for (Map.Entry<String, ?> property : properties.entrySet()) {
+                segment.setObjectProperty(property.getKey(), property.getValue());
+            }
+        }, (segment, last) -> producer.send(segment));
+    }
+
+    /**
+     * Wraps a producer so that sends of text or bytes messages whose body
+     * is over {@link #getSegmentSize()} go out as a group of segments, and
+     * everything else goes out unchanged; callers keep sending whole
+     * messages.
+     *
+     * @param session the session the producer belongs to, which creates the
+     *                segments
+     */
+    public MessageProducer wrap(Session session, MessageProducer producer) {
+        return new SegmentingMessageProducer(this, session, producer);
+    }
+
+    /**
+     * The send loop behind every entry point. Only two segments are held in
+     * memory at once.
+     *
+     * @param decorator copies headers and properties onto each segment
+     * @param sender    sends one finished segment, to wherever the caller
+     *                  is sending, told whether it is the last
+     */
+    String send(Session session, InputStream body, SegmentDecorator decorator, SegmentSender sender)
+            throws JMSException {
+        String groupId = UUID.randomUUID().toString();
+        byte[] current = new byte[segmentSize];
+        byte[] next = new byte[segmentSize];
+        try {
+            int length = body.readNBytes(current, 0, current.length);
+            int sequence = 1;
+            while (true) {
+                int nextLength = length < current.length ? 0 : body.readNBytes(next, 0, next.length);
+                boolean last = nextLength == 0;
+                BytesMessage segment = session.createBytesMessage();
+                segment.writeBytes(current, 0, length);
+                decorator.decorate(segment);
+                segment.setStringProperty(GROUP_PROPERTY, groupId);
+                segment.setIntProperty(SEQUENCE_PROPERTY, sequence++);
+                if (last) {
+                    segment.setBooleanProperty(LAST_PROPERTY, true);
+                    if (ibmMq) {
+                        segment.setBooleanProperty(MQ_LAST_PROPERTY, true);
+                    }
+                }
+                sender.send(segment, last);
+                if (last) {
+                    return groupId;
+                }
+                byte[] swap = current;
+                current = next;
+                next = swap;
+                length = nextLength;
+            }
+        } catch (IOException ex) {
+            JMSException jmsex = new JMSException("Unable to read payload for group " + groupId);
+            jmsex.setLinkedException(ex);
+            jmsex.initCause(ex);
+            throw jmsex;
+        }
+    }
+
+    interface SegmentDecorator {
+        void decorate(BytesMessage segment) throws JMSException;
+    }
+
+    interface SegmentSender {
+        void send(BytesMessage segment, boolean last) throws JMSException;
+    }
+}
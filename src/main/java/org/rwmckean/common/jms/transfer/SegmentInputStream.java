@@ -0,0 +1,261 @@
+package org.rwmckean.common.jms.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stream a {@link SegmentReassembler} hands to its handler. Segments are
+ * appended by consumer threads and read by the handler's thread. Up to
+ * maxBufferedBytes of them are kept on the heap; beyond that they are
+ * appended to a spill file, so a slow reader costs disk rather than memory
+ * and never holds up the consumers feeding it. Segments that arrive ahead
+ * of a gap wait in the same budget until the gap is filled. A {@link Budget}
+ * shared by every stream of a reassembler caps their heap use as a whole;
+ * once it is spent, segments spill even if their own stream is under its
+ * limit.
+ */
+final class SegmentInputStream extends InputStream {
+    private final long maxBufferedBytes;
+    private final Path spillDirectory;
+    private final Budget budget;
+    private final Deque<Object> ready = new ArrayDeque<>();
+    private final Map<Integer, Object> early = new HashMap<>();
+    private int nextSequence = 1;
+    private int lastSequence = -1;
+    private long bufferedBytes;
+    private int headOffset;
+    private Path spillFile;
+    private FileChannel spill;
+    private long spillLength;
+    private IOException failure;
+    private boolean closed;
+    private volatile long lastActivity = System.nanoTime();
+
+    /**
+     * @param budget the heap shared with other streams, or null if this
+     *               stream's own limit is the only one
+     */
+    SegmentInputStream(long maxBufferedBytes, Budget budget, Path spillDirectory) {
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.budget = budget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds a segment. Duplicates, such as redeliveries, are ignored.
+     */
+    synchronized void offer(int sequence, boolean last, byte[] data) throws IOException {
+        lastActivity = System.nanoTime();
+        if (sequence < nextSequence || early.containsKey(sequence)) {
+            return;
+        }
+        if (last) {
+            lastSequence = sequence;
+        }
+        if (closed || failure != null) {
+            return;
+        }
+        Object stored = store(data);
+        if (sequence != nextSequence) {
+            early.put(sequence, stored);
+            return;
+        }
+        ready.addLast(stored);
+        nextSequence++;
+        for (Object pending = early.remove(nextSequence); pending != null; pending = early.remove(nextSequence)) {
+            ready.addLast(pending);
+            nextSequence++;
+        }
+        notifyAll();
+    }
+
+    private boolean isComplete() {
+        return lastSequence > 0 && nextSequence > lastSequence;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    synchronized void fail(IOException failure) {
+        if (this.failure == null) {
+            this.failure = failure;
+        }
+        release();
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int count = read(one, 0, 1);
+        return count < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (ready.isEmpty()) {
+            checkReadable();
+            if (isComplete()) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the next segment");
+            }
+        }
+        checkReadable();
+        Object head = ready.peekFirst();
+        int count;
+        int length;
+        if (head instanceof byte[]) {
+            byte[] data = (byte[]) head;
+            length = data.length;
+            count = Math.min(len, length - headOffset);
+            System.arraycopy(data, headOffset, b, off, count);
+        } else {
+            Spilled spilled = (Spilled) head;
+            length = spilled.length;
+            count = spill.read(ByteBuffer.wrap(b, off, Math.min(len, length - headOffset)),
+                    spilled.position + headOffset);
+        }
+        headOffset += count;
+        if (headOffset >= length) {
+            ready.removeFirst();
+            headOffset = 0;
+            if (head instanceof byte[]) {
+                bufferedBytes -= length;
+                if (budget != null) {
+                    budget.release(length);
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        Object head = ready.peekFirst();
+        if (head instanceof byte[]) {
+            return ((byte[]) head).length - headOffset;
+        }
+        return head == null ? 0 : ((Spilled) head).length - headOffset;
+    }
+
+    /**
+     * Discards whatever has not been read; segments still to come are
+     * dropped as they arrive.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        release();
+        notifyAll();
+    }
+
+    private void checkReadable() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private Object store(byte[] data) throws IOException {
+        if (bufferedBytes + data.length <= maxBufferedBytes && (budget == null || budget.reserve(data.length))) {
+            bufferedBytes += data.length;
+            return data;
+        }
+        if (spill == null) {
+            spillFile = Files.createTempFile(spillDirectory, "jms-segments-", ".spill");
+            spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        Spilled spilled = new Spilled(spillLength, data.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            spillLength += spill.write(buffer, spilled.position + buffer.position());
+        }
+        return spilled;
+    }
+
+    private void release() {
+        ready.clear();
+        early.clear();
+        if (budget != null) {
+            budget.release(bufferedBytes);
+        }
+        bufferedBytes = 0;
+        if (spill != null) {
+            try {
+                spill.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException ex) {
+                // the spill file is being discarded anyway
+            }
+            spill = null;
+        }
+    }
+
+    /**
+     * Heap bytes held across a set of streams.
+     */
+    static final class Budget {
+        private final AtomicLong used = new AtomicLong();
+        private volatile long limit;
+
+        Budget(long limit) {
+            this.limit = limit;
+        }
+
+        void setLimit(long limit) {
+            this.limit = limit;
+        }
+
+        long getUsed() {
+            return used.get();
+        }
+
+        boolean reserve(long bytes) {
+            long current;
+            do {
+                current = used.get();
+                if (current + bytes > limit) {
+                    return false;
+                }
+            } while (!used.compareAndSet(current, current + bytes));
+            return true;
+        }
+
+        void release(long bytes) {
+            used.addAndGet(-bytes);
+        }
+    }
+
+    private static final class Spilled {
+        final long position;
+        final int length;
+
+        Spilled(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
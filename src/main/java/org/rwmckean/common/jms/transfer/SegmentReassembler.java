@@ -0,0 +1,280 @@
+package org.rwmckean.common.jms.transfer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.rwmckean.common.jms.consumer.MessageHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reassembles groups sent by a {@link MessageSegmenter}. As a
+ * {@link MessageHandler} it can be given to a
+ * {@link org.rwmckean.common.jms.consumer.ConsumerContainer}, or fed from any
+ * receive loop. When the first segment of a group arrives the
+ * {@link StreamHandler} is started on the executor with a stream over the
+ * payload, and later segments are appended to that stream as they come in,
+ * in sequence order whatever order they arrive in. Messages without group
+ * properties are passed to the handler as single-segment payloads.
+ * <p/>
+ * Feeding a segment never waits for the handler: each group buffers up to
+ * {@link #getMaxBufferedBytes()} on the heap, and all groups together up to
+ * {@link #getMaxTotalBufferedBytes()}, and the rest spills to a file in
+ * {@link #getSpillDirectory()}, so neither one slow handler nor many
+ * concurrent groups block the consumers or grow the heap without bound.
+ * <p/>
+ * A segment is acknowledged once it is buffered, so a group that is
+ * interrupted by a crash is lost rather than redelivered. Groups that see
+ * no segment for {@link #getGroupTimeout()} milliseconds are abandoned and
+ * their handler's stream fails.
+ */
+public class SegmentReassembler implements MessageHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentReassembler.class);
+    private static final int FINISHED_GROUPS = 1024;
+
+    private final StreamHandler handler;
+    private final Executor executor;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> finished = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > FINISHED_GROUPS;
+        }
+    };
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private volatile long lastSweep = System.nanoTime();
+
+    private final SegmentInputStream.Budget budget = new SegmentInputStream.Budget(64L * 1024 * 1024);
+    private volatile long maxBufferedBytes = 8L * 1024 * 1024;
+    private volatile long maxTotalBufferedBytes = 64L * 1024 * 1024;
+    private volatile Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private volatile long groupTimeout = 60000;
+
+    /**
+     * @param executor runs the handler, once per payload; it should allow
+     *                 as many concurrent tasks as payloads may be in flight
+     */
+    public SegmentReassembler(StreamHandler handler, Executor executor) {
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    /**
+     * @param maxBufferedBytes how many bytes of each group may wait on the
+     *                         heap before further segments are spilled
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        this.maxBufferedBytes = Math.max(0, maxBufferedBytes);
+    }
+
+    public long getMaxTotalBufferedBytes() {
+        return maxTotalBufferedBytes;
+    }
+
+    /**
+     * @param maxTotalBufferedBytes how many bytes of all groups together may
+     *                              wait on the heap before further segments
+     *                              are spilled, whatever each group's own
+     *                              share
+     */
+    public void setMaxTotalBufferedBytes(long maxTotalBufferedBytes) {
+        this.maxTotalBufferedBytes = Math.max(0, maxTotalBufferedBytes);
+        budget.setLimit(this.maxTotalBufferedBytes);
+    }
+
+    /**
+     * @return the bytes of all groups currently waiting on the heap
+     */
+    public long getBufferedBytes() {
+        return budget.getUsed();
+    }
+
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getGroupTimeout() {
+        return groupTimeout;
+    }
+
+    public void setGroupTimeout(long groupTimeout) {
+        this.groupTimeout = Math.max(1, groupTimeout);
+    }
+
+    /**
+     * @return the number of groups partly received
+     */
+    public int getActiveGroups() {
+        return groups.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    @Override
+    public void handle(Message message) throws JMSException {
+        sweepIfDue();
+        String groupId = message.getStringProperty(MessageSegmenter.GROUP_PROPERTY);
+        if (groupId == null || !message.propertyExists(MessageSegmenter.SEQUENCE_PROPERTY)) {
+            SegmentInputStream stream = new SegmentInputStream(Long.MAX_VALUE, null, spillDirectory);
+            offer(stream, 1, true, body(message));
+            completed.incrementAndGet();
+            dispatch(message, stream);
+            return;
+        }
+        int sequence = message.getIntProperty(MessageSegmenter.SEQUENCE_PROPERTY);
+        boolean last = message.propertyExists(MessageSegmenter.LAST_PROPERTY)
+                && message.getBooleanProperty(MessageSegmenter.LAST_PROPERTY);
+        byte[] data = body(message);
+        Group group;
+        synchronized (finished) {
+            if (finished.containsKey(groupId)) {
+                return;
+            }
+            group = groups.computeIfAbsent(groupId,
+                    id -> new Group(new SegmentInputStream(maxBufferedBytes, budget, spillDirectory)));
+        }
+        boolean start;
+        boolean complete;
+        synchronized (group) {
+            if (group.seen.get(sequence)) {
+                return;
+            }
+            try {
+                group.stream.offer(sequence, last, data);
+            } catch (IOException ex) {
+                LOG.warn("Unable to buffer segment {} of group {}; abandoning the group", sequence, groupId, ex);
+                abandon(groupId, group, ex);
+                return;
+            }
+            group.seen.set(sequence);
+            if (last) {
+                group.last = sequence;
+            }
+            complete = group.last > 0 && group.seen.cardinality() == group.last;
+            start = sequence == 1;
+        }
+        if (complete) {
+            finish(groupId);
+            completed.incrementAndGet();
+        }
+        if (start) {
+            dispatch(message, group.stream);
+        }
+    }
+
+    /**
+     * Abandons every group that has seen no segment for groupTimeout
+     * milliseconds. Runs as segments arrive but may also be called directly.
+     */
+    public void expire() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(groupTimeout);
+        for (Iterator<Map.Entry<String, Group>> it = groups.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Group> entry = it.next();
+            Group group = entry.getValue();
+            if (group.stream.getLastActivity() - cutoff < 0) {
+                LOG.warn("Group {} timed out with {} segment(s) received", entry.getKey(), group.received());
+                abandon(entry.getKey(), group, new IOException("Timed out waiting for the rest of group "
+                        + entry.getKey()));
+            }
+        }
+    }
+
+    private void sweepIfDue() {
+        long now = System.nanoTime();
+        if (now - lastSweep >= TimeUnit.SECONDS.toNanos(1)) {
+            lastSweep = now;
+            expire();
+        }
+    }
+
+    private void abandon(String groupId, Group group, IOException failure) {
+        group.stream.fail(failure);
+        finish(groupId);
+        abandoned.incrementAndGet();
+    }
+
+    private void finish(String groupId) {
+        synchronized (finished) {
+            finished.put(groupId, Boolean.TRUE);
+            groups.remove(groupId);
+        }
+    }
+
+    private void dispatch(Message first, SegmentInputStream stream) {
+        executor.execute(() -> {
+            try (SegmentInputStream body = stream) {
+                handler.handle(first, body);
+            } catch (Exception ex) {
+                LOG.warn("Stream handler failed", ex);
+            }
+        });
+    }
+
+    private void offer(SegmentInputStream stream, int sequence, boolean last, byte[] data) throws JMSException {
+        try {
+            stream.offer(sequence, last, data);
+        } catch (IOException ex) {
+            // nothing is spilled without a byte budget
+            throw new JMSException(ex.getMessage());
+        }
+    }
+
+    private static byte[] body(Message message) throws JMSException {
+        if (message instanceof BytesMessage) {
+            BytesMessage bytes = (BytesMessage) message;
+            bytes.reset();
+            byte[] data = new byte[(int) bytes.getBodyLength()];
+            bytes.readBytes(data);
+            return data;
+        }
+        if (message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            return text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        }
+        throw new JMSException("Cannot stream the body of a " + message.getClass().getName());
+    }
+
+    private static final class Group {
+        final SegmentInputStream stream;
+        final BitSet seen = new BitSet();
+        int last = -1;
+
+        Group(SegmentInputStream stream) {
+            this.stream = stream;
+        }
+
+        synchronized int received() {
+            return seen.cardinality();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.rwmckean.common.jms.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Decorates a producer so that text and bytes messages whose body is over
+ * the {@link MessageSegmenter}'s segment size go out as a group of
+ * segments; every other message is sent unchanged. Each segment carries the
+ * original's JMSCorrelationID, JMSType, JMSReplyTo and application
+ * properties, and is sent with the same delivery mode, priority and time to
+ * live. A text body is segmented as its UTF-8 bytes, which are encoded
+ * whole, so an oversized text message is held twice while it is sent.
+ * <p/>
+ * A bytes message is reset to measure its body and then read a segment at a
+ * time, so it is read-only afterwards, as it would be after any send. An asynchronous send of an
+ * oversized message sends every segment but the last synchronously and
+ * completes the caller's listener, with the original message, once the last
+ * one is acknowledged.
+ */
+final class SegmentingMessageProducer implements MessageProducer {
+    private final MessageSegmenter segmenter;
+    private final Session session;
+    private final MessageProducer producer;
+
+    SegmentingMessageProducer(MessageSegmenter segmenter, Session session, MessageProducer producer) {
+        this.segmenter = segmenter;
+        this.session = session;
+        this.producer = producer;
+    }
+
+    @Override
+    public void setDisableMessageID(boolean value) throws JMSException {
+        producer.setDisableMessageID(value);
+    }
+
+    @Override
+    public boolean getDisableMessageID() throws JMSException {
+        return producer.getDisableMessageID();
+    }
+
+    @Override
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        producer.setDisableMessageTimestamp(value);
+    }
+
+    @Override
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return producer.getDisableMessageTimestamp();
+    }
+
+    @Override
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public int getDeliveryMode() throws JMSException {
+        return producer.getDeliveryMode();
+    }
+
+    @Override
+    public void setPriority(int defaultPriority) throws JMSException {
+        producer.setPriority(defaultPriority);
+    }
+
+    @Override
+    public int getPriority() throws JMSException {
+        return producer.getPriority();
+    }
+
+    @Override
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    @Override
+    public long getTimeToLive() throws JMSException {
+        return producer.getTimeToLive();
+    }
+
+    @Override
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        producer.setDeliveryDelay(deliveryDelay);
+    }
+
+    @Override
+    public long getDeliveryDelay() throws JMSException {
+        return producer.getDeliveryDelay();
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        return producer.getDestination();
+    }
+
+    @Override
+    public void close() throws JMSException {
+        producer.close();
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        send(message, producer.getDeliveryMode(), producer.getPriority(), producer.getTimeToLive());
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        InputStream body = oversizedBody(message);
+        if (body == null) {
+            producer.send(message, deliveryMode, priority, timeToLive);
+            return;
+        }
+        segmenter.send(session, body, segment -> copyHeaders(message, segment),
+                (segment, last) -> producer.send(segment, deliveryMode, priority, timeToLive));
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        send(destination, message, producer.getDeliveryMode(), producer.getPriority(), producer.getTimeToLive());
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
+            throws JMSException {
+        InputStream body = oversizedBody(message);
+        if (body == null) {
+            producer.send(destination, message, deliveryMode, priority, timeToLive);
+            return;
+        }
+        segmenter.send(session, body, segment -> copyHeaders(message, segment),
+                (segment, last) -> producer.send(destination, segment, deliveryMode, priority, timeToLive));
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        send(message, producer.getDeliveryMode(), producer.getPriority(), producer.getTimeToLive(),
+                completionListener);
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        InputStream body = oversizedBody(message);
+        if (body == null) {
+            producer.send(message, deliveryMode, priority, timeToLive, completionListener);
+            return;
+        }
+        segmenter.send(session, body, segment -> copyHeaders(message, segment), (segment, last) -> {
+            if (last) {
+                producer.send(segment, deliveryMode, priority, timeToLive, completing(message, completionListener));
+            } else {
+                producer.send(segment, deliveryMode, priority, timeToLive);
+            }
+        });
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener)
+            throws JMSException {
+        send(destination, message, producer.getDeliveryMode(), producer.getPriority(), producer.getTimeToLive(),
+                completionListener);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        InputStream body = oversizedBody(message);
+        if (body == null) {
+            producer.send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+            return;
+        }
+        segmenter.send(session, body, segment -> copyHeaders(message, segment), (segment, last) -> {
+            if (last) {
+                producer.send(destination, segment, deliveryMode, priority, timeToLive,
+                        completing(message, completionListener));
+            } else {
+                producer.send(destination, segment, deliveryMode, priority, timeToLive);
+            }
+        });
+    }
+
+    /**
+     * @return the body as a stream if it needs segmenting, otherwise null
+     */
+    private InputStream oversizedBody(Message message) throws JMSException {
+        int limit = segmenter.getSegmentSize();
+        if (message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            if (text == null || text.length() <= limit / 3) {
+                return null;
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            return bytes.length > limit ? new ByteArrayInputStream(bytes) : null;
+        }
+        if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            bytesMessage.reset();
+            return bytesMessage.getBodyLength() > limit ? new BodyInputStream(bytesMessage) : null;
+        }
+        return null;
+    }
+
+    private static void copyHeaders(Message message, BytesMessage segment) throws JMSException {
+        segment.setJMSCorrelationID(message.getJMSCorrelationID());
+        segment.setJMSType(message.getJMSType());
+        segment.setJMSReplyTo(message.getJMSReplyTo());
+        for (Enumeration<?> names = message.getPropertyNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            // JMSX and JMS_ properties belong to the provider, and the group
+            // ones are the segmenter's own
+            if (!name.startsWith("JMSX") && !name.startsWith("JMS_")) {
+                segment.setObjectProperty(name, message.getObjectProperty(name));
+            }
+        }
+    }
+
+    private static CompletionListener completing(Message message, CompletionListener listener) {
+        return new CompletionListener() {
+            @Override
+            public void onCompletion(Message segment) {
+                listener.onCompletion(message);
+            }
+
+            @Override
+            public void onException(Message segment, Exception exception) {
+                listener.onException(message, exception);
+            }
+        };
+    }
+
+    /**
+     * Reads a bytes message's body straight into the segmenter's buffers,
+     * and resets the message once the body is used up.
+     */
+    private static final class BodyInputStream extends InputStream {
+        private final BytesMessage message;
+        private byte[] scratch;
+
+        BodyInputStream(BytesMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            try {
+                int count;
+                if (offset == 0) {
+                    count = message.readBytes(buffer, length);
+                } else {
+                    // readBytes only fills from the start of an array
+                    if (scratch == null) {
+                        scratch = new byte[8192];
+                    }
+                    count = message.readBytes(scratch, Math.min(length, scratch.length));
+                    if (count > 0) {
+                        System.arraycopy(scratch, 0, buffer, offset, count);
+                    }
+                }
+                if (count == -1) {
+                    message.reset();
+                }
+                return count;
+            } catch (JMSException ex) {
+                throw new IOException("Unable to read message body", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.rwmckean.common.jms.transfer;
+
+import java.io.InputStream;
+
+import javax.jms.Message;
+
+/**
+ * Processes one payload reassembled by a {@link SegmentReassembler}.
+ */
+@FunctionalInterface
+public interface StreamHandler {
+
+    /**
+     * @param first the first segment, for its properties; its body has
+     *              already been consumed into the stream
+     * @param body  the whole payload, readable while later segments are
+     *              still arriving; closed for the handler once it returns
+     */
+    void handle(Message first, InputStream body) throws Exception;
+}
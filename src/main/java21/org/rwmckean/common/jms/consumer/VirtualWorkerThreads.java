@@ -0,0 +1,18 @@
+package org.rwmckean.common.jms.consumer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Only compiled by the java21 profile, into META-INF/versions/21 of the jar,
+ * so only a Java 21 runtime sees it. {@link WorkerThreads} looks this class
+ * up by name and falls back to platform threads when it is absent.
+ */
+final class VirtualWorkerThreads {
+    private VirtualWorkerThreads() {
+    }
+
+    static ExecutorService newExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+}